@@ -0,0 +1,119 @@
+package inft3032.bench;
+
+import inft3032.drawables.Geometry;
+import inft3032.drawables.GeometryIO;
+import inft3032.drawables.RayHit;
+import inft3032.drawables.TriangleBVH;
+import inft3032.math.AABB;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+
+/**
+ * Building a TriangleBVH over a generated OBJ grid (see ObjLoaderBenchmark),
+ * on one thread and on every core, and tracing rays down onto it for the
+ * nearest hit and for any hit, as primary and shadow rays do.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class BVHBench {
+
+	private static final int RAYS = 65536;
+
+	@Param({ "100000", "1000000" })
+	public int triangles;
+
+	private Geometry geometry;
+	private TriangleBVH bvh;
+	private ForkJoinPool single;
+	private float[] rays;
+	private final RayHit hit = new RayHit();
+
+	@Setup
+	public void setup() throws IOException {
+		File obj = File.createTempFile("bench", ".obj");
+		try {
+			ObjLoaderBenchmark.writeGrid(obj, triangles);
+			geometry = GeometryIO.loadOBJ(obj);
+		}
+		finally {
+			obj.delete();
+		}
+		bvh = geometry.triangleBVH();
+		single = new ForkJoinPool(1);
+
+		// Rays from above the grid, pointing down and a little to the side
+		AABB b = geometry.bounds();
+		Random random = new Random(42);
+		rays = new float[RAYS * 6];
+		for (int i = 0; i < RAYS; i++) {
+			int o = i * 6;
+			rays[o] = b.minX + random.nextFloat() * (b.maxX - b.minX);
+			rays[o + 1] = b.maxY + 1.0f;
+			rays[o + 2] = b.minZ + random.nextFloat() * (b.maxZ - b.minZ);
+			rays[o + 3] = random.nextFloat() * 0.2f - 0.1f;
+			rays[o + 4] = -1.0f;
+			rays[o + 5] = random.nextFloat() * 0.2f - 0.1f;
+		}
+		System.out.printf("%n%s%n", bvh);
+	}
+
+	@TearDown
+	public void tearDown() {
+		single.shutdown();
+	}
+
+	@Benchmark
+	public TriangleBVH build() {
+		return TriangleBVH.build(geometry, ForkJoinPool.commonPool());
+	}
+
+	@Benchmark
+	public TriangleBVH buildSingleThread() {
+		return TriangleBVH.build(geometry, single);
+	}
+
+	@Benchmark
+	@OutputTimeUnit(TimeUnit.MICROSECONDS)
+	public int closest() {
+		return trace(false);
+	}
+
+	@Benchmark
+	@OutputTimeUnit(TimeUnit.MICROSECONDS)
+	public int any() {
+		return trace(true);
+	}
+
+	private int trace(boolean any) {
+		float[] r = rays;
+		int hits = 0;
+		for (int o = 0; o < r.length; o += 6) {
+			if (bvh.intersect(r[o], r[o + 1], r[o + 2], r[o + 3], r[o + 4], r[o + 5],
+					0.0f, Float.POSITIVE_INFINITY, any, hit) >= 0)
+				hits++;
+		}
+		return hits;
+	}
+}
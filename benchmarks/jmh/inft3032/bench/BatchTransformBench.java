@@ -0,0 +1,111 @@
+package inft3032.bench;
+
+import inft3032.drawables.MeshArena;
+import inft3032.math.BatchTransform;
+import inft3032.math.Matrix4;
+import inft3032.math.MatrixFactory;
+import inft3032.math.MutableMatrix4;
+import inft3032.math.Vector3;
+import inft3032.math.Vector4;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+
+/**
+ * Transforming vertex positions and normals one Matrix4.mult(Vector4) at a
+ * time, against BatchTransform on interleaved vertices (as in
+ * Geometry.vertices) and on separate x, y and z arrays.
+ *
+ * 100M vertices needs a heap of around 14GB:
+ * -Pjmh="-p vertices=100000000 -jvmArgs -Xmx16g"
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class BatchTransformBench {
+
+	private static final int STRIDE = MeshArena.FLOATS_PER_VERTEX;
+
+	@Param({ "1000", "1000000" })
+	public int vertices;
+
+	private final Matrix4 transform = MatrixFactory.translate(new Vector3(1, 2, 3))
+			.mult(new Matrix4(0.8f, -0.6f, 0, 0, 0.6f, 0.8f, 0, 0, 0, 0, 1, 0, 0, 0, 0, 1))
+			.mult(MatrixFactory.scale(new Vector3(2, 1, 0.5f)));
+	private final MutableMatrix4 m = new MutableMatrix4(transform);
+
+	private float[] source;
+	private float[] interleaved;
+	private float[][] split;
+	private float[][] splitOut;
+
+	@Setup
+	public void setup() {
+		Random random = new Random(1);
+		source = new float[vertices * STRIDE];
+		split = new float[6][vertices];
+		splitOut = new float[6][vertices];
+		for (int i = 0; i < vertices; i++) {
+			int o = i * STRIDE;
+			for (int k = 0; k < 3; k++)
+				source[o + k] = random.nextFloat() * 10 - 5;
+			source[o + 4] = 1;
+			for (int k = 0; k < 6; k++)
+				split[k][i] = source[o + k];
+		}
+		interleaved = new float[source.length];
+	}
+
+	/**
+	 * The old way: a Vector4 per position and normal, and the normal matrix
+	 * worked out once.
+	 */
+	@Benchmark
+	public float[] perObject() {
+		Matrix4 normalMatrix = transform.invert().transpose();
+		float[] in = source;
+		float[] out = interleaved;
+		for (int i = 0; i < vertices; i++) {
+			int o = i * STRIDE;
+			Vector4 p = transform.mult(new Vector4(in[o], in[o + 1], in[o + 2], 1));
+			out[o] = p.getX();
+			out[o + 1] = p.getY();
+			out[o + 2] = p.getZ();
+			Vector4 n4 = normalMatrix.mult(new Vector4(in[o + 3], in[o + 4], in[o + 5], 0));
+			Vector3 normal = new Vector3(n4.getX(), n4.getY(), n4.getZ()).unit();
+			out[o + 3] = normal.getX();
+			out[o + 4] = normal.getY();
+			out[o + 5] = normal.getZ();
+		}
+		return out;
+	}
+
+	@Benchmark
+	public float[] batchInterleaved() {
+		BatchTransform.transformInterleaved(m, source, interleaved, 0, vertices, STRIDE, 0, 3);
+		return interleaved;
+	}
+
+	@Benchmark
+	public float[][] batchStructOfArrays() {
+		BatchTransform.transformPoints(m, split[0], split[1], split[2], splitOut[0], splitOut[1], splitOut[2], 0, vertices);
+		BatchTransform.transformNormals(m, split[3], split[4], split[5], splitOut[3], splitOut[4], splitOut[5], 0, vertices);
+		return splitOut;
+	}
+}
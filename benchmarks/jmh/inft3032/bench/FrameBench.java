@@ -0,0 +1,90 @@
+package inft3032.bench;
+
+import inft3032.assign.AssignGLListener;
+import inft3032.scene.Scene;
+import inft3032.scene.Trace;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+
+/**
+ * The CPU work of AssignGLListener.display() on a generated grid of boxes
+ * (see SyntheticScenes), drawn into a RecordingGL so no GPU is needed:
+ * culling, level of detail, uniforms and instance data, and every GL call
+ * the frame makes (through a reflective proxy, so those cost more than
+ * they would with a driver).
+ *
+ * Must be run from the project directory, for the shaders; the jmh task
+ * does this. The GL calls made per frame are printed at the end of each trial.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FrameBench {
+
+	@Param({ "1000", "100000" })
+	public int shapes;
+
+	@Param({ "false", "true" })
+	public boolean instanced;
+
+	private RecordingGL gl;
+	private AssignGLListener listener;
+	private long frames;
+
+	@Setup
+	public void setup() throws IOException {
+		Trace.trace = false;
+		File file = File.createTempFile("bench", ".scene");
+		try {
+			SyntheticScenes.writeBoxGrid(file.getPath(), shapes, 8);
+			Scene scene = new Scene();
+			scene.readText(file.getPath());
+			listener = new AssignGLListener(scene);
+		}
+		finally {
+			file.delete();
+		}
+		listener.setInstanced(instanced);
+
+		gl = new RecordingGL(1280, 720);
+		gl.setUniforms("model", "shapeColour", "objectColour", "shininess", "tex");
+		listener.init(gl.drawable);
+		gl.reset();
+	}
+
+	@TearDown
+	public void tearDown() {
+		StringBuilder calls = new StringBuilder();
+		for (Map.Entry<String, Long> e : gl.calls().entrySet())
+			calls.append(String.format(" %s %.1f", e.getKey(), e.getValue() / (double) frames));
+		System.out.printf("%nGL calls per frame: %.1f;%s%n", gl.totalCalls() / (double) frames, calls);
+		listener.dispose(gl.drawable);
+	}
+
+	@Benchmark
+	public int display() {
+		listener.display(gl.drawable);
+		frames++;
+		return listener.drawCalls();
+	}
+}
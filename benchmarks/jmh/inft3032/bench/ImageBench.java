@@ -0,0 +1,68 @@
+package inft3032.bench;
+
+import inft3032.drawables.Image;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+
+/**
+ * Writing and reading BMP files with Image, at 16:9 sizes up to 4K.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ImageBench {
+
+	@Param({ "640", "3840" })
+	public int width;
+
+	private Image image;
+	private File file;
+
+	@Setup
+	public void setup() throws IOException {
+		int height = width * 9 / 16;
+		int[] pixels = new int[width * height];
+		Random random = new Random(42);
+		for (int i = 0; i < pixels.length; i++)
+			pixels[i] = 0xff000000 | random.nextInt(0x1000000);
+		image = new Image(height, width, pixels);
+		file = File.createTempFile("bench", ".bmp");
+		image.write(file.getPath());
+	}
+
+	@TearDown
+	public void tearDown() {
+		file.delete();
+	}
+
+	@Benchmark
+	public File write() throws IOException {
+		image.write(file.getPath());
+		return file;
+	}
+
+	@Benchmark
+	public Image read() throws IOException {
+		return new Image(file.getPath(), 0);
+	}
+}
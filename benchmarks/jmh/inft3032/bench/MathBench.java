@@ -0,0 +1,88 @@
+package inft3032.bench;
+
+import inft3032.math.Matrix4;
+import inft3032.math.MatrixFactory;
+import inft3032.math.MutableMatrix4;
+import inft3032.math.Vector3;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+
+/**
+ * The matrix operations display() does every frame, with the immutable
+ * Matrix4 and MatrixFactory against MutableMatrix4.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MathBench {
+
+	private final Vector3 eye = new Vector3(3, 4, 20);
+	private final Vector3 poi = new Vector3(-1, 2, -3);
+	private final Vector3 up = new Vector3(0, 1, 0);
+
+	private final Matrix4 projection = MatrixFactory.perspective(45, 1.5f, 0.1f, 100);
+	private final Matrix4 view = MatrixFactory.lookAt(eye, poi, up);
+	private final MutableMatrix4 mutableProjection = new MutableMatrix4(projection);
+	private final MutableMatrix4 mutableView = new MutableMatrix4(view);
+	private final MutableMatrix4 out = new MutableMatrix4();
+	private final float[] matrix = new float[16];
+
+	@Benchmark
+	public Matrix4 matrix4Mult() {
+		return projection.mult(view);
+	}
+
+	@Benchmark
+	public MutableMatrix4 mutableMulInto() {
+		return mutableProjection.mulInto(mutableView, out);
+	}
+
+	@Benchmark
+	public Matrix4 matrix4Invert() {
+		return view.invert();
+	}
+
+	@Benchmark
+	public MutableMatrix4 mutableInvertInto() {
+		return mutableView.invertInto(out);
+	}
+
+	@Benchmark
+	public Matrix4 matrixFactoryLookAt() {
+		return MatrixFactory.lookAt(eye, poi, up);
+	}
+
+	@Benchmark
+	public MutableMatrix4 mutableSetLookAt() {
+		return out.setLookAt(eye, poi, up);
+	}
+
+	@Benchmark
+	public Matrix4 matrixFactoryPerspective() {
+		return MatrixFactory.perspective(45, 1.5f, 0.1f, 100);
+	}
+
+	@Benchmark
+	public MutableMatrix4 mutableSetPerspective() {
+		return out.setPerspective(45, 1.5f, 0.1f, 100);
+	}
+
+	@Benchmark
+	public float[] matrix4ToOpenGL() {
+		return view.toOpenGL(matrix);
+	}
+}
@@ -0,0 +1,77 @@
+package inft3032.bench;
+
+import inft3032.drawables.Geometry;
+import inft3032.drawables.GeometryIO;
+import inft3032.drawables.MeshCache;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+
+/**
+ * Loading a generated OBJ grid (see ObjLoaderBenchmark), smooth or flat
+ * shaded, by parsing it on one thread and on every core, and from its baked
+ * mesh cache.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ObjLoadBench {
+
+	@Param({ "10000", "1000000" })
+	public int triangles;
+
+	@Param({ "false", "true" })
+	public boolean flat;
+
+	private File obj;
+
+	@Setup
+	public void setup() throws IOException {
+		obj = File.createTempFile("bench", ".obj");
+		if (flat)
+			ObjLoaderBenchmark.writeFlatGrid(obj, triangles);
+		else
+			ObjLoaderBenchmark.writeGrid(obj, triangles);
+		MeshCache.bake(obj);
+	}
+
+	@TearDown
+	public void tearDown() {
+		MeshCache.cacheFile(obj).delete();
+		obj.delete();
+	}
+
+	@Benchmark
+	public Geometry loadOBJ() throws IOException {
+		return GeometryIO.loadOBJ(obj);
+	}
+
+	@Benchmark
+	public Geometry loadOBJParallel() throws IOException {
+		return GeometryIO.loadOBJParallel(obj, ForkJoinPool.commonPool());
+	}
+
+	@Benchmark
+	public Geometry loadBaked() throws IOException {
+		return MeshCache.load(obj);
+	}
+}
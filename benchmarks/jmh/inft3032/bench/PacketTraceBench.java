@@ -0,0 +1,83 @@
+package inft3032.bench;
+
+import inft3032.drawables.Image;
+import inft3032.raytrace.RayTracer;
+import inft3032.scene.Scene;
+import inft3032.scene.Trace;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+
+/**
+ * Ray tracing BoxWorld tiled out to many copies (see SyntheticScenes) on one
+ * thread, with primary rays traced in packets and one at a time, to show
+ * what packets save. The rays traced per second are printed at the end of
+ * each trial.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PacketTraceBench {
+
+	private static final int SIZE = 512;
+
+	@Param({ "1", "1024", "16384" })
+	public int copies;
+
+	@Param({ "true", "false" })
+	public boolean packets;
+
+	private RayTracer tracer;
+	private Image image;
+	private long rays;
+	private long nanos;
+
+	@Setup
+	public void setup() throws IOException {
+		Trace.trace = false;
+		File file = File.createTempFile("bench", ".scene");
+		try {
+			SyntheticScenes.writeBoxWorld(file.getPath(), copies);
+			Scene scene = new Scene();
+			scene.readText(file.getPath());
+			tracer = new RayTracer(scene);
+		}
+		finally {
+			file.delete();
+		}
+		tracer.setPackets(packets);
+		tracer.setThreads(1);
+		image = new Image(SIZE, SIZE);
+	}
+
+	@TearDown
+	public void tearDown() {
+		System.out.printf("%n%.2fM rays/s%n", rays * 1.0e3 / nanos);
+	}
+
+	@Benchmark
+	public Image render() {
+		tracer.render(image);
+		rays += tracer.rays();
+		nanos += tracer.renderNanos();
+		return image;
+	}
+}
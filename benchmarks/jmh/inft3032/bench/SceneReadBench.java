@@ -0,0 +1,73 @@
+package inft3032.bench;
+
+import inft3032.scene.CompiledScene;
+import inft3032.scene.Scene;
+import inft3032.scene.Trace;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+
+/**
+ * Reading a generated grid of boxes (see SyntheticScenes) from its text form
+ * with Scene.readText and from its compiled form with CompiledScene.read.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SceneReadBench {
+
+	@Param({ "1000", "100000" })
+	public int shapes;
+
+	private File text;
+	private File compiled;
+
+	@Setup
+	public void setup() throws IOException {
+		Trace.trace = false;
+		text = File.createTempFile("bench", ".scene");
+		SyntheticScenes.writeBoxGrid(text.getPath(), shapes, 8);
+		compiled = File.createTempFile("bench", CompiledScene.EXTENSION);
+		Scene scene = new Scene();
+		scene.readText(text.getPath());
+		CompiledScene.write(scene, compiled);
+	}
+
+	@TearDown
+	public void tearDown() {
+		text.delete();
+		compiled.delete();
+	}
+
+	@Benchmark
+	public Scene readText() {
+		Scene scene = new Scene();
+		scene.readText(text.getPath());
+		return scene;
+	}
+
+	@Benchmark
+	public Scene readCompiled() throws IOException {
+		Scene scene = new Scene();
+		CompiledScene.read(compiled, scene);
+		return scene;
+	}
+}
@@ -0,0 +1,217 @@
+package inft3032.bench;
+
+import inft3032.assign.AssignGLListener;
+import inft3032.drawables.Shape;
+import inft3032.drawables.TessellatedShape;
+import inft3032.math.Matrix4;
+import inft3032.math.MatrixFactory;
+import inft3032.math.Vector3;
+import inft3032.scene.Camera;
+import inft3032.scene.Scene;
+import inft3032.scene.Trace;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Locale;
+
+
+/**
+ * Checks that AssignGLListener.display() allocates nothing once it has
+ * warmed up, drawing into a RecordingGL as FrameBench does.
+ *
+ * The scene is a generated grid of boxes (see SyntheticScenes) with a row of
+ * spheres, cones and cylinders over it. The camera circles it, so culling and
+ * level of detail see changes. Frames are drawn shape by shape, then
+ * instanced, each first with the shapes still and then with every
+ * MOVE_EVERY'th shape moving and growing every other frame, so normal
+ * matrices, the BVH and instance data see changes too.
+ *
+ * What the thread allocates during each display() is counted, less what
+ * RecordingGL allocates to take the GL calls (argument arrays and boxes),
+ * which a real driver wouldn't.
+ *
+ * With the shapes still nothing may be allocated. A moved sphere, cone or
+ * cylinder needs a new model matrix, as Matrix4 is immutable, so with shapes
+ * moving one matrix per moved curved shape per frame is allowed and nothing
+ * more. The odd frame that runs while the JIT swaps code can allocate what
+ * compiled code wouldn't, so a run fails only if more than one frame in a
+ * hundred allocates more than allowed. Prints the bytes allocated per frame
+ * and exits with status 1 if a run fails.
+ * The JVM must be able to measure allocation (HotSpot can). Must be run from
+ * the project directory, for the shaders.
+ *
+ * Usage: java inft3032.bench.FrameMathAllocation [shapes] [frames]
+ */
+public class FrameMathAllocation {
+
+	private static final int CAMERAS = 64;
+	private static final int MOVE_EVERY = 16;
+	private static final int CURVED = 64;
+
+	/** Keeps the matrix measured by matrixBytes() from being optimised away. */
+	private static Object sink;
+
+	public static void main(String[] args) throws IOException {
+		int shapes = args.length > 0 ? Integer.parseInt(args[0]) : 10000;
+		int frames = args.length > 1 ? Integer.parseInt(args[1]) : 1000;
+
+		if (ObjLoaderBenchmark.allocatedBytes() < 0) {
+			System.out.println("This JVM can't measure allocation");
+			System.exit(2);
+		}
+		Trace.trace = false;
+		File file = File.createTempFile("bench", ".scene");
+		file.deleteOnExit();
+		SyntheticScenes.writeBoxGrid(file.getPath(), shapes, 8);
+		addCurvedShapes(file, shapes);
+
+		long matrix = matrixBytes();
+		boolean failed = false;
+		for (boolean instanced : new boolean[] { false, true }) {
+			for (boolean move : new boolean[] { false, true }) {
+				if (!run(file, shapes, frames, instanced, move, matrix))
+					failed = true;
+			}
+		}
+		if (failed)
+			System.exit(1);
+	}
+
+	/**
+	 * Draws the scene for the warm up and then the measured frames.
+	 *
+	 * @param matrix The size of a Matrix4 in bytes.
+	 * @return True if almost every measured frame allocated no more than the
+	 *         moved curved shapes' model matrices.
+	 */
+	private static boolean run(File file, int shapes, int frames, boolean instanced, boolean move, long matrix) {
+		Scene scene = new Scene();
+		scene.readText(file.getPath());
+		AssignGLListener listener = new AssignGLListener(scene);
+		listener.setInstanced(instanced);
+		RecordingGL gl = new RecordingGL(1280, 720);
+		gl.setUniforms("model", "normalMatrix", "shapeColour", "objectColour", "shininess", "tex");
+		listener.init(gl.drawable);
+
+		// The camera circles the grid, looking at its centre
+		Camera[] cameras = new Camera[CAMERAS];
+		float radius = (float) Math.sqrt(shapes) * 1.5f;
+		for (int i = 0; i < CAMERAS; i++) {
+			double angle = 2 * Math.PI * i / CAMERAS;
+			Vector3 eye = new Vector3(radius * Math.cos(angle), radius * 0.3, radius * Math.sin(angle));
+			// The renderer treats the camera's direction as the point to look at
+			cameras[i] = new Camera(eye, new Vector3(0, 0, 0), new Vector3(0, 1, 0), 1.0f, 45);
+		}
+
+		// Each moving shape has two poses, made up front so switching between them allocates nothing
+		ArrayList<Shape> moving = new ArrayList<Shape>();
+		ArrayList<Matrix4[]> poses = new ArrayList<Matrix4[]>();
+		int curved = 0;
+		int n = 0;
+		for (Shape s : scene.shapes) {
+			if (!move || n++ % MOVE_EVERY != 0)
+				continue;
+			if (s instanceof TessellatedShape)
+				curved++;
+			Matrix4 moved = MatrixFactory.translate(new Vector3(0, 0.5f, 0)).mult(s.transform)
+					.mult(MatrixFactory.scale(new Vector3(1.25f, 1.25f, 1.25f)));
+			moving.add(s);
+			poses.add(new Matrix4[] { s.transform, moved });
+		}
+
+		// Warm up, so the allocations measured aren't the JIT's or the first build's
+		gl.countAllocation(true);
+		for (int i = 0; i < frames; i++) {
+			step(scene, cameras, moving, poses, i);
+			listener.display(gl.drawable);
+		}
+
+		long allowed = curved * matrix;
+		long measuring = ObjLoaderBenchmark.allocatedBytes();
+		measuring = ObjLoaderBenchmark.allocatedBytes() - measuring;
+		long allocated = 0;
+		long byGL = 0;
+		int allocatingFrames = 0;
+		long drawCalls = 0;
+		long nanos = 0;
+		for (int i = 0; i < frames; i++) {
+			step(scene, cameras, moving, poses, i);
+			long proxies = gl.allocatedBytes();
+			long before = ObjLoaderBenchmark.allocatedBytes();
+			long start = System.nanoTime();
+			listener.display(gl.drawable);
+			nanos += System.nanoTime() - start;
+			long frame = ObjLoaderBenchmark.allocatedBytes() - before - measuring;
+			long proxy = gl.allocatedBytes() - proxies;
+			if (frame - proxy > allowed)
+				allocatingFrames++;
+			allocated += frame - proxy;
+			byGL += proxy;
+			drawCalls += listener.drawCalls();
+		}
+		listener.dispose(gl.drawable);
+
+		System.out.printf("%s, %s, %d shapes, %d frames: %.3fms and %.1f bytes allocated per frame "
+				+ "(%d allowed for %d moved curved shapes, and %.0f by RecordingGL), %d draw calls on average%n",
+				instanced ? "Instanced" : "Shape by shape", move ? "moving" : "still", scene.shapes.size(), frames,
+				nanos / 1.0e6 / frames, (double) allocated / frames, allowed, curved, (double) byGL / frames,
+				drawCalls / frames);
+		if (allocatingFrames > 0) {
+			System.out.println(allocatingFrames + " frames allocated more than allowed");
+		}
+		if (allocatingFrames > frames / 100) {
+			System.out.println("FAILED: display() allocated " + allocated + " bytes, more than allowed in "
+					+ allocatingFrames + " frames");
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * @return The bytes allocated for one Matrix4, as a model matrix is made.
+	 */
+	private static long matrixBytes() {
+		Matrix4 m = new Matrix4();
+		Vector3 scale = new Vector3(1, 2, 3);
+		long least = Long.MAX_VALUE;
+		for (int i = 0; i < 16; i++) {
+			long before = ObjLoaderBenchmark.allocatedBytes();
+			sink = m.scaled(scale);
+			least = Math.min(least, ObjLoaderBenchmark.allocatedBytes() - before);
+		}
+		return least;
+	}
+
+	/**
+	 * Moves the camera and the moving shapes on to a frame.
+	 */
+	private static void step(Scene scene, Camera[] cameras, ArrayList<Shape> moving, ArrayList<Matrix4[]> poses, int frame) {
+		scene.camera = cameras[frame % CAMERAS];
+		for (int i = 0; i < moving.size(); i++)
+			moving.get(i).transform = poses.get(i)[frame & 1];
+	}
+
+	/**
+	 * Adds a row of spheres, cones and cylinders over the grid, so level of
+	 * detail has something to do.
+	 */
+	private static void addCurvedShapes(File file, int shapes) throws IOException {
+		float extent = (float) Math.ceil(Math.sqrt(shapes)) * 1.5f / 2;
+		PrintWriter out = new PrintWriter(new BufferedWriter(new FileWriter(file, true)));
+		try {
+			for (int i = 0; i < CURVED; i++) {
+				float x = -extent + 2 * extent * i / CURVED;
+				out.printf(Locale.ROOT, "#shape_sphere %d%n\t%.2f 2.0 0.0%n\t0.5%n", i % 8, x);
+				out.printf(Locale.ROOT, "#shape_cone %d%n\t%.2f 2.0 2.0%n\t0.5 1.0%n", i % 8, x);
+				out.printf(Locale.ROOT, "#shape_cylinder %d%n\t%.2f 2.0 -2.0%n\t0.5 1.0%n", i % 8, x);
+			}
+		}
+		finally {
+			out.close();
+		}
+	}
+}
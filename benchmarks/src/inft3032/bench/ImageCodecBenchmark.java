@@ -0,0 +1,154 @@
+package inft3032.bench;
+
+import inft3032.drawables.Image;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.Random;
+
+
+/**
+ * Compares BMP encode/decode throughput of Image against the original
+ * byte-at-a-time implementation, on a 4K (3840x2160) image.
+ *
+ * Usage: java inft3032.bench.ImageCodecBenchmark [iterations]
+ */
+public class ImageCodecBenchmark {
+
+	private static final int WIDTH = 3840;
+	private static final int HEIGHT = 2160;
+
+	public static void main(String[] args) throws IOException {
+		int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 20;
+
+		int[] pixels = new int[WIDTH * HEIGHT];
+		Random random = new Random(42);
+		for (int i = 0; i < pixels.length; i++)
+			pixels[i] = 0xff000000 | random.nextInt(0x1000000);
+		Image image = new Image(HEIGHT, WIDTH, pixels);
+
+		File file = File.createTempFile("bench", ".bmp");
+		file.deleteOnExit();
+		String name = file.getPath();
+		double megabytes = (54 + Image.scanLineSize(WIDTH) * (double) HEIGHT) / (1024 * 1024);
+
+		// Warm up both paths before timing anything
+		for (int i = 0; i < 3; i++) {
+			LegacyBmp.write(image, name);
+			LegacyBmp.read(name);
+			image.write(name);
+			new Image(name, 0);
+		}
+
+		long start = System.nanoTime();
+		for (int i = 0; i < iterations; i++)
+			LegacyBmp.write(image, name);
+		report("legacy write", megabytes * iterations, System.nanoTime() - start);
+
+		start = System.nanoTime();
+		for (int i = 0; i < iterations; i++)
+			LegacyBmp.read(name);
+		report("legacy read ", megabytes * iterations, System.nanoTime() - start);
+
+		start = System.nanoTime();
+		for (int i = 0; i < iterations; i++)
+			image.write(name);
+		report("bulk write  ", megabytes * iterations, System.nanoTime() - start);
+
+		start = System.nanoTime();
+		Image decoded = null;
+		for (int i = 0; i < iterations; i++)
+			decoded = new Image(name, 0);
+		report("bulk read   ", megabytes * iterations, System.nanoTime() - start);
+
+		for (int row = 0; row < HEIGHT; row++)
+			for (int col = 0; col < WIDTH; col++)
+				if ((decoded.get(col, row) & 0xffffff) != (image.get(col, row) & 0xffffff))
+					throw new IllegalStateException("Round trip mismatch at " + col + "," + row);
+	}
+
+	private static void report(String label, double megabytes, long nanos) {
+		System.out.printf("%s %8.1f MB/s%n", label, megabytes / (nanos / 1.0e9));
+	}
+
+	/**
+	 * The original Image codec: one byte at a time through a heap ByteBuffer.
+	 */
+	static class LegacyBmp {
+
+		static void write(Image image, String fileName) throws IOException {
+			int width = image.width();
+			int height = image.height();
+			int iScanLineSize = 3 * width;
+			boolean padded = false;
+			if (iScanLineSize % 2 != 0) {
+				iScanLineSize++;
+				padded = true;
+			}
+			int fileSize = 14 + 40 + (iScanLineSize * height);
+			ByteBuffer bbuf = ByteBuffer.allocate(fileSize);
+			bbuf.order(ByteOrder.LITTLE_ENDIAN);
+			bbuf.putShort((short) 0x4d42);
+			bbuf.putInt(fileSize);
+			bbuf.putShort((short) 0);
+			bbuf.putShort((short) 0);
+			bbuf.putInt(54);
+			bbuf.putInt(40);
+			bbuf.putInt(width);
+			bbuf.putInt(height);
+			bbuf.putShort((short) 1);
+			bbuf.putShort((short) 24);
+			bbuf.putInt(0);
+			bbuf.putInt(iScanLineSize * height);
+			bbuf.putInt(0);
+			bbuf.putInt(0);
+			bbuf.putInt(0);
+			bbuf.putInt(0);
+			for (int row = (height - 1); row >= 0; row--) {
+				for (int column = 0; column < width; column++) {
+					int pixel = image.get(column, row);
+					bbuf.put((byte) Image.blue(pixel));
+					bbuf.put((byte) Image.green(pixel));
+					bbuf.put((byte) Image.red(pixel));
+				}
+				if (padded)
+					bbuf.put((byte) 0);
+			}
+			bbuf.flip();
+			FileOutputStream fos = new FileOutputStream(fileName);
+			fos.getChannel().write(bbuf);
+			fos.close();
+		}
+
+		static Image read(String fileName) throws IOException {
+			FileInputStream fis = new FileInputStream(fileName);
+			FileChannel fc = fis.getChannel();
+			ByteBuffer bbuf = ByteBuffer.allocate((int) fc.size());
+			fc.read(bbuf);
+			fis.close();
+			bbuf.order(ByteOrder.LITTLE_ENDIAN);
+			bbuf.position(18);
+			int width = bbuf.getInt();
+			int height = bbuf.getInt();
+			bbuf.position(54);
+			boolean padded = (3 * width) % 2 != 0;
+			Image image = new Image(height, width);
+			for (int row = (height - 1); row >= 0; row--) {
+				for (int column = 0; column < width; column++) {
+					byte blue = bbuf.get();
+					byte green = bbuf.get();
+					byte red = bbuf.get();
+					image.set(column, row, Image.colour(red, green, blue, 0));
+				}
+				if (padded)
+					bbuf.get();
+			}
+			return image;
+		}
+	}
+}
@@ -0,0 +1,206 @@
+package inft3032.bench;
+
+import inft3032.drawables.Geometry;
+import inft3032.drawables.GeometryIO;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.concurrent.ForkJoinPool;
+
+
+/**
+ * Measures GeometryIO.loadOBJ on a generated OBJ file: a wavy grid of quads
+ * with positions, texture coordinates and normals, 2 triangles per quad.
+ * With -flat the grid is flat shaded instead, one normal per quad written as
+ * v//vn, so each position is shared by up to four distinct corners.
+ *
+ * Reports throughput and the bytes allocated per load (where the JVM can
+ * measure it), which should be close to the size of the output arrays.
+ * Then loads the same file with loadOBJParallel on 1, 2, 4... threads up to
+ * the number of cores, checking each result matches the sequential one.
+ *
+ * Usage: java inft3032.bench.ObjLoaderBenchmark [-flat] [triangles] [iterations]
+ */
+public class ObjLoaderBenchmark {
+
+	public static void main(String[] args) throws IOException {
+		boolean flat = args.length > 0 && args[0].equals("-flat");
+		if (flat)
+			args = Arrays.copyOfRange(args, 1, args.length);
+		int triangles = args.length > 0 ? Integer.parseInt(args[0]) : 10000000;
+		int iterations = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+
+		File file = File.createTempFile("bench", ".obj");
+		file.deleteOnExit();
+		if (flat)
+			writeFlatGrid(file, triangles);
+		else
+			writeGrid(file, triangles);
+		double megabytes = file.length() / (1024.0 * 1024.0);
+		System.out.printf("Generated %.1fMB %s OBJ with %d triangles%n", megabytes, flat ? "flat shaded" : "smooth", triangles);
+
+		// Warm up
+		GeometryIO.loadOBJ(file);
+
+		Geometry sequential = null;
+		for (int i = 0; i < iterations; i++) {
+			long allocated = allocatedBytes();
+			long start = System.nanoTime();
+			Geometry g = GeometryIO.loadOBJ(file);
+			long nanos = System.nanoTime() - start;
+			sequential = g;
+			allocated = allocatedBytes() - allocated;
+			System.out.printf("%.0fms, %.0f MB/s, %d vertices, %d triangles, %s allocated%n",
+					nanos / 1.0e6, megabytes / (nanos / 1.0e9), g.vertexCount, g.triangleCount(),
+					allocated < 0 ? "?" : String.format("%.1fMB", allocated / (1024.0 * 1024.0)));
+		}
+
+		int cores = Runtime.getRuntime().availableProcessors();
+		for (int threads = 1; ; threads = Math.min(threads * 2, cores)) {
+			ForkJoinPool pool = new ForkJoinPool(threads);
+			GeometryIO.loadOBJParallel(file, pool);
+			long best = Long.MAX_VALUE;
+			Geometry g = null;
+			for (int i = 0; i < iterations; i++) {
+				long start = System.nanoTime();
+				g = GeometryIO.loadOBJParallel(file, pool);
+				best = Math.min(best, System.nanoTime() - start);
+			}
+			pool.shutdown();
+			System.out.printf("Parallel, %d thread%s: best %.0fms, %.0f MB/s%s%n", threads, threads == 1 ? "" : "s",
+					best / 1.0e6, megabytes / (best / 1.0e9), same(sequential, g) ? "" : " - DIFFERENT RESULT");
+			if (threads == cores)
+				break;
+		}
+	}
+
+	/**
+	 * @return True if two loads produced the same mesh.
+	 */
+	static boolean same(Geometry a, Geometry b) {
+		int floats = a.vertexCount * 9;
+		return a.vertexCount == b.vertexCount && a.indexCount == b.indexCount
+				&& Arrays.equals(Arrays.copyOf(a.vertices, floats), Arrays.copyOf(b.vertices, floats))
+				&& Arrays.equals(Arrays.copyOf(a.indices, a.indexCount), Arrays.copyOf(b.indices, b.indexCount));
+	}
+
+	/**
+	 * getCurrentThreadAllocatedBytes, on JVMs that have it (Java 14 on). Unlike
+	 * getThreadAllocatedBytes it allocates nothing itself, so it can measure
+	 * small amounts.
+	 */
+	private static final MethodHandle CURRENT_THREAD_ALLOCATED = currentThreadAllocated();
+
+	private static MethodHandle currentThreadAllocated() {
+		java.lang.management.ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		if (!(threads instanceof com.sun.management.ThreadMXBean))
+			return null;
+		try {
+			return MethodHandles.publicLookup().findVirtual(com.sun.management.ThreadMXBean.class,
+					"getCurrentThreadAllocatedBytes", MethodType.methodType(long.class)).bindTo(threads);
+		}
+		catch (ReflectiveOperationException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * @return The bytes allocated by this thread so far, or a negative number if unknown.
+	 */
+	static long allocatedBytes() {
+		if (CURRENT_THREAD_ALLOCATED != null) {
+			try {
+				return (long) CURRENT_THREAD_ALLOCATED.invokeExact();
+			}
+			catch (Throwable e) {
+				throw new IllegalStateException(e);
+			}
+		}
+		java.lang.management.ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		if (threads instanceof com.sun.management.ThreadMXBean)
+			return ((com.sun.management.ThreadMXBean) threads).getThreadAllocatedBytes(Thread.currentThread().getId());
+		return -1;
+	}
+
+	/**
+	 * Writes a square grid of at least the given number of triangles.
+	 */
+	static void writeGrid(File file, int triangles) throws IOException {
+		writeGrid(file, triangles, false);
+	}
+
+	/**
+	 * Writes a square grid of at least the given number of triangles, flat
+	 * shaded: positions and one normal per quad, with faces written as v//vn.
+	 */
+	static void writeFlatGrid(File file, int triangles) throws IOException {
+		writeGrid(file, triangles, true);
+	}
+
+	private static void writeGrid(File file, int triangles, boolean flat) throws IOException {
+		int side = (int) Math.ceil(Math.sqrt(triangles / 2.0));
+		int points = side + 1;
+		PrintWriter out = new PrintWriter(new BufferedWriter(new FileWriter(file), 1 << 16));
+		try {
+			out.println("# generated by ObjLoaderBenchmark");
+			for (int z = 0; z < points; z++) {
+				for (int x = 0; x < points; x++) {
+					float y = (float) (Math.sin(x * 0.1) * Math.cos(z * 0.1));
+					out.printf(Locale.ROOT, "v %.6f %.6f %.6f%n", x * 0.01f, y, z * 0.01f);
+				}
+			}
+			if (flat) {
+				// One normal per quad, so every corner of a position differs by its normal
+				for (int z = 0; z < side; z++) {
+					for (int x = 0; x < side; x++) {
+						float nx = (float) (Math.sin((x + 0.5) * 0.1) * 0.1);
+						float nz = (float) (Math.cos((z + 0.5) * 0.1) * 0.1);
+						out.printf(Locale.ROOT, "vn %.6f %.6f %.6f%n", nx, 1.0f, nz);
+					}
+				}
+				for (int z = 0; z < side; z++) {
+					for (int x = 0; x < side; x++) {
+						int a = z * points + x + 1;
+						int b = a + 1;
+						int c = a + points + 1;
+						int d = a + points;
+						int n = z * side + x + 1;
+						out.printf("f %d//%d %d//%d %d//%d %d//%d%n", a, n, b, n, c, n, d, n);
+					}
+				}
+				return;
+			}
+			for (int z = 0; z < points; z++) {
+				for (int x = 0; x < points; x++) {
+					out.printf(Locale.ROOT, "vt %.6f %.6f%n", (float) x / side, (float) z / side);
+				}
+			}
+			for (int z = 0; z < points; z++) {
+				for (int x = 0; x < points; x++) {
+					out.printf(Locale.ROOT, "vn %.6f %.6f %.6f%n", 0.0f, 1.0f, 0.0f);
+				}
+			}
+			for (int z = 0; z < side; z++) {
+				for (int x = 0; x < side; x++) {
+					int a = z * points + x + 1;
+					int b = a + 1;
+					int c = a + points + 1;
+					int d = a + points;
+					out.printf("f %d/%d/%d %d/%d/%d %d/%d/%d %d/%d/%d%n", a, a, a, b, b, b, c, c, c, d, d, d);
+				}
+			}
+		}
+		finally {
+			out.close();
+		}
+	}
+}
@@ -0,0 +1,340 @@
+package inft3032.bench;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+import javax.media.opengl.GL;
+import javax.media.opengl.GL3;
+import javax.media.opengl.GLAutoDrawable;
+
+
+/**
+ * A stand-in for a GL3 context and drawable that draws nothing and only
+ * counts the calls made on it, so the CPU side of AssignGLListener can be
+ * benchmarked on a machine without a GPU.
+ *
+ * It is a dynamic proxy, so every GL call costs a reflective dispatch and
+ * boxes its arguments; compare frames with each other, not with a real
+ * driver. Calls answer as a working driver would where the renderer checks:
+ * shaders compile and link, names are handed out, fences are already
+ * signalled and mapped buffers are real (reused) memory. Every program has
+ * the uniforms given to setUniforms(). Everything else returns 0, false or
+ * null.
+ * <p/>
+ * With countAllocation(true) it also keeps track of the memory the proxies
+ * allocate, so that can be told apart from what the caller allocates (see
+ * FrameMathAllocation).
+ */
+public class RecordingGL implements InvocationHandler {
+
+	public final GL3 gl;
+	public final GLAutoDrawable drawable;
+
+	private final int width;
+	private final int height;
+
+	private final Map<String, long[]> calls = new TreeMap<String, long[]>();
+	private long total;
+	private int nextName = 1;
+	private ByteBuffer mapped = ByteBuffer.allocateDirect(0);
+	private String[] uniforms = new String[0];
+
+	private boolean countAllocation;
+	private long allocated;
+
+	/**
+	 * The size of an Object[] of each length, and of each kind of box, on this JVM.
+	 */
+	private long[] arrayBytes;
+	private final Map<Class<?>, Long> boxBytes = new HashMap<Class<?>, Long>();
+
+	/**
+	 * What asking how much has been allocated allocates, on some JVMs.
+	 */
+	private long measuring;
+	private static Object sink;
+
+	/**
+	 * @param width The width the drawable reports.
+	 * @param height The height the drawable reports.
+	 */
+	public RecordingGL(int width, int height) {
+		this.width = width;
+		this.height = height;
+		gl = (GL3) Proxy.newProxyInstance(GL3.class.getClassLoader(), new Class<?>[] { GL3.class }, this);
+		drawable = (GLAutoDrawable) Proxy.newProxyInstance(GLAutoDrawable.class.getClassLoader(),
+				new Class<?>[] { GLAutoDrawable.class }, this);
+	}
+
+	/**
+	 * Sets the active uniforms every program reports, so the renderer finds
+	 * them and sets them as it would with a real driver.
+	 *
+	 * @param names The uniform names.
+	 */
+	public void setUniforms(String... names) {
+		uniforms = names.clone();
+	}
+
+	/**
+	 * @return The number of calls to each GL function since the last reset, by name.
+	 */
+	public Map<String, Long> calls() {
+		Map<String, Long> counts = new TreeMap<String, Long>();
+		for (Map.Entry<String, long[]> e : calls.entrySet())
+			counts.put(e.getKey(), e.getValue()[0]);
+		return counts;
+	}
+
+	/**
+	 * @return The number of GL calls since the last reset.
+	 */
+	public long totalCalls() {
+		return total;
+	}
+
+	public void reset() {
+		calls.clear();
+		total = 0;
+		allocated = 0;
+	}
+
+	/**
+	 * Starts or stops counting the bytes the proxies allocate. Needs a JVM
+	 * that can measure a thread's allocation, such as HotSpot.
+	 */
+	public void countAllocation(boolean on) {
+		if (on && arrayBytes == null)
+			measureSizes();
+		countAllocation = on;
+	}
+
+	/**
+	 * @return The bytes allocated by calls on the proxies since the last
+	 *         reset, while counting: their argument arrays, boxing their
+	 *         arguments and results, and everything done here to answer them.
+	 */
+	public long allocatedBytes() {
+		return allocated;
+	}
+
+	public Object invoke(Object proxy, Method method, Object[] args) {
+		if (!countAllocation)
+			return answer(proxy, method, args);
+		long start = ObjLoaderBenchmark.allocatedBytes();
+		Object result = answer(proxy, method, args);
+		long before = proxyBytes(args);
+		// Asking twice allocates as much as asking once does outside the two answers
+		allocated += ObjLoaderBenchmark.allocatedBytes() - start + before + measuring;
+		return result;
+	}
+
+	/**
+	 * @return What the proxy allocated before calling invoke: the argument
+	 *         array, and a box for each primitive argument that didn't come
+	 *         from the JDK's caches.
+	 */
+	private long proxyBytes(Object[] args) {
+		if (args == null)
+			return 0;
+		long bytes = arrayBytes[args.length];
+		for (Object a : args) {
+			if (a instanceof Float || a instanceof Double)
+				bytes += boxBytes.get(a.getClass());
+			else if ((a instanceof Integer && Integer.valueOf((Integer) a) != a)
+					|| (a instanceof Long && Long.valueOf((Long) a) != a)
+					|| (a instanceof Short && Short.valueOf((Short) a) != a)
+					|| (a instanceof Character && Character.valueOf((Character) a) != a))
+				bytes += boxBytes.get(a.getClass());
+		}
+		return bytes;
+	}
+
+	private void measureSizes() {
+		measuring = Long.MAX_VALUE;
+		for (int i = 0; i < 8; i++) {
+			long start = ObjLoaderBenchmark.allocatedBytes();
+			measuring = Math.min(measuring, ObjLoaderBenchmark.allocatedBytes() - start);
+		}
+		arrayBytes = new long[256];
+		for (int n = 0; n < arrayBytes.length; n++) {
+			long start = ObjLoaderBenchmark.allocatedBytes();
+			sink = new Object[n];
+			arrayBytes[n] = ObjLoaderBenchmark.allocatedBytes() - start - measuring;
+		}
+		Object[] boxes = { Integer.valueOf(1 << 20), Long.valueOf(1L << 40), Short.valueOf((short) 1000),
+				Character.valueOf((char) 1000), Float.valueOf(0.5f), Double.valueOf(0.5) };
+		for (Object b : boxes) {
+			long before = ObjLoaderBenchmark.allocatedBytes();
+			sink = copy(b);
+			boxBytes.put(b.getClass(), ObjLoaderBenchmark.allocatedBytes() - before - measuring);
+		}
+	}
+
+	/**
+	 * @return A new box holding the same value.
+	 */
+	private static Object copy(Object box) {
+		if (box instanceof Integer)
+			return Integer.valueOf(((Integer) box).intValue() + 1);
+		if (box instanceof Long)
+			return Long.valueOf(((Long) box).longValue() + 1);
+		if (box instanceof Short)
+			return Short.valueOf((short) (((Short) box).shortValue() + 1));
+		if (box instanceof Character)
+			return Character.valueOf((char) (((Character) box).charValue() + 1));
+		if (box instanceof Float)
+			return Float.valueOf(((Float) box).floatValue() + 1);
+		return Double.valueOf(((Double) box).doubleValue() + 1);
+	}
+
+	private Object answer(Object proxy, Method method, Object[] args) {
+		String name = method.getName();
+		if (proxy == drawable) {
+			if (name.equals("getGL"))
+				return gl;
+			if (name.equals("getWidth") || name.equals("getSurfaceWidth"))
+				return width;
+			if (name.equals("getHeight") || name.equals("getSurfaceHeight"))
+				return height;
+			return basics(proxy, method, args);
+		}
+		if (!name.startsWith("gl"))
+			return basics(proxy, method, args);
+
+		long[] count = calls.get(name);
+		if (count == null) {
+			count = new long[1];
+			calls.put(name, count);
+		}
+		count[0]++;
+		total++;
+
+		if (name.equals("glGenBuffers") || name.equals("glGenTextures") || name.equals("glGenVertexArrays")) {
+			int n = (Integer) args[0];
+			for (int i = 0; i < n; i++)
+				store(args, 1, nextName++, i);
+			return null;
+		}
+		if (name.equals("glCreateShader") || name.equals("glCreateProgram"))
+			return nextName++;
+		if (name.equals("glFenceSync"))
+			return (long) nextName++;
+		if (name.equals("glClientWaitSync"))
+			return GL3.GL_ALREADY_SIGNALED;
+		if (name.equals("glGetShaderiv") || name.equals("glGetProgramiv")) {
+			store(args, 2, parameter((Integer) args[1]), 0);
+			return null;
+		}
+		if (name.equals("glGetActiveUniform") && args.length == 11) {
+			// (program, index, bufSize, length, lengthOffset, size, sizeOffset, type, typeOffset, name, nameOffset)
+			byte[] uniform = uniforms[(Integer) args[1]].getBytes();
+			System.arraycopy(uniform, 0, (byte[]) args[9], (Integer) args[10], uniform.length);
+			store(args, 3, uniform.length, 0);
+			store(args, 5, 1, 0);
+			return null;
+		}
+		if (name.equals("glGetUniformLocation")) {
+			for (int i = 0; i < uniforms.length; i++) {
+				if (uniforms[i].equals(args[1]))
+					return i;
+			}
+			return -1;
+		}
+		if (name.equals("glGetString"))
+			return "RecordingGL";
+		if (name.equals("glMapBufferRange"))
+			return map((int) (long) (Long) args[2]);
+		if (name.equals("glUnmapBuffer"))
+			return true;
+		return zero(method.getReturnType());
+	}
+
+	/**
+	 * Answers glGetShaderiv and glGetProgramiv.
+	 */
+	private int parameter(int pname) {
+		if (pname == GL3.GL_COMPILE_STATUS || pname == GL3.GL_LINK_STATUS)
+			return GL.GL_TRUE;
+		if (pname == GL3.GL_ACTIVE_UNIFORMS)
+			return uniforms.length;
+		if (pname == GL3.GL_ACTIVE_UNIFORM_MAX_LENGTH) {
+			int longest = 0;
+			for (String u : uniforms)
+				longest = Math.max(longest, u.length() + 1);
+			return longest;
+		}
+		return 0;
+	}
+
+	/**
+	 * Handles the methods every proxy gets: getGL3() and the like, isGL3(),
+	 * and Object's methods.
+	 */
+	private Object basics(Object proxy, Method method, Object[] args) {
+		String name = method.getName();
+		Class<?> type = method.getReturnType();
+		if (name.equals("equals"))
+			return proxy == args[0];
+		if (name.equals("hashCode"))
+			return System.identityHashCode(proxy);
+		if (name.equals("toString"))
+			return "RecordingGL " + width + "x" + height;
+		if (name.startsWith("getGL") && type.isInstance(gl))
+			return gl;
+		if (name.startsWith("isGL") || name.startsWith("hasGL"))
+			return name.equals("isGL3") || name.equals("isGL2GL3") || name.equals("isGL2ES2") || name.equals("isGL3ES3");
+		return zero(type);
+	}
+
+	/**
+	 * Writes a value to an output argument given as either an int[] and an
+	 * offset or an IntBuffer.
+	 */
+	private static void store(Object[] args, int index, int value, int element) {
+		Object out = args[index];
+		if (out instanceof int[]) {
+			int offset = index + 1 < args.length && args[index + 1] instanceof Integer ? (Integer) args[index + 1] : 0;
+			((int[]) out)[offset + element] = value;
+		}
+		else if (out instanceof IntBuffer) {
+			IntBuffer b = (IntBuffer) out;
+			b.put(b.position() + element, value);
+		}
+	}
+
+	private ByteBuffer map(int length) {
+		if (mapped.capacity() < length)
+			mapped = ByteBuffer.allocateDirect(length).order(ByteOrder.nativeOrder());
+		mapped.clear();
+		mapped.limit(length);
+		return mapped.slice();
+	}
+
+	private static Object zero(Class<?> type) {
+		if (!type.isPrimitive() || type == void.class)
+			return null;
+		if (type == boolean.class)
+			return false;
+		if (type == int.class)
+			return 0;
+		if (type == long.class)
+			return 0L;
+		if (type == float.class)
+			return 0.0f;
+		if (type == double.class)
+			return 0.0;
+		if (type == short.class)
+			return (short) 0;
+		if (type == byte.class)
+			return (byte) 0;
+		return (char) 0;
+	}
+}
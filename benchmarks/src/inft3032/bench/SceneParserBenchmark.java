@@ -0,0 +1,72 @@
+package inft3032.bench;
+
+import inft3032.scene.Scene;
+import inft3032.scene.SceneFileStreamTokenizer;
+import inft3032.scene.Trace;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+
+
+/**
+ * Compares Scene.read, which uses SceneFileBufferTokenizer, with reading the
+ * same file through the old StreamTokenizer based SceneFileStreamTokenizer,
+ * on a generated grid of boxes (see SyntheticScenes).
+ *
+ * Reports the time and bytes allocated per read (where the JVM can measure
+ * it). Most of what is allocated either way is the Scene itself.
+ *
+ * Usage: java inft3032.bench.SceneParserBenchmark [shapes] [iterations]
+ */
+public class SceneParserBenchmark {
+
+	public static void main(String[] args) throws IOException {
+		int shapes = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+		int iterations = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+
+		File file = File.createTempFile("bench", ".scene");
+		file.deleteOnExit();
+		SyntheticScenes.writeBoxGrid(file.getPath(), shapes, 8);
+		double megabytes = file.length() / (1024.0 * 1024.0);
+		System.out.printf("Generated %.1fMB scene with %d shapes%n", megabytes, shapes);
+		Trace.trace = false;
+
+		for (int pass = 0; pass < 2; pass++) {
+			boolean buffer = pass == 0;
+			read(file, buffer);
+			long best = Long.MAX_VALUE;
+			for (int i = 0; i < iterations; i++) {
+				long allocated = ObjLoaderBenchmark.allocatedBytes();
+				long start = System.nanoTime();
+				Scene scene = read(file, buffer);
+				long nanos = System.nanoTime() - start;
+				allocated = ObjLoaderBenchmark.allocatedBytes() - allocated;
+				best = Math.min(best, nanos);
+				System.out.printf("%s: %.0fms, %.0f MB/s, %d shapes, %s allocated%n",
+						buffer ? "SceneFileBufferTokenizer" : "SceneFileStreamTokenizer",
+						nanos / 1.0e6, megabytes / (nanos / 1.0e9), scene.shapes.size(),
+						allocated < 0 ? "?" : String.format("%.1fMB", allocated / (1024.0 * 1024.0)));
+			}
+			System.out.printf("Best: %.0fms%n", best / 1.0e6);
+		}
+	}
+
+	private static Scene read(File file, boolean buffer) throws IOException {
+		Scene scene = new Scene();
+		if (buffer) {
+			scene.read(file.getPath());
+		}
+		else {
+			BufferedReader in = new BufferedReader(new FileReader(file));
+			try {
+				scene.read(new SceneFileStreamTokenizer(in));
+			}
+			finally {
+				in.close();
+			}
+		}
+		return scene;
+	}
+}
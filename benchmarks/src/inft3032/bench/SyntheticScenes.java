@@ -0,0 +1,190 @@
+package inft3032.bench;
+
+import java.io.BufferedWriter;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Locale;
+
+
+/**
+ * Writes large synthetic scene files for measuring draw throughput.
+ *
+ * The scene is a square grid of boxes on the XZ plane, all the same size,
+ * with materials assigned round-robin, so an instanced renderer draws the
+ * whole grid in one call per material.
+ *
+ * Usage: java inft3032.bench.SyntheticScenes [file] [boxes] [materials]
+ *
+ * e.g. java inft3032.bench.SyntheticScenes scenes/Boxes100k.scene 100000 8
+ * then run the assignment with -scene scenes/Boxes100k.scene, with and
+ * without -instanced, and compare the frame reports.
+ *
+ * It can also tile copies of BoxWorldDiffuse.scene (a floor of two triangles
+ * with four boxes on it) across the XZ plane, for the ray tracer:
+ *
+ * Usage: java inft3032.bench.SyntheticScenes -boxworld [file] [copies]
+ */
+public class SyntheticScenes {
+
+	public static void main(String[] args) throws IOException {
+		if (args.length > 0 && args[0].equals("-boxworld")) {
+			String fileName = args.length > 1 ? args[1] : "scenes/BoxWorld1k.scene";
+			int copies = args.length > 2 ? Integer.parseInt(args[2]) : 1000;
+			writeBoxWorld(fileName, copies);
+			System.out.printf("Wrote %d copies of BoxWorld to %s%n", copies, fileName);
+			return;
+		}
+		String fileName = args.length > 0 ? args[0] : "scenes/Boxes100k.scene";
+		int boxes = args.length > 1 ? Integer.parseInt(args[1]) : 100000;
+		int materials = args.length > 2 ? Integer.parseInt(args[2]) : 8;
+		writeBoxGrid(fileName, boxes, materials);
+		System.out.printf("Wrote %d boxes with %d materials to %s%n", boxes, materials, fileName);
+	}
+
+	/**
+	 * Writes a grid of boxes.
+	 *
+	 * @param fileName The scene file to write.
+	 * @param boxes The number of boxes.
+	 * @param materials The number of distinct materials.
+	 */
+	public static void writeBoxGrid(String fileName, int boxes, int materials) throws IOException {
+		int side = (int) Math.ceil(Math.sqrt(boxes));
+		float spacing = 1.5f;
+		float extent = side * spacing / 2;
+
+		PrintWriter out = new PrintWriter(new BufferedWriter(new FileWriter(fileName)));
+		try {
+			out.println("#camera");
+			out.printf(Locale.ROOT, "\t%.1f %.1f %.1f%n", extent, extent, extent * 1.5f);
+			out.printf(Locale.ROOT, "\t%.1f %.1f %.1f%n", -extent, -extent, -extent * 1.5f);
+			out.println("\t0.0 1.0 0.0");
+			out.println("\t45");
+			out.println("#background 0.0 0.0 0.0");
+			out.println("#ambient 0.1 0.1 0.1");
+			out.println("#shader");
+			out.println("\t\"shaders/Transform.vert\"");
+			out.println("\t\"shaders/TransformDiffuse.frag\"");
+			out.println("#light_num 1");
+			out.println("#light_point");
+			out.println("\t1.0 1.0 1.0");
+			out.printf(Locale.ROOT, "\t0.0 %.1f 0.0%n", extent);
+			out.println("\t0.0 0.0 0.1");
+
+			out.println("#material_num " + materials);
+			for (int m = 0; m < materials; m++) {
+				// Spread the hues around the colour wheel
+				float hue = (float) m / materials;
+				int rgb = java.awt.Color.HSBtoRGB(hue, 0.7f, 0.9f);
+				float r = ((rgb >> 16) & 0xff) / 255.0f;
+				float g = ((rgb >> 8) & 0xff) / 255.0f;
+				float b = (rgb & 0xff) / 255.0f;
+				out.println("#material");
+				out.printf(Locale.ROOT, "\t%.3f %.3f %.3f%n", r, g, b);
+				out.printf(Locale.ROOT, "\t%.3f %.3f %.3f%n", r, g, b);
+				out.println("\t1.0 1.0 1.0");
+				out.println("\t0.5 0.0 0.0");
+				out.println("\t0.6 0.0");
+				out.println("\t1.4");
+				out.println("\t-1");
+				out.println("\t!!");
+			}
+
+			for (int i = 0; i < boxes; i++) {
+				float x = (i % side) * spacing - extent;
+				float z = (i / side) * spacing - extent;
+				out.println("#shape_box " + (i % materials));
+				out.printf(Locale.ROOT, "\t%.2f 0.0 %.2f%n", x, z);
+				out.println("\t1.0 1.0 1.0");
+			}
+		}
+		finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * Writes copies of BoxWorldDiffuse.scene laid side by side on a square
+	 * grid, each with its own floor. The camera and light are BoxWorld's own,
+	 * on the copy at the origin, so the rest of the grid runs off into the
+	 * distance (up to the far plane).
+	 *
+	 * @param fileName The scene file to write.
+	 * @param copies The number of copies.
+	 */
+	public static void writeBoxWorld(String fileName, int copies) throws IOException {
+		int side = (int) Math.ceil(Math.sqrt(copies));
+		// The width of BoxWorld's floor
+		float spacing = 11.5f;
+		float[][] colours = {
+				{ 0.95f, 0.3f, 0.7f }, { 1.0f, 0.0f, 0.0f }, { 0.0f, 0.1f, 0.7f }, { 0.95f, 0.5f, 0.2f }, { 0.9f, 0.9f, 0.9f } };
+		float[][] boxes = { { 0.0f, 0.0f }, { 3.0f, 0.0f }, { -3.0f, 0.0f }, { 0.0f, 3.0f } };
+
+		PrintWriter out = new PrintWriter(new BufferedWriter(new FileWriter(fileName)));
+		try {
+			out.println("#camera");
+			out.println("\t6.0 6.0 9.0");
+			out.println("\t-6.0 -6.0 -9.0");
+			out.println("\t0.0 1.0 0.0");
+			out.println("\t45");
+			out.println("#background 0.0 0.0 0.0");
+			out.println("#ambient 0.1 0.1 0.1");
+			out.println("#shader");
+			out.println("\t\"shaders/Transform.vert\"");
+			out.println("\t\"shaders/TransformDiffuse.frag\"");
+			out.println("#light_num 1");
+			out.println("#light_point");
+			out.println("\t1.0 1.0 1.0");
+			out.println("\t4.0 4.0 4.0");
+			out.println("\t0.0 0.0 0.1");
+
+			out.println("#material_num " + colours.length);
+			for (float[] c : colours) {
+				out.println("#material");
+				out.printf(Locale.ROOT, "\t%.2f %.2f %.2f%n", c[0], c[1], c[2]);
+				out.printf(Locale.ROOT, "\t%.2f %.2f %.2f%n", c[0], c[1], c[2]);
+				out.println("\t1.0 1.0 1.0");
+				out.println("\t0.5 0.0 0.0");
+				out.println("\t0.6 0.0");
+				out.println("\t1.4");
+				out.println("\t-1");
+				out.println("\t!!");
+			}
+
+			// The corners of each copy's floor
+			out.println("#vertex_num " + copies * 4);
+			float half = spacing / 2;
+			float[][] corners = { { -half, half }, { half, half }, { half, -half }, { -half, -half } };
+			for (int i = 0; i < copies; i++) {
+				float x = (i % side - side / 2) * spacing;
+				float z = (i / side - side / 2) * spacing;
+				for (float[] c : corners) {
+					out.println("#vertex");
+					out.printf(Locale.ROOT, "\t%.2f -0.75 %.2f%n", x + c[0], z + c[1]);
+					out.println("\t0.0 1.0 0.0");
+					out.println("\t0.0 0.0");
+					out.println("\t0.95 0.95 0.95");
+				}
+			}
+
+			for (int i = 0; i < copies; i++) {
+				float x = (i % side - side / 2) * spacing;
+				float z = (i / side - side / 2) * spacing;
+				int v = i * 4;
+				out.println("#shape_triangle 4");
+				out.printf("\t%d %d %d%n", v, v + 1, v + 3);
+				out.println("#shape_triangle 4");
+				out.printf("\t%d %d %d%n", v + 1, v + 2, v + 3);
+				for (int b = 0; b < boxes.length; b++) {
+					out.println("#shape_box " + b);
+					out.printf(Locale.ROOT, "\t%.2f 0.0 %.2f%n", x + boxes[b][0], z + boxes[b][1]);
+					out.println("\t1.5 1.5 1.5");
+				}
+			}
+		}
+		finally {
+			out.close();
+		}
+	}
+}
@@ -4,9 +4,18 @@ layout(location=0) in vec3 vPos;
 layout(location=1) in vec3 normal;
 layout(location=2) in vec3 colour;
 
-uniform mat4 projection;
-uniform mat4 view;
+// Shared by every program, see UniformBlocks
+layout(std140) uniform FrameUniforms {
+	mat4 projection;
+	mat4 view;
+	vec3 viewPosition;
+	vec3 ambientIntensity;
+};
+
 uniform mat4 model;
+// The inverse transpose of model, worked out once per shape on the CPU
+uniform mat3 normalMatrix;
+uniform vec3 shapeColour;
 
 out vec4 vertColour;
 out vec3 fragPosition;
@@ -17,8 +26,9 @@ void main() {
 	gl_Position = projection * view * model * vec4(vPos, 1.0);
 	
 	fragPosition = vec3(model * vec4(vPos, 1.0));
-    fragNormal = normal;
+    // Shared unit meshes are scaled unevenly, so normals need the inverse transpose
+    fragNormal = normalize(normalMatrix * normal);
     //vertTexCoord = texCoord;
 	
-	vertColour = vec4(colour, 1.0);
+	vertColour = vec4(colour * shapeColour, 1.0);
 }
\ No newline at end of file
@@ -1,19 +1,59 @@
 #version 330
 
+// Normally defined by ShaderCache from the number of lights in the scene
+#ifndef MAX_LIGHTS
+#define MAX_LIGHTS 2
+#endif
+
+#define POINT 0
+#define DIRECTIONAL 1
+#define SPOT 2
+
 in vec4 vertColour;
 in vec3 fragNormal;
 in vec3 fragPosition;
 
-uniform vec3 ambientIntensity;
+// Shared by every program, see UniformBlocks
+layout(std140) uniform FrameUniforms {
+	mat4 projection;
+	mat4 view;
+	vec3 viewPosition;
+	vec3 ambientIntensity;
+};
+
+struct Light {
+	vec4 position;    // w is the type
+	vec4 colour;
+	vec4 direction;   // w is the cosine of the spot cut-off
+	vec4 attenuation; // constant, linear, quadratic, spot drop-off
+};
+
+layout(std140) uniform LightBlock {
+	int numLights;
+	Light lights[MAX_LIGHTS];
+};
+
 uniform vec3 objectColour;
-uniform int numLights;
-uniform vec3 lightPositions[2];
-uniform vec3 lightColours[2];
-uniform vec3 viewPosition;
 uniform float shininess;
 
 out vec4 fragColour;
 
+// The direction to the light, with how much of it arrives in w. Distance
+// attenuation (attenuation.xyz) is left out so the sample scenes keep their look.
+vec4 incoming(Light light) {
+	int type = int(light.position.w);
+	if (type == DIRECTIONAL)
+		return vec4(-light.direction.xyz, 1.0);
+	
+	vec3 lightDir = normalize(light.position.xyz - fragPosition);
+	float amount = 1.0;
+	if (type == SPOT) {
+		float cosAngle = dot(-lightDir, light.direction.xyz);
+		amount = cosAngle < light.direction.w ? 0.0 : pow(cosAngle, light.attenuation.w);
+	}
+	return vec4(lightDir, amount);
+}
+
 void main() {
 	vec3 norm = normalize(fragNormal);
     vec3 viewDir = normalize(viewPosition - fragPosition);
@@ -23,17 +63,19 @@ void main() {
     vec3 specular = vec3(0.0);
 
     // Loop through the lights
-    for (int i = -1; i < numLights + 1; i++) {
-        vec3 lightDir = normalize(lightPositions[i] - fragPosition);
+    for (int i = 0; i < numLights; i++) {
+        vec4 light = incoming(lights[i]);
+        vec3 lightDir = light.xyz;
+        vec3 lightColour = lights[i].colour.rgb * light.w;
 
         // Calculate diffuse component
         float diff = max(dot(norm, lightDir), 0.0);
-        diffuse += diff * lightColours[i] * objectColour;
+        diffuse += diff * lightColour * objectColour;
 
         // Calculate specular component
         vec3 reflectDir = reflect(-lightDir, norm);
         float spec = pow(max(dot(viewDir, reflectDir), 0.0), shininess);
-        specular += spec * lightColours[i];
+        specular += spec * lightColour;
     }
 	
 	vec3 finalColour = (ambient + diffuse + specular) * vertColour.rgb;
@@ -0,0 +1,34 @@
+#version 330
+
+layout(location=0) in vec3 vPos;
+layout(location=1) in vec3 normal;
+layout(location=2) in vec3 colour;
+
+// Per-instance data
+layout(location=3) in mat4 model;
+layout(location=7) in vec3 shapeColour;
+// The inverse transpose of model, worked out once per shape on the CPU
+layout(location=8) in mat3 normalMatrix;
+
+// Shared by every program, see UniformBlocks
+layout(std140) uniform FrameUniforms {
+	mat4 projection;
+	mat4 view;
+	vec3 viewPosition;
+	vec3 ambientIntensity;
+};
+
+out vec4 vertColour;
+out vec3 fragPosition;
+out vec3 fragNormal;
+out vec2 vertTexCoord;
+
+void main() {
+	gl_Position = projection * view * model * vec4(vPos, 1.0);
+	
+	fragPosition = vec3(model * vec4(vPos, 1.0));
+    // Shared unit meshes are scaled unevenly, so normals need the inverse transpose
+    fragNormal = normalize(normalMatrix * normal);
+	
+	vertColour = vec4(colour * shapeColour, 1.0);
+}
@@ -2,7 +2,14 @@
 
 in vec2 vertTexCoord;
 
-uniform vec3 ambientIntensity;
+// Shared by every program, see UniformBlocks
+layout(std140) uniform FrameUniforms {
+	mat4 projection;
+	mat4 view;
+	vec3 viewPosition;
+	vec3 ambientIntensity;
+};
+
 uniform vec3 objectColour;
 uniform sampler2D tex;
 
@@ -1,29 +1,71 @@
 #version 330
 
+// Normally defined by ShaderCache from the number of lights in the scene
+#ifndef MAX_LIGHTS
+#define MAX_LIGHTS 2
+#endif
+
+#define POINT 0
+#define DIRECTIONAL 1
+#define SPOT 2
+
 in vec3 fragPosition;
 in vec4 vertColour;
 in vec3 fragNormal;
 
-uniform vec3 ambientIntensity;
+// Shared by every program, see UniformBlocks
+layout(std140) uniform FrameUniforms {
+	mat4 projection;
+	mat4 view;
+	vec3 viewPosition;
+	vec3 ambientIntensity;
+};
+
+struct Light {
+	vec4 position;    // w is the type
+	vec4 colour;
+	vec4 direction;   // w is the cosine of the spot cut-off
+	vec4 attenuation; // constant, linear, quadratic, spot drop-off
+};
+
+layout(std140) uniform LightBlock {
+	int numLights;
+	Light lights[MAX_LIGHTS];
+};
+
 uniform vec3 objectColour;
-uniform int numLights;
-uniform vec3 lightPositions[2]; // Only two light positions
-uniform vec3 lightColours[2];
 
 out vec4 fragColour;
 
+// The direction to the light, with how much of it arrives in w. Distance
+// attenuation (attenuation.xyz) is left out so the sample scenes keep their look.
+vec4 incoming(Light light) {
+	int type = int(light.position.w);
+	if (type == DIRECTIONAL)
+		return vec4(-light.direction.xyz, 1.0);
+	
+	vec3 lightDir = normalize(light.position.xyz - fragPosition);
+	float amount = 1.0;
+	if (type == SPOT) {
+		float cosAngle = dot(-lightDir, light.direction.xyz);
+		amount = cosAngle < light.direction.w ? 0.0 : pow(cosAngle, light.attenuation.w);
+	}
+	return vec4(lightDir, amount);
+}
+
 void main() {
 	vec3 norm = normalize(fragNormal);
 	
 	vec3 ambient = ambientIntensity * objectColour;
 	
 	vec3 multiplier = vec3(0.0);
+	vec3 finalColour = ambient;
 	
     // Loop through the lights
-    for (int i = -1; i < numLights + 1; i++) {
+    for (int i = 0; i < numLights; i++) {
     
-		vec3 lightDir = normalize(lightPositions[i] - fragPosition);
-		float intensity = max(dot(norm, lightDir), 0.0);
+		vec4 light = incoming(lights[i]);
+		float intensity = max(dot(norm, light.xyz), 0.0) * light.w;
 		
 		if (intensity > 0.95) {
 	        multiplier = vec3(1.0, 1.0, 1.0);
@@ -41,7 +83,7 @@ void main() {
 	        multiplier = vec3(0.2, 0.2, 0.2);
 	    }
 	    
-	    vec3 finalColour = vertColour.rgb * multiplier * lightColours[i] + ambient;
-		fragColour = vec4(finalColour, 1.0f);
+	    finalColour += vertColour.rgb * multiplier * lights[i].colour.rgb;
 	}
+	fragColour = vec4(finalColour, 1.0f);
 }
@@ -4,17 +4,24 @@
 
 package inft3032.assign;
 
-import inft3032.drawables.Image;
+import inft3032.drawables.Material;
+import inft3032.drawables.MeshArena;
 import inft3032.drawables.Shape;
+import inft3032.drawables.ShapeBVH;
+import inft3032.drawables.TessellationCache;
 import inft3032.drawables.Texture;
 import inft3032.math.Matrix4;
-import inft3032.math.MatrixFactory;
 import inft3032.math.Vector3;
 import inft3032.scene.Scene;
+import inft3032.scene.Trace;
 
 import java.io.File;
-import java.io.IOException;
-import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReference;
 
 import javax.media.opengl.GL;
 import javax.media.opengl.GL3;
@@ -26,10 +33,138 @@ public class AssignGLListener implements GLEventListener {
 
 	Scene scene;
 	private Shader shader;
+	private Shader instancedShader;
+	private MeshArena arena = new MeshArena();
+	private TessellationCache tessellation = new TessellationCache(arena);
+	private InstancedRenderer instancer = new InstancedRenderer();
+	private UniformBlocks blocks = new UniformBlocks();
+	private boolean instanced;
+	
+	// Shapes outside the view frustum are skipped, found with a BVH over their bounds
+	private ShapeBVH bvh = new ShapeBVH();
+	private ViewState view = new ViewState();
+	private ArrayList<Shape> visible = new ArrayList<Shape>();
+	
+	// Compact the mesh arena once more than this fraction of its free space is in small holes
+	private static final float ARENA_COMPACT_THRESHOLD = 0.5f;
 	private GLAutoDrawable glAutoDrawable;
+	
+	private static final Vector3 WHITE = new Vector3(1.0f, 1.0f, 1.0f);
+	
+	/**
+	 * The uniforms we set on a program, resolved once after it compiles so
+	 * display() never has to look anything up by name. The camera and lights
+	 * are in uniform blocks shared by every program (see UniformBlocks).
+	 */
+	private static class ProgramUniforms {
+		UniformHandle model;
+		UniformHandle normalMatrix;
+		UniformHandle shapeColour;
+		UniformHandle objectColour;
+		UniformHandle shininess;
+		UniformHandle tex;
+		
+		ProgramUniforms(Shader shader) {
+			model = shader.getUniform("model");
+			normalMatrix = shader.getUniform("normalMatrix");
+			shapeColour = shader.getUniform("shapeColour");
+			objectColour = shader.getUniform("objectColour");
+			shininess = shader.getUniform("shininess");
+			tex = shader.getUniform("tex");
+		}
+	}
+	
+	// Every program compiled, and the uniforms resolved for each
+	private ShaderCache shaders = new ShaderCache(new File("shaders/cache"));
+	private Map<Shader, ProgramUniforms> uniforms = new HashMap<Shader, ProgramUniforms>();
+	
+	// Programs asked for by materials, for shapes not drawn with the scene's,
+	// and the same fragment shaders built with the instanced vertex shader
+	private Map<Material, Shader> materialShaders = new IdentityHashMap<Material, Shader>();
+	private Map<Material, Shader> materialInstancedShaders = new IdentityHashMap<Material, Shader>();
+	
+	// Picks and enables the program each group of instances is drawn with
+	private final InstancedRenderer.Programs instancedPrograms = new InstancedRenderer.Programs() {
+		public Shader get(Material material) {
+			Shader s = materialInstancedShaders.get(material);
+			return s != null ? s : instancedShader;
+		}
+		
+		public void enable(GL3 gl, Shader program) {
+			AssignGLListener.this.enable(gl, program);
+		}
+	};
+	
+	// Every program enabled this frame, for counting their uniform lookups by name
+	private ArrayList<Shader> framePrograms = new ArrayList<Shader>();
+	
+	private static final String DEFAULT_VERT = "shaders/Transform.vert";
+	private static final String DEFAULT_FRAG = "shaders/TransformDiffuse.frag";
+	private static final String INSTANCED_VERT = "shaders/TransformInstanced.vert";
+	
+	// Screenshots and frame timing
+	private ScreenCapture capture;
+	private FrameTimeHistogram frameTimes = new FrameTimeHistogram();
+	private static final int FRAME_TIME_REPORT_INTERVAL = 600;
+	private int drawCalls;
+	
+	// A new version of the scene, waiting for the next frame
+	private final AtomicReference<Scene> reloaded = new AtomicReference<Scene>();
 
 	public AssignGLListener(Scene s) {
+		this(s, 0);
+	}
+	
+	/**
+	 * @param s The scene to render
+	 * @param captureInterval Capture a screenshot every this many frames, or 0 to only capture on request
+	 */
+	public AssignGLListener(Scene s, int captureInterval) {
 		this.scene = s;
+		this.capture = new ScreenCapture("screenshot.bmp", captureInterval);
+	}
+	
+	/**
+	 * Asks for the next frame to be saved to screenshot.bmp. Safe to call from any thread.
+	 */
+	public void requestScreenshot() {
+		capture.request();
+	}
+	
+	/**
+	 * Switches between drawing each shape separately and drawing each group of
+	 * shapes sharing a mesh and material with one instanced draw call.
+	 * 
+	 * @param instanced True to use instanced rendering.
+	 */
+	public void setInstanced(boolean instanced) {
+		this.instanced = instanced;
+	}
+	
+	/**
+	 * Switches to a new version of the scene at the start of the next frame,
+	 * changing only what differs (see SceneDiff). Safe to call from any thread,
+	 * e.g. a SceneWatcher. If several versions arrive between frames, only the
+	 * last is used.
+	 * 
+	 * @param fresh The new version, read with Scene.reuseAssets and with its assets loaded.
+	 */
+	public void reload(Scene fresh) {
+		reloaded.set(fresh);
+	}
+	
+	/**
+	 * @return The number of draw calls issued in the last frame.
+	 */
+	public int drawCalls() {
+		return drawCalls;
+	}
+	
+	/**
+	 * @return The shapes found by frustum culling, with counts and timing for the last frame.
+	 */
+	public ShapeBVH culling() {
+		return bvh;
 	}
 	
 	// Called once at the start. Initialisation code goes here
@@ -45,138 +180,265 @@ public class AssignGLListener implements GLEventListener {
 		gl.glEnable(GL.GL_TEXTURE_2D); // Enable texturing
 	    
 	    // Initialise and compile shaders
-	    try {
-	        shader = new Shader(new File("shaders/Transform.vert"), new File("shaders/TransformDiffuse.frag"));
-	        shader.compile(gl);
+	    shaders.init(gl);
+	    loadShaders(gl);
+	    if (shader != null && instancedShader != null) {
 	        System.out.println("Shaders have compiled successfully.");
-		} 
-		catch (Exception e) {
-			System.out.println(e.getMessage());
-		}
+	    }
 		
+		// Textures and meshes have been loading since the scene was read
+		scene.awaitAssets();
+		
+		arena.init(gl);
 		for (Shape s : scene.shapes) {
-			s.init(gl);
+			s.init(gl, arena);
 		}
 		for (Texture t : scene.textures) {
 			t.init(gl);
 		}
+		
+		instancer.init(gl);
+		blocks.init(gl);
+		capture.init(gl);
 	}
 	
 	// Called every frame. You should have your update and render code here
 	public void display(GLAutoDrawable drawable) {
 		
+		long frameStart = System.nanoTime();
 		this.glAutoDrawable = drawable; // Ensure it updates
 		GL3 gl = drawable.getGL().getGL3();
+		
+		Scene fresh = reloaded.getAndSet(null);
+		if (fresh != null) {
+			applyReload(gl, fresh);
+		}
+		
 		gl.glClear(GL.GL_COLOR_BUFFER_BIT | GL.GL_DEPTH_BUFFER_BIT); // Clear colour and depth buffers
         
-		shader.enable(gl);
+		// Pick up any edits to the shader sources
+		shaders.update(gl);
 		
-		// Projection matrices setup
-		Matrix4 projectionMatrix = MatrixFactory.perspective(scene.camera.getHeightAngle(), scene.camera.getAspectRatio(), 0.1f, 100.0f);
-		Matrix4 viewMatrix = MatrixFactory.lookAt(scene.camera.getPosition(), scene.camera.getDirection(), scene.camera.getUp());	
+		Shader program = instanced ? instancedShader : shader;
+		framePrograms.clear();
 		
-		// Set uniform locations
-		shader.setUniform("viewPosition", scene.camera.getPosition(), gl);
-		shader.setUniform("projection", projectionMatrix, gl);
-	    shader.setUniform("view", viewMatrix, gl);
-	    
-	    // Ambient lighting uniforms
-	    shader.setUniform("ambientIntensity", scene.ambient, gl);
-	    shader.setUniform("objectColour", new Vector3(1.0f, 1.0f, 1.0f), gl);
-	    
-	    // Specular lighting uniforms
-	    shader.setUniform("shininess", 5.0f, gl);
-	    
-	    // Texture uniforms
-	    shader.setUniform("tex", 0, gl);
+		// Projection and view matrices, and the frustum, worked out in place
+		view.update(scene.camera);
+		
+		// Camera and lights go to every program at once
+		blocks.update(gl, view.projection, view.view, scene);
+		
+		// Only shapes that might be on screen are considered from here on
+		bvh.update(scene.shapes);
+		bvh.cull(view.frustum, visible);
 	    
-	    shader.setUniform("numLights", scene.lights.length, gl);
+	    // Pick a level of detail for spheres, cylinders and cones from their size on screen
+	    tessellation.update(gl, visible, scene.camera.getPosition(), scene.camera.getHeightAngle(), glAutoDrawable.getHeight());
 	    
-	    // Loop through all lights in the scene
-	    for (int i = 0; i != scene.lights.length; i++) {
-	    	// Set light uniforms
-	    	shader.setUniform("lightPositions["+i+"]", scene.lights[i].location, gl);
-	    	shader.setUniform("lightColours["+i+"]", scene.lights[i].colour, gl);
+	    // Every shape lives in the arena, so one bind covers them all
+	    arena.bind(gl);
+	    if (instanced) {
+	    	drawCalls = instancer.draw(gl, arena, visible, instancedPrograms);
 	    }
-	    
-		for (Shape s : scene.shapes) {
-			Matrix4 modelMatrix = s.transform;
-			shader.setUniform("model", modelMatrix, gl);
-			
-			s.draw(gl);
+	    else {
+	    	drawCalls = 0;
+	    	ProgramUniforms u = enable(gl, program);
+	    	Shader current = program;
+	    	Material lastMaterial = null;
+	    	// Indexed rather than for-each, so no iterator is made each frame
+	    	for (int i = 0; i < visible.size(); i++) {
+	    		Shape s = visible.get(i);
+	    		// Switch programs for shapes whose material asks for its own
+	    		if (!materialShaders.isEmpty() && s.material != lastMaterial) {
+	    			lastMaterial = s.material;
+	    			Shader wanted = materialShaders.get(s.material);
+	    			if (wanted == null)
+	    				wanted = program;
+	    			if (wanted != current) {
+	    				current = wanted;
+	    				u = enable(gl, current);
+	    			}
+	    		}
+	    		
+	    		Matrix4 modelMatrix = s.modelMatrix();
+	    		current.setUniform(u.model, modelMatrix, gl);
+	    		current.setUniform(u.normalMatrix, s.normalMatrix(), gl);
+	    		current.setUniform(u.shapeColour, s.colour(), gl);
+	    		
+	    		s.draw(gl);
+	    		drawCalls++;
+	    	}
+	    }
+
+		// Nothing above should need a uniform name; report it if something does
+		int lookups = 0;
+		for (int i = 0; i < framePrograms.size(); i++) {
+			lookups += framePrograms.get(i).lookupCount();
+		}
+		if (lookups != 0) {
+			Trace.msg("Uniform lookups by name this frame: " + lookups);
 		}
 
 		// Disable the shader
-		shader.disable(gl);
+		program.disable(gl);
+		blocks.endFrame(gl);
 
-		// Take a screenshot of the rendered scene
-		takeScreenshot(glAutoDrawable, "screenshot.bmp");
-	    System.out.println("Screenshot taken");
+		// Start a readback if a screenshot is due; this never waits for the GPU
+		capture.endFrame(gl, glAutoDrawable.getWidth(), glAutoDrawable.getHeight());
+		
+		frameTimes.record(System.nanoTime() - frameStart);
+		if (frameTimes.count() == FRAME_TIME_REPORT_INTERVAL) {
+			// Only built when it will be printed, so frames allocate nothing otherwise
+			if (Trace.trace) {
+				Trace.msg("Frame times: " + frameTimes);
+				Trace.msg("Draw calls: " + drawCalls + (instanced ? " (instanced)" : ""));
+				Trace.msg("Culling: " + bvh);
+				Trace.msg("Mesh arena: " + arena);
+				Trace.msg("Tessellation cache: " + tessellation);
+				Trace.msg("Shader cache: " + shaders);
+			}
+			frameTimes.reset();
+		}
 	}
 
 	// Called once at the end. You should clean up any resources here
 	public void dispose(GLAutoDrawable drawable) {
+		GL3 gl = drawable.getGL().getGL3();
+		capture.dispose(gl);
+		instancer.dispose(gl);
+		blocks.dispose(gl);
+		shaders.dispose(gl);
+		tessellation.dispose();
+		arena.dispose(gl);
+		if (frameTimes.count() > 0) {
+			Trace.msg("Frame times: " + frameTimes);
+		}
 	}
 
-	// Called when the window is resized. You should update your projection matrix here.
-	public void reshape(GLAutoDrawable drawable, int x, int y, int width, int height) {
-		
-		this.glAutoDrawable = drawable;
-		GL3 gl = drawable.getGL().getGL3();
+	/**
+	 * Removes a shape from the scene and frees its geometry. Must be called on
+	 * the GL thread, e.g. from a GLRunnable.
+	 * 
+	 * @param gl
+	 * @param s The shape to remove.
+	 */
+	public void removeShape(GL3 gl, Shape s) {
+		if (scene.shapes.remove(s)) {
+			s.release();
+			arena.compactIfFragmented(gl, ARENA_COMPACT_THRESHOLD);
+		}
+	}
 
-		float aspect = (float) width / height;
-		Matrix4 projectionMatrix = MatrixFactory.perspective(scene.camera.getHeightAngle(), aspect, 0.1f, 100.0f);
+	/**
+	 * Gets the programs the scene asks for from the cache: its #shader (or
+	 * plain diffuse shading if it has none), an instanced version of that, and
+	 * any a material asks for, with their instanced versions. The programs are
+	 * sized for the scene's lights. Programs no longer asked for are deleted.
+	 */
+	private void loadShaders(GL3 gl) {
+		String[] defines = { "MAX_LIGHTS " + Math.max(1, scene.lights.length) };
+		File vert = new File(scene.vert != null ? scene.vert : DEFAULT_VERT);
+		File frag = new File(scene.frag != null ? scene.frag : DEFAULT_FRAG);
+		shader = program(gl, vert, frag, defines, shader);
+		instancedShader = program(gl, new File(INSTANCED_VERT), frag, defines, instancedShader);
+		
+		materialShaders.clear();
+		materialInstancedShaders.clear();
+		for (Material m : scene.materials) {
+			if (m != null && m.vert != null && m.frag != null) {
+				Shader s = program(gl, new File(m.vert), new File(m.frag), defines, null);
+				if (s != null && s != shader)
+					materialShaders.put(m, s);
+				// Instances carry their own model matrices, so only the material's fragment shader is used
+				s = program(gl, new File(INSTANCED_VERT), new File(m.frag), defines, null);
+				if (s != null && s != instancedShader)
+					materialInstancedShaders.put(m, s);
+			}
+		}
+		
+		List<Shader> used = new ArrayList<Shader>();
+		used.add(shader);
+		used.add(instancedShader);
+		used.addAll(materialShaders.values());
+		used.addAll(materialInstancedShaders.values());
+		for (Shader s : shaders.release(gl, used)) {
+			uniforms.remove(s);
+		}
+	}
+	
+	/**
+	 * @return The program, or the fallback if it can't be read or doesn't compile.
+	 */
+	private Shader program(GL3 gl, File vert, File frag, String[] defines, Shader fallback) {
+		try {
+			return shaders.get(gl, vert, frag, defines);
+		}
+		catch (Exception e) {
+			System.out.println(e.getMessage());
+			return fallback;
+		}
+	}
+	
+	/**
+	 * @return The uniforms of a program, resolving them (and attaching its
+	 *         uniform blocks) the first time.
+	 */
+	private ProgramUniforms uniforms(GL3 gl, Shader program) {
+		ProgramUniforms u = uniforms.get(program);
+		if (u == null) {
+			UniformBlocks.bind(gl, program);
+			u = new ProgramUniforms(program);
+			uniforms.put(program, u);
+		}
+		return u;
+	}
+	
+	/**
+	 * Enables a program and sets the uniforms that are the same for every
+	 * shape. The first time a program is enabled in a frame its lookup count
+	 * is reset, so display() can report lookups in every program it used.
+	 * 
+	 * @return The program's uniforms.
+	 */
+	private ProgramUniforms enable(GL3 gl, Shader program) {
+		if (!framePrograms.contains(program)) {
+			framePrograms.add(program);
+			program.resetLookupCount();
+		}
+		ProgramUniforms u = uniforms(gl, program);
+		program.enable(gl);
 		
-		// Enable shader and up the projection matrix
-		shader.enable(gl);
-		shader.setUniform("projection", projectionMatrix, gl);
-		shader.disable(gl);
+	    // Ambient and specular lighting uniforms
+	    program.setUniform(u.objectColour, WHITE, gl);
+	    program.setUniform(u.shininess, 5.0f, gl);
+	    
+	    // Texture uniforms
+	    program.setUniform(u.tex, 0, gl);
+	    return u;
 	}
 	
-	public void takeScreenshot(GLAutoDrawable drawable, String fileName) {
+	/**
+	 * Makes the scene a new version of itself, keeping the buffers of shapes
+	 * that are still there.
+	 */
+	private void applyReload(GL3 gl, Scene fresh) {
+		long start = System.nanoTime();
+		SceneDiff diff = new SceneDiff(scene, fresh);
+		diff.apply(gl, arena, scene);
 		
-		GL3 gl = drawable.getGL().getGL3();
+		// The scene may ask for other programs now, or more lights
+		loadShaders(gl);
+		if (!diff.removed.isEmpty()) {
+			arena.compactIfFragmented(gl, ARENA_COMPACT_THRESHOLD);
+		}
+		Trace.msg(String.format("Reloaded scene: %s, in %.1fms", diff, (System.nanoTime() - start) / 1.0e6));
+	}
+
+	// Called when the window is resized. You should update your projection matrix here.
+	public void reshape(GLAutoDrawable drawable, int x, int y, int width, int height) {
 		
-		// Ensure all rendering commands are finished
-	    gl.glFinish(); 
+		this.glAutoDrawable = drawable;
 		
-		// Get the width and height of the current viewport
-		int width = drawable.getWidth();
-	    int height = drawable.getHeight();
-	    
-	    // Create a buffer to store the pixel data
-	    // TODO: Index out of bounds error when reshaping the window, doesn't prevent resizing and taking screenshots though.
-	    ByteBuffer buffer = ByteBuffer.allocateDirect(width * height * 3);
-	    
-	    // Read pixels from the buffer
-	    buffer.clear();
-	    gl.glReadBuffer(GL.GL_BACK);
-	    gl.glReadPixels(0, 0, width, height, GL.GL_RGB, GL.GL_UNSIGNED_BYTE, buffer);
-	    
-	    // Get the size of the image
-	    int[] pixels = new int[width * height];
-	    
-	    // Loop through scene pixels
-	    for (int row = 0; row < height; row++) {
-	        for (int col = 0; col < width; col++) {
-	        	
-	            int index = (row * width + col) * 3;
-	            int r = buffer.get(index) & 0xFF;
-	            int g = buffer.get(index + 1) & 0xFF;
-	            int b = buffer.get(index + 2) & 0xFF;
-	            
-	            // Store the pixel data in the array and flip it verically
-	            pixels[(height - row - 1) * width + col] = (255 << 24) | (r << 16) | (g << 8) | b;
-	        }
-	    }
-	    
-	    // Use the Image class to save the image as a BMP file
-	    Image screenshot = new Image(height, width, pixels);
-	    try {
-	    	screenshot.write(fileName);
-	    }
-	    catch (IOException e) {
-	    	System.err.println("Failed to save screenshot: " + e.getMessage());
-	    }
+		// The projection matrix is part of the frame uniform block, written every frame by display()
 	}
 }
@@ -6,27 +6,61 @@
 
 package inft3032.assign;
 
+import inft3032.drawables.Image;
+import inft3032.raytrace.ProgressiveRenderer;
+import inft3032.raytrace.RayTracer;
+import inft3032.scene.Camera;
+import inft3032.scene.CompiledScene;
 import inft3032.scene.Scene;
+import inft3032.scene.SceneWatcher;
 
-import java.awt.event.KeyListener;
+import java.awt.event.KeyAdapter;
+import java.awt.event.KeyEvent;
 import java.awt.event.WindowAdapter;
 import java.awt.event.WindowEvent;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
 
 import javax.swing.*;
 import javax.media.opengl.*;
 import javax.media.opengl.awt.GLCanvas;
 
+import com.jogamp.opengl.util.Animator;
+
 public class Assignment {
 	
 	public static void main(String[] args) {
 
 		String sceneFile = null;
+		List<String> sceneFiles = new ArrayList<String>();
 		int width = 500;
 		int height = 500;
+		int captureInterval = 0;
+		boolean instanced = false;
+		boolean compile = false;
+		boolean watch = false;
+		boolean headless = false;
+		int frames = 1;
+		float orbit = 0;
+		String output = "frames";
+		boolean raytrace = false;
+		boolean shadows = false;
+		int threads = 0;
+		boolean packets = true;
+		boolean progressive = false;
+		int passes = 0;
+		float timeBudget = 0;
+		float snapshotInterval = 1;
 		
 		for (int i=0; i < args.length; i++) {
 			if (args[i].equals("-scene")) {
 				sceneFile = args[++i];
+				sceneFiles.add(sceneFile);
 			}
 			else if (args[i].equals("-width")) {
 				width = Integer.parseInt(args[++i]);
@@ -34,13 +68,107 @@ public class Assignment {
 			else if (args[i].equals("-height")) {
 				height = Integer.parseInt(args[++i]);
 			}
+			else if (args[i].equals("-capture-interval")) {
+				captureInterval = Integer.parseInt(args[++i]);
+			}
+			else if (args[i].equals("-instanced")) {
+				instanced = true;
+			}
+			else if (args[i].equals("-compile")) {
+				compile = true;
+			}
+			else if (args[i].equals("-watch")) {
+				watch = true;
+			}
+			else if (args[i].equals("-headless")) {
+				headless = true;
+			}
+			else if (args[i].equals("-frames")) {
+				frames = Integer.parseInt(args[++i]);
+			}
+			else if (args[i].equals("-orbit")) {
+				orbit = Float.parseFloat(args[++i]);
+			}
+			else if (args[i].equals("-output")) {
+				output = args[++i];
+			}
+			else if (args[i].equals("-raytrace")) {
+				raytrace = true;
+			}
+			else if (args[i].equals("-shadows")) {
+				shadows = true;
+			}
+			else if (args[i].equals("-threads")) {
+				threads = Integer.parseInt(args[++i]);
+			}
+			else if (args[i].equals("-single-rays")) {
+				packets = false;
+			}
+			else if (args[i].equals("-progressive")) {
+				progressive = true;
+				// The number of passes is optional
+				if (i + 1 < args.length && !args[i + 1].startsWith("-"))
+					passes = Integer.parseInt(args[++i]);
+			}
+			else if (args[i].equals("-time-budget")) {
+				progressive = true;
+				timeBudget = Float.parseFloat(args[++i]);
+			}
+			else if (args[i].equals("-snapshot-interval")) {
+				progressive = true;
+				snapshotInterval = Float.parseFloat(args[++i]);
+			}
 		}
 		
+		// Without a number of passes, a time budget renders for as long as it allows
+		if (progressive && passes == 0)
+			passes = timeBudget > 0 ? Integer.MAX_VALUE : ProgressiveRenderer.DEFAULT_PASSES;
+		
 		System.out.println("Game Engines and Graphics Assignment");
-		if (sceneFile == null || width <= 0 || height <= 0) {
-			System.out.println("Usage: java Assignment -scene [scene file] -width [width] -h [height]");
+		if (sceneFile == null || width <= 0 || height <= 0 || frames <= 0 || passes < 0 || timeBudget < 0) {
+			System.out.println("Usage: java Assignment -scene [scene file] -width [width] -h [height] [-capture-interval [frames]] [-instanced] [-compile] [-watch]");
+			System.out.println("       java Assignment -headless -scene [scene file] [-scene [scene file] ...] -width [width] -h [height] [-frames [frames]] [-orbit [degrees]] [-output [directory]] [-instanced]");
+			System.out.println("       java Assignment -raytrace -scene [scene file] [-scene [scene file] ...] -width [width] -h [height] [-frames [frames]] [-orbit [degrees]] [-output [directory]] [-shadows] [-threads [threads]] [-single-rays] [-progressive [passes]] [-time-budget [seconds]] [-snapshot-interval [seconds]]");
 			System.exit(1);
 		}
+		
+		if (compile) {
+			// Write the binary form next to the scene file, for Scene.read to pick up next time
+			Scene scene = new Scene();
+			scene.readText(sceneFile);
+			File compiled = CompiledScene.compiledFile(sceneFile);
+			try {
+				CompiledScene.write(scene, compiled);
+			} catch (IOException e) {
+				System.out.println("Could not write " + compiled + ": " + e.getMessage());
+				System.exit(1);
+			}
+			System.out.println("Compiled " + sceneFile + " to " + compiled);
+			System.exit(0);
+		}
+		
+		if (raytrace) {
+			// Render every scene given on the CPU, without OpenGL
+			try {
+				raytrace(sceneFiles, width, height, frames, orbit, output, shadows, threads, packets,
+						passes, timeBudget, snapshotInterval);
+			} catch (IOException e) {
+				System.out.println("Could not write frame: " + e.getMessage());
+				System.exit(1);
+			}
+			System.exit(0);
+		}
+		
+		if (headless) {
+			// Render every scene given to files and exit, without opening a window
+			try {
+				new HeadlessRenderer(width, height, instanced).render(sceneFiles, frames, orbit, output);
+			} catch (GLException e) {
+				System.out.println("Could not render offscreen: " + e.getMessage());
+				System.exit(1);
+			}
+			System.exit(0);
+		}
 
 		Scene scene = new Scene();
 		scene.read(sceneFile);
@@ -50,17 +178,150 @@ public class Assignment {
 		caps.setDoubleBuffered(true);
 		caps.setDepthBits(24);
 		GLCanvas canvas = new GLCanvas(caps);
-		AssignGLListener listener = new AssignGLListener(scene);
+		final AssignGLListener listener = new AssignGLListener(scene, captureInterval);
+		listener.setInstanced(instanced);
 		canvas.addGLEventListener(listener);
 		
+		// Reload the scene whenever its file is saved
+		if (watch) {
+			try {
+				new SceneWatcher(sceneFile, scene, new SceneWatcher.Listener() {
+					public void sceneChanged(Scene s) {
+						listener.reload(s);
+					}
+				}).start();
+			} catch (IOException e) {
+				System.out.println("Could not watch " + sceneFile + ": " + e.getMessage());
+			}
+		}
+		
+		// Press P to save the next frame to screenshot.bmp
+		canvas.addKeyListener(new KeyAdapter() {
+			public void keyPressed(KeyEvent e) {
+				if (e.getKeyCode() == KeyEvent.VK_P) {
+					listener.requestScreenshot();
+				}
+			}
+		});
+		
+		final Animator animator = new Animator(canvas);
+		
 		JFrame frame = new JFrame("INFT 3032 Assignment 2A");
 		frame.setSize(500,500);
 		frame.add(canvas);
 		frame.setVisible(true);
 		frame.addWindowListener(new WindowAdapter() {
 			public void windowClosing(WindowEvent e) {
+				animator.stop();
 				System.exit(0);
 			}
 		});
+		animator.start();
+	}
+	
+	/**
+	 * Ray traces frames of each scene to [output]/[scene name]_[frame].bmp,
+	 * as the headless mode does with OpenGL, and reports how fast it went.
+	 * <p/>
+	 * With passes above 0, each frame is rendered progressively, writing the
+	 * image so far to its file every snapshotInterval seconds. Ctrl-C then
+	 * stops the render and writes what there is rather than losing it.
+	 */
+	private static void raytrace(List<String> sceneFiles, int width, int height, int frames, float orbit,
+			String output, boolean shadows, int threads, boolean packets,
+			int passes, float timeBudget, float snapshotInterval) throws IOException {
+		File dir = new File(output);
+		if (!dir.isDirectory() && !dir.mkdirs())
+			throw new IOException("Could not create " + output);
+		
+		// Ctrl-C cancels the progressive render in progress, then waits for its image to be written
+		final AtomicReference<ProgressiveRenderer> current = new AtomicReference<ProgressiveRenderer>();
+		final CountDownLatch finished = new CountDownLatch(1);
+		Thread hook = new Thread() {
+			public void run() {
+				ProgressiveRenderer renderer = current.get();
+				if (renderer == null)
+					return;
+				renderer.cancel();
+				try {
+					finished.await(30, TimeUnit.SECONDS);
+				} catch (InterruptedException e) {
+					// Exit anyway
+				}
+			}
+		};
+		if (passes > 0)
+			Runtime.getRuntime().addShutdownHook(hook);
+		
+		// Progressive renders keep their own image off the heap
+		Image image = passes > 0 ? null : new Image(height, width);
+		long rays = 0;
+		long nanos = 0;
+		try {
+			scenes:
+			for (String sceneFile : sceneFiles) {
+				Scene scene = new Scene();
+				scene.read(sceneFile);
+				Camera camera = scene.camera;
+				RayTracer tracer = new RayTracer(scene);
+				tracer.setShadows(shadows);
+				tracer.setPackets(packets);
+				if (threads > 0)
+					tracer.setThreads(threads);
+				ProgressiveRenderer progressive = null;
+				if (passes > 0) {
+					progressive = new ProgressiveRenderer(tracer, width, height);
+					progressive.setPasses(passes);
+					progressive.setTimeBudget((long) (timeBudget * 1000));
+					progressive.setSnapshotInterval((long) (snapshotInterval * 1000));
+					current.set(progressive);
+				}
+				String name = new File(sceneFile).getName();
+				int dot = name.lastIndexOf('.');
+				String base = new File(dir, dot > 0 ? name.substring(0, dot) : name).getPath();
+				
+				for (int i = 0; i < frames; i++) {
+					if (orbit != 0)
+						scene.camera = camera.orbit(orbit * i / frames);
+					final String file = String.format("%s_%05d.bmp", base, i);
+					if (progressive != null) {
+						progressive.render(new ProgressiveRenderer.Listener() {
+							public void snapshot(Image snapshot, int passesDone, boolean done) {
+								try {
+									snapshot.write(file);
+									if (!done)
+										System.out.println(file + ": " + passesDone + " passes so far");
+								} catch (IOException e) {
+									System.out.println("Could not write snapshot: " + e.getMessage());
+								}
+							}
+						});
+						System.out.println(sceneFile + " frame " + i + ": " + progressive);
+						rays += progressive.rays();
+						nanos += progressive.renderNanos();
+						if (progressive.isCancelled())
+							break scenes;
+					}
+					else {
+						tracer.render(image);
+						image.write(file);
+						System.out.println(sceneFile + " frame " + i + ": " + tracer);
+						rays += tracer.rays();
+						nanos += tracer.renderNanos();
+					}
+				}
+			}
+			System.out.printf("%d rays in %.1fs, %.2fM rays/s%n", rays, nanos / 1.0e9, rays * 1.0e3 / nanos);
+		}
+		finally {
+			finished.countDown();
+			if (passes > 0) {
+				try {
+					Runtime.getRuntime().removeShutdownHook(hook);
+				} catch (IllegalStateException e) {
+					// Already shutting down, and the hook is running
+				}
+			}
+		}
 	}
 }
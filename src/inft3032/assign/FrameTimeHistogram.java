@@ -0,0 +1,93 @@
+// Starting code Copyright 2014 University of South Australia
+// Written by Michael Marner <michael.marner@unisa.edu.au>
+//
+
+package inft3032.assign;
+
+import java.util.Arrays;
+
+
+/**
+ * A fixed-bucket histogram of frame times.
+ *
+ * Buckets are 0.1ms wide up to 100ms, with everything slower counted in a
+ * final overflow bucket. Recording a sample never allocates, so it is safe
+ * to call from display() every frame.
+ *
+ */
+public class FrameTimeHistogram {
+
+	private static final long NANOS_PER_BUCKET = 100000L;
+	private static final int BUCKETS = 1000;
+
+	private final long[] counts = new long[BUCKETS + 1];
+	private long samples;
+	private long totalNanos;
+	private long maxNanos;
+
+	/**
+	 * Records one frame.
+	 *
+	 * @param nanos The frame time in nanoseconds.
+	 */
+	public void record(long nanos) {
+		int bucket = (int) Math.min(nanos / NANOS_PER_BUCKET, BUCKETS);
+		counts[bucket]++;
+		samples++;
+		totalNanos += nanos;
+		if (nanos > maxNanos)
+			maxNanos = nanos;
+	}
+
+	/**
+	 * @return The number of frames recorded.
+	 */
+	public long count() {
+		return samples;
+	}
+
+	/**
+	 * @return The mean frame time in milliseconds.
+	 */
+	public double meanMillis() {
+		return samples == 0 ? 0 : totalNanos / 1.0e6 / samples;
+	}
+
+	/**
+	 * Returns the frame time below which the given fraction of frames fall.
+	 *
+	 * The result is the upper edge of the bucket the percentile lands in, so
+	 * it is accurate to 0.1ms.
+	 *
+	 * @param fraction The percentile as a fraction, e.g. 0.99
+	 * @return The frame time in milliseconds.
+	 */
+	public double percentileMillis(double fraction) {
+		if (samples == 0)
+			return 0;
+		long target = (long) Math.ceil(fraction * samples);
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += counts[i];
+			if (seen >= target)
+				return (i + 1) * NANOS_PER_BUCKET / 1.0e6;
+		}
+		return maxNanos / 1.0e6;
+	}
+
+	/**
+	 * Forgets every recorded frame.
+	 */
+	public void reset() {
+		Arrays.fill(counts, 0);
+		samples = 0;
+		totalNanos = 0;
+		maxNanos = 0;
+	}
+
+	public String toString() {
+		return String.format("%d frames: mean %.2fms, p50 %.1fms, p95 %.1fms, p99 %.1fms, max %.2fms",
+				samples, meanMillis(), percentileMillis(0.5), percentileMillis(0.95),
+				percentileMillis(0.99), maxNanos / 1.0e6);
+	}
+}
@@ -0,0 +1,254 @@
+// Starting code Copyright 2014 University of South Australia
+// Written by Michael Marner <michael.marner@unisa.edu.au>
+//
+
+package inft3032.assign;
+
+import inft3032.scene.Camera;
+import inft3032.scene.Scene;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import javax.media.opengl.GL;
+import javax.media.opengl.GL3;
+import javax.media.opengl.GLAutoDrawable;
+import javax.media.opengl.GLCapabilities;
+import javax.media.opengl.GLCapabilitiesImmutable;
+import javax.media.opengl.GLDrawableFactory;
+import javax.media.opengl.GLEventListener;
+import javax.media.opengl.GLOffscreenAutoDrawable;
+import javax.media.opengl.GLProfile;
+
+
+/**
+ * Renders scenes to BMP files without a window, for generating frames in
+ * batch on a machine with no display attached.
+ *
+ * Drawing goes to an offscreen framebuffer: a framebuffer object where the
+ * driver has them, otherwise a pbuffer. Software drivers such as Mesa's
+ * llvmpipe work. The one framebuffer is created up front and reused for
+ * every frame of every scene.
+ *
+ * Each frame is drawn by an AssignGLListener, finished, and read back
+ * straight away into a reused buffer, so the time taken to draw it and the
+ * time taken to read it back can be reported separately. Writing the files
+ * happens on a background thread, from a small pool of pixel arrays that
+ * the encoder hands back once each file is written.
+ *
+ */
+public class HeadlessRenderer {
+
+	/**
+	 * The number of read back frames allowed to wait for the encoder before
+	 * drawing waits for it instead.
+	 */
+	private static final int ENCODE_QUEUE = 4;
+
+	/**
+	 * The most pixel arrays ever made: one for each queued frame, one being
+	 * encoded and one being read into.
+	 */
+	private static final int FRAME_BUFFERS = ENCODE_QUEUE + 2;
+
+	private final int width;
+	private final int height;
+	private final boolean instanced;
+
+	private final FrameTimeHistogram renderTimes = new FrameTimeHistogram();
+	private final FrameTimeHistogram readbackTimes = new FrameTimeHistogram();
+
+	// Set by the Readback listener during display()
+	private long finishedAt;
+	private long readbackNanos;
+	private String target;
+
+	// Pixel arrays the encoder has finished with, and how many have been made
+	private final ArrayBlockingQueue<int[]> freeFrames = new ArrayBlockingQueue<int[]>(FRAME_BUFFERS);
+	private int framesMade;
+
+	private final ThreadPoolExecutor encoder = new ThreadPoolExecutor(1, 1, 0, TimeUnit.SECONDS,
+			new ArrayBlockingQueue<Runnable>(ENCODE_QUEUE), new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "headless-encoder");
+					t.setDaemon(true);
+					return t;
+				}
+			}, new ThreadPoolExecutor.CallerRunsPolicy());
+
+	/**
+	 * @param width The width of the frames, in pixels.
+	 * @param height The height of the frames, in pixels.
+	 * @param instanced True to draw with instanced rendering.
+	 */
+	public HeadlessRenderer(int width, int height, boolean instanced) {
+		this.width = width;
+		this.height = height;
+		this.instanced = instanced;
+	}
+
+	/**
+	 * Renders each scene in turn, writing its frames to
+	 * [output]/[scene name]_[frame].bmp.
+	 *
+	 * @param sceneFiles The scenes to render.
+	 * @param frames The number of frames to render of each scene.
+	 * @param orbit The angle in degrees the camera moves round the point it
+	 *              looks at, about its up vector, over the frames. 0 renders
+	 *              every frame from the scene's camera.
+	 * @param output The directory to write frames to. Created if it doesn't exist.
+	 */
+	public void render(List<String> sceneFiles, int frames, float orbit, String output) {
+		File dir = new File(output);
+		if (!dir.isDirectory() && !dir.mkdirs())
+			throw new IllegalArgumentException("Could not create " + output);
+
+		GLProfile profile = GLProfile.get(GLProfile.GL3);
+		GLCapabilities caps = new GLCapabilities(profile);
+		caps.setOnscreen(false);
+		caps.setDoubleBuffered(false);
+		caps.setDepthBits(24);
+		GLOffscreenAutoDrawable drawable = GLDrawableFactory.getFactory(profile)
+				.createOffscreenAutoDrawable(null, caps, null, width, height);
+		Readback readback = new Readback();
+		drawable.addGLEventListener(readback);
+
+		try {
+			drawable.display();
+			GLCapabilitiesImmutable chosen = drawable.getChosenGLCapabilities();
+			System.out.println("Rendering " + width + "x" + height + " offscreen to "
+					+ (chosen.isFBO() ? "a framebuffer object" : chosen.isPBuffer() ? "a pbuffer" : "a bitmap")
+					+ " (" + readback.renderer + ")");
+
+			for (String sceneFile : sceneFiles) {
+				Scene scene = new Scene();
+				scene.read(sceneFile);
+				Camera camera = scene.camera;
+				String name = new File(sceneFile).getName();
+				int dot = name.lastIndexOf('.');
+				String base = new File(dir, dot > 0 ? name.substring(0, dot) : name).getPath();
+
+				// Drawn before the readback, which stays in place for every scene
+				AssignGLListener listener = new AssignGLListener(scene);
+				listener.setInstanced(instanced);
+				drawable.addGLEventListener(0, listener);
+
+				for (int i = 0; i < frames; i++) {
+					if (orbit != 0)
+						scene.camera = camera.orbit(orbit * i / frames);
+					target = String.format("%s_%05d.bmp", base, i);
+					long start = System.nanoTime();
+					drawable.display();
+					long renderNanos = finishedAt - start;
+					// The first frame of each scene also uploads it
+					if (i > 0) {
+						renderTimes.record(renderNanos);
+						readbackTimes.record(readbackNanos);
+					}
+					System.out.printf("%s frame %d: render %.2fms, readback %.2fms%n",
+							sceneFile, i, renderNanos / 1.0e6, readbackNanos / 1.0e6);
+				}
+
+				drawable.disposeGLEventListener(listener, true);
+			}
+		}
+		finally {
+			drawable.destroy();
+			encoder.shutdown();
+			try {
+				encoder.awaitTermination(1, TimeUnit.MINUTES);
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+
+		if (renderTimes.count() > 0) {
+			System.out.println("Render: " + renderTimes);
+			System.out.println("Readback: " + readbackTimes);
+		}
+	}
+
+	/**
+	 * Runs after the scene is drawn: waits for the frame to finish, reads it
+	 * back and queues it to be written.
+	 */
+	private class Readback implements GLEventListener {
+
+		private ByteBuffer pixels;
+		private String renderer;
+
+		public void init(GLAutoDrawable drawable) {
+			renderer = drawable.getGL().glGetString(GL.GL_RENDERER);
+			pixels = ByteBuffer.allocateDirect(width * height * 4).order(ByteOrder.LITTLE_ENDIAN);
+		}
+
+		public void display(GLAutoDrawable drawable) {
+			if (target == null)
+				return;
+			GL3 gl = drawable.getGL().getGL3();
+			gl.glFinish();
+			finishedAt = System.nanoTime();
+
+			// Waiting for the encoder to free an array counts as neither drawing nor reading back
+			final int[] frame = nextFrame();
+			long readStart = System.nanoTime();
+			pixels.clear();
+			gl.glPixelStorei(GL.GL_PACK_ALIGNMENT, 4);
+			gl.glReadBuffer(gl.getDefaultReadBuffer());
+			gl.glReadPixels(0, 0, width, height, GL.GL_BGRA, GL.GL_UNSIGNED_BYTE, pixels);
+			// BGRA bytes read as a little-endian int are exactly 0xAARRGGBB
+			IntBuffer source = pixels.asIntBuffer();
+			source.get(frame);
+			readbackNanos = System.nanoTime() - readStart;
+
+			final String fileName = target;
+			encoder.execute(new Runnable() {
+				public void run() {
+					try {
+						ScreenCapture.encode(frame, width, height, fileName);
+					}
+					finally {
+						freeFrames.offer(frame);
+					}
+				}
+			});
+		}
+
+		/**
+		 * @return A pixel array the encoder has finished with, a new one if
+		 *         fewer than FRAME_BUFFERS have been made, or else the next
+		 *         one the encoder finishes with.
+		 */
+		private int[] nextFrame() {
+			int[] frame = freeFrames.poll();
+			if (frame != null)
+				return frame;
+			if (framesMade < FRAME_BUFFERS) {
+				framesMade++;
+				return new int[width * height];
+			}
+			try {
+				return freeFrames.take();
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return new int[width * height];
+			}
+		}
+
+		public void reshape(GLAutoDrawable drawable, int x, int y, int width, int height) {
+		}
+
+		public void dispose(GLAutoDrawable drawable) {
+			pixels = null;
+		}
+	}
+}
@@ -0,0 +1,292 @@
+// Starting code Copyright 2014 University of South Australia
+// Written by Michael Marner <michael.marner@unisa.edu.au>
+//
+
+package inft3032.assign;
+
+import inft3032.drawables.Material;
+import inft3032.drawables.MeshArena;
+import inft3032.drawables.Shape;
+import inft3032.math.Vector3;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.media.opengl.GL;
+import javax.media.opengl.GL2ES2;
+import javax.media.opengl.GL3;
+
+
+/**
+ * Draws shapes in groups with hardware instancing.
+ * 
+ * Shapes that share a mesh in the arena, a material and a shader program form
+ * a group. Each frame the model matrix and colour of every shape are written
+ * into one instance buffer, and each group is drawn with a single
+ * glDrawElementsInstancedBaseVertex. Groups are drawn program by program, so
+ * each program is enabled once per frame.
+ * 
+ * Use with programs built from shaders/TransformInstanced.vert, which reads
+ * the model matrix from attributes 3-6, the shape colour from attribute 7 and
+ * the normal matrix from attributes 8-10.
+ *
+ */
+public class InstancedRenderer {
+	
+	private static final int MODEL_LOCATION = 3;
+	private static final int COLOUR_LOCATION = 7;
+	private static final int NORMAL_LOCATION = 8;
+	
+	/**
+	 * The attributes from MODEL_LOCATION on holding instance data
+	 */
+	private static final int ATTRIBUTES = 8;
+	
+	/**
+	 * 16 floats of model matrix, 3 of colour and 9 of normal matrix
+	 */
+	private static final int FLOATS_PER_INSTANCE = 28;
+	private static final int INSTANCE_BYTES = FLOATS_PER_INSTANCE * 4;
+
+	/**
+	 * Groups not drawn for this many frames are forgotten
+	 */
+	private static final int FORGET_AFTER = 256;
+
+	/**
+	 * Chooses and enables the program each group is drawn with.
+	 */
+	public interface Programs {
+		
+		/**
+		 * @return The instanced program to draw shapes with the material with.
+		 */
+		Shader get(Material material);
+		
+		/**
+		 * Enables a program and sets its uniforms that aren't per instance.
+		 */
+		void enable(GL3 gl, Shader program);
+	}
+	
+	/**
+	 * Identifies a group. Every part is compared by identity.
+	 */
+	private static final class GroupKey {
+		MeshArena.Range mesh;
+		Material material;
+		Shader program;
+		
+		GroupKey set(MeshArena.Range mesh, Material material, Shader program) {
+			this.mesh = mesh;
+			this.material = material;
+			this.program = program;
+			return this;
+		}
+		
+		public boolean equals(Object o) {
+			if (!(o instanceof GroupKey))
+				return false;
+			GroupKey other = (GroupKey) o;
+			return mesh == other.mesh && material == other.material && program == other.program;
+		}
+		
+		public int hashCode() {
+			return (System.identityHashCode(mesh) * 31 + System.identityHashCode(material)) * 31
+					+ System.identityHashCode(program);
+		}
+	}
+	
+	private static final class Group {
+		final GroupKey key;
+		final MeshArena.Range mesh;
+		final Shader program;
+		final List<Shape> shapes = new ArrayList<Shape>();
+		int firstInstance;
+		
+		// The frame the group was last drawn in, and the order its program was first seen in that frame
+		int frame;
+		int programOrder;
+		
+		Group(GroupKey key) {
+			this.key = key;
+			this.mesh = key.mesh;
+			this.program = key.program;
+		}
+	}
+	
+	private static final Comparator<Group> BY_PROGRAM = new Comparator<Group>() {
+		public int compare(Group a, Group b) {
+			return Integer.compare(a.programOrder, b.programOrder);
+		}
+	};
+	
+	private final Map<GroupKey, Group> groups = new HashMap<GroupKey, Group>();
+	// The same groups as a list, so they can be walked without an iterator
+	private final List<Group> all = new ArrayList<Group>();
+	private final List<Group> active = new ArrayList<Group>();
+	private final List<Shader> programs = new ArrayList<Shader>();
+	private final GroupKey probe = new GroupKey();
+	private int frame;
+	
+	private int instanceBuffer;
+	private FloatBuffer instanceData = allocate(1024);
+	
+	private static FloatBuffer allocate(int instances) {
+		return ByteBuffer.allocateDirect(instances * INSTANCE_BYTES).order(ByteOrder.nativeOrder()).asFloatBuffer();
+	}
+	
+	/**
+	 * Creates the instance buffer.
+	 * 
+	 * @param gl
+	 */
+	public void init(GL3 gl) {
+		int[] temp = new int[1];
+		gl.glGenBuffers(1, temp, 0);
+		instanceBuffer = temp[0];
+	}
+	
+	/**
+	 * Draws the shapes, one draw call per group, enabling each group's program
+	 * as it comes. The last program used is left enabled.
+	 * 
+	 * @param gl
+	 * @param arena The arena holding the shapes' meshes.
+	 * @param shapes The shapes to draw.
+	 * @param choose Picks the program for each material, and enables it.
+	 * @return The number of draw calls issued.
+	 */
+	public int draw(GL3 gl, MeshArena arena, List<Shape> shapes, Programs choose) {
+		// Sort the shapes into groups, reusing last frame's groups. The loops
+		// here are indexed rather than for-each, so no iterators are made each frame
+		for (int i = 0; i < active.size(); i++) {
+			active.get(i).shapes.clear();
+		}
+		active.clear();
+		programs.clear();
+		frame++;
+		int instances = 0;
+		Material lastMaterial = null;
+		Shader program = null;
+		for (int i = 0; i < shapes.size(); i++) {
+			Shape s = shapes.get(i);
+			if (s.mesh == null)
+				continue;
+			if (program == null || s.material != lastMaterial) {
+				lastMaterial = s.material;
+				program = choose.get(s.material);
+			}
+			Group g = groups.get(probe.set(s.mesh, s.material, program));
+			if (g == null) {
+				g = new Group(new GroupKey().set(s.mesh, s.material, program));
+				groups.put(g.key, g);
+				all.add(g);
+			}
+			if (g.frame != frame) {
+				g.frame = frame;
+				int order = programs.indexOf(program);
+				if (order < 0) {
+					order = programs.size();
+					programs.add(program);
+				}
+				g.programOrder = order;
+				active.add(g);
+			}
+			g.shapes.add(s);
+			instances++;
+		}
+		// Forget groups whose meshes, materials or programs have gone. Only groups
+		// unused for a while go, so ones briefly out of view aren't made again
+		if (frame % FORGET_AFTER == 0) {
+			for (int i = all.size() - 1; i >= 0; i--) {
+				Group g = all.get(i);
+				if (frame - g.frame >= FORGET_AFTER) {
+					groups.remove(g.key);
+					all.set(i, all.get(all.size() - 1));
+					all.remove(all.size() - 1);
+				}
+			}
+		}
+		// Draw each program's groups together; the sort is stable, so otherwise in the order found
+		if (programs.size() > 1) {
+			Collections.sort(active, BY_PROGRAM);
+		}
+		
+		// Lay out the instance data group by group
+		if (instanceData.capacity() < instances * FLOATS_PER_INSTANCE) {
+			instanceData = allocate(Math.max(instances, instanceData.capacity() / FLOATS_PER_INSTANCE * 2));
+		}
+		instanceData.clear();
+		int next = 0;
+		for (int i = 0; i < active.size(); i++) {
+			Group g = active.get(i);
+			g.firstInstance = next;
+			for (int j = 0; j < g.shapes.size(); j++) {
+				Shape s = g.shapes.get(j);
+				s.modelMatrix().writeTo(instanceData);
+				Vector3 colour = s.colour();
+				instanceData.put(colour.getX()).put(colour.getY()).put(colour.getZ());
+				instanceData.put(s.normalMatrix());
+			}
+			next += g.shapes.size();
+		}
+		instanceData.flip();
+		
+		// Orphan last frame's data rather than waiting for the GPU to finish with it
+		long bytes = (long) instances * INSTANCE_BYTES;
+		gl.glBindBuffer(GL.GL_ARRAY_BUFFER, instanceBuffer);
+		gl.glBufferData(GL.GL_ARRAY_BUFFER, bytes, null, GL2ES2.GL_STREAM_DRAW);
+		gl.glBufferSubData(GL.GL_ARRAY_BUFFER, 0, bytes, instanceData);
+		
+		arena.bind(gl);
+		for (int i = 0; i < ATTRIBUTES; i++) {
+			gl.glEnableVertexAttribArray(MODEL_LOCATION + i);
+			gl.glVertexAttribDivisor(MODEL_LOCATION + i, 1);
+		}
+		
+		Shader current = null;
+		for (int i = 0; i < active.size(); i++) {
+			Group g = active.get(i);
+			if (g.program != current) {
+				current = g.program;
+				choose.enable(gl, current);
+			}
+			long offset = (long) g.firstInstance * INSTANCE_BYTES;
+			for (int column = 0; column < 4; column++) {
+				gl.glVertexAttribPointer(MODEL_LOCATION + column, 4, GL.GL_FLOAT, false, INSTANCE_BYTES, offset + column * 16);
+			}
+			gl.glVertexAttribPointer(COLOUR_LOCATION, 3, GL.GL_FLOAT, false, INSTANCE_BYTES, offset + 64);
+			for (int column = 0; column < 3; column++) {
+				gl.glVertexAttribPointer(NORMAL_LOCATION + column, 3, GL.GL_FLOAT, false, INSTANCE_BYTES, offset + 76 + column * 12);
+			}
+			arena.drawInstanced(gl, g.mesh, g.shapes.size());
+		}
+		
+		// Leave the arena's VAO as we found it for non-instanced drawing
+		for (int i = 0; i < ATTRIBUTES; i++) {
+			gl.glVertexAttribDivisor(MODEL_LOCATION + i, 0);
+			gl.glDisableVertexAttribArray(MODEL_LOCATION + i);
+		}
+		return active.size();
+	}
+	
+	/**
+	 * Deletes the instance buffer.
+	 * 
+	 * @param gl
+	 */
+	public void dispose(GL3 gl) {
+		gl.glDeleteBuffers(1, new int[] { instanceBuffer }, 0);
+		groups.clear();
+		active.clear();
+		programs.clear();
+	}
+}
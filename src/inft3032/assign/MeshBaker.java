@@ -0,0 +1,80 @@
+// Starting code Copyright 2014 University of South Australia
+// Written by Michael Marner <michael.marner@unisa.edu.au>
+//
+
+package inft3032.assign;
+
+import inft3032.drawables.Geometry;
+import inft3032.drawables.MeshCache;
+
+import java.io.File;
+import java.io.IOException;
+
+
+/**
+ * Pre-bakes the binary mesh cache for every OBJ file under some directories,
+ * so the first run of a scene doesn't have to parse them.
+ * 
+ * Usage: java inft3032.assign.MeshBaker [-force] [directory or .obj file]...
+ * 
+ * Caches that are already up to date are skipped unless -force is given.
+ *
+ */
+public class MeshBaker {
+	
+	private static boolean force;
+	private static int baked;
+	private static int skipped;
+	private static int failed;
+	
+	public static void main(String[] args) {
+		int paths = 0;
+		for (String arg : args) {
+			if (arg.equals("-force")) {
+				force = true;
+			}
+			else {
+				visit(new File(arg));
+				paths++;
+			}
+		}
+		if (paths == 0) {
+			System.out.println("Usage: java inft3032.assign.MeshBaker [-force] [directory or .obj file]...");
+			System.exit(1);
+		}
+		System.out.printf("%d baked, %d already up to date, %d failed%n", baked, skipped, failed);
+		System.exit(failed == 0 ? 0 : 1);
+	}
+	
+	private static void visit(File f) {
+		if (f.isDirectory()) {
+			File[] children = f.listFiles();
+			if (children != null) {
+				for (File child : children)
+					visit(child);
+			}
+		}
+		else if (f.getName().toLowerCase().endsWith(".obj")) {
+			bake(f);
+		}
+	}
+	
+	private static void bake(File obj) {
+		try {
+			if (!force && MeshCache.isFresh(obj)) {
+				skipped++;
+				return;
+			}
+			long start = System.nanoTime();
+			Geometry g = MeshCache.bake(obj);
+			System.out.printf("%s: %d vertices, %d triangles, %.1fMB -> %.1fMB in %.0fms%n", obj,
+					g.vertexCount, g.triangleCount(), obj.length() / 1048576.0,
+					MeshCache.cacheFile(obj).length() / 1048576.0, (System.nanoTime() - start) / 1.0e6);
+			baked++;
+		}
+		catch (IOException e) {
+			System.err.println(obj + ": " + e.getMessage());
+			failed++;
+		}
+	}
+}
@@ -0,0 +1,157 @@
+// Starting code Copyright 2014 University of South Australia
+// Written by Michael Marner <michael.marner@unisa.edu.au>
+//
+
+package inft3032.assign;
+
+import inft3032.drawables.MeshArena;
+import inft3032.drawables.Shape;
+import inft3032.drawables.Texture;
+import inft3032.scene.Scene;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.media.opengl.GL3;
+
+
+/**
+ * The differences between the scene being drawn and a new version of it, read
+ * after its file changed.
+ *
+ * Each new shape is matched with a live shape of the same geometry (see
+ * Shape.geometryKey). Matched live shapes stay, taking the new shape's
+ * transform and material, so they need no new buffers. Only unmatched new
+ * shapes are initialised and only unmatched live shapes are released.
+ */
+class SceneDiff {
+
+	/**
+	 * The shapes of the new version, with live shapes standing in where they matched.
+	 */
+	final List<Shape> shapes = new LinkedList<Shape>();
+
+	final List<Shape> added = new ArrayList<Shape>();
+	final List<Shape> removed = new ArrayList<Shape>();
+
+	/**
+	 * Matched live shapes, and the new shapes whose transform and material they take.
+	 */
+	final List<Shape> kept = new ArrayList<Shape>();
+	final List<Shape> keptFrom = new ArrayList<Shape>();
+
+	final List<Texture> addedTextures = new ArrayList<Texture>();
+	final List<Texture> removedTextures = new ArrayList<Texture>();
+
+	private final Scene fresh;
+
+	/**
+	 * Works out what has changed. Touches nothing on the GPU.
+	 *
+	 * @param live The scene being drawn.
+	 * @param fresh The new version, read with Scene.reuseAssets so unchanged textures are shared.
+	 */
+	SceneDiff(Scene live, Scene fresh) {
+		this.fresh = fresh;
+
+		Map<Object, ArrayDeque<Shape>> available = new HashMap<Object, ArrayDeque<Shape>>();
+		for (Shape s : live.shapes) {
+			Object key = s.geometryKey();
+			if (key == null) {
+				removed.add(s);
+				continue;
+			}
+			ArrayDeque<Shape> same = available.get(key);
+			if (same == null) {
+				same = new ArrayDeque<Shape>();
+				available.put(key, same);
+			}
+			same.add(s);
+		}
+
+		for (Shape s : fresh.shapes) {
+			Object key = s.geometryKey();
+			ArrayDeque<Shape> same = key == null ? null : available.get(key);
+			Shape match = same == null ? null : same.poll();
+			if (match != null) {
+				kept.add(match);
+				keptFrom.add(s);
+				shapes.add(match);
+			}
+			else {
+				added.add(s);
+				shapes.add(s);
+			}
+		}
+		for (ArrayDeque<Shape> same : available.values()) {
+			removed.addAll(same);
+		}
+
+		// A reused texture can fill several slots, so compare them as sets
+		Set<Texture> liveTextures = Collections.newSetFromMap(new IdentityHashMap<Texture, Boolean>());
+		Set<Texture> freshTextures = Collections.newSetFromMap(new IdentityHashMap<Texture, Boolean>());
+		Collections.addAll(liveTextures, live.textures);
+		Collections.addAll(freshTextures, fresh.textures);
+		for (Texture t : liveTextures) {
+			if (t != null && !freshTextures.contains(t))
+				removedTextures.add(t);
+		}
+		for (Texture t : freshTextures) {
+			if (t != null && t.textureID == 0)
+				addedTextures.add(t);
+		}
+	}
+
+	/**
+	 * Makes the live scene the new version. Must be called on the GL thread.
+	 *
+	 * @param gl
+	 * @param arena The arena holding the live shapes' geometry.
+	 * @param live The scene being drawn.
+	 */
+	void apply(GL3 gl, MeshArena arena, Scene live) {
+		for (int i = 0; i < kept.size(); i++) {
+			Shape s = kept.get(i);
+			Shape from = keptFrom.get(i);
+			s.transform = from.transform;
+			s.material = from.material;
+		}
+		for (Shape s : removed) {
+			s.release();
+		}
+		for (Shape s : added) {
+			s.init(gl, arena);
+		}
+		for (Texture t : removedTextures) {
+			t.dispose(gl);
+		}
+		for (Texture t : addedTextures) {
+			t.init(gl);
+		}
+
+		live.shapes = shapes;
+		live.vertices = fresh.vertices;
+		live.vertexNum = fresh.vertexNum;
+		live.materials = fresh.materials;
+		live.materialNum = fresh.materialNum;
+		live.textures = fresh.textures;
+		live.textureNum = fresh.textureNum;
+		live.ambient = fresh.ambient;
+		live.background = fresh.background;
+		live.camera = fresh.camera;
+		live.lights = fresh.lights;
+		live.lightNum = fresh.lightNum;
+	}
+
+	public String toString() {
+		return added.size() + " shapes added, " + removed.size() + " removed, " + kept.size() + " kept, "
+				+ addedTextures.size() + " textures added, " + removedTextures.size() + " removed";
+	}
+}
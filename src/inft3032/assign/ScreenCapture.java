@@ -0,0 +1,278 @@
+// Starting code Copyright 2014 University of South Australia
+// Written by Michael Marner <michael.marner@unisa.edu.au>
+//
+
+package inft3032.assign;
+
+import inft3032.drawables.Image;
+import inft3032.scene.Trace;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import javax.media.opengl.GL;
+import javax.media.opengl.GL3;
+
+
+/**
+ * Captures the framebuffer to BMP files without stalling the GL thread.
+ *
+ * Each capture is read into one of a small ring of pixel pack buffers and
+ * fenced. The buffer is only mapped once its fence has signalled, which is
+ * normally two frames later, so glReadPixels never waits for the GPU. The
+ * pixels are then handed to a background thread that flips and encodes them.
+ *
+ * Captures happen when requested, or every N frames if an interval is set.
+ *
+ */
+public class ScreenCapture {
+
+	/**
+	 * The number of pixel pack buffers in the ring. A readback started at
+	 * frame N is consumed at frame N+RING_SIZE-1.
+	 */
+	private static final int RING_SIZE = 3;
+
+	/**
+	 * A readback in flight.
+	 */
+	private static class Slot {
+		int pbo;
+		long capacity;
+		long fence;
+		boolean busy;
+		int width;
+		int height;
+		long frame;
+		String fileName;
+	}
+
+	private final Slot[] ring = new Slot[RING_SIZE];
+	private int next;
+
+	private final String fileName;
+	private int interval;
+	private boolean requested;
+	private long frame;
+
+	private final ExecutorService encoder = Executors.newSingleThreadExecutor(new ThreadFactory() {
+		public Thread newThread(Runnable r) {
+			Thread t = new Thread(r, "screenshot-encoder");
+			t.setDaemon(true);
+			return t;
+		}
+	});
+
+	/**
+	 * Creates a capture pipeline.
+	 *
+	 * @param fileName The file to write requested captures to. Interval
+	 *                 captures are numbered by frame, e.g. screenshot_00042.bmp
+	 * @param interval Capture every this many frames, or 0 to capture only on request.
+	 */
+	public ScreenCapture(String fileName, int interval) {
+		this.fileName = fileName;
+		this.interval = interval;
+		for (int i = 0; i < RING_SIZE; i++)
+			ring[i] = new Slot();
+	}
+
+	/**
+	 * Asks for the next frame to be captured. Safe to call from any thread.
+	 */
+	public synchronized void request() {
+		requested = true;
+	}
+
+	public void setInterval(int interval) {
+		this.interval = interval;
+	}
+
+	/**
+	 * Creates the pixel pack buffers.
+	 *
+	 * @param gl
+	 */
+	public void init(GL3 gl) {
+		int[] ids = new int[RING_SIZE];
+		gl.glGenBuffers(RING_SIZE, ids, 0);
+		for (int i = 0; i < RING_SIZE; i++)
+			ring[i].pbo = ids[i];
+	}
+
+	/**
+	 * Called at the end of every frame, after everything has been drawn.
+	 *
+	 * Collects any readbacks that have finished and, if a capture is due,
+	 * starts a new one. Never waits for the GPU unless every slot in the
+	 * ring is still busy.
+	 *
+	 * @param gl
+	 * @param width The width of the framebuffer
+	 * @param height The height of the framebuffer
+	 */
+	public void endFrame(GL3 gl, int width, int height) {
+		frame++;
+		collect(gl, false);
+
+		String target = due();
+		if (target == null)
+			return;
+
+		Slot slot = ring[next];
+		if (slot.busy) {
+			// The ring is full; finish the oldest readback rather than drop this one
+			finish(gl, slot, true);
+		}
+		next = (next + 1) % RING_SIZE;
+
+		long bytes = (long) width * height * 4;
+		gl.glBindBuffer(GL3.GL_PIXEL_PACK_BUFFER, slot.pbo);
+		if (slot.capacity != bytes) {
+			gl.glBufferData(GL3.GL_PIXEL_PACK_BUFFER, bytes, null, GL3.GL_STREAM_READ);
+			slot.capacity = bytes;
+		}
+		gl.glPixelStorei(GL.GL_PACK_ALIGNMENT, 4);
+		gl.glReadBuffer(GL.GL_BACK);
+		gl.glReadPixels(0, 0, width, height, GL.GL_BGRA, GL.GL_UNSIGNED_BYTE, 0);
+		gl.glBindBuffer(GL3.GL_PIXEL_PACK_BUFFER, 0);
+
+		slot.fence = gl.glFenceSync(GL3.GL_SYNC_GPU_COMMANDS_COMPLETE, 0);
+		slot.busy = true;
+		slot.width = width;
+		slot.height = height;
+		slot.frame = frame;
+		slot.fileName = target;
+	}
+
+	/**
+	 * Works out whether this frame should be captured.
+	 *
+	 * @return The file to write to, or null if no capture is due.
+	 */
+	private synchronized String due() {
+		if (requested) {
+			requested = false;
+			return fileName;
+		}
+		if (interval > 0 && frame % interval == 0) {
+			String base = fileName.endsWith(".bmp") ? fileName.substring(0, fileName.length() - 4) : fileName;
+			return String.format("%s_%05d.bmp", base, frame);
+		}
+		return null;
+	}
+
+	/**
+	 * Hands every finished readback to the encoder.
+	 *
+	 * @param gl
+	 * @param block If true, waits for outstanding readbacks to finish.
+	 */
+	private void collect(GL3 gl, boolean block) {
+		for (int i = 0; i < RING_SIZE; i++) {
+			Slot slot = ring[(next + i) % RING_SIZE];
+			// Give the GPU until frame N+2 before even polling a readback from frame N
+			if (slot.busy && (block || frame - slot.frame >= RING_SIZE - 1))
+				finish(gl, slot, block);
+		}
+	}
+
+	/**
+	 * Maps a slot and queues its pixels for encoding, if its fence has signalled.
+	 *
+	 * @param gl
+	 * @param slot The slot to finish.
+	 * @param block If true, waits for the fence rather than polling it.
+	 */
+	private void finish(GL3 gl, Slot slot, boolean block) {
+		long timeout = block ? Long.MAX_VALUE : 0;
+		int status = gl.glClientWaitSync(slot.fence, block ? GL3.GL_SYNC_FLUSH_COMMANDS_BIT : 0, timeout);
+		if (status == GL3.GL_WAIT_FAILED) {
+			// The fence will never signal, so give up on this capture and free the slot
+			gl.glDeleteSync(slot.fence);
+			slot.busy = false;
+			System.err.println("Failed to wait for screenshot readback of frame " + slot.frame);
+			return;
+		}
+		if (status != GL3.GL_ALREADY_SIGNALED && status != GL3.GL_CONDITION_SATISFIED)
+			return;
+		gl.glDeleteSync(slot.fence);
+
+		final int width = slot.width;
+		final int height = slot.height;
+		final String target = slot.fileName;
+		final int[] pixels = new int[width * height];
+
+		gl.glBindBuffer(GL3.GL_PIXEL_PACK_BUFFER, slot.pbo);
+		ByteBuffer mapped = gl.glMapBufferRange(GL3.GL_PIXEL_PACK_BUFFER, 0, (long) width * height * 4, GL3.GL_MAP_READ_BIT);
+		if (mapped != null) {
+			// BGRA bytes read as a little-endian int are exactly 0xAARRGGBB
+			IntBuffer source = mapped.order(ByteOrder.LITTLE_ENDIAN).asIntBuffer();
+			source.get(pixels);
+			gl.glUnmapBuffer(GL3.GL_PIXEL_PACK_BUFFER);
+		}
+		gl.glBindBuffer(GL3.GL_PIXEL_PACK_BUFFER, 0);
+		slot.busy = false;
+
+		if (mapped == null) {
+			System.err.println("Failed to map screenshot buffer for frame " + slot.frame);
+			return;
+		}
+
+		encoder.execute(new Runnable() {
+			public void run() {
+				encode(pixels, width, height, target);
+			}
+		});
+	}
+
+	/**
+	 * Flips the rows (OpenGL is bottom-up), forces alpha to opaque and writes the file.
+	 * Runs on the encoder thread.
+	 */
+	static void encode(int[] pixels, int width, int height, String fileName) {
+		int[] row = new int[width];
+		for (int top = 0, bottom = height - 1; top < bottom; top++, bottom--) {
+			System.arraycopy(pixels, top * width, row, 0, width);
+			System.arraycopy(pixels, bottom * width, pixels, top * width, width);
+			System.arraycopy(row, 0, pixels, bottom * width, width);
+		}
+		for (int i = 0; i < pixels.length; i++)
+			pixels[i] |= 0xff000000;
+
+		Image screenshot = new Image(height, width, pixels);
+		try {
+			screenshot.write(fileName);
+			Trace.msg("Screenshot written to " + fileName);
+		}
+		catch (IOException e) {
+			System.err.println("Failed to save screenshot: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Finishes any outstanding captures and releases the buffers.
+	 *
+	 * @param gl
+	 */
+	public void dispose(GL3 gl) {
+		collect(gl, true);
+		int[] ids = new int[RING_SIZE];
+		for (int i = 0; i < RING_SIZE; i++)
+			ids[i] = ring[i].pbo;
+		gl.glDeleteBuffers(RING_SIZE, ids, 0);
+		encoder.shutdown();
+		try {
+			encoder.awaitTermination(10, TimeUnit.SECONDS);
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+}
@@ -10,12 +10,15 @@ import inft3032.math.Vector4;
 
 import java.io.*;
 import java.nio.ByteBuffer;
-import java.nio.FloatBuffer;
 import java.nio.IntBuffer;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.Scanner;
 
 import javax.media.opengl.*;
 
+import com.jogamp.common.nio.Buffers;
+
 
 /**
  * A class representing an OpenGL shader!
@@ -41,14 +44,27 @@ public class Shader {
 	private int shaderID;
 	
 	/**
-	 * The ID of our vertex shader
+	 * Every active uniform in the linked program, keyed by name.
+	 * 
+	 * Array uniforms are registered under each element name ("lights[2]") 
+	 * as well as the bare array name, which refers to element 0.
+	 */
+	private Map<String, UniformHandle> uniforms = new HashMap<String, UniformHandle>();
+	
+	/**
+	 * The binding point of each uniform block, kept across recompiles.
+	 */
+	private Map<String, Integer> blockBindings = new HashMap<String, Integer>();
+	
+	/**
+	 * The number of uniform lookups by name since the last call to resetLookupCount().
 	 */
-	private int vs;
+	private int lookups;
 	
 	/**
-	 * The ID of our fragment shader
+	 * Scratch space for uploading matrices without allocating.
 	 */
-	private int fs;
+	private final float[] matrixScratch = new float[16];
 
 	/**
 	 * Constructs a shader from strings containing source code.
@@ -83,18 +99,43 @@ public class Shader {
 	 * 
 	 * @param gl Our lovely GL context
 	 */
-	@SuppressWarnings("static-access")
 	public void compile(GL3 gl) {
+		use(gl, build(gl, vertSource, fragSource));
+	}
+	
+	/**
+	 * Compiles and links new source code in place of the current program. If
+	 * the new code doesn't compile or link, the current program and source are
+	 * kept. Uniform handles already given out stay valid either way.
+	 * 
+	 * @param gl
+	 * @param vertexProgram The new vertex shader source
+	 * @param fragmentProgram The new fragment shader source
+	 * @throws RuntimeException with the compiler's log if the code doesn't compile or link.
+	 */
+	public void recompile(GL3 gl, String vertexProgram, String fragmentProgram) {
+		use(gl, build(gl, vertexProgram, fragmentProgram));
+		this.vertSource = vertexProgram;
+		this.fragSource = fragmentProgram;
+	}
+	
+	/**
+	 * Compiles and links a program, leaving this shader as it is.
+	 * 
+	 * @return The program ID.
+	 */
+	@SuppressWarnings("static-access")
+	private int build(GL3 gl, String vertSource, String fragSource) {
 		String[] sourceString = new String[1];
 		int[] sourceLength = new int[1];
 		int[] result = new int[1];
 		int[] logSize = new int[1];
 
-		vs = gl.glCreateShader(gl.GL_VERTEX_SHADER);
-		fs = gl.glCreateShader(gl.GL_FRAGMENT_SHADER);
+		int vs = gl.glCreateShader(gl.GL_VERTEX_SHADER);
+		int fs = gl.glCreateShader(gl.GL_FRAGMENT_SHADER);
 		
-		sourceString[0] = this.vertSource;
-		sourceLength[0] = this.vertSource.length();
+		sourceString[0] = vertSource;
+		sourceLength[0] = vertSource.length();
 		gl.glShaderSource(vs, 1, sourceString, sourceLength, 0);
 		gl.glCompileShader(vs);
 		
@@ -106,11 +147,13 @@ public class Shader {
 			byte[] buffer = new byte[logSize[0]];
 			gl.glGetShaderInfoLog(vs, logSize[0], null, ByteBuffer.wrap(buffer));
 			String log = new String(buffer);
+			gl.glDeleteShader(vs);
+			gl.glDeleteShader(fs);
 			throw new RuntimeException("Could not compile vertex shader!\n" + log);	
 		}
 
-		sourceString[0] = this.fragSource;
-		sourceLength[0] = this.fragSource.length();
+		sourceString[0] = fragSource;
+		sourceLength[0] = fragSource.length();
 		gl.glShaderSource(fs, 1, sourceString, sourceLength, 0);
 		gl.glCompileShader(fs);
 		
@@ -122,28 +165,231 @@ public class Shader {
 			byte[] buffer = new byte[logSize[0]];
 			gl.glGetShaderInfoLog(fs, logSize[0], null, ByteBuffer.wrap(buffer));
 			String log = new String(buffer);
+			gl.glDeleteShader(vs);
+			gl.glDeleteShader(fs);
 			throw new RuntimeException("Could not compile fragment shader!\n" + log);	
 		}
 		
 
 		// Great, now we have two working shaders, now lets link them to our program
-		shaderID = gl.glCreateProgram();
-		gl.glAttachShader(shaderID, vs);
-		gl.glAttachShader(shaderID, fs);
-		gl.glLinkProgram(shaderID);
+		int program = gl.glCreateProgram();
+		gl.glAttachShader(program, vs);
+		gl.glAttachShader(program, fs);
+		// Ask for a binary we can save (see ShaderCache), where the driver can give one
+		if (gl.isGL4ES3()) {
+			gl.getGL4ES3().glProgramParameteri(program, GL4ES3.GL_PROGRAM_BINARY_RETRIEVABLE_HINT, GL.GL_TRUE);
+		}
+		gl.glLinkProgram(program);
+		
+		// The program keeps what it needs from the shaders
+		gl.glDetachShader(program, vs);
+		gl.glDetachShader(program, fs);
+		gl.glDeleteShader(vs);
+		gl.glDeleteShader(fs);
 		
 		// find out whether linking worked
-		gl.glGetProgramiv(shaderID, gl.GL_LINK_STATUS, IntBuffer.wrap(result));
+		gl.glGetProgramiv(program, gl.GL_LINK_STATUS, IntBuffer.wrap(result));
 
 		// Get the log to find out the link error
 		if (result[0] == gl.GL_FALSE) {
-			gl.glGetProgramiv(shaderID, gl.GL_INFO_LOG_LENGTH, IntBuffer.wrap(logSize));
+			gl.glGetProgramiv(program, gl.GL_INFO_LOG_LENGTH, IntBuffer.wrap(logSize));
 
 			byte[] buffer = new byte[logSize[0]];
-			gl.glGetProgramInfoLog(shaderID, logSize[0], null, ByteBuffer.wrap(buffer));
+			gl.glGetProgramInfoLog(program, logSize[0], null, ByteBuffer.wrap(buffer));
 			String log = new String(buffer);
+			gl.glDeleteProgram(program);
 			throw new RuntimeException("Could not link shader!\n" + log);
 		}
+		return program;
+	}
+	
+	/**
+	 * Switches to a linked program, deleting the old one.
+	 */
+	private void use(GL3 gl, int program) {
+		if (shaderID != 0) {
+			gl.glDeleteProgram(shaderID);
+		}
+		shaderID = program;
+		introspectUniforms(gl);
+		for (Map.Entry<String, Integer> e : blockBindings.entrySet()) {
+			bindBlock(gl, e.getKey(), e.getValue());
+		}
+	}
+	
+	/**
+	 * Attaches a uniform block to a binding point, where the program has the
+	 * block. The binding is kept when the program is recompiled.
+	 * 
+	 * @param gl
+	 * @param name The name of the block, e.g. "LightBlock"
+	 * @param binding The binding point the block's buffer is bound to.
+	 */
+	public void bindBlock(GL3 gl, String name, int binding) {
+		blockBindings.put(name, binding);
+		int index = gl.glGetUniformBlockIndex(shaderID, name);
+		if (index != GL2ES3.GL_INVALID_INDEX) {
+			gl.glUniformBlockBinding(shaderID, index, binding);
+		}
+	}
+	
+	/**
+	 * Loads a program binary saved from an earlier run (see binary()).
+	 * 
+	 * @param gl
+	 * @param format The binary format, as given by binary().
+	 * @param binary The binary.
+	 * @return False if the driver rejected it, e.g. after a driver update; the shader is then unchanged.
+	 */
+	@SuppressWarnings("static-access")
+	public boolean load(GL3 gl, int format, ByteBuffer binary) {
+		int program = gl.glCreateProgram();
+		gl.glProgramBinary(program, format, binary, binary.remaining());
+		int[] result = new int[1];
+		gl.glGetProgramiv(program, gl.GL_LINK_STATUS, result, 0);
+		if (result[0] == gl.GL_FALSE) {
+			gl.glDeleteProgram(program);
+			return false;
+		}
+		use(gl, program);
+		return true;
+	}
+	
+	/**
+	 * Gets the linked program as a binary, to be given back to load() on a later run.
+	 * 
+	 * @param gl
+	 * @param format Receives the binary format.
+	 * @return The binary, or null if the driver won't give one.
+	 */
+	@SuppressWarnings("static-access")
+	public ByteBuffer binary(GL3 gl, int[] format) {
+		int[] length = new int[1];
+		gl.glGetProgramiv(shaderID, gl.GL_PROGRAM_BINARY_LENGTH, length, 0);
+		if (length[0] <= 0)
+			return null;
+		ByteBuffer binary = Buffers.newDirectByteBuffer(length[0]);
+		gl.glGetProgramBinary(shaderID, length[0], length, 0, format, 0, binary);
+		binary.limit(length[0]);
+		return binary;
+	}
+	
+	/**
+	 * @return The source code of the vertex shader.
+	 */
+	public String vertexSource() {
+		return vertSource;
+	}
+	
+	/**
+	 * @return The source code of the fragment shader.
+	 */
+	public String fragmentSource() {
+		return fragSource;
+	}
+	
+	/**
+	 * Queries the linked program for all of its active uniforms and records 
+	 * their locations, so we never have to ask the driver again. Handles from
+	 * an earlier program are updated in place.
+	 * 
+	 * @param gl Our lovely GL context
+	 */
+	@SuppressWarnings("static-access")
+	private void introspectUniforms(GL3 gl) {
+		int[] count = new int[1];
+		int[] maxLength = new int[1];
+		gl.glGetProgramiv(shaderID, gl.GL_ACTIVE_UNIFORMS, count, 0);
+		gl.glGetProgramiv(shaderID, gl.GL_ACTIVE_UNIFORM_MAX_LENGTH, maxLength, 0);
+		
+		int[] length = new int[1];
+		int[] size = new int[1];
+		int[] type = new int[1];
+		byte[] nameBuffer = new byte[Math.max(maxLength[0], 1)];
+		
+		for (UniformHandle handle : uniforms.values()) {
+			handle.location = -1;
+		}
+		for (int i = 0; i < count[0]; i++) {
+			gl.glGetActiveUniform(shaderID, i, nameBuffer.length, length, 0, size, 0, type, 0, nameBuffer, 0);
+			String name = new String(nameBuffer, 0, length[0]);
+			
+			// Uniform blocks members and the like report no location; skip them
+			int location = gl.glGetUniformLocation(shaderID, name);
+			if (location == -1)
+				continue;
+			
+			if (name.endsWith("[0]")) {
+				String base = name.substring(0, name.length() - 3);
+				locate(base, location);
+				locate(name, location);
+				for (int element = 1; element < size[0]; element++) {
+					String elementName = base + "[" + element + "]";
+					locate(elementName, gl.glGetUniformLocation(shaderID, elementName));
+				}
+			}
+			else {
+				locate(name, location);
+			}
+		}
+	}
+	
+	private void locate(String name, int location) {
+		UniformHandle handle = uniforms.get(name);
+		if (handle == null)
+			uniforms.put(name, new UniformHandle(name, location));
+		else
+			handle.location = location;
+	}
+	
+	/**
+	 * Resolves a uniform by name. 
+	 * 
+	 * Call this once (e.g. in init) and keep the handle; setting a uniform 
+	 * through a handle does no lookups at all. Uniforms that are not active in
+	 * the program (including ones the compiler optimised away) give a handle 
+	 * that is silently ignored when set.
+	 * 
+	 * @param name The name of the uniform, e.g. "model" or "lightColours[1]"
+	 * @return A handle for the uniform, never null.
+	 */
+	public UniformHandle getUniform(String name) {
+		lookups++;
+		UniformHandle handle = uniforms.get(name);
+		if (handle == null) {
+			handle = new UniformHandle(name, -1);
+			uniforms.put(name, handle);
+		}
+		return handle;
+	}
+	
+	/**
+	 * Resolves every element of an array uniform.
+	 * 
+	 * @param name The name of the array, without brackets.
+	 * @param length The number of elements wanted.
+	 * @return One handle per element.
+	 */
+	public UniformHandle[] getUniformArray(String name, int length) {
+		UniformHandle[] handles = new UniformHandle[length];
+		for (int i = 0; i < length; i++) {
+			handles[i] = getUniform(name + "[" + i + "]");
+		}
+		return handles;
+	}
+	
+	/**
+	 * @return The number of uniform lookups by name since the last reset.
+	 */
+	public int lookupCount() {
+		return lookups;
+	}
+	
+	/**
+	 * Resets the lookup counter, typically at the start of each frame.
+	 */
+	public void resetLookupCount() {
+		lookups = 0;
 	}
 	
 	/**
@@ -162,28 +408,76 @@ public class Shader {
 		gl.glUseProgram(0);
 	}
 	
+	/**
+	 * Deletes the program.
+	 * @param gl
+	 */
+	public void dispose(GL3 gl) {
+		if (shaderID != 0) {
+			gl.glDeleteProgram(shaderID);
+			shaderID = 0;
+		}
+	}
+	
+	public void setUniform(UniformHandle uniform, Matrix4 matrix, GL3 gl) {
+		if (uniform.location != -1) {
+			matrix.toOpenGL(matrixScratch);
+			gl.glUniformMatrix4fv(uniform.location, 1, false, matrixScratch, 0);
+		}
+	}
+	
+	/**
+	 * Sets a mat3 uniform.
+	 * 
+	 * @param matrix 9 floats in column-major order, e.g. from Shape.normalMatrix().
+	 */
+	public void setUniform(UniformHandle uniform, float[] matrix, GL3 gl) {
+		if (uniform.location != -1)
+			gl.glUniformMatrix3fv(uniform.location, 1, false, matrix, 0);
+	}
+	
+	public void setUniform(UniformHandle uniform, float value, GL3 gl) {
+		if (uniform.location != -1)
+			gl.glUniform1f(uniform.location, value);
+	}
+	
+	public void setUniform(UniformHandle uniform, int value, GL3 gl) {
+		if (uniform.location != -1)
+			gl.glUniform1i(uniform.location, value);
+	}
+	
+	public void setUniform(UniformHandle uniform, Vector3 vector, GL3 gl) {
+		if (uniform.location != -1)
+			gl.glUniform3f(uniform.location, vector.getX(), vector.getY(), vector.getZ());
+	}
+
+	public void setUniform(UniformHandle uniform, Vector4 vector, GL3 gl) {
+		if (uniform.location != -1)
+			gl.glUniform4f(uniform.location, vector.getX(), vector.getY(), vector.getZ(), vector.getW());
+	}
+	
 	public void setUniform(String name, Matrix4 matrix, GL3 gl) {
-		int location = gl.glGetUniformLocation(shaderID, name);
-		if (location != -1)
-			gl.glUniformMatrix4fv(location, 1, false, FloatBuffer.wrap(matrix.toOpenGL()));
+		setUniform(getUniform(name), matrix, gl);
+	}
+	
+	public void setUniform(String name, float[] matrix, GL3 gl) {
+		setUniform(getUniform(name), matrix, gl);
 	}
 	
 	public void setUniform(String name, float value, GL3 gl) {
-		int location = gl.glGetUniformLocation(shaderID, name);
-		if (location != -1)
-			gl.glUniform1f(location, value);
+		setUniform(getUniform(name), value, gl);
+	}
+	
+	public void setUniform(String name, int value, GL3 gl) {
+		setUniform(getUniform(name), value, gl);
 	}
 	
 	public void setUniform(String name, Vector3 vector, GL3 gl) {
-		int location = gl.glGetUniformLocation(shaderID, name);
-		if (location != -1)
-			gl.glUniform3f(location, vector.getX(), vector.getY(), vector.getZ());
+		setUniform(getUniform(name), vector, gl);
 	}
 
 	public void setUniform(String name, Vector4 vector, GL3 gl) {
-		int location = gl.glGetUniformLocation(shaderID, name);
-		if (location != -1)
-			gl.glUniform4f(location, vector.getX(), vector.getY(), vector.getZ(), vector.getW());
+		setUniform(getUniform(name), vector, gl);
 	}
 	
 }
@@ -0,0 +1,435 @@
+// Starting code Copyright 2014 University of South Australia
+// Written by Michael Marner <michael.marner@unisa.edu.au>
+//
+
+package inft3032.assign;
+
+import inft3032.scene.Trace;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.media.opengl.GL;
+import javax.media.opengl.GL2ES2;
+import javax.media.opengl.GL3;
+
+
+/**
+ * Compiles each distinct shader program once and keeps it up to date.
+ *
+ * A program is identified by a hash of its vertex source, its fragment source
+ * and the defines it is compiled with, so every material asking for the same
+ * program gets the same Shader. The cache watches the source files, and
+ * update() recompiles any program whose files have changed in place, so the
+ * Shader and its uniform handles stay valid. If the new source doesn't
+ * compile, the error is printed and the last good program stays in use.
+ *
+ * Where the driver supports glGetProgramBinary, linked programs are saved in
+ * a directory and loaded from there next time, skipping compilation.
+ */
+public class ShaderCache {
+
+	/**
+	 * A program, and where it came from.
+	 */
+	private static final class Entry {
+		final Shader shader;
+		final File vert;
+		final File frag;
+		final String[] defines;
+		String key;
+
+		Entry(Shader shader, File vert, File frag, String[] defines, String key) {
+			this.shader = shader;
+			this.vert = vert;
+			this.frag = frag;
+			this.defines = defines;
+			this.key = key;
+		}
+	}
+
+	private final Map<String, Entry> programs = new HashMap<String, Entry>();
+	private final List<Entry> entries = new ArrayList<Entry>();
+
+	/**
+	 * Where program binaries are kept, or null to not keep them.
+	 */
+	private final File binaryDirectory;
+
+	/**
+	 * Identifies the driver, as binaries only work on the driver that made them.
+	 */
+	private String driver;
+	private boolean binariesSupported;
+
+	private WatchService watcher;
+	private final Set<Path> watchedDirectories = new HashSet<Path>();
+	private final Set<Path> changed = Collections.newSetFromMap(new ConcurrentHashMap<Path, Boolean>());
+
+	private int compiled;
+	private int loaded;
+
+	/**
+	 * @param binaryDirectory Where to keep program binaries, or null to always compile.
+	 */
+	public ShaderCache(File binaryDirectory) {
+		this.binaryDirectory = binaryDirectory;
+	}
+
+	/**
+	 * Works out whether program binaries can be kept. Call once with the context current.
+	 *
+	 * @param gl
+	 */
+	public void init(GL3 gl) {
+		int[] formats = new int[1];
+		gl.glGetIntegerv(GL2ES2.GL_NUM_PROGRAM_BINARY_FORMATS, formats, 0);
+		binariesSupported = binaryDirectory != null && formats[0] > 0;
+		driver = gl.glGetString(GL.GL_VENDOR) + "\n" + gl.glGetString(GL.GL_RENDERER) + "\n" + gl.glGetString(GL.GL_VERSION);
+
+		try {
+			watcher = FileSystems.getDefault().newWatchService();
+			Thread t = new Thread(new Runnable() {
+				public void run() {
+					watch();
+				}
+			}, "shader-watcher");
+			t.setDaemon(true);
+			t.start();
+		} catch (IOException e) {
+			System.out.println("Not watching shaders for changes: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Gets the program built from two source files with some defines,
+	 * compiling (or loading) it if it is not already in the cache.
+	 *
+	 * @param gl
+	 * @param vert The vertex shader source file.
+	 * @param frag The fragment shader source file.
+	 * @param defines Macros to define before the source, e.g. "MAX_LIGHTS 4".
+	 * @return The program.
+	 * @throws IOException if a source file can't be read.
+	 * @throws RuntimeException with the compiler's log if the program doesn't compile.
+	 */
+	public Shader get(GL3 gl, File vert, File frag, String... defines) throws IOException {
+		String vertSource = source(vert, defines);
+		String fragSource = source(frag, defines);
+		String key = key(vertSource, fragSource, defines);
+		Entry e = programs.get(key);
+		if (e != null)
+			return e.shader;
+
+		long start = System.nanoTime();
+		Shader shader = new Shader(vertSource, fragSource);
+		boolean fromBinary = loadBinary(gl, shader, key);
+		if (!fromBinary) {
+			shader.compile(gl);
+			saveBinary(gl, shader, key);
+			compiled++;
+		}
+		else {
+			loaded++;
+		}
+		Trace.msg(String.format("%s %s + %s%s in %.1fms", fromBinary ? "Loaded program binary for" : "Compiled",
+				vert, frag, defines.length == 0 ? "" : " " + Arrays.toString(defines), (System.nanoTime() - start) / 1.0e6));
+
+		e = new Entry(shader, vert, frag, defines, key);
+		programs.put(key, e);
+		entries.add(e);
+		watch(vert);
+		watch(frag);
+		return shader;
+	}
+
+	/**
+	 * Recompiles the programs whose source files have changed since the last
+	 * call. Call once a frame, on the GL thread.
+	 *
+	 * @param gl
+	 * @return True if any program was replaced.
+	 */
+	public boolean update(GL3 gl) {
+		if (changed.isEmpty())
+			return false;
+		Set<Path> files = new HashSet<Path>();
+		for (Path p : changed) {
+			changed.remove(p);
+			files.add(p);
+		}
+
+		boolean replaced = false;
+		for (Entry e : entries) {
+			if (!files.contains(path(e.vert)) && !files.contains(path(e.frag)))
+				continue;
+			try {
+				long start = System.nanoTime();
+				String vertSource = source(e.vert, e.defines);
+				String fragSource = source(e.frag, e.defines);
+				String key = key(vertSource, fragSource, e.defines);
+				if (key.equals(e.key))
+					continue;
+				e.shader.recompile(gl, vertSource, fragSource);
+				saveBinary(gl, e.shader, key);
+				unmap(e);
+				// If another program already has this source it keeps the key; this one stays valid for whoever holds it
+				if (!programs.containsKey(key))
+					programs.put(key, e);
+				e.key = key;
+				compiled++;
+				replaced = true;
+				System.out.println(String.format("Recompiled %s + %s in %.1fms", e.vert, e.frag, (System.nanoTime() - start) / 1.0e6));
+			} catch (IOException ex) {
+				System.out.println("Keeping the last good program: " + ex);
+			} catch (RuntimeException ex) {
+				System.out.println("Keeping the last good program for " + e.vert + " + " + e.frag + ": " + ex.getMessage());
+			}
+		}
+		return replaced;
+	}
+
+	/**
+	 * Deletes the programs that are no longer in use, e.g. those sized for
+	 * the old number of lights after a reload.
+	 *
+	 * @param gl
+	 * @param used The programs still in use. Others are deleted.
+	 * @return The programs deleted.
+	 */
+	public List<Shader> release(GL3 gl, Collection<Shader> used) {
+		Set<Shader> keep = Collections.newSetFromMap(new IdentityHashMap<Shader, Boolean>());
+		keep.addAll(used);
+		List<Shader> released = new ArrayList<Shader>();
+		for (Iterator<Entry> i = entries.iterator(); i.hasNext(); ) {
+			Entry e = i.next();
+			if (keep.contains(e.shader))
+				continue;
+			i.remove();
+			unmap(e);
+			e.shader.dispose(gl);
+			released.add(e.shader);
+		}
+		return released;
+	}
+
+	/**
+	 * Takes a program out of the lookup by key, handing the key to another
+	 * program with the same source if there is one.
+	 */
+	private void unmap(Entry e) {
+		if (programs.get(e.key) != e)
+			return;
+		programs.remove(e.key);
+		for (Entry other : entries) {
+			if (other != e && other.key.equals(e.key)) {
+				programs.put(other.key, other);
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Stops watching the source files and forgets the programs.
+	 *
+	 * @param gl
+	 */
+	public void dispose(GL3 gl) {
+		if (watcher != null) {
+			try {
+				watcher.close();
+			} catch (IOException e) {
+				// Nothing more to do
+			}
+		}
+		for (Entry e : entries) {
+			e.shader.dispose(gl);
+		}
+		entries.clear();
+		programs.clear();
+	}
+
+	public String toString() {
+		return entries.size() + " programs, " + compiled + " compiled, " + loaded + " loaded from binaries"
+				+ (binariesSupported ? "" : " (binaries not supported)");
+	}
+
+	/**
+	 * Reads a source file and adds the defines after its #version line.
+	 */
+	private static String source(File f, String[] defines) throws IOException {
+		String source = new String(Files.readAllBytes(f.toPath()), StandardCharsets.UTF_8);
+		if (defines.length == 0)
+			return source;
+		StringBuilder b = new StringBuilder(source.length() + defines.length * 32);
+		int start = 0;
+		if (source.startsWith("#version")) {
+			int eol = source.indexOf('\n');
+			start = eol < 0 ? source.length() : eol + 1;
+			b.append(source, 0, start);
+			if (eol < 0)
+				b.append('\n');
+		}
+		for (String d : defines) {
+			b.append("#define ").append(d).append('\n');
+		}
+		// Keep the compiler's line numbers matching the file
+		b.append("#line ").append(start == 0 ? 1 : 2).append('\n');
+		return b.append(source, start, source.length()).toString();
+	}
+
+	private static String key(String vertSource, String fragSource, String[] defines) {
+		MessageDigest md = sha1();
+		md.update(hash(vertSource));
+		md.update(hash(fragSource));
+		for (String d : defines) {
+			md.update(d.getBytes(StandardCharsets.UTF_8));
+			md.update((byte) 0);
+		}
+		return hex(md.digest());
+	}
+
+	private static byte[] hash(String s) {
+		return sha1().digest(s.getBytes(StandardCharsets.UTF_8));
+	}
+
+	private static MessageDigest sha1() {
+		try {
+			return MessageDigest.getInstance("SHA-1");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static String hex(byte[] bytes) {
+		StringBuilder b = new StringBuilder(bytes.length * 2);
+		for (byte x : bytes) {
+			b.append(Character.forDigit((x >> 4) & 0xf, 16)).append(Character.forDigit(x & 0xf, 16));
+		}
+		return b.toString();
+	}
+
+	//----------------- program binaries --------------------------
+
+	/**
+	 * The binary file for a program on this driver.
+	 */
+	private File binaryFile(String key) {
+		MessageDigest md = sha1();
+		md.update(key.getBytes(StandardCharsets.UTF_8));
+		md.update(driver.getBytes(StandardCharsets.UTF_8));
+		return new File(binaryDirectory, hex(md.digest()) + ".bin");
+	}
+
+	/**
+	 * A binary file is the format as a little-endian int followed by the binary.
+	 */
+	private boolean loadBinary(GL3 gl, Shader shader, String key) {
+		if (!binariesSupported)
+			return false;
+		File f = binaryFile(key);
+		if (!f.isFile())
+			return false;
+		try {
+			byte[] bytes = Files.readAllBytes(f.toPath());
+			if (bytes.length < 4)
+				return false;
+			ByteBuffer b = ByteBuffer.allocateDirect(bytes.length).order(ByteOrder.LITTLE_ENDIAN);
+			b.put(bytes).flip();
+			int format = b.getInt();
+			if (shader.load(gl, format, b.slice()))
+				return true;
+			Trace.msg("Driver rejected program binary " + f + "; compiling instead");
+		} catch (IOException e) {
+			Trace.msg("Could not read program binary " + f + ": " + e);
+		}
+		return false;
+	}
+
+	private void saveBinary(GL3 gl, Shader shader, String key) {
+		if (!binariesSupported)
+			return;
+		int[] format = new int[1];
+		ByteBuffer binary = shader.binary(gl, format);
+		if (binary == null)
+			return;
+		File f = binaryFile(key);
+		File tmp = new File(f.getPath() + ".tmp");
+		try {
+			Files.createDirectories(binaryDirectory.toPath());
+			byte[] bytes = new byte[4 + binary.remaining()];
+			ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN).putInt(format[0]).put(binary);
+			Files.write(tmp.toPath(), bytes);
+			Files.move(tmp.toPath(), f.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		} catch (IOException e) {
+			Trace.msg("Could not save program binary " + f + ": " + e);
+			tmp.delete();
+		}
+	}
+
+	//----------------- watching the sources --------------------------
+
+	private static Path path(File f) {
+		return f.toPath().toAbsolutePath().normalize();
+	}
+
+	private void watch(File f) {
+		if (watcher == null)
+			return;
+		Path dir = path(f).getParent();
+		if (!watchedDirectories.add(dir))
+			return;
+		try {
+			dir.register(watcher, StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_CREATE);
+		} catch (IOException e) {
+			System.out.println("Not watching " + dir + " for shader changes: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Runs on the watcher thread, noting which files changed for update().
+	 */
+	private void watch() {
+		try {
+			while (true) {
+				WatchKey key = watcher.take();
+				Path dir = (Path) key.watchable();
+				for (WatchEvent<?> event : key.pollEvents()) {
+					if (event.context() instanceof Path)
+						changed.add(dir.resolve((Path) event.context()).normalize());
+				}
+				key.reset();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (ClosedWatchServiceException e) {
+			// disposed
+		}
+	}
+}
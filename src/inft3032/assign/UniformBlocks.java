@@ -0,0 +1,260 @@
+// Starting code Copyright 2014 University of South Australia
+// Written by Michael Marner <michael.marner@unisa.edu.au>
+//
+
+package inft3032.assign;
+
+import inft3032.lighting.DirectionalLight;
+import inft3032.lighting.Light;
+import inft3032.lighting.PointLight;
+import inft3032.lighting.SpotLight;
+import inft3032.math.MutableMatrix4;
+import inft3032.math.Vector3;
+import inft3032.scene.Scene;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import javax.media.opengl.GL;
+import javax.media.opengl.GL2ES3;
+import javax.media.opengl.GL3;
+import javax.media.opengl.GL3ES3;
+
+
+/**
+ * The per-frame uniforms shared by every program, as two std140 uniform blocks.
+ *
+ * FrameUniforms holds the camera and ambient light, and LightBlock holds every
+ * light in the scene. Both are written once a frame into one uniform buffer and
+ * bound to fixed binding points, which each program's blocks are attached to
+ * when it is first used (see bind()). Switching programs then costs nothing.
+ *
+ * The buffer holds three frames' worth of blocks. Each frame writes the next
+ * third through an unsynchronised map, after waiting on the fence placed when
+ * that third was last used, so the CPU never waits for a frame still in flight.
+ *
+ * The blocks, as declared in the shaders:
+ * <pre>
+ * layout(std140) uniform FrameUniforms {
+ *     mat4 projection;        // offset 0
+ *     mat4 view;              // 64
+ *     vec3 viewPosition;      // 128
+ *     vec3 ambientIntensity;  // 144
+ * };
+ *
+ * struct Light {
+ *     vec4 position;          // xyz, and the type in w: 0 point, 1 directional, 2 spot
+ *     vec4 colour;            // rgb
+ *     vec4 direction;         // xyz towards the scene, and the cosine of the spot cut-off in w
+ *     vec4 attenuation;       // constant, linear, quadratic, and the spot drop-off rate
+ * };
+ *
+ * layout(std140) uniform LightBlock {
+ *     int numLights;          // offset 0
+ *     Light lights[MAX_LIGHTS]; // 16, 64 bytes each
+ * };
+ * </pre>
+ */
+public class UniformBlocks {
+
+	public static final int FRAME_BINDING = 0;
+	public static final int LIGHT_BINDING = 1;
+
+	public static final String FRAME_BLOCK = "FrameUniforms";
+	public static final String LIGHT_BLOCK = "LightBlock";
+
+	public static final int POINT = 0;
+	public static final int DIRECTIONAL = 1;
+	public static final int SPOT = 2;
+
+	private static final int FRAME_BLOCK_SIZE = 160;
+	private static final int LIGHT_HEADER_SIZE = 16;
+	private static final int LIGHT_SIZE = 64;
+
+	private static final int FRAMES = 3;
+
+	/**
+	 * How long to wait for the GPU to finish with a frame's blocks before giving up, in nanoseconds.
+	 */
+	private static final long FENCE_TIMEOUT = 1000000000L;
+
+	private int buffer;
+	private int alignment;
+	private int lightOffset;
+	private int lightBlockSize;
+	private int segmentSize;
+	private final long[] fences = new long[FRAMES];
+	private int frame;
+
+	private final float[] matrixScratch = new float[16];
+
+	/**
+	 * Creates the buffer. Call once with the context current.
+	 *
+	 * @param gl
+	 */
+	public void init(GL3 gl) {
+		int[] temp = new int[1];
+		gl.glGetIntegerv(GL2ES3.GL_UNIFORM_BUFFER_OFFSET_ALIGNMENT, temp, 0);
+		alignment = Math.max(temp[0], 16);
+		gl.glGenBuffers(1, temp, 0);
+		buffer = temp[0];
+	}
+
+	/**
+	 * Attaches a program's blocks to the binding points. The program keeps the
+	 * binding when it is recompiled.
+	 *
+	 * @param gl
+	 * @param program
+	 */
+	public static void bind(GL3 gl, Shader program) {
+		program.bindBlock(gl, FRAME_BLOCK, FRAME_BINDING);
+		program.bindBlock(gl, LIGHT_BLOCK, LIGHT_BINDING);
+	}
+
+	/**
+	 * Writes this frame's blocks and binds them.
+	 *
+	 * @param gl
+	 * @param projection The projection matrix.
+	 * @param view The view matrix.
+	 * @param scene The scene, for the camera position, ambient light and lights.
+	 */
+	public void update(GL3 gl, MutableMatrix4 projection, MutableMatrix4 view, Scene scene) {
+		Light[] lights = scene.lights;
+		int lightBlock = LIGHT_HEADER_SIZE + LIGHT_SIZE * Math.max(1, lights.length);
+		gl.glBindBuffer(GL2ES3.GL_UNIFORM_BUFFER, buffer);
+		if (lightBlock != lightBlockSize) {
+			resize(gl, lightBlock);
+		}
+
+		// Wait until the GPU has finished with the frame that last used this third
+		int current = frame % FRAMES;
+		if (fences[current] != 0) {
+			gl.glClientWaitSync(fences[current], GL3ES3.GL_SYNC_FLUSH_COMMANDS_BIT, FENCE_TIMEOUT);
+			gl.glDeleteSync(fences[current]);
+			fences[current] = 0;
+		}
+
+		long offset = (long) current * segmentSize;
+		ByteBuffer b = gl.glMapBufferRange(GL2ES3.GL_UNIFORM_BUFFER, offset, segmentSize,
+				GL.GL_MAP_WRITE_BIT | GL.GL_MAP_INVALIDATE_RANGE_BIT | GL.GL_MAP_UNSYNCHRONIZED_BIT);
+		if (b != null) {
+			b.order(ByteOrder.nativeOrder());
+			writeFrame(b, projection, view, scene);
+			b.position(lightOffset);
+			writeLights(b, lights);
+			gl.glUnmapBuffer(GL2ES3.GL_UNIFORM_BUFFER);
+		}
+		gl.glBindBufferRange(GL2ES3.GL_UNIFORM_BUFFER, FRAME_BINDING, buffer, offset, FRAME_BLOCK_SIZE);
+		gl.glBindBufferRange(GL2ES3.GL_UNIFORM_BUFFER, LIGHT_BINDING, buffer, offset + lightOffset, lightBlockSize);
+		gl.glBindBuffer(GL2ES3.GL_UNIFORM_BUFFER, 0);
+	}
+
+	/**
+	 * Marks the end of the frame's drawing, so the blocks it used can be
+	 * reused once the GPU gets past this point.
+	 *
+	 * @param gl
+	 */
+	public void endFrame(GL3 gl) {
+		fences[frame % FRAMES] = gl.glFenceSync(GL3ES3.GL_SYNC_GPU_COMMANDS_COMPLETE, 0);
+		frame++;
+	}
+
+	/**
+	 * Deletes the buffer.
+	 *
+	 * @param gl
+	 */
+	public void dispose(GL3 gl) {
+		for (int i = 0; i < FRAMES; i++) {
+			if (fences[i] != 0) {
+				gl.glDeleteSync(fences[i]);
+				fences[i] = 0;
+			}
+		}
+		gl.glDeleteBuffers(1, new int[] { buffer }, 0);
+	}
+
+	/**
+	 * Makes room for a different number of lights. Only happens when the scene
+	 * is reloaded, so it just waits for the GPU.
+	 */
+	private void resize(GL3 gl, int lightBlock) {
+		for (int i = 0; i < FRAMES; i++) {
+			if (fences[i] != 0) {
+				gl.glClientWaitSync(fences[i], GL3ES3.GL_SYNC_FLUSH_COMMANDS_BIT, FENCE_TIMEOUT);
+				gl.glDeleteSync(fences[i]);
+				fences[i] = 0;
+			}
+		}
+		lightBlockSize = lightBlock;
+		lightOffset = align(FRAME_BLOCK_SIZE);
+		segmentSize = align(lightOffset + lightBlockSize);
+		gl.glBufferData(GL2ES3.GL_UNIFORM_BUFFER, (long) segmentSize * FRAMES, null, GL.GL_DYNAMIC_DRAW);
+	}
+
+	private int align(int size) {
+		return (size + alignment - 1) / alignment * alignment;
+	}
+
+	private void writeFrame(ByteBuffer b, MutableMatrix4 projection, MutableMatrix4 view, Scene scene) {
+		projection.toOpenGL(matrixScratch);
+		for (float f : matrixScratch) {
+			b.putFloat(f);
+		}
+		view.toOpenGL(matrixScratch);
+		for (float f : matrixScratch) {
+			b.putFloat(f);
+		}
+		put(b, scene.camera.getPosition(), 0.0f);
+		put(b, scene.ambient, 0.0f);
+	}
+
+	private static void writeLights(ByteBuffer b, Light[] lights) {
+		b.putInt(lights.length).putInt(0).putInt(0).putInt(0);
+		for (Light l : lights) {
+			if (l instanceof SpotLight) {
+				SpotLight s = (SpotLight) l;
+				put(b, s.location, SPOT);
+				put(b, s.colour, 0.0f);
+				put(b, s.direction, s.cosCutOffAngle);
+				b.putFloat(s.constantAttenuation).putFloat(s.linearAttenuation).putFloat(s.quadraticAttenuation).putFloat(s.dropOffRate);
+			}
+			else if (l instanceof DirectionalLight) {
+				DirectionalLight d = (DirectionalLight) l;
+				put(b, null, DIRECTIONAL);
+				put(b, d.colour, 0.0f);
+				put(b, d.direction, 0.0f);
+				b.putFloat(1.0f).putFloat(0.0f).putFloat(0.0f).putFloat(0.0f);
+			}
+			else {
+				put(b, l.location, POINT);
+				put(b, l.colour, 0.0f);
+				put(b, null, 0.0f);
+				if (l instanceof PointLight) {
+					PointLight p = (PointLight) l;
+					b.putFloat(p.constantAttenuation).putFloat(p.linearAttenuation).putFloat(p.quadraticAttenuation).putFloat(0.0f);
+				}
+				else {
+					b.putFloat(1.0f).putFloat(0.0f).putFloat(0.0f).putFloat(0.0f);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Writes a vec4 from a vector and a w, with zeros for a missing vector.
+	 */
+	private static void put(ByteBuffer b, Vector3 v, float w) {
+		if (v == null) {
+			b.putFloat(0.0f).putFloat(0.0f).putFloat(0.0f);
+		}
+		else {
+			b.putFloat(v.getX()).putFloat(v.getY()).putFloat(v.getZ());
+		}
+		b.putFloat(w);
+	}
+}
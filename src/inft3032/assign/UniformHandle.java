@@ -0,0 +1,51 @@
+// Starting code Copyright 2014 University of South Australia
+// Written by Michael Marner <michael.marner@unisa.edu.au>
+//
+
+package inft3032.assign;
+
+
+/**
+ * A resolved shader uniform.
+ * 
+ * Get one from Shader.getUniform() once, then pass it to Shader.setUniform() 
+ * every frame. A location of -1 means the uniform is not active in the 
+ * program and setting it does nothing.
+ *
+ */
+public final class UniformHandle {
+	
+	/**
+	 * The name of the uniform in the shader source
+	 */
+	final String name;
+	
+	/**
+	 * The location of the uniform in the linked program
+	 */
+	int location;
+	
+	UniformHandle(String name, int location) {
+		this.name = name;
+		this.location = location;
+	}
+	
+	public String getName() {
+		return name;
+	}
+	
+	public int getLocation() {
+		return location;
+	}
+	
+	/**
+	 * @return True if the uniform exists in the linked program.
+	 */
+	public boolean isActive() {
+		return location != -1;
+	}
+	
+	public String toString() {
+		return name + "@" + location;
+	}
+}
@@ -0,0 +1,37 @@
+// Starting code Copyright 2014 University of South Australia
+// Written by Michael Marner <michael.marner@unisa.edu.au>
+//
+
+package inft3032.assign;
+
+import inft3032.math.Frustum;
+import inft3032.math.MutableMatrix4;
+import inft3032.scene.Camera;
+
+
+/**
+ * The camera's matrices and view frustum for the frame being drawn. They are
+ * rewritten in place every frame, so working them out allocates nothing.
+ */
+public class ViewState {
+
+	public static final float NEAR = 0.1f;
+	public static final float FAR = 100.0f;
+
+	public final MutableMatrix4 projection = new MutableMatrix4();
+	public final MutableMatrix4 view = new MutableMatrix4();
+	public final MutableMatrix4 viewProjection = new MutableMatrix4();
+	public final Frustum frustum = new Frustum();
+
+	/**
+	 * Works everything out for a camera.
+	 *
+	 * @param camera The camera to draw from.
+	 */
+	public void update(Camera camera) {
+		projection.setPerspective(camera.getHeightAngle(), camera.getAspectRatio(), NEAR, FAR);
+		view.setLookAt(camera.getPosition(), camera.getDirection(), camera.getUp());
+		projection.mulInto(view, viewProjection);
+		frustum.set(viewProjection);
+	}
+}
@@ -3,10 +3,8 @@
 //
 package inft3032.drawables;
 
-import java.nio.FloatBuffer;
-import java.nio.IntBuffer;
+import inft3032.math.AABB;
 
-import javax.media.opengl.GL;
 import javax.media.opengl.GL3;
 
 
@@ -16,11 +14,6 @@ public class Box extends Shape {
 	private float height;
 	private float depth;
 	
-	private int vao;
-    private int vbo;
-    private float[] vertices;
-    private int[] indices;
-	
 	public Box(float width, float height, float depth, Material m) {
 		super(m);
 		this.width = width;
@@ -28,26 +21,78 @@ public class Box extends Shape {
 		this.depth = depth;
 	}
 	
+	public float width() {
+		return width;
+	}
+	
+	public float height() {
+		return height;
+	}
+	
+	public float depth() {
+		return depth;
+	}
+	
+	public boolean localBounds(AABB out) {
+		out.set(-width / 2, -height / 2, -depth / 2, width / 2, height / 2, depth / 2);
+		return true;
+	}
+	
+	/**
+	 * Slab test against the box centred on the origin.
+	 */
+	public boolean intersect(float ox, float oy, float oz, float dx, float dy, float dz,
+			float tMin, float tMax, RayHit hit) {
+		float hx = width / 2;
+		float hy = height / 2;
+		float hz = depth / 2;
+
+		float ix = 1.0f / dx, iy = 1.0f / dy, iz = 1.0f / dz;
+		float x0 = (-hx - ox) * ix, x1 = (hx - ox) * ix;
+		float y0 = (-hy - oy) * iy, y1 = (hy - oy) * iy;
+		float z0 = (-hz - oz) * iz, z1 = (hz - oz) * iz;
+		float near = Math.max(Math.max(Math.min(x0, x1), Math.min(y0, y1)), Math.min(z0, z1));
+		float far = Math.min(Math.min(Math.max(x0, x1), Math.max(y0, y1)), Math.max(z0, z1));
+		if (near > far)
+			return false;
+
+		// Entering the box, or leaving it if the ray starts inside
+		float t = near > tMin ? near : far;
+		if (t <= tMin || t >= tMax)
+			return false;
+
+		// The face hit is the one the point is furthest out on, relative to the box's size
+		float px = (ox + t * dx) / hx;
+		float py = (oy + t * dy) / hy;
+		float pz = (oz + t * dz) / hz;
+		float ax = Math.abs(px), ay = Math.abs(py), az = Math.abs(pz);
+		if (ax >= ay && ax >= az)
+			hit.set(t, Math.signum(px), 0.0f, 0.0f);
+		else if (ay >= az)
+			hit.set(t, 0.0f, Math.signum(py), 0.0f);
+		else
+			hit.set(t, 0.0f, 0.0f, Math.signum(pz));
+		return true;
+	}
+
+	public Object geometryKey() {
+		return "box " + width + " " + height + " " + depth;
+	}
+	
 	public void init(GL3 gl) {
 		
-		// Initalise array of ID's
-		int[] temp = new int[]{1};
+		// Boxes of the same size share a mesh; colour comes from the material through colour()
+		Object key = geometryKey();
+		mesh = arena.acquire(key);
+		if (mesh != null)
+			return;
 		
-		// Generate the VAO
-		gl.glGenVertexArrays(1, IntBuffer.wrap(temp));
-		vao = temp[0];
-		
-		// Generate the VBO
-		gl.glGenBuffers(1, IntBuffer.wrap(temp));
-		vbo = temp[0];
-		
-		// Extract the colours from the material
-		float r = material.diffuse.getX();
-		float g = material.diffuse.getY();
-		float b = material.diffuse.getZ();
+		float r = 1.0f;
+		float g = 1.0f;
+		float b = 1.0f;
 		
 		// Define the vertices (2 triangles to form the square on each face)
-		vertices = new float[] {
+		float[] vertices = new float[] {
 			    // Front face
 			    -width / 2, -height / 2, depth / 2, 0.0f, 0.0f, 1.0f, r, g, b,
 			    width / 2, -height / 2, depth / 2, 0.0f, 0.0f, 1.0f, r, g, b,
@@ -85,13 +130,8 @@ public class Box extends Shape {
 			    -width / 2, -height / 2, -depth / 2, 0.0f, -1.0f, 0.0f, r, g, b
 			};
 		
-		// Bind and send the index data
-	    int[] indexTemp = new int[]{1};
-	    gl.glGenBuffers(1, IntBuffer.wrap(indexTemp));
-	    int indexBuffer = indexTemp[0];
-	    
 		// Define the indices
-		indices = new int[] {
+		int[] indices = new int[] {
 			    // Front face
 			    0, 1, 2, 2, 3, 0,
 			    // Back face
@@ -106,36 +146,7 @@ public class Box extends Shape {
 			    20, 21, 22, 22, 23, 20
 		};
 		
-		// Activate the VAO and VBO
-		gl.glBindVertexArray(vao);
-		gl.glBindBuffer(GL.GL_ARRAY_BUFFER, vbo);
-		
 		// Send the data to OpenGL
-		gl.glBufferData(GL.GL_ARRAY_BUFFER, vertices.length * 4, FloatBuffer.wrap(vertices), GL.GL_STATIC_DRAW);
-		
-		// Tell OpenGL data is used for a vertex attribute
-		gl.glVertexAttribPointer(0, 3, GL.GL_FLOAT, false, 9*4, 0); // Position
-		gl.glVertexAttribPointer(1, 3, GL.GL_FLOAT, false, 9*4, 3*4); // Normal
-		gl.glVertexAttribPointer(2, 3, GL.GL_FLOAT, false, 9*4, 6*4); // Colour
-		//gl.glVertexAttribPointer(2, 2, GL.GL_FLOAT, false, 8*4, 6*4); // Tex Coord
-		
-		gl.glEnableVertexAttribArray(0);
-		gl.glEnableVertexAttribArray(1);
-		gl.glEnableVertexAttribArray(2);
-		
-		// Tell OpenGL data is used for a index attribute
-		gl.glBindBuffer(GL.GL_ELEMENT_ARRAY_BUFFER, indexBuffer);
-	    gl.glBufferData(GL.GL_ELEMENT_ARRAY_BUFFER, indices.length * 4, IntBuffer.wrap(indices), GL.GL_STATIC_DRAW);
-	}
-	
-	public void draw(GL3 gl) {
-		
-		// Activate and bind the texture
-		//gl.glActiveTexture(GL.GL_TEXTURE0);
-        //gl.glBindTexture(GL.GL_TEXTURE_2D, material.diffuseMap.textureID);
-        
-		// Bind the VAO and draw the triangle
-		gl.glBindVertexArray(vao);
-		gl.glDrawElements(GL.GL_TRIANGLES, indices.length, GL.GL_UNSIGNED_INT, 0);
+		mesh = arena.allocateShared(gl, key, vertices, indices);
 	}
 }
@@ -3,7 +3,8 @@
 //
 package inft3032.drawables;
 
-import javax.media.opengl.GL3;
+import inft3032.math.AABB;
+import inft3032.math.Vector3;
 
 
 /**
@@ -14,7 +15,7 @@ import javax.media.opengl.GL3;
  *
  * @author a.sobey
  */
-public class Cone extends Shape {
+public class Cone extends TessellatedShape {
     private float height;
     private float radius;
 
@@ -47,15 +48,121 @@ public class Cone extends Shape {
         return "cone";
     }
 
-	@Override
-	public void init(GL3 gl) {
-		// TODO Auto-generated method stub
-		
-	}
+    public float boundingRadius() {
+        return (float) Math.sqrt(radius * radius + height * height / 4);
+    }
+
+    /**
+     * The unit cone's bounds; modelMatrix() scales them to the radius and height.
+     */
+    public boolean localBounds(AABB out) {
+        out.set(-1.0f, -0.5f, -1.0f, 1.0f, 0.5f, 1.0f);
+        return true;
+    }
+
+    /**
+     * Intersects the unit cone: radius 1 at y = -0.5, where it is capped,
+     * narrowing to a point at y = 0.5.
+     */
+    public boolean intersect(float ox, float oy, float oz, float dx, float dy, float dz,
+            float tMin, float tMax, RayHit hit) {
+        float best = tMax;
+        float nx = 0, ny = 0, nz = 0;
+
+        // Side: x^2 + z^2 = (0.5 - y)^2
+        float k = 0.5f - oy;
+        float a = dx * dx + dz * dz - dy * dy;
+        float b = ox * dx + oz * dz + k * dy;
+        float c = ox * ox + oz * oz - k * k;
+        float t0, t1;
+        if (Math.abs(a) < 1e-7f) {
+            // Parallel to the slope, so only one root
+            t0 = t1 = b != 0 ? -c / (2 * b) : Float.NaN;
+        }
+        else {
+            float disc = b * b - a * c;
+            float root = disc >= 0 ? (float) Math.sqrt(disc) : Float.NaN;
+            t0 = Math.min((-b - root) / a, (-b + root) / a);
+            t1 = Math.max((-b - root) / a, (-b + root) / a);
+        }
+        for (int i = 0; i < 2; i++) {
+            float t = i == 0 ? t0 : t1;
+            float y = oy + t * dy;
+            // The equation also holds on the mirrored cone above the apex
+            if (t > tMin && t < best && y >= -0.5f && y <= 0.5f) {
+                best = t;
+                nx = ox + t * dx;
+                ny = 0.5f - y;
+                nz = oz + t * dz;
+                break;
+            }
+        }
+
+        // Base
+        if (dy != 0) {
+            float t = (-0.5f - oy) / dy;
+            float x = ox + t * dx;
+            float z = oz + t * dz;
+            if (t > tMin && t < best && x * x + z * z <= 1.0f) {
+                best = t;
+                nx = 0;
+                ny = -1;
+                nz = 0;
+            }
+        }
+
+        if (best == tMax)
+            return false;
+        hit.set(best, nx, ny, nz);
+        return true;
+    }
+
+    protected Vector3 scale() {
+        return new Vector3(radius, height, radius);
+    }
 
-	@Override
-	public void draw(GL3 gl) {
-		// TODO Auto-generated method stub
-		
-	}
+    /**
+     * A cone of base radius 1 from y = -0.5 to its apex at 0.5. The apex is
+     * repeated for each segment so its normals follow the side, and the base
+     * has its own ring.
+     */
+    protected int vertexCount(int segments) {
+        return 2 * (segments + 1) + segments + 1;
+    }
+
+    protected int indexCount(int segments) {
+        return segments * 6;
+    }
+
+    protected void tessellate(int segments, float[] vertices, int[] indices) {
+        // The side of a unit cone slopes at 45 degrees, so before scaling the
+        // normal is (cos, 1, sin) / sqrt(2)
+        float n = (float) (1.0 / Math.sqrt(2.0));
+        int o = 0;
+        for (int j = 0; j <= segments; j++) {
+            double theta = 2.0 * Math.PI * j / segments;
+            float x = (float) Math.cos(theta);
+            float z = (float) Math.sin(theta);
+            o = vertex(vertices, o, x, -0.5f, z, x * n, n, z * n);
+        }
+        int apex = segments + 1;
+        for (int j = 0; j < segments; j++) {
+            double theta = 2.0 * Math.PI * (j + 0.5) / segments;
+            o = vertex(vertices, o, 0.0f, 0.5f, 0.0f, (float) Math.cos(theta) * n, n, (float) Math.sin(theta) * n);
+        }
+        int base = apex + segments;
+        o = vertex(vertices, o, 0.0f, -0.5f, 0.0f, 0.0f, -1.0f, 0.0f);
+        for (int j = 0; j <= segments; j++) {
+            double theta = 2.0 * Math.PI * j / segments;
+            o = vertex(vertices, o, (float) Math.cos(theta), -0.5f, (float) Math.sin(theta), 0.0f, -1.0f, 0.0f);
+        }
+
+        o = 0;
+        for (int j = 0; j < segments; j++) {
+            indices[o++] = j;
+            indices[o++] = apex + j;
+            indices[o++] = j + 1;
+        }
+        fan(indices, o, base, base + 1, segments, false);
+    }
 }
@@ -3,8 +3,8 @@
 //
 package inft3032.drawables;
 
-
-import javax.media.opengl.GL3;
+import inft3032.math.AABB;
+import inft3032.math.Vector3;
 
 
 /**
@@ -15,7 +15,7 @@ import javax.media.opengl.GL3;
  * <p/>
  * @author a.sobey
  */
-public class Cylinder extends Shape {
+public class Cylinder extends TessellatedShape {
     private float radius;
     private float height;
 
@@ -47,15 +47,125 @@ public class Cylinder extends Shape {
         return "cylinder";
     }
 
-	@Override
-	public void init(GL3 gl) {
-		// TODO Auto-generated method stub
-		
-	}
+    public float boundingRadius() {
+        return (float) Math.sqrt(radius * radius + height * height / 4);
+    }
+
+    /**
+     * The unit cylinder's bounds; modelMatrix() scales them to the radius and height.
+     */
+    public boolean localBounds(AABB out) {
+        out.set(-1.0f, -0.5f, -1.0f, 1.0f, 0.5f, 1.0f);
+        return true;
+    }
+
+    /**
+     * Intersects the unit cylinder: radius 1 about the y axis, from y = -0.5
+     * to 0.5, with both ends capped.
+     */
+    public boolean intersect(float ox, float oy, float oz, float dx, float dy, float dz,
+            float tMin, float tMax, RayHit hit) {
+        float best = tMax;
+        float nx = 0, ny = 0, nz = 0;
+
+        // Side
+        float a = dx * dx + dz * dz;
+        float b = ox * dx + oz * dz;
+        float c = ox * ox + oz * oz - 1.0f;
+        float disc = b * b - a * c;
+        if (a > 0 && disc >= 0) {
+            float root = (float) Math.sqrt(disc);
+            for (int i = 0; i < 2; i++) {
+                float t = (-b + (i == 0 ? -root : root)) / a;
+                float y = oy + t * dy;
+                if (t > tMin && t < best && y >= -0.5f && y <= 0.5f) {
+                    best = t;
+                    nx = ox + t * dx;
+                    ny = 0;
+                    nz = oz + t * dz;
+                    break;
+                }
+            }
+        }
+
+        // Caps
+        if (dy != 0) {
+            for (int i = 0; i < 2; i++) {
+                float y = i == 0 ? -0.5f : 0.5f;
+                float t = (y - oy) / dy;
+                float x = ox + t * dx;
+                float z = oz + t * dz;
+                if (t > tMin && t < best && x * x + z * z <= 1.0f) {
+                    best = t;
+                    nx = 0;
+                    ny = y * 2;
+                    nz = 0;
+                }
+            }
+        }
 
-	@Override
-	public void draw(GL3 gl) {
-		// TODO Auto-generated method stub
-		
-	}
+        if (best == tMax)
+            return false;
+        hit.set(best, nx, ny, nz);
+        return true;
+    }
+
+    protected Vector3 scale() {
+        return new Vector3(radius, height, radius);
+    }
+
+    /**
+     * A cylinder of radius 1 from y = -0.5 to 0.5: two rings for the side, and
+     * a centre and ring for each cap so the edges stay sharp.
+     */
+    protected int vertexCount(int segments) {
+        return 4 * (segments + 1) + 2;
+    }
+
+    protected int indexCount(int segments) {
+        return segments * 12;
+    }
+
+    protected void tessellate(int segments, float[] vertices, int[] indices) {
+        int o = 0;
+        // Side
+        for (int j = 0; j <= segments; j++) {
+            double theta = 2.0 * Math.PI * j / segments;
+            float x = (float) Math.cos(theta);
+            float z = (float) Math.sin(theta);
+            o = vertex(vertices, o, x, -0.5f, z, x, 0.0f, z);
+            o = vertex(vertices, o, x, 0.5f, z, x, 0.0f, z);
+        }
+        // Caps
+        int bottom = 2 * (segments + 1);
+        int top = bottom + segments + 2;
+        o = vertex(vertices, o, 0.0f, -0.5f, 0.0f, 0.0f, -1.0f, 0.0f);
+        o = ring(vertices, o, segments, -0.5f, -1.0f);
+        o = vertex(vertices, o, 0.0f, 0.5f, 0.0f, 0.0f, 1.0f, 0.0f);
+        o = ring(vertices, o, segments, 0.5f, 1.0f);
+
+        o = 0;
+        for (int j = 0; j < segments; j++) {
+            int a = 2 * j;
+            indices[o++] = a;
+            indices[o++] = a + 1;
+            indices[o++] = a + 2;
+            indices[o++] = a + 2;
+            indices[o++] = a + 1;
+            indices[o++] = a + 3;
+        }
+        o = fan(indices, o, bottom, bottom + 1, segments, false);
+        fan(indices, o, top, top + 1, segments, true);
+    }
+
+    /**
+     * Writes a closed ring of cap vertices facing straight up or down.
+     */
+    private static int ring(float[] vertices, int o, int segments, float y, float ny) {
+        for (int j = 0; j <= segments; j++) {
+            double theta = 2.0 * Math.PI * j / segments;
+            o = vertex(vertices, o, (float) Math.cos(theta), y, (float) Math.sin(theta), 0.0f, ny, 0.0f);
+        }
+        return o;
+    }
 }
@@ -0,0 +1,55 @@
+// Starting code Copyright 2014 University of South Australia
+// Written by Michael Marner <michael.marner@unisa.edu.au>
+//
+package inft3032.drawables;
+
+import java.util.Arrays;
+
+
+/**
+ * A growable array of floats, so large meshes can be built without boxing
+ * every value.
+ */
+final class FloatList {
+	float[] data;
+	int size;
+	
+	FloatList(int capacity) {
+		data = new float[Math.max(capacity, 16)];
+	}
+	
+	void add(float f) {
+		if (size == data.length)
+			grow(size + 1);
+		data[size++] = f;
+	}
+	
+	void add(float a, float b) {
+		if (size + 2 > data.length)
+			grow(size + 2);
+		data[size] = a;
+		data[size + 1] = b;
+		size += 2;
+	}
+	
+	void add(float a, float b, float c) {
+		if (size + 3 > data.length)
+			grow(size + 3);
+		data[size] = a;
+		data[size + 1] = b;
+		data[size + 2] = c;
+		size += 3;
+	}
+	
+	/**
+	 * Makes room for at least n more values.
+	 */
+	void ensureSpace(int n) {
+		if (size + n > data.length)
+			grow(size + n);
+	}
+	
+	private void grow(int needed) {
+		data = Arrays.copyOf(data, Math.max(needed, data.length * 2));
+	}
+}
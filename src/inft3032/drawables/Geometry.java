@@ -2,37 +2,138 @@
 // Written by Michael Marner <michael.marner@unisa.edu.au>
 //
 package inft3032.drawables;
-import inft3032.math.Vector3;
 
-import java.util.ArrayList;
+import inft3032.math.AABB;
+
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
 
+/**
+ * An indexed triangle mesh loaded from a file.
+ * <p/>
+ * Vertices are stored interleaved in the same layout as the mesh arena
+ * (position, normal, colour; MeshArena.FLOATS_PER_VERTEX floats each), so
+ * they can be uploaded without any conversion. The arrays may be longer than
+ * the data; only the first vertexCount vertices and indexCount indices are used.
+ * <p/>
+ * A mesh read from a MeshCache file has its data in mapped buffers instead,
+ * and the arrays are null until ensureArrays() is called.
+ */
 public class Geometry {
 	
-	public static class Vertex {
-		Vector3 pos;
-		Vector3 norm;
-		Vector3 texCoord;
-	}
+	/**
+	 * Interleaved vertex data.
+	 */
+	public float[] vertices;
+	public int vertexCount;
 	
-	public static class Face {
-		Material mat;
-		Vertex v1;
-		Vertex v2;
-		Vertex v3;
-	}
+	/**
+	 * Texture coordinates, two per vertex, or null if the file had none.
+	 */
+	public float[] texCoords;
+	
+	/**
+	 * Triangle indices into vertices.
+	 */
+	public int[] indices;
+	public int indexCount;
+	
+	/**
+	 * Runs of triangles sharing a material: group i starts at index
+	 * groupFirstIndex[i] and uses groupMaterials[i] (which may be null).
+	 */
+	public int[] groupFirstIndex;
+	public Material[] groupMaterials;
+	public int groupCount;
 	
-	public ArrayList<Vector3> verts;
-	public ArrayList<Vector3> normals;
-	public ArrayList<Vector3> texCoords;
-	public ArrayList<Face>	faces;
+	/**
+	 * The vertex, index and texture coordinate data when mapped from a cache file.
+	 */
+	public FloatBuffer vertexData;
+	public IntBuffer indexData;
+	public FloatBuffer texCoordData;
 	
-	public Map<String, Material> materials;
+	/**
+	 * Materials from the file's material libraries, by name.
+	 */
+	public Map<String, Material> materials = new HashMap<String, Material>();
+	
+	private AABB bounds;
+	private TriangleBVH triangleBVH;
 	
 	public Geometry() {}
-
 	
+	/**
+	 * @return The bounds of the vertex positions, worked out the first time they are asked for.
+	 */
+	public AABB bounds() {
+		if (bounds == null) {
+			AABB b = new AABB();
+			FloatBuffer v = vertexBuffer();
+			for (int i = 0; i < vertexCount; i++) {
+				int o = i * MeshArena.FLOATS_PER_VERTEX;
+				b.include(v.get(o), v.get(o + 1), v.get(o + 2));
+			}
+			bounds = b;
+		}
+		return bounds;
+	}
 	
-
-
+	/**
+	 * @return The number of triangles.
+	 */
+	public int triangleCount() {
+		return indexCount / 3;
+	}
+	
+	/**
+	 * @return A view of the vertex data, ready to upload.
+	 */
+	public FloatBuffer vertexBuffer() {
+		if (vertices == null)
+			return vertexData.duplicate();
+		return FloatBuffer.wrap(vertices, 0, vertexCount * MeshArena.FLOATS_PER_VERTEX);
+	}
+	
+	/**
+	 * @return A view of the indices, ready to upload.
+	 */
+	public IntBuffer indexBuffer() {
+		if (indices == null)
+			return indexData.duplicate();
+		return IntBuffer.wrap(indices, 0, indexCount);
+	}
+	
+	/**
+	 * Copies mapped data into the arrays, for code that works on the mesh on the CPU.
+	 */
+	public void ensureArrays() {
+		if (vertices == null && vertexData != null) {
+			vertices = new float[vertexCount * MeshArena.FLOATS_PER_VERTEX];
+			vertexData.duplicate().get(vertices);
+		}
+		if (indices == null && indexData != null) {
+			indices = new int[indexCount];
+			indexData.duplicate().get(indices);
+		}
+		if (texCoords == null && texCoordData != null) {
+			texCoords = new float[vertexCount * 2];
+			texCoordData.duplicate().get(texCoords);
+		}
+	}
+	
+	/**
+	 * @return A BVH over the triangles for tracing rays, built (on the common
+	 *         pool, after ensureArrays()) the first time it is asked for.
+	 */
+	public synchronized TriangleBVH triangleBVH() {
+		if (triangleBVH == null) {
+			ensureArrays();
+			triangleBVH = TriangleBVH.build(this, ForkJoinPool.commonPool());
+		}
+		return triangleBVH;
+	}
 }
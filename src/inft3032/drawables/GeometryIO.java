@@ -2,126 +2,100 @@
 // Written by Michael Marner <michael.marner@unisa.edu.au>
 //
 package inft3032.drawables;
-import inft3032.drawables.Geometry.Face;
-import inft3032.drawables.Geometry.Vertex;
-import inft3032.math.Vector3;
 
 import java.io.*;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.Map;
-import java.util.Scanner;
+import java.util.concurrent.ForkJoinPool;
 
 public class GeometryIO {
 	
-	public static Geometry loadOBJ(File pathToOBJ) throws IOException{
-		
-		Geometry g = new Geometry();
-		BufferedReader in = new BufferedReader(new FileReader(pathToOBJ));
-		
-		Material activeMaterial = null;
-		
-		String line;
-		while ((line = in.readLine()) != null) {
-			Scanner parts = new Scanner(line);
-			
-			String type = parts.next();
-			if (type.equals("mtllib")) {
-				String mtlFile = parts.next();
-				loadMaterials(mtlFile, g.materials);
-			}
-			else if (type.equals("v")) {
-				float x = parts.nextFloat();
-				float y = parts.nextFloat();
-				float z = parts.nextFloat();
-				g.verts.add(new Vector3(x,y,z));
-			}
-			else if (type.equals("vt")) {
-				float x = parts.nextFloat();
-				float y = parts.nextFloat();
-				g.texCoords.add(new Vector3(x,y,0));
-			}
-			else if (type.equals("vn")) {
-				float x = parts.nextFloat();
-				float y = parts.nextFloat();
-				float z = parts.nextFloat();
-				g.normals.add(new Vector3(x,y,z));
-			}
-			else if (type.equals("f")) {
-				Face f = new Geometry.Face();
-				f.mat = activeMaterial;
-
-				// new face;
-				String v1 = parts.next();
-				String v2 = parts.next();
-				String v3 = parts.next();
-				
-				Scanner vExtractor = new Scanner(v1);
-				vExtractor.useDelimiter("/");
-				int vIndex = vExtractor.nextInt() -1;
-				int tIndex = vExtractor.nextInt() -1;
-				int nIndex = vExtractor.nextInt() -1;
-				f.v1 = new Vertex();
-				f.v1.pos = g.verts.get(vIndex);
-				f.v1.texCoord = g.texCoords.get(tIndex);
-				f.v1.norm = g.normals.get(nIndex);
-
-				vExtractor = new Scanner(v2);
-				vExtractor.useDelimiter("/");
-				vIndex = vExtractor.nextInt() -1;
-				tIndex = vExtractor.nextInt() -1;
-				nIndex = vExtractor.nextInt() -1;
-				f.v2 = new Vertex();
-				f.v2.pos = g.verts.get(vIndex);
-				f.v2.texCoord = g.texCoords.get(tIndex);
-				f.v2.norm = g.normals.get(nIndex);
-
-				vExtractor = new Scanner(v3);
-				vExtractor.useDelimiter("/");
-				vIndex = vExtractor.nextInt() -1;
-				tIndex = vExtractor.nextInt() -1;
-				nIndex = vExtractor.nextInt() -1;
-				f.v3 = new Vertex();
-				f.v3.pos = g.verts.get(vIndex);
-				f.v3.texCoord = g.texCoords.get(tIndex);
-				f.v3.norm = g.normals.get(nIndex);
-			}
+	/**
+	 * Loads a Wavefront OBJ file into an indexed mesh.
+	 * <p/>
+	 * Handles v, v/t, v//n and v/t/n corners, negative (relative) indices,
+	 * and faces with any number of corners, which are split into fans. Each
+	 * distinct combination of position, texture coordinate and normal becomes
+	 * one vertex. Vertices without a normal get one from the faces around them.
+	 * <p/>
+	 * A single mapping can't hold more than 2GB, so bigger files are handed to
+	 * loadOBJParallel, which maps one chunk at a time.
+	 * 
+	 * @param pathToOBJ The file to load. Material libraries are looked for next to it.
+	 * @return The mesh, in the mesh arena's vertex layout.
+	 * @throws IOException If the file can't be read or is malformed.
+	 */
+	public static Geometry loadOBJ(File pathToOBJ) throws IOException {
+		RandomAccessFile file = new RandomAccessFile(pathToOBJ, "r");
+		try {
+			if (file.length() > Integer.MAX_VALUE)
+				return loadOBJParallel(pathToOBJ);
+			MappedByteBuffer buf = map(file, pathToOBJ);
+			return new ObjParser(buf, pathToOBJ.getPath(), pathToOBJ.getAbsoluteFile().getParentFile()).parseOBJ();
+		}
+		finally {
+			file.close();
+		}
+	}
+	
+	/**
+	 * Loads a Wavefront OBJ file using the common fork-join pool. The result is
+	 * identical to loadOBJ's; only worth it for files of several megabytes.
+	 * 
+	 * @param pathToOBJ The file to load. Material libraries are looked for next to it.
+	 * @return The mesh, in the mesh arena's vertex layout.
+	 * @throws IOException If the file can't be read or is malformed.
+	 */
+	public static Geometry loadOBJParallel(File pathToOBJ) throws IOException {
+		return loadOBJParallel(pathToOBJ, ForkJoinPool.commonPool());
+	}
+	
+	/**
+	 * Loads a Wavefront OBJ file, parsing chunks of it in parallel on the given pool.
+	 * Each chunk is mapped separately, so the file may be over 2GB, though no
+	 * one line may be.
+	 * 
+	 * @param pathToOBJ The file to load. Material libraries are looked for next to it.
+	 * @param pool The threads to parse with.
+	 * @return The mesh, in the mesh arena's vertex layout.
+	 * @throws IOException If the file can't be read or is malformed.
+	 */
+	public static Geometry loadOBJParallel(File pathToOBJ, ForkJoinPool pool) throws IOException {
+		RandomAccessFile file = new RandomAccessFile(pathToOBJ, "r");
+		try {
+			return new ParallelObjLoader(file.getChannel(), pathToOBJ.getPath(), pathToOBJ.getAbsoluteFile().getParentFile(), pool).load();
+		}
+		finally {
+			file.close();
 		}
-		
-		in.close();
-		return g;
 	}
-	private static Map<String, Material> loadMaterials(String mtlFile, Map<String, Material> materials) throws IOException {
-		BufferedReader in = new BufferedReader(new FileReader(mtlFile));
-		String line;
-		Material activeMat = null;
-		while ((line = in.readLine()) != null) {
-			Scanner parts = new Scanner(line);
-			String type = parts.next();
-			if (type.equals("newmtl")) {
-				String name = parts.next();
-				activeMat = new Material();
-				materials.put(name, activeMat);
-			}
-			else if (type.equals("Kd")) {
-				activeMat.diffuse = new Vector3(parts.nextFloat(), parts.nextFloat(), parts.nextFloat());
-			}
-			else if (type.equals("Ka")) {
-				activeMat.ambient = new Vector3(parts.nextFloat(), parts.nextFloat(), parts.nextFloat());
-			}
-			else if (type.equals("Ks")) {
-				activeMat.specular = new Vector3(parts.nextFloat(), parts.nextFloat(), parts.nextFloat());
-			}
-			else if (type.equals("Ni")) {
-				activeMat.refractiveIndex = parts.nextFloat();
-			}
-			else if (type.equals("Ns")) {
-				activeMat.specularExponent = parts.nextFloat();
-			}
-			else if (type.equals("Tr")) {
-				activeMat.transparency = parts.nextFloat();
-			}
+	
+	/**
+	 * Loads the materials from an MTL file.
+	 * 
+	 * @param mtlFile The material library.
+	 * @param materials Receives the materials by name.
+	 * @return materials
+	 * @throws IOException If the file can't be read or is malformed.
+	 */
+	static Map<String, Material> loadMaterials(File mtlFile, Map<String, Material> materials) throws IOException {
+		RandomAccessFile file = new RandomAccessFile(mtlFile, "r");
+		try {
+			new ObjParser(map(file, mtlFile), mtlFile.getPath(), null).parseMTL(materials);
+		}
+		finally {
+			file.close();
 		}
-		in.close();
 		return materials;
 	}
+	
+	private static MappedByteBuffer map(RandomAccessFile file, File name) throws IOException {
+		FileChannel channel = file.getChannel();
+		long size = channel.size();
+		if (size > Integer.MAX_VALUE)
+			throw new IOException(name + ": files over 2GB are not supported");
+		return channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+	}
 
 }
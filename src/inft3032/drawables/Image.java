@@ -8,6 +8,7 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.nio.IntBuffer;
 import java.nio.channels.FileChannel;
 
 /**
@@ -31,7 +32,12 @@ public class Image {
 
     private int height;
     private int width;
+    /**
+     * The pixels, row by row from the top. Exactly one of pixels and buffer is
+     * non-null: buffer is used when the image lives in native memory.
+     */
     private int[] pixels;
+    private IntBuffer buffer;
 
     /**
      * Default constructor Image().
@@ -71,16 +77,51 @@ public class Image {
         width = img.width;
         height = img.height;
         pixels = new int[width * height];
-        for (int wIndex = 0; wIndex < width * height; wIndex++)
-            pixels[wIndex] = img.pixels[wIndex];
+        if (img.pixels != null)
+            System.arraycopy(img.pixels, 0, pixels, 0, pixels.length);
+        else
+            img.pixelBuffer().get(pixels);
     }
 
     public Image(String fileName, int alpha) throws IOException {
+        this(fileName, alpha, false);
+    }
+
+    /**
+     * Read an image from a bitmap file, optionally keeping the pixels in native memory.
+     *
+     * @param fileName The bitmap image file name.
+     * @param alpha    The alpha value to use for each pixel.
+     * @param direct   If true, the pixels are stored in a direct buffer (see pixelBuffer()).
+     * @throws IOException When the file can't be read or is not a bitmap this class can handle.
+     */
+    public Image(String fileName, int alpha, boolean direct) throws IOException {
         width = 0;
         height = 0;
+        if (direct)
+            buffer = IntBuffer.allocate(0);
         read(fileName, alpha);
     }
 
+    /**
+     * Construct a black image whose pixels are stored in a direct, native-ordered buffer.
+     *
+     * @param height The image height.
+     * @param width  The image width.
+     * @return The new image.
+     */
+    public static Image allocateDirect(int height, int width) {
+        Image img = new Image(0, 0, null);
+        img.height = height;
+        img.width = width;
+        img.buffer = allocatePixels(width * height);
+        return img;
+    }
+
+    private static IntBuffer allocatePixels(int count) {
+        return ByteBuffer.allocateDirect(count * 4).order(ByteOrder.nativeOrder()).asIntBuffer();
+    }
+
     /**
      * @return The image height in pixels.
      */
@@ -104,7 +145,45 @@ public class Image {
      * @return true if image object validly constructed.
      */
     public boolean isValid() {
-        return (width > 0 && height > 0 && pixels != null && pixels.length == width * height);
+        return (width > 0 && height > 0
+                && ((pixels != null && pixels.length == width * height)
+                    || (buffer != null && buffer.capacity() == width * height)));
+    }
+
+    /**
+     * @return true if the pixels are stored in native memory rather than on the Java heap.
+     */
+    public boolean isDirect() {
+        return buffer != null && buffer.isDirect();
+    }
+
+    /**
+     * Returns the pixels as a buffer positioned at the first pixel, one int per pixel in
+     * the same format as get(). For direct images this is a view of the image's own native
+     * memory and can be handed straight to OpenGL (as GL_BGRA, GL_UNSIGNED_INT_8_8_8_8_REV)
+     * with no copying; otherwise it wraps the pixel array.
+     *
+     * @return A buffer over the pixels.
+     */
+    public IntBuffer pixelBuffer() {
+        if (buffer != null) {
+            IntBuffer view = buffer.duplicate();
+            view.clear();
+            return view;
+        }
+        return IntBuffer.wrap(pixels);
+    }
+
+    /**
+     * Moves the pixels of this image into native memory, if they are not there already.
+     */
+    public void toDirect() {
+        if (isDirect())
+            return;
+        buffer = allocatePixels(width * height);
+        buffer.put(pixels);
+        buffer.clear();
+        pixels = null;
     }
 
     /**
@@ -119,7 +198,8 @@ public class Image {
      */
     public int get(int hPos, int vPos) {
         try {
-            return pixels[hPos + vPos * width];
+            int index = hPos + vPos * width;
+            return pixels != null ? pixels[index] : buffer.get(index);
         } catch (Exception e) {
             throw new ImageError("get: index error? hpos="+hPos+", vPos="+vPos + e.toString());
         }
@@ -136,7 +216,11 @@ public class Image {
      */
     public void set(int hPos, int vPos, int p) {
         try {
-            pixels[hPos + vPos * width] = p;
+            int index = hPos + vPos * width;
+            if (pixels != null)
+                pixels[index] = p;
+            else
+                buffer.put(index, p);
         } catch (Exception e) {
             throw new ImageError("set: index error? " + e.toString());
         }
@@ -206,6 +290,60 @@ public class Image {
         return (byteValue < 0 ? 0 : (byteValue > 255 ? 255 : byteValue));
     }
 
+    //------------------------- BMP codec ---------------------------------
+    private static final short BMP_BF_TYPE = 0x4D42;   // "BM"
+    private static final int BMP_BF_OFF_BITS = 54;     // 14 for file header + 40 for info header
+    private static final int BMP_BI_SIZE = 40;
+
+    /**
+     * Scratch space for the codec, one set per thread so images can be read and
+     * written concurrently. Buffers only ever grow, so repeated calls on images
+     * of similar size allocate nothing.
+     */
+    private static class Scratch {
+        final ByteBuffer header = ByteBuffer.allocate(BMP_BF_OFF_BITS).order(ByteOrder.LITTLE_ENDIAN);
+        byte[] row = new byte[0];
+        int[] rowPixels = new int[0];
+        ByteBuffer body = ByteBuffer.allocateDirect(0);
+
+        byte[] row(int size) {
+            if (row.length < size)
+                row = new byte[size];
+            return row;
+        }
+
+        int[] rowPixels(int size) {
+            if (rowPixels.length < size)
+                rowPixels = new int[size];
+            return rowPixels;
+        }
+
+        ByteBuffer body(int size) {
+            if (body.capacity() < size)
+                body = ByteBuffer.allocateDirect(size);
+            body.clear();
+            body.limit(size);
+            return body;
+        }
+    }
+
+    private static final ThreadLocal<Scratch> SCRATCH = new ThreadLocal<Scratch>() {
+        protected Scratch initialValue() {
+            return new Scratch();
+        }
+    };
+
+    /**
+     * The size in bytes of one row of pixels in a 24 bit bitmap. Rows are
+     * padded to a multiple of 4 bytes.
+     *
+     * @param width The image width in pixels
+     * @return The padded scanline size in bytes.
+     */
+    public static int scanLineSize(int width) {
+        return (3 * width + 3) & ~3;
+    }
+
     /**
      * Write an image to a file using the bitmap (BMP) format.
      *
@@ -213,172 +351,172 @@ public class Image {
      * @throws IOException If an error occours during output.
      */
     public void write(String fileName) throws IOException {
-        // File Header - Actual contents (14 bytes):
-        short fileType = 0x4d42;// always "BM"
-        int fileSize;           // size of file in bytes
-        short reserved1 = 0;    // always 0
-        short reserved2 = 0;    // always 0
-        int bitmapOffset = 54;  // starting byte position of image data
-        // BMP Image Header - Actual conents (40 bytes):
-        int size = 40;          // size of this header in bytes
-        //int width;              // image width in pixels
-        //int height;             // image height in pixels (if < 0, "top-down")
-        short planes = 1;       // no. of color planes: always 1
-        short bitsPerPixel = 24;// number of bits per pixel: 1, 4, 8, or 24 (no color map)
-        int compression = 0;    // compression methods used: 0 (none), 1 (8-bit RLE), or 2 (4-bit RLE)
-        int sizeOfBitmap;       // size of bitmap in bytes (may be 0: if so, calculate)
-        int horzResolution = 0;     // horizontal resolution, pixels/meter (may be 0)
-        int vertResolution = 0;     // vertical resolution, pixels/meter (may be 0)
-        int colorsUsed = 0;         // no. of colors in palette (if 0, calculate)
-        int colorsImportant = 0;    // no. of important colors (appear first in palette) (0 means all are important)
-        // local variable
-        int iScanLineSize;          // The scan line size in bytes
         if (!isValid())
             throw new IOException("Image is not valid.");
-        // now open the file
-        FileOutputStream fos = new FileOutputStream(fileName);
-        FileChannel fc = fos.getChannel();
-        // write the "header"
-        boolean padded = false;
-        // first calculate the scanline size
-        iScanLineSize = 3 * width;
-        if (iScanLineSize % 2 != 0) {
-            iScanLineSize++;
-            padded = true;
+
+        int iScanLineSize = scanLineSize(width);    // The scan line size in bytes
+        int sizeOfBitmap = iScanLineSize * height;
+        int fileSize = BMP_BF_OFF_BITS + sizeOfBitmap;
+
+        Scratch scratch = SCRATCH.get();
+        ByteBuffer header = scratch.header;
+        header.clear();
+        // File Header (14 bytes)
+        header.putShort(BMP_BF_TYPE);
+        header.putInt(fileSize);
+        header.putShort((short) 0);         // reserved
+        header.putShort((short) 0);         // reserved
+        header.putInt(BMP_BF_OFF_BITS);     // starting byte position of image data
+        // BMP Image Header (40 bytes)
+        header.putInt(BMP_BI_SIZE);
+        header.putInt(width);
+        header.putInt(height);              // positive, so rows are stored bottom-up
+        header.putShort((short) 1);         // colour planes
+        header.putShort((short) 24);        // bits per pixel
+        header.putInt(0);                   // no compression
+        header.putInt(sizeOfBitmap);
+        header.putInt(0);                   // horizontal resolution, pixels/meter
+        header.putInt(0);                   // vertical resolution, pixels/meter
+        header.putInt(0);                   // colours in palette
+        header.putInt(0);                   // important colours
+        header.flip();
+
+        // Convert a whole scanline at a time into the row scratch, then copy it in bulk
+        ByteBuffer body = scratch.body(sizeOfBitmap);
+        byte[] row = scratch.row(iScanLineSize);
+        for (int i = 3 * width; i < iScanLineSize; i++)
+            row[i] = 0;
+        int[] source = pixels;
+        IntBuffer view = null;
+        if (source == null) {
+            source = scratch.rowPixels(width);
+            view = pixelBuffer();
         }
-        // now, calculate the file size
-        fileSize = 14 + 40 + (iScanLineSize * height);
-        sizeOfBitmap = iScanLineSize * height;
-        // create a ByteBuffer
-        ByteBuffer bbuf = ByteBuffer.allocate(fileSize);
-        bbuf.order(ByteOrder.LITTLE_ENDIAN);
-        bbuf.clear();
-        // now put out file header
-        bbuf.putShort(fileType);
-        bbuf.putInt(fileSize);
-        bbuf.putShort(reserved1);
-        bbuf.putShort(reserved2);
-        bbuf.putInt(bitmapOffset);
-        bbuf.putInt(size);
-        bbuf.putInt(width);
-        bbuf.putInt(height);
-        bbuf.putShort(planes);
-        bbuf.putShort(bitsPerPixel);
-        bbuf.putInt(compression);
-        bbuf.putInt(sizeOfBitmap);
-        bbuf.putInt(horzResolution);
-        bbuf.putInt(vertResolution);
-        bbuf.putInt(colorsUsed);
-        bbuf.putInt(colorsImportant);
-        // put the pixels
-        byte pad = 0;
-        for (int row = (height - 1); row >= 0; row--) {
-            for (int column = 0; column < width; column++) {
-                int pixel = pixels[column + row * width];
-                // put them in order blue, green, red - don't put alpha value
-                bbuf.put((byte) blue(pixel));
-                bbuf.put((byte) green(pixel));
-                bbuf.put((byte) red(pixel));
+        for (int r = height - 1; r >= 0; r--) {
+            int p = r * width;
+            if (view != null) {
+                view.position(p);
+                view.get(source, 0, width);
+                p = 0;
             }
-            if (padded)
-                bbuf.put(pad);
+            for (int b = 0, end = 3 * width; b < end; b += 3) {
+                int pixel = source[p++];
+                // blue, green, red - no alpha
+                row[b] = (byte) pixel;
+                row[b + 1] = (byte) (pixel >> 8);
+                row[b + 2] = (byte) (pixel >> 16);
+            }
+            body.put(row, 0, iScanLineSize);
+        }
+        body.flip();
+
+        FileOutputStream fos = new FileOutputStream(fileName);
+        try {
+            FileChannel fc = fos.getChannel();
+            ByteBuffer[] parts = { header, body };
+            while (body.hasRemaining())
+                fc.write(parts);
+        } finally {
+            fos.close();
         }
-        bbuf.flip();
-        fc.write(bbuf);
-        fos.close();
     }
 
     /**
      * Read an image from a bitmap (.bmp) file.
      * <p/>
      * Reads the red-gree-blue values for each pixel from an image file in the bitmap format.
+     * The file is memory mapped rather than copied onto the heap.
      *
      * @param fileName The bitmap image file name.
      * @param alpha    The alpha value to use when constructing each pixel in the bitmap.
      * @throws IOException When an error occurs in either reading the file or in the format of the bitmap file.
      */
-    @SuppressWarnings({ "resource", "unused" })
-	public void read(String fileName, int alpha) throws IOException {
-        // some constants
-        final int BMP_BF_TYPE = 0x4D42;   // "BM"
-        final int BMP_BF_OFF_BITS = 54;   // 14 for file header + 40 for info header
-        final int BMP_BI_SIZE = 40;
-        // now open the file
-        FileInputStream fos = new FileInputStream(fileName);
-        FileChannel fc = fos.getChannel();
-        // create a ByteBuffer
-        int realFileSize = (int) (fc.size());
-        ByteBuffer bbuf = ByteBuffer.allocate(realFileSize);
-        fc.read(bbuf);
+    public void read(String fileName, int alpha) throws IOException {
+        FileInputStream fis = new FileInputStream(fileName);
+        try {
+            FileChannel fc = fis.getChannel();
+            read(fc.map(FileChannel.MapMode.READ_ONLY, 0, fc.size()), alpha);
+        } finally {
+            fis.close();
+        }
+    }
+
+    /**
+     * Decode an image from the complete contents of a bitmap file.
+     *
+     * @param bbuf  The bitmap file, from position 0 to its limit.
+     * @param alpha The alpha value to use when constructing each pixel in the bitmap.
+     * @throws IOException When the buffer is not a bitmap this class can handle.
+     */
+    public void read(ByteBuffer bbuf, int alpha) throws IOException {
         bbuf.order(ByteOrder.LITTLE_ENDIAN);
-        bbuf.rewind();
+        int realFileSize = bbuf.limit();
+        if (realFileSize < BMP_BF_OFF_BITS)
+            throw new IOException("Wrong header for bitmap");
         // File Header - Actual contents (14 bytes):
-        short fileType = bbuf.getShort();       // always "BM"
-        if (fileType != BMP_BF_TYPE)
+        if (bbuf.getShort(0) != BMP_BF_TYPE)           // always "BM"
             throw new IOException("Wrong header for bitmap");
-        int fileSize = bbuf.getInt();           // size of file in bytes
-        if (fileSize != realFileSize)
+        if (bbuf.getInt(2) != realFileSize)             // size of file in bytes
             throw new IOException("Wrong header for bitmap - filesize wrong");
-        short reserved1 = bbuf.getShort();    // always 0
-        short reserved2 = bbuf.getShort();    // always 0
-        int bitmapOffset = bbuf.getInt();  // starting byte position of image data
-        if (bitmapOffset != BMP_BF_OFF_BITS)
+        if (bbuf.getInt(10) != BMP_BF_OFF_BITS)         // starting byte position of image data
             throw new IOException("Corrupted bitmap header - bit map offset");
         // BMP Image Header - Actual conents (40 bytes):
-        int size = bbuf.getInt();               // size of this header in bytes
-        if (size != BMP_BI_SIZE)
+        if (bbuf.getInt(14) != BMP_BI_SIZE)             // size of this header in bytes
             throw new IOException("Corrupted bitmap header - bi size");
-        int imgWidth = bbuf.getInt();           // image width in pixels
+        int imgWidth = bbuf.getInt(18);                 // image width in pixels
         if (imgWidth < 0)
             throw new IOException("Corrupted bitmap header - image size negative");
-        int imgHeight = bbuf.getInt();          // image height in pixels (if < 0, "top-down")
+        int imgHeight = bbuf.getInt(22);                // image height in pixels (if < 0, "top-down")
         if (imgHeight < 0)
             throw new IOException("Bitmap has negative height (top-down) - can't handle this bitmap");
-        short planes = bbuf.getShort();           // no. of color planes: always 1
-        if (planes != 1)
+        if (bbuf.getShort(26) != 1)                     // no. of color planes: always 1
             throw new IOException("Bitmap has planes set to other than 1 - can't handle");
-        short bitsPerPixel = bbuf.getShort();     // number of bits per pixel: 1, 4, 8, or 24 (no color map)
-        if (bitsPerPixel != 24)
+        if (bbuf.getShort(28) != 24)                    // number of bits per pixel
             throw new IOException("Bitmap not RGB - can't handle");
-        int compression = bbuf.getInt();        // compression methods used: 0 (none), 1 (8-bit RLE), or 2 (4-bit RLE)
-        if (compression != 0)
+        if (bbuf.getInt(30) != 0)                       // compression method
             throw new IOException("Bitmap compressed - can't handle");
-        int sizeOfBitmap = bbuf.getInt();       // size of bitmap in bytes (may be 0: if so, calculate)
-        int horzResolution = bbuf.getInt();     // horizontal resolution, pixels/meter (may be 0)
-        int vertResolution = bbuf.getInt();     // vertical resolution, pixels/meter (may be 0)
-        int colorsUsed = bbuf.getInt();         // no. of colors in palette (if 0, calculate)
-        int colorsImportant = bbuf.getInt();     // no. of important colors (appear first in palette) (0 means all are important)
+        int sizeOfBitmap = bbuf.getInt(34);             // size of bitmap in bytes (may be 0: if so, calculate)
 
-        int iScanLineSize;
+        // Rows should be padded to 4 bytes, but files from the old writer only padded to 2
+        int iScanLineSize = scanLineSize(imgWidth);
+        int legacyScanLineSize = (3 * imgWidth + 1) & ~1;
+        if (legacyScanLineSize != iScanLineSize
+                && (sizeOfBitmap == legacyScanLineSize * imgHeight || sizeOfBitmap == legacyScanLineSize * imgHeight + 2))
+            iScanLineSize = legacyScanLineSize;
+        if ((long) iScanLineSize * imgHeight > realFileSize - BMP_BF_OFF_BITS)
+            throw new IOException("Bitmap image size wrong");
 
         height = imgHeight;
         width = imgWidth;
-        boolean padded = false;
-        // first calculate the scanline size
-        iScanLineSize = 3 * width;
-        if (iScanLineSize % 2 != 0) {
-            iScanLineSize++;
-            padded = true;
+        Scratch scratch = SCRATCH.get();
+        int[] target;
+        IntBuffer view = null;
+        if (buffer != null) {
+            // Stay direct: decode each row into scratch and copy it into native memory in bulk
+            if (buffer.capacity() != height * width || !buffer.isDirect())
+                buffer = allocatePixels(height * width);
+            view = pixelBuffer();
+            target = scratch.rowPixels(width);
+        } else {
+            pixels = new int[height * width];
+            target = pixels;
         }
-        iScanLineSize = iScanLineSize * height + 2;
-        if (iScanLineSize != sizeOfBitmap) {
-            throw new IOException("Bitmap image size wrong");
-        }
-        pixels = new int[height * width];
-        // get the pixels
-        int imageAlpah = clamp(alpha);
-        byte pad;
-        for (int row = (height - 1); row >= 0; row--) {
-            for (int column = 0; column < width; column++) {
-                byte blue = bbuf.get();
-                byte green = bbuf.get();
-                byte red = bbuf.get();
-                pixels[column + row * width] = colour(red, green, blue, imageAlpah);
+
+        int imageAlpha = clamp(alpha) << 24;
+        int rowBytes = 3 * width;
+        byte[] row = scratch.row(rowBytes);
+        for (int r = height - 1, offset = BMP_BF_OFF_BITS; r >= 0; r--, offset += iScanLineSize) {
+            bbuf.position(offset);
+            bbuf.get(row, 0, rowBytes);
+            int p = view == null ? r * width : 0;
+            for (int b = 0; b < rowBytes; b += 3) {
+                target[p++] = imageAlpha | ((row[b + 2] & 0xff) << 16) | ((row[b + 1] & 0xff) << 8) | (row[b] & 0xff);
+            }
+            if (view != null) {
+                view.position(r * width);
+                view.put(target, 0, width);
             }
-            if (padded)
-                pad = bbuf.get();
         }
-        fos.close();
     }
 
 }
@@ -0,0 +1,47 @@
+// Starting code Copyright 2014 University of South Australia
+// Written by Michael Marner <michael.marner@unisa.edu.au>
+//
+package inft3032.drawables;
+
+import java.util.Arrays;
+
+
+/**
+ * A growable array of ints, so large meshes can be built without boxing
+ * every value.
+ */
+final class IntList {
+	int[] data;
+	int size;
+	
+	IntList(int capacity) {
+		data = new int[Math.max(capacity, 16)];
+	}
+	
+	void add(int i) {
+		if (size == data.length)
+			grow(size + 1);
+		data[size++] = i;
+	}
+	
+	void add(int a, int b, int c) {
+		if (size + 3 > data.length)
+			grow(size + 3);
+		data[size] = a;
+		data[size + 1] = b;
+		data[size + 2] = c;
+		size += 3;
+	}
+	
+	/**
+	 * Makes room for at least n more values.
+	 */
+	void ensureSpace(int n) {
+		if (size + n > data.length)
+			grow(size + n);
+	}
+	
+	private void grow(int needed) {
+		data = Arrays.copyOf(data, Math.max(needed, data.length * 2));
+	}
+}
@@ -0,0 +1,110 @@
+// Starting code Copyright 2014 University of South Australia
+// Written by Michael Marner <michael.marner@unisa.edu.au>
+//
+package inft3032.drawables;
+
+import inft3032.math.AABB;
+import inft3032.math.Vector3;
+
+import javax.media.opengl.GL3;
+
+
+/**
+ * A shape drawn from a triangle mesh loaded from a file.
+ * <p/>
+ * Shapes made from the same Geometry share one copy of it in the mesh arena.
+ */
+public class Mesh extends Shape {
+	
+	/**
+	 * The mesh. When the mesh is loading in the background this is null until
+	 * the scene's assets have been waited for (see Scene.awaitAssets).
+	 */
+	public Geometry geometry;
+	
+	public Mesh(Geometry geometry, Material m) {
+		super(m);
+		this.geometry = geometry;
+	}
+	
+	/**
+	 * @return The string name for the shape.
+	 */
+	public String name() {
+		return "mesh";
+	}
+	
+	public boolean localBounds(AABB out) {
+		if (geometry == null)
+			return false;
+		out.set(geometry.bounds());
+		return true;
+	}
+	
+	/**
+	 * Traces the ray through the geometry's triangle BVH, which is built the
+	 * first time a ray is traced against it (see Geometry.triangleBVH()).
+	 */
+	public boolean intersect(float ox, float oy, float oz, float dx, float dy, float dz,
+			float tMin, float tMax, RayHit hit) {
+		if (geometry == null)
+			return false;
+		int first = geometry.triangleBVH().intersect(ox, oy, oz, dx, dy, dz, tMin, tMax, false, hit);
+		if (first < 0)
+			return false;
+		interpolate(first, hit.t, hit);
+		return true;
+	}
+
+	/**
+	 * Fills in the normal and colour of a hit on one of the mesh's triangles
+	 * from its vertices, given hit.u and hit.v.
+	 *
+	 * @param first The index in geometry.indices of the triangle's first vertex.
+	 * @param t The distance to the hit.
+	 * @param hit The hit, with its barycentric coordinates set.
+	 */
+	void interpolate(int first, float t, RayHit hit) {
+		float[] v = geometry.vertices;
+		int[] indices = geometry.indices;
+		int a = indices[first] * MeshArena.FLOATS_PER_VERTEX;
+		int b = indices[first + 1] * MeshArena.FLOATS_PER_VERTEX;
+		int c = indices[first + 2] * MeshArena.FLOATS_PER_VERTEX;
+		float wb = hit.u, wc = hit.v, wa = 1.0f - wb - wc;
+		hit.set(t,
+				wa * v[a + 3] + wb * v[b + 3] + wc * v[c + 3],
+				wa * v[a + 4] + wb * v[b + 4] + wc * v[c + 4],
+				wa * v[a + 5] + wb * v[b + 5] + wc * v[c + 5],
+				wa * v[a + 6] + wb * v[b + 6] + wc * v[c + 6],
+				wa * v[a + 7] + wb * v[b + 7] + wc * v[c + 7],
+				wa * v[a + 8] + wb * v[b + 8] + wc * v[c + 8]);
+	}
+
+	/**
+	 * The geometry itself, as a scene reloads meshes it already has.
+	 */
+	public Object geometryKey() {
+		return geometry;
+	}
+	
+	public void init(GL3 gl) {
+		mesh = arena.acquire(geometry);
+		if (mesh == null)
+			mesh = arena.allocateShared(gl, geometry, geometry.vertexBuffer(), geometry.indexBuffer());
+	}
+	
+	/**
+	 * Uses the scene material if there is one, otherwise the first material
+	 * the mesh file gave.
+	 */
+	public Vector3 colour() {
+		if (material == null) {
+			for (int i = 0; i < geometry.groupCount; i++) {
+				Material m = geometry.groupMaterials[i];
+				if (m != null && m.diffuse != null)
+					return m.diffuse;
+			}
+		}
+		return super.colour();
+	}
+}
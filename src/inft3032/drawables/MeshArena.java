@@ -0,0 +1,511 @@
+// Starting code Copyright 2014 University of South Australia
+// Written by Michael Marner <michael.marner@unisa.edu.au>
+//
+package inft3032.drawables;
+
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import javax.media.opengl.GL;
+import javax.media.opengl.GL2ES3;
+import javax.media.opengl.GL3;
+
+
+/**
+ * One large vertex buffer and index buffer shared by every shape.
+ * <p/>
+ * Shapes are given a Range of vertices and indices inside the arena rather than
+ * buffers of their own, so the whole scene is drawn with a single VAO bound and
+ * one glDrawElementsBaseVertex per shape. Freed ranges go onto a free list and
+ * can be squeezed out with compact(). The buffers grow as needed.
+ * <p/>
+ * Identical meshes can be shared: a range allocated with a key is handed out
+ * again by acquire() with the same key, and only freed when every user has
+ * freed it.
+ * <p/>
+ * Every vertex is 9 floats: position, normal and colour.
+ */
+public class MeshArena {
+
+    /**
+     * The number of floats in each vertex.
+     */
+    public static final int FLOATS_PER_VERTEX = 9;
+
+    /**
+     * The size of each vertex in bytes.
+     */
+    public static final int VERTEX_BYTES = FLOATS_PER_VERTEX * 4;
+
+    private static final int INITIAL_VERTICES = 1 << 16;
+    private static final int INITIAL_INDICES = 3 << 16;
+
+    /**
+     * A piece of the arena belonging to a shape.
+     * <p/>
+     * The offsets are updated in place if the arena is compacted or grown, so
+     * shapes can keep hold of their Range.
+     */
+    public static final class Range {
+        int baseVertex;
+        int vertexCount;
+        int firstIndex;
+        int indexCount;
+        boolean live = true;
+        Object key;
+        int users = 1;
+        // Where the range is in the arena's list of ranges, so freeing it needn't search
+        int slot;
+
+        public int baseVertex() {
+            return baseVertex;
+        }
+
+        public int vertexCount() {
+            return vertexCount;
+        }
+
+        public int firstIndex() {
+            return firstIndex;
+        }
+
+        public int indexCount() {
+            return indexCount;
+        }
+
+        public boolean isLive() {
+            return live;
+        }
+    }
+
+    /**
+     * A first-fit allocator over one address space (vertices or indices).
+     */
+    private static class Space {
+        int capacity;
+        /** Free blocks, start -> length, never adjacent (always coalesced). */
+        final TreeMap<Integer, Integer> free = new TreeMap<Integer, Integer>();
+
+        Space(int capacity) {
+            this.capacity = capacity;
+            free.put(0, capacity);
+        }
+
+        int allocate(int size) {
+            for (Map.Entry<Integer, Integer> block : free.entrySet()) {
+                if (block.getValue() >= size) {
+                    int start = block.getKey();
+                    int remaining = block.getValue() - size;
+                    free.remove(start);
+                    if (remaining > 0)
+                        free.put(start + size, remaining);
+                    return start;
+                }
+            }
+            return -1;
+        }
+
+        void release(int start, int size) {
+            if (size == 0)
+                return;
+            Map.Entry<Integer, Integer> before = free.lowerEntry(start);
+            if (before != null && before.getKey() + before.getValue() == start) {
+                start = before.getKey();
+                size += before.getValue();
+                free.remove(start);
+            }
+            Integer after = free.get(start + size);
+            if (after != null) {
+                free.remove(start + size);
+                size += after;
+            }
+            free.put(start, size);
+        }
+
+        void grow(int newCapacity) {
+            int oldCapacity = capacity;
+            capacity = newCapacity;
+            release(oldCapacity, newCapacity - oldCapacity);
+        }
+
+        void reset(int used) {
+            free.clear();
+            if (capacity > used)
+                free.put(used, capacity - used);
+        }
+
+        int freeTotal() {
+            int total = 0;
+            for (int size : free.values())
+                total += size;
+            return total;
+        }
+
+        /**
+         * @return The size of the free block at the end of the space, which growing extends.
+         */
+        int tailFree() {
+            Map.Entry<Integer, Integer> last = free.lastEntry();
+            return last != null && last.getKey() + last.getValue() == capacity ? last.getValue() : 0;
+        }
+
+        int largestFree() {
+            int largest = 0;
+            for (int size : free.values())
+                largest = Math.max(largest, size);
+            return largest;
+        }
+
+        /**
+         * @return 0 if all free space is in one block, approaching 1 as it is split into many small holes.
+         */
+        float fragmentation() {
+            int total = freeTotal();
+            return total == 0 ? 0 : 1.0f - (float) largestFree() / total;
+        }
+    }
+
+    private int vao;
+    private int vbo;
+    private int ibo;
+
+    private final Space vertexSpace = new Space(INITIAL_VERTICES);
+    private final Space indexSpace = new Space(INITIAL_INDICES);
+    private final List<Range> ranges = new ArrayList<Range>();
+    private final Map<Object, Range> shared = new HashMap<Object, Range>();
+
+    private int compactions;
+
+    /**
+     * Creates the VAO and the initial buffers.
+     *
+     * @param gl
+     */
+    public void init(GL3 gl) {
+        int[] temp = new int[1];
+        gl.glGenVertexArrays(1, temp, 0);
+        vao = temp[0];
+        vbo = createBuffer(gl, GL.GL_ARRAY_BUFFER, (long) vertexSpace.capacity * VERTEX_BYTES);
+        ibo = createBuffer(gl, GL.GL_ELEMENT_ARRAY_BUFFER, (long) indexSpace.capacity * 4);
+        attach(gl);
+    }
+
+    private static int createBuffer(GL3 gl, int target, long bytes) {
+        int[] temp = new int[1];
+        gl.glGenBuffers(1, temp, 0);
+        gl.glBindBuffer(target, temp[0]);
+        gl.glBufferData(target, bytes, null, GL.GL_STATIC_DRAW);
+        return temp[0];
+    }
+
+    /**
+     * Points the VAO at the current buffers.
+     */
+    private void attach(GL3 gl) {
+        gl.glBindVertexArray(vao);
+        gl.glBindBuffer(GL.GL_ARRAY_BUFFER, vbo);
+        gl.glVertexAttribPointer(0, 3, GL.GL_FLOAT, false, VERTEX_BYTES, 0);   // Position
+        gl.glVertexAttribPointer(1, 3, GL.GL_FLOAT, false, VERTEX_BYTES, 3*4); // Normal
+        gl.glVertexAttribPointer(2, 3, GL.GL_FLOAT, false, VERTEX_BYTES, 6*4); // Colour
+        gl.glEnableVertexAttribArray(0);
+        gl.glEnableVertexAttribArray(1);
+        gl.glEnableVertexAttribArray(2);
+        gl.glBindBuffer(GL.GL_ELEMENT_ARRAY_BUFFER, ibo);
+    }
+
+    /**
+     * Copies a mesh into the arena.
+     *
+     * @param gl
+     * @param vertices Interleaved vertex data, FLOATS_PER_VERTEX floats per vertex.
+     * @param indices Triangle indices, relative to the first vertex of this mesh.
+     * @return The range the mesh now occupies.
+     */
+    public Range allocate(GL3 gl, float[] vertices, int[] indices) {
+        return allocate(gl, FloatBuffer.wrap(vertices), IntBuffer.wrap(indices));
+    }
+
+    /**
+     * Copies a mesh into the arena from buffers (e.g. native memory).
+     *
+     * @param gl
+     * @param vertices Interleaved vertex data from position to limit.
+     * @param indices Triangle indices from position to limit.
+     * @return The range the mesh now occupies.
+     */
+    public Range allocate(GL3 gl, FloatBuffer vertices, IntBuffer indices) {
+        Range range = new Range();
+        range.vertexCount = vertices.remaining() / FLOATS_PER_VERTEX;
+        range.indexCount = indices.remaining();
+
+        range.baseVertex = vertexSpace.allocate(range.vertexCount);
+        if (range.baseVertex == -1) {
+            growVertices(gl, range.vertexCount);
+            range.baseVertex = vertexSpace.allocate(range.vertexCount);
+        }
+        range.firstIndex = indexSpace.allocate(range.indexCount);
+        if (range.firstIndex == -1) {
+            growIndices(gl, range.indexCount);
+            range.firstIndex = indexSpace.allocate(range.indexCount);
+        }
+
+        gl.glBindBuffer(GL.GL_ARRAY_BUFFER, vbo);
+        gl.glBufferSubData(GL.GL_ARRAY_BUFFER, (long) range.baseVertex * VERTEX_BYTES, (long) range.vertexCount * VERTEX_BYTES, vertices);
+        gl.glBindVertexArray(vao);
+        gl.glBufferSubData(GL.GL_ELEMENT_ARRAY_BUFFER, (long) range.firstIndex * 4, (long) range.indexCount * 4, indices);
+
+        range.slot = ranges.size();
+        ranges.add(range);
+        return range;
+    }
+
+    /**
+     * Looks for a shared mesh already in the arena.
+     *
+     * @param key A key describing the mesh, with equals() and hashCode().
+     * @return The shared range with one more user, or null if there is none.
+     */
+    public Range acquire(Object key) {
+        Range range = shared.get(key);
+        if (range != null)
+            range.users++;
+        return range;
+    }
+
+    /**
+     * Copies a mesh into the arena and makes it available to acquire() under the given key.
+     *
+     * @param gl
+     * @param key A key describing the mesh, with equals() and hashCode().
+     * @param vertices Interleaved vertex data, FLOATS_PER_VERTEX floats per vertex.
+     * @param indices Triangle indices, relative to the first vertex of this mesh.
+     * @return The range the mesh now occupies.
+     */
+    public Range allocateShared(GL3 gl, Object key, float[] vertices, int[] indices) {
+        return allocateShared(gl, key, FloatBuffer.wrap(vertices), IntBuffer.wrap(indices));
+    }
+
+    /**
+     * Copies a mesh into the arena from buffers and makes it available to acquire() under the given key.
+     *
+     * @param gl
+     * @param key A key describing the mesh, with equals() and hashCode().
+     * @param vertices Interleaved vertex data from position to limit.
+     * @param indices Triangle indices from position to limit.
+     * @return The range the mesh now occupies.
+     */
+    public Range allocateShared(GL3 gl, Object key, FloatBuffer vertices, IntBuffer indices) {
+        Range range = allocate(gl, vertices, indices);
+        range.key = key;
+        shared.put(key, range);
+        return range;
+    }
+
+    /**
+     * Returns a range to the free list. The range must not be drawn again.
+     * Shared ranges are only freed once every user has freed them.
+     *
+     * @param range The range to free.
+     */
+    public void free(Range range) {
+        if (!range.live || --range.users > 0)
+            return;
+        if (range.key != null)
+            shared.remove(range.key);
+        range.live = false;
+        // Fill the gap with the last range, so removing is constant time
+        Range last = ranges.remove(ranges.size() - 1);
+        if (last != range) {
+            last.slot = range.slot;
+            ranges.set(range.slot, last);
+        }
+        vertexSpace.release(range.baseVertex, range.vertexCount);
+        indexSpace.release(range.firstIndex, range.indexCount);
+    }
+
+    private void growVertices(GL3 gl, int needed) {
+        int capacity = vertexSpace.capacity;
+        while (capacity - vertexSpace.capacity + vertexSpace.tailFree() < needed)
+            capacity *= 2;
+        vbo = copyInto(gl, vbo, (long) capacity * VERTEX_BYTES, (long) vertexSpace.capacity * VERTEX_BYTES);
+        vertexSpace.grow(capacity);
+        attach(gl);
+    }
+
+    private void growIndices(GL3 gl, int needed) {
+        int capacity = indexSpace.capacity;
+        while (capacity - indexSpace.capacity + indexSpace.tailFree() < needed)
+            capacity *= 2;
+        ibo = copyInto(gl, ibo, (long) capacity * 4, (long) indexSpace.capacity * 4);
+        indexSpace.grow(capacity);
+        attach(gl);
+    }
+
+    /**
+     * Creates a bigger buffer holding a copy of an old one, and deletes the old one.
+     */
+    private static int copyInto(GL3 gl, int old, long bytes, long used) {
+        int[] temp = new int[1];
+        gl.glGenBuffers(1, temp, 0);
+        gl.glBindBuffer(GL2ES3.GL_COPY_WRITE_BUFFER, temp[0]);
+        gl.glBufferData(GL2ES3.GL_COPY_WRITE_BUFFER, bytes, null, GL.GL_STATIC_DRAW);
+        gl.glBindBuffer(GL2ES3.GL_COPY_READ_BUFFER, old);
+        gl.glCopyBufferSubData(GL2ES3.GL_COPY_READ_BUFFER, GL2ES3.GL_COPY_WRITE_BUFFER, 0, 0, used);
+        gl.glDeleteBuffers(1, new int[] { old }, 0);
+        return temp[0];
+    }
+
+    /**
+     * Moves every live range down to the start of the buffers so all free space
+     * is in one block at the end. Ranges are updated in place.
+     *
+     * @param gl
+     */
+    public void compact(GL3 gl) {
+        int newVbo = createBuffer(gl, GL2ES3.GL_COPY_WRITE_BUFFER, (long) vertexSpace.capacity * VERTEX_BYTES);
+        gl.glBindBuffer(GL2ES3.GL_COPY_READ_BUFFER, vbo);
+        int nextVertex = 0;
+        for (Range range : ranges) {
+            gl.glCopyBufferSubData(GL2ES3.GL_COPY_READ_BUFFER, GL2ES3.GL_COPY_WRITE_BUFFER,
+                    (long) range.baseVertex * VERTEX_BYTES, (long) nextVertex * VERTEX_BYTES, (long) range.vertexCount * VERTEX_BYTES);
+            range.baseVertex = nextVertex;
+            nextVertex += range.vertexCount;
+        }
+
+        int newIbo = createBuffer(gl, GL2ES3.GL_COPY_WRITE_BUFFER, (long) indexSpace.capacity * 4);
+        gl.glBindBuffer(GL2ES3.GL_COPY_READ_BUFFER, ibo);
+        int nextIndex = 0;
+        for (Range range : ranges) {
+            gl.glCopyBufferSubData(GL2ES3.GL_COPY_READ_BUFFER, GL2ES3.GL_COPY_WRITE_BUFFER,
+                    (long) range.firstIndex * 4, (long) nextIndex * 4, (long) range.indexCount * 4);
+            range.firstIndex = nextIndex;
+            nextIndex += range.indexCount;
+        }
+
+        gl.glDeleteBuffers(2, new int[] { vbo, ibo }, 0);
+        vbo = newVbo;
+        ibo = newIbo;
+        vertexSpace.reset(nextVertex);
+        indexSpace.reset(nextIndex);
+        attach(gl);
+        compactions++;
+    }
+
+    /**
+     * Compacts the arena if its free space has become too fragmented.
+     *
+     * @param gl
+     * @param threshold The fragmentation (0-1) above which to compact.
+     * @return true if the arena was compacted.
+     */
+    public boolean compactIfFragmented(GL3 gl, float threshold) {
+        if (vertexSpace.fragmentation() > threshold || indexSpace.fragmentation() > threshold) {
+            compact(gl);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Binds the arena's VAO. Must be called before drawing any range.
+     *
+     * @param gl
+     */
+    public void bind(GL3 gl) {
+        gl.glBindVertexArray(vao);
+    }
+
+    /**
+     * Draws a range as triangles. The arena must be bound.
+     *
+     * @param gl
+     * @param range The range to draw.
+     */
+    public void draw(GL3 gl, Range range) {
+        gl.glDrawElementsBaseVertex(GL.GL_TRIANGLES, range.indexCount, GL.GL_UNSIGNED_INT, (long) range.firstIndex * 4, range.baseVertex);
+    }
+
+    /**
+     * Draws several instances of a range. The arena must be bound, and the
+     * per-instance attributes set up by the caller.
+     *
+     * @param gl
+     * @param range The range to draw.
+     * @param instances The number of instances.
+     */
+    public void drawInstanced(GL3 gl, Range range, int instances) {
+        gl.glDrawElementsInstancedBaseVertex(GL.GL_TRIANGLES, range.indexCount, GL.GL_UNSIGNED_INT, (long) range.firstIndex * 4, instances, range.baseVertex);
+    }
+
+    /**
+     * Deletes the buffers and VAO.
+     *
+     * @param gl
+     */
+    public void dispose(GL3 gl) {
+        gl.glDeleteBuffers(2, new int[] { vbo, ibo }, 0);
+        gl.glDeleteVertexArrays(1, new int[] { vao }, 0);
+        ranges.clear();
+        shared.clear();
+    }
+
+    //------------------------- statistics ---------------------------------
+
+    public int liveRanges() {
+        return ranges.size();
+    }
+
+    public int sharedRanges() {
+        return shared.size();
+    }
+
+    public int vertexCapacity() {
+        return vertexSpace.capacity;
+    }
+
+    public int freeVertices() {
+        return vertexSpace.freeTotal();
+    }
+
+    public int freeVertexBlocks() {
+        return vertexSpace.free.size();
+    }
+
+    public float vertexFragmentation() {
+        return vertexSpace.fragmentation();
+    }
+
+    public int indexCapacity() {
+        return indexSpace.capacity;
+    }
+
+    public int freeIndices() {
+        return indexSpace.freeTotal();
+    }
+
+    public int freeIndexBlocks() {
+        return indexSpace.free.size();
+    }
+
+    public float indexFragmentation() {
+        return indexSpace.fragmentation();
+    }
+
+    public int compactions() {
+        return compactions;
+    }
+
+    public String toString() {
+        return String.format("%d ranges (%d shared); vertices %d/%d used, %d free blocks (%.0f%% fragmented); "
+                + "indices %d/%d used, %d free blocks (%.0f%% fragmented); %d compactions",
+                liveRanges(), sharedRanges(),
+                vertexSpace.capacity - freeVertices(), vertexSpace.capacity, freeVertexBlocks(), vertexFragmentation() * 100,
+                indexSpace.capacity - freeIndices(), indexSpace.capacity, freeIndexBlocks(), indexFragmentation() * 100,
+                compactions);
+    }
+}
@@ -0,0 +1,487 @@
+// Starting code Copyright 2014 University of South Australia
+// Written by Michael Marner <michael.marner@unisa.edu.au>
+//
+package inft3032.drawables;
+
+import inft3032.math.Vector3;
+import inft3032.scene.Trace;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+
+/**
+ * A binary cache of loaded OBJ meshes, so text is only parsed once.
+ * <p/>
+ * The first time a file such as model.obj is loaded, the mesh is written to
+ * model.obj.mesh next to it. Later loads map the cache file and hand its
+ * vertex and index blobs to the mesh arena as they are, with no per-vertex
+ * work. The cache records the size, modification time and CRC-32 of the
+ * source: if the size and time match the cache is used straight away; if
+ * only the time has changed the source is checksummed, and the cache is still
+ * used if the contents are the same. Otherwise the source is parsed again.
+ * <p/>
+ * Materials from the OBJ's material libraries are baked into the cache, so a
+ * change to a .mtl file alone is not noticed; re-bake with MeshBaker -force.
+ * <p/>
+ * The format is little-endian:
+ * <pre>
+ *  0  magic "A2MESH\0\0", int version, int header size
+ * 16  long source size, long source modified time, int source CRC-32, int flags (1 = has texture coordinates)
+ * 40  int vertex count, int index count, int group count, int attribute count
+ * 56  per attribute: int semantic, int components, int byte offset in the vertex (12 bytes each)
+ *     then long offset and long length of each blob: vertices, texture coordinates, indices, materials
+ * </pre>
+ * Blobs start on 16 byte boundaries. The vertex blob is the arena's
+ * interleaved layout, the texture coordinate blob two floats per vertex, and
+ * the index blob one int per index. The material blob holds the group table
+ * (first index, material number or -1) followed by the materials: name, then
+ * four optional colours (a presence int and three floats each), then
+ * specular exponent, transparency and refractive index.
+ */
+public class MeshCache {
+
+	public static final String EXTENSION = ".mesh";
+
+	private static final byte[] MAGIC = { 'A', '2', 'M', 'E', 'S', 'H', 0, 0 };
+	private static final int VERSION = 1;
+	private static final int FLAG_TEXCOORDS = 1;
+
+	/**
+	 * Attribute semantics in the layout descriptor.
+	 */
+	public static final int POSITION = 0;
+	public static final int NORMAL = 1;
+	public static final int COLOUR = 2;
+
+	private static final int[][] LAYOUT = {
+		{ POSITION, 3, 0 },
+		{ NORMAL, 3, 12 },
+		{ COLOUR, 3, 24 },
+	};
+
+	private static final int BLOBS = 4;
+	private static final int HEADER_SIZE = 56 + LAYOUT.length * 12 + BLOBS * 16;
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	/**
+	 * @param source An OBJ file.
+	 * @return Where its cache lives.
+	 */
+	public static File cacheFile(File source) {
+		return new File(source.getPath() + EXTENSION);
+	}
+
+	/**
+	 * Loads an OBJ file through the cache, writing the cache if it is missing or stale.
+	 *
+	 * @param source The OBJ file.
+	 * @return The mesh.
+	 * @throws IOException If the source can't be read or parsed.
+	 */
+	public static Geometry load(File source) throws IOException {
+		File cache = cacheFile(source);
+		if (cache.exists()) {
+			try {
+				Geometry g = read(cache, source);
+				if (g != null)
+					return g;
+				Trace.msg("Mesh cache " + cache + " is out of date");
+			}
+			catch (IOException e) {
+				Trace.msg("Ignoring unreadable mesh cache " + cache + ": " + e.getMessage());
+			}
+		}
+
+		Geometry g = GeometryIO.loadOBJParallel(source);
+		try {
+			write(g, source, cache);
+		}
+		catch (IOException e) {
+			// A read-only asset directory shouldn't stop the scene loading
+			Trace.msg("Could not write mesh cache " + cache + ": " + e.getMessage());
+		}
+		return g;
+	}
+
+	/**
+	 * Checks whether a cache file is up to date with its source.
+	 *
+	 * @param source The OBJ file.
+	 * @return True if the cache exists and matches the source.
+	 */
+	public static boolean isFresh(File source) throws IOException {
+		File cache = cacheFile(source);
+		if (!cache.exists())
+			return false;
+		RandomAccessFile file = new RandomAccessFile(cache, "r");
+		try {
+			ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+			file.getChannel().read(header, 0);
+			header.flip();
+			return header.remaining() == HEADER_SIZE && checkHeader(header, cache) && matchesSource(header, source, cache);
+		}
+		finally {
+			file.close();
+		}
+	}
+
+	/**
+	 * Parses an OBJ file and writes its cache, whether or not it was stale.
+	 *
+	 * @param source The OBJ file.
+	 * @return The mesh.
+	 */
+	public static Geometry bake(File source) throws IOException {
+		Geometry g = GeometryIO.loadOBJParallel(source);
+		write(g, source, cacheFile(source));
+		return g;
+	}
+
+	// ------------------------------ writing ------------------------------
+
+	/**
+	 * Writes a mesh to a cache file. The file is written under a temporary
+	 * name and renamed, so a reader never sees half a cache.
+	 *
+	 * @param g The mesh.
+	 * @param source The OBJ file it came from.
+	 * @param cache The cache file.
+	 */
+	public static void write(Geometry g, File source, File cache) throws IOException {
+		g.ensureArrays();
+		long sourceSize = source.length();
+		long sourceModified = source.lastModified();
+		int crc = checksum(source);
+
+		// Give every material a number for the group table
+		Map<Material, Integer> numbers = new HashMap<Material, Integer>();
+		Map<Material, String> names = new HashMap<Material, String>();
+		for (Map.Entry<String, Material> e : g.materials.entrySet()) {
+			names.put(e.getValue(), e.getKey());
+		}
+		Material[] ordered = new Material[g.groupCount];
+		int materialCount = 0;
+		for (int i = 0; i < g.groupCount; i++) {
+			Material m = g.groupMaterials[i];
+			if (m != null && !numbers.containsKey(m)) {
+				numbers.put(m, materialCount);
+				ordered[materialCount++] = m;
+			}
+		}
+		ByteBuffer materials = materialBlob(g, numbers, names, ordered, materialCount);
+
+		long vertexBytes = (long) g.vertexCount * MeshArena.VERTEX_BYTES;
+		long texCoordBytes = g.texCoords != null ? (long) g.vertexCount * 8 : 0;
+		long indexBytes = (long) g.indexCount * 4;
+		long[] offsets = new long[BLOBS];
+		long[] lengths = { vertexBytes, texCoordBytes, indexBytes, materials.remaining() };
+		long at = align(HEADER_SIZE);
+		for (int i = 0; i < BLOBS; i++) {
+			offsets[i] = at;
+			at = align(at + lengths[i]);
+		}
+
+		ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+		header.put(MAGIC).putInt(VERSION).putInt(HEADER_SIZE);
+		header.putLong(sourceSize).putLong(sourceModified).putInt(crc).putInt(g.texCoords != null ? FLAG_TEXCOORDS : 0);
+		header.putInt(g.vertexCount).putInt(g.indexCount).putInt(g.groupCount).putInt(LAYOUT.length);
+		for (int[] attribute : LAYOUT)
+			header.putInt(attribute[0]).putInt(attribute[1]).putInt(attribute[2]);
+		for (int i = 0; i < BLOBS; i++)
+			header.putLong(offsets[i]).putLong(lengths[i]);
+		header.flip();
+
+		File temp = new File(cache.getPath() + ".tmp");
+		RandomAccessFile file = new RandomAccessFile(temp, "rw");
+		try {
+			FileChannel channel = file.getChannel();
+			channel.truncate(0);
+			write(channel, header, 0);
+			writeFloats(channel, g.vertices, g.vertexCount * MeshArena.FLOATS_PER_VERTEX, offsets[0]);
+			if (g.texCoords != null)
+				writeFloats(channel, g.texCoords, g.vertexCount * 2, offsets[1]);
+			writeInts(channel, g.indices, g.indexCount, offsets[2]);
+			write(channel, materials, offsets[3]);
+		}
+		finally {
+			file.close();
+		}
+		Files.move(temp.toPath(), cache.toPath(), StandardCopyOption.REPLACE_EXISTING);
+	}
+
+	private static ByteBuffer materialBlob(Geometry g, Map<Material, Integer> numbers, Map<Material, String> names,
+			Material[] ordered, int materialCount) {
+		int size = 4 + g.groupCount * 8 + 4;
+		byte[][] nameBytes = new byte[materialCount][];
+		for (int i = 0; i < materialCount; i++) {
+			String name = names.get(ordered[i]);
+			nameBytes[i] = (name != null ? name : "").getBytes(UTF8);
+			size += 4 + nameBytes[i].length + 4 * 16 + 12;
+		}
+		ByteBuffer b = ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+		b.putInt(g.groupCount);
+		for (int i = 0; i < g.groupCount; i++) {
+			Material m = g.groupMaterials[i];
+			b.putInt(g.groupFirstIndex[i]).putInt(m != null ? numbers.get(m) : -1);
+		}
+		b.putInt(materialCount);
+		for (int i = 0; i < materialCount; i++) {
+			Material m = ordered[i];
+			b.putInt(nameBytes[i].length).put(nameBytes[i]);
+			putColour(b, m.ambient);
+			putColour(b, m.diffuse);
+			putColour(b, m.specular);
+			putColour(b, m.emissive);
+			b.putFloat(m.specularExponent).putFloat(m.transparency).putFloat(m.refractiveIndex);
+		}
+		b.flip();
+		return b;
+	}
+
+	private static void putColour(ByteBuffer b, Vector3 c) {
+		if (c == null) {
+			b.putInt(0).putFloat(0).putFloat(0).putFloat(0);
+		}
+		else {
+			b.putInt(1).putFloat(c.getX()).putFloat(c.getY()).putFloat(c.getZ());
+		}
+	}
+
+	private static long align(long offset) {
+		return (offset + 15) & ~15L;
+	}
+
+	private static void write(FileChannel channel, ByteBuffer b, long at) throws IOException {
+		while (b.hasRemaining())
+			at += channel.write(b, at);
+	}
+
+	/**
+	 * Writes a float array a megabyte at a time through one direct buffer.
+	 */
+	private static void writeFloats(FileChannel channel, float[] data, int count, long at) throws IOException {
+		ByteBuffer b = ByteBuffer.allocateDirect(1 << 20).order(ByteOrder.LITTLE_ENDIAN);
+		FloatBuffer f = b.asFloatBuffer();
+		for (int done = 0; done < count; ) {
+			int n = Math.min(f.capacity(), count - done);
+			f.clear();
+			f.put(data, done, n);
+			b.clear().limit(n * 4);
+			write(channel, b, at);
+			at += n * 4L;
+			done += n;
+		}
+	}
+
+	private static void writeInts(FileChannel channel, int[] data, int count, long at) throws IOException {
+		ByteBuffer b = ByteBuffer.allocateDirect(1 << 20).order(ByteOrder.LITTLE_ENDIAN);
+		IntBuffer ints = b.asIntBuffer();
+		for (int done = 0; done < count; ) {
+			int n = Math.min(ints.capacity(), count - done);
+			ints.clear();
+			ints.put(data, done, n);
+			b.clear().limit(n * 4);
+			write(channel, b, at);
+			at += n * 4L;
+			done += n;
+		}
+	}
+
+	// ------------------------------ reading ------------------------------
+
+	/**
+	 * Maps a cache file. The header and each blob are mapped separately, so
+	 * the file may be over 2GB as long as no one blob is.
+	 *
+	 * @param cache The cache file.
+	 * @param source The OBJ file it should match, or null to skip the check.
+	 * @return The mesh, or null if the cache doesn't match the source.
+	 * @throws IOException If the cache can't be read or isn't a mesh cache.
+	 */
+	public static Geometry read(File cache, File source) throws IOException {
+		RandomAccessFile file = new RandomAccessFile(cache, "r");
+		try {
+			// The mappings stay valid after the file is closed
+			return read(file.getChannel(), cache, source);
+		}
+		finally {
+			file.close();
+		}
+	}
+
+	private static Geometry read(FileChannel channel, File cache, File source) throws IOException {
+		long size = channel.size();
+		if (size < HEADER_SIZE)
+			throw new IOException("not a mesh cache");
+		ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+		if (!checkHeader(header, cache))
+			throw new IOException("not a mesh cache");
+		if (source != null && !matchesSource(header, source, cache))
+			return null;
+
+		int flags = header.getInt(36);
+		Geometry g = new Geometry();
+		g.vertexCount = header.getInt(40);
+		g.indexCount = header.getInt(44);
+		g.groupCount = header.getInt(48);
+		int attributes = header.getInt(52);
+		if (attributes != LAYOUT.length)
+			throw new IOException("unexpected vertex layout");
+		for (int i = 0; i < attributes; i++) {
+			for (int k = 0; k < 3; k++) {
+				if (header.getInt(56 + i * 12 + k * 4) != LAYOUT[i][k])
+					throw new IOException("unexpected vertex layout");
+			}
+		}
+		int blobTable = 56 + attributes * 12;
+		ByteBuffer[] blobs = new ByteBuffer[BLOBS];
+		for (int i = 0; i < BLOBS; i++) {
+			long offset = header.getLong(blobTable + i * 16);
+			long length = header.getLong(blobTable + i * 16 + 8);
+			if (offset < HEADER_SIZE || length < 0 || offset + length > size)
+				throw new IOException("truncated mesh cache");
+			if (length > Integer.MAX_VALUE)
+				throw new IOException("mesh cache blob of " + length + " bytes is over 2GB");
+			blobs[i] = channel.map(FileChannel.MapMode.READ_ONLY, offset, length).order(ByteOrder.LITTLE_ENDIAN);
+		}
+		if (blobs[0].remaining() != (long) g.vertexCount * MeshArena.VERTEX_BYTES || blobs[2].remaining() != (long) g.indexCount * 4)
+			throw new IOException("truncated mesh cache");
+
+		g.vertexData = nativeOrder(blobs[0]).asFloatBuffer();
+		g.indexData = nativeOrder(blobs[2]).asIntBuffer();
+		if ((flags & FLAG_TEXCOORDS) != 0)
+			g.texCoordData = nativeOrder(blobs[1]).asFloatBuffer();
+		readMaterials(g, blobs[3]);
+		return g;
+	}
+
+	/**
+	 * The blobs are little-endian; on the rare big-endian machine they have to
+	 * be swapped into a native buffer before the driver can use them.
+	 */
+	private static ByteBuffer nativeOrder(ByteBuffer blob) {
+		if (ByteOrder.nativeOrder() == ByteOrder.LITTLE_ENDIAN)
+			return blob.order(ByteOrder.LITTLE_ENDIAN);
+		ByteBuffer copy = ByteBuffer.allocateDirect(blob.remaining()).order(ByteOrder.nativeOrder());
+		IntBuffer from = blob.order(ByteOrder.LITTLE_ENDIAN).asIntBuffer();
+		copy.asIntBuffer().put(from);
+		return copy;
+	}
+
+	private static void readMaterials(Geometry g, ByteBuffer b) throws IOException {
+		int groups = b.getInt();
+		if (groups != g.groupCount)
+			throw new IOException("corrupt material table");
+		g.groupFirstIndex = new int[groups];
+		int[] materialOf = new int[groups];
+		for (int i = 0; i < groups; i++) {
+			g.groupFirstIndex[i] = b.getInt();
+			materialOf[i] = b.getInt();
+		}
+		int count = b.getInt();
+		Material[] materials = new Material[count];
+		for (int i = 0; i < count; i++) {
+			byte[] name = new byte[b.getInt()];
+			b.get(name);
+			Material m = new Material();
+			m.ambient = getColour(b);
+			m.diffuse = getColour(b);
+			m.specular = getColour(b);
+			m.emissive = getColour(b);
+			m.specularExponent = b.getFloat();
+			m.transparency = b.getFloat();
+			m.refractiveIndex = b.getFloat();
+			materials[i] = m;
+			g.materials.put(new String(name, UTF8), m);
+		}
+		g.groupMaterials = new Material[groups];
+		for (int i = 0; i < groups; i++) {
+			if (materialOf[i] >= count)
+				throw new IOException("corrupt material table");
+			g.groupMaterials[i] = materialOf[i] >= 0 ? materials[materialOf[i]] : null;
+		}
+	}
+
+	private static Vector3 getColour(ByteBuffer b) {
+		boolean present = b.getInt() != 0;
+		float x = b.getFloat();
+		float y = b.getFloat();
+		float z = b.getFloat();
+		return present ? new Vector3(x, y, z) : null;
+	}
+
+	private static boolean checkHeader(ByteBuffer header, File cache) throws IOException {
+		for (int i = 0; i < MAGIC.length; i++) {
+			if (header.get(i) != MAGIC[i])
+				throw new IOException("not a mesh cache");
+		}
+		// An older or newer format is simply stale
+		return header.getInt(8) == VERSION && header.getInt(12) == HEADER_SIZE;
+	}
+
+	/**
+	 * Compares the recorded source size, time and checksum with the source.
+	 * If only the time differs and the contents match, the recorded time is
+	 * updated so the checksum isn't needed next time.
+	 */
+	private static boolean matchesSource(ByteBuffer header, File source, File cache) throws IOException {
+		long size = header.getLong(16);
+		long modified = header.getLong(24);
+		int crc = header.getInt(32);
+		if (size != source.length())
+			return false;
+		if (modified == source.lastModified())
+			return true;
+		if (checksum(source) != crc)
+			return false;
+
+		try {
+			RandomAccessFile file = new RandomAccessFile(cache, "rw");
+			try {
+				ByteBuffer time = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN);
+				time.putLong(0, source.lastModified());
+				write(file.getChannel(), time, 24);
+			}
+			finally {
+				file.close();
+			}
+		}
+		catch (IOException e) {
+			// Read-only; we'll just checksum again next time
+		}
+		return true;
+	}
+
+	/**
+	 * @return The CRC-32 of a file's contents.
+	 */
+	static int checksum(File source) throws IOException {
+		RandomAccessFile file = new RandomAccessFile(source, "r");
+		try {
+			FileChannel channel = file.getChannel();
+			CRC32 crc = new CRC32();
+			long size = channel.size();
+			for (long at = 0; at < size; at += Integer.MAX_VALUE) {
+				long n = Math.min(Integer.MAX_VALUE, size - at);
+				crc.update(channel.map(FileChannel.MapMode.READ_ONLY, at, n));
+			}
+			return (int) crc.getValue();
+		}
+		finally {
+			file.close();
+		}
+	}
+}
@@ -0,0 +1,194 @@
+// Starting code Copyright 2014 University of South Australia
+// Written by Michael Marner <michael.marner@unisa.edu.au>
+//
+package inft3032.drawables;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+
+
+/**
+ * One piece of an OBJ file, parsed on its own by ParallelObjLoader.
+ * <p/>
+ * A chunk can't know how many positions, texture coordinates or normals
+ * come before it, so it keeps its attributes in local arrays and its face
+ * corners as tuples of unresolved indices, numbered locally in the order
+ * they are first seen. Material commands are recorded with the number of
+ * indices before them. The loader turns all of this into global indices once
+ * every chunk has been parsed.
+ */
+final class ObjChunk extends ObjTokenizer {
+
+	/**
+	 * Negative (relative) indices are stored as the chunk-local index they
+	 * refer to, minus this, so they are always negative. Absolute indices are
+	 * stored 0-based, and a missing index as -1.
+	 */
+	static final int RELATIVE = 1 << 30;
+
+	final FloatList positions = new FloatList(3 * 1024);
+	final FloatList texCoords = new FloatList(2 * 1024);
+	final FloatList normals = new FloatList(3 * 1024);
+
+	/**
+	 * v, vt, vn for each local vertex, as stored above.
+	 */
+	final IntList tuples = new IntList(3 * 1024);
+	private final TupleTable table = new TupleTable();
+
+	/**
+	 * Triangle indices into the local vertices.
+	 */
+	final IntList indices = new IntList(3 * 1024);
+
+	/**
+	 * The mtllib and usemtl commands in order, with the local index count at each.
+	 */
+	final ArrayList<String> commands = new ArrayList<String>();
+	final ArrayList<String> names = new ArrayList<String>();
+	final IntList commandAt = new IntList(4);
+
+	/**
+	 * The smallest number of positions (texture coordinates, normals) that
+	 * must come before this chunk for every index in it to refer to something
+	 * already defined, as the sequential loader requires.
+	 */
+	final int[] required = new int[3];
+
+	private final IntList corners = new IntList(3 * 8);
+
+	/**
+	 * @param text The chunk, starting at the beginning of a line.
+	 * @param name The file name and where the chunk starts, for error messages.
+	 */
+	ObjChunk(ByteBuffer text, String name) {
+		super(text, name);
+	}
+
+	/**
+	 * Parses the chunk.
+	 */
+	void parse() throws IOException {
+		refill();
+		while (pos < end) {
+			refill();
+			byte c = buf[pos];
+			if (c == ' ' || c == '\t' || c == '\r') {
+				pos++;
+			}
+			else if (c == '\n') {
+				pos++;
+				line++;
+			}
+			else if (c == 'v') {
+				byte next = pos + 1 < end ? buf[pos + 1] : (byte) '\n';
+				if (next == ' ' || next == '\t') {
+					pos++;
+					positions.add(readFloat(), readFloat(), readFloat());
+				}
+				else if (next == 'n') {
+					pos += 2;
+					normals.add(readFloat(), readFloat(), readFloat());
+				}
+				else if (next == 't') {
+					pos += 2;
+					texCoords.add(readFloat(), readFloat());
+				}
+				skipLine();
+			}
+			else if (keyword("f")) {
+				readFace();
+			}
+			else if (keyword("usemtl")) {
+				command("usemtl", readName());
+			}
+			else if (keyword("mtllib")) {
+				command("mtllib", readName());
+			}
+			else {
+				skipLine();
+			}
+		}
+	}
+
+	private void command(String command, String name) {
+		commands.add(command);
+		names.add(name);
+		commandAt.add(indices.size);
+	}
+
+	private void readFace() throws IOException {
+		corners.size = 0;
+		while (true) {
+			skipSpaces();
+			if (pos >= end)
+				break;
+			byte c = buf[pos];
+			if (c == '\n' || c == '\r' || c == '#')
+				break;
+
+			int v = local(readInt(), positions.size / 3, 0);
+			int t = -1;
+			int n = -1;
+			if (pos < end && buf[pos] == '/') {
+				pos++;
+				if (pos < end && buf[pos] != '/')
+					t = local(readInt(), texCoords.size / 2, 1);
+				if (pos < end && buf[pos] == '/') {
+					pos++;
+					n = local(readInt(), normals.size / 3, 2);
+				}
+			}
+
+			int index = table.add(v, t, n);
+			if (index < 0) {
+				index = -index - 1;
+				tuples.add(v, t, n);
+			}
+			corners.add(index);
+		}
+		if (corners.size < 3)
+			throw error("face with fewer than three corners");
+
+		int[] c = corners.data;
+		indices.ensureSpace((corners.size - 2) * 3);
+		for (int i = 2; i < corners.size; i++) {
+			indices.add(c[0], c[i - 1], c[i]);
+		}
+		skipLine();
+	}
+
+	/**
+	 * Stores an OBJ index, noting how many attributes must come before the
+	 * chunk for it to be valid.
+	 *
+	 * @param index The index as written.
+	 * @param count The number of attributes of this kind so far in the chunk.
+	 * @param kind 0 for positions, 1 for texture coordinates, 2 for normals.
+	 */
+	private int local(int index, int count, int kind) throws IOException {
+		if (index > 0) {
+			// Needs index attributes defined by this point, of which count are in this chunk
+			required[kind] = Math.max(required[kind], index - count);
+			return index - 1;
+		}
+		if (index == 0 || index <= -RELATIVE)
+			throw error("index " + index + " out of range");
+		int local = count + index;
+		required[kind] = Math.max(required[kind], -local);
+		return local - RELATIVE;
+	}
+
+	/**
+	 * Turns a stored index into a global 0-based one.
+	 *
+	 * @param stored The index as stored.
+	 * @param base The number of attributes of this kind before the chunk.
+	 */
+	static int resolve(int stored, int base) {
+		if (stored >= -1)
+			return stored;
+		return stored + RELATIVE + base;
+	}
+}
@@ -0,0 +1,361 @@
+// Starting code Copyright 2014 University of South Australia
+// Written by Michael Marner <michael.marner@unisa.edu.au>
+//
+package inft3032.drawables;
+
+import inft3032.math.Vector3;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Map;
+
+
+/**
+ * Parses Wavefront OBJ and MTL text straight out of a byte buffer.
+ * <p/>
+ * Numbers are read by hand rather than through Scanner or Float.parseFloat,
+ * positions, normals and texture coordinates go into primitive arrays, and
+ * each distinct v/vt/vn corner becomes one vertex of an indexed mesh. Apart
+ * from material names nothing is allocated per line, so the garbage produced
+ * is bounded by the growth of the output arrays.
+ */
+final class ObjParser extends ObjTokenizer {
+
+	// Attributes as they appear in the file
+	private final FloatList positions = new FloatList(3 * 1024);
+	private final FloatList texCoords = new FloatList(2 * 1024);
+	private final FloatList normals = new FloatList(3 * 1024);
+
+	// The indexed mesh being built
+	private final FloatList vertices = new FloatList(MeshArena.FLOATS_PER_VERTEX * 1024);
+	private final FloatList vertexTexCoords = new FloatList(2 * 1024);
+	private final IntList indices = new IntList(3 * 1024);
+	private final BitSet missingNormals = new BitSet();
+	private boolean anyTexCoords;
+
+	private final TupleTable tuples = new TupleTable();
+
+	// The corners of the face being read
+	private final IntList corners = new IntList(3 * 8);
+
+	private final IntList groupFirstIndex = new IntList(4);
+	private final ArrayList<Material> groupMaterials = new ArrayList<Material>();
+	private final Geometry geometry = new Geometry();
+	private final File directory;
+
+	/**
+	 * @param buf The file contents.
+	 * @param fileName The file name, for error messages.
+	 * @param directory Where to look for material libraries.
+	 */
+	ObjParser(ByteBuffer buf, String fileName, File directory) {
+		super(buf, fileName);
+		this.directory = directory;
+	}
+
+	/**
+	 * Parses the whole buffer as an OBJ file.
+	 *
+	 * @return The mesh.
+	 * @throws IOException If the file is malformed, or a material library can't be read.
+	 */
+	Geometry parseOBJ() throws IOException {
+		startGroup(null);
+		refill();
+		while (pos < end) {
+			refill();
+			byte c = buf[pos];
+			if (c == ' ' || c == '\t' || c == '\r') {
+				pos++;
+			}
+			else if (c == '\n') {
+				pos++;
+				line++;
+			}
+			else if (c == 'v') {
+				byte next = pos + 1 < end ? buf[pos + 1] : (byte) '\n';
+				if (next == ' ' || next == '\t') {
+					pos++;
+					positions.add(readFloat(), readFloat(), readFloat());
+				}
+				else if (next == 'n') {
+					pos += 2;
+					normals.add(readFloat(), readFloat(), readFloat());
+				}
+				else if (next == 't') {
+					pos += 2;
+					texCoords.add(readFloat(), readFloat());
+				}
+				skipLine();
+			}
+			else if (keyword("f")) {
+				readFace();
+			}
+			else if (keyword("usemtl")) {
+				String name = readName();
+				Material m = geometry.materials.get(name);
+				if (m == null)
+					throw error("unknown material " + name);
+				startGroup(m);
+			}
+			else if (keyword("mtllib")) {
+				String name = readName();
+				File mtl = new File(name);
+				if (!mtl.isAbsolute() && directory != null)
+					mtl = new File(directory, name);
+				GeometryIO.loadMaterials(mtl, geometry.materials);
+			}
+			else {
+				// Comments, object and group names, smoothing groups, lines...
+				skipLine();
+			}
+		}
+		return finish();
+	}
+
+	/**
+	 * Parses the whole buffer as an MTL file.
+	 *
+	 * @param materials Receives the materials by name.
+	 * @throws IOException If the file is malformed.
+	 */
+	void parseMTL(Map<String, Material> materials) throws IOException {
+		Material active = null;
+		refill();
+		while (pos < end) {
+			refill();
+			byte c = buf[pos];
+			if (c == ' ' || c == '\t' || c == '\r') {
+				pos++;
+				continue;
+			}
+			if (c == '\n') {
+				pos++;
+				line++;
+				continue;
+			}
+			if (keyword("newmtl")) {
+				active = new Material();
+				materials.put(readName(), active);
+			}
+			else if (c == '#' || active == null) {
+				// Nothing but comments before the first material
+			}
+			else if (keyword("Kd")) {
+				active.diffuse = new Vector3(readFloat(), readFloat(), readFloat());
+			}
+			else if (keyword("Ka")) {
+				active.ambient = new Vector3(readFloat(), readFloat(), readFloat());
+			}
+			else if (keyword("Ks")) {
+				active.specular = new Vector3(readFloat(), readFloat(), readFloat());
+			}
+			else if (keyword("Ke")) {
+				active.emissive = new Vector3(readFloat(), readFloat(), readFloat());
+			}
+			else if (keyword("Ni")) {
+				active.refractiveIndex = readFloat();
+			}
+			else if (keyword("Ns")) {
+				active.specularExponent = readFloat();
+			}
+			else if (keyword("Tr")) {
+				active.transparency = readFloat();
+			}
+			else if (keyword("d")) {
+				active.transparency = 1.0f - readFloat();
+			}
+			skipLine();
+		}
+	}
+
+	/**
+	 * Reads the corners of a face and triangulates it as a fan.
+	 */
+	private void readFace() throws IOException {
+		corners.size = 0;
+		while (true) {
+			skipSpaces();
+			if (pos >= end)
+				break;
+			byte c = buf[pos];
+			if (c == '\n' || c == '\r' || c == '#')
+				break;
+
+			int v = resolve(readInt(), positions.size / 3, "vertex");
+			int t = -1;
+			int n = -1;
+			if (pos < end && buf[pos] == '/') {
+				pos++;
+				if (pos < end && buf[pos] != '/')
+					t = resolve(readInt(), texCoords.size / 2, "texture coordinate");
+				if (pos < end && buf[pos] == '/') {
+					pos++;
+					n = resolve(readInt(), normals.size / 3, "normal");
+				}
+			}
+			corners.add(vertex(v, t, n));
+		}
+		if (corners.size < 3)
+			throw error("face with fewer than three corners");
+
+		int[] c = corners.data;
+		indices.ensureSpace((corners.size - 2) * 3);
+		for (int i = 2; i < corners.size; i++) {
+			indices.add(c[0], c[i - 1], c[i]);
+		}
+		skipLine();
+	}
+
+	/**
+	 * Turns a 1-based or negative (relative) OBJ index into a 0-based one.
+	 */
+	private int resolve(int index, int count, String what) throws IOException {
+		int i = index < 0 ? count + index : index - 1;
+		if (i < 0 || i >= count)
+			throw error(what + " index " + index + " out of range (" + count + " defined so far)");
+		return i;
+	}
+
+	/**
+	 * Finds or creates the mesh vertex for a v/vt/vn tuple.
+	 *
+	 * @return The vertex index.
+	 */
+	private int vertex(int v, int t, int n) {
+		int index = tuples.add(v, t, n);
+		if (index >= 0)
+			return index;
+		index = -index - 1;
+
+		vertices.ensureSpace(MeshArena.FLOATS_PER_VERTEX);
+		vertexTexCoords.ensureSpace(2);
+		writeVertex(vertices.data, index, vertexTexCoords.data, positions.data, texCoords.data, normals.data, v, t, n);
+		vertices.size += MeshArena.FLOATS_PER_VERTEX;
+		vertexTexCoords.size += 2;
+		if (n < 0)
+			missingNormals.set(index);
+		if (t >= 0)
+			anyTexCoords = true;
+		return index;
+	}
+
+	/**
+	 * Writes one vertex of the mesh from the attributes its tuple refers to.
+	 * A missing normal is left zero and a missing texture coordinate is (0, 0).
+	 *
+	 * @param vertices The interleaved vertex data.
+	 * @param index The vertex to write.
+	 * @param vertexTexCoords The per vertex texture coordinates.
+	 */
+	static void writeVertex(float[] vertices, int index, float[] vertexTexCoords,
+			float[] positions, float[] texCoords, float[] normals, int v, int t, int n) {
+		int o = index * MeshArena.FLOATS_PER_VERTEX;
+		vertices[o] = positions[v * 3];
+		vertices[o + 1] = positions[v * 3 + 1];
+		vertices[o + 2] = positions[v * 3 + 2];
+		if (n >= 0) {
+			vertices[o + 3] = normals[n * 3];
+			vertices[o + 4] = normals[n * 3 + 1];
+			vertices[o + 5] = normals[n * 3 + 2];
+		}
+		else {
+			vertices[o + 3] = 0.0f;
+			vertices[o + 4] = 0.0f;
+			vertices[o + 5] = 0.0f;
+		}
+		vertices[o + 6] = 1.0f;
+		vertices[o + 7] = 1.0f;
+		vertices[o + 8] = 1.0f;
+
+		o = index * 2;
+		vertexTexCoords[o] = t >= 0 ? texCoords[t * 2] : 0.0f;
+		vertexTexCoords[o + 1] = t >= 0 ? texCoords[t * 2 + 1] : 0.0f;
+	}
+
+	private void startGroup(Material m) {
+		startGroup(groupFirstIndex, groupMaterials, indices.size, m);
+	}
+
+	/**
+	 * Starts a new run of triangles using the given material.
+	 *
+	 * @param firstIndex The index each run starts at.
+	 * @param materials The material of each run.
+	 * @param indexCount The number of indices so far.
+	 * @param m The material for the new run.
+	 */
+	static void startGroup(IntList firstIndex, ArrayList<Material> materials, int indexCount, Material m) {
+		int n = firstIndex.size;
+		if (n > 0 && firstIndex.data[n - 1] == indexCount) {
+			// No triangles used the previous material
+			materials.set(n - 1, m);
+			return;
+		}
+		firstIndex.add(indexCount);
+		materials.add(m);
+	}
+
+	/**
+	 * Fills in normals the file didn't give, from the faces around each vertex,
+	 * and hands the arrays to the Geometry.
+	 */
+	private Geometry finish() {
+		if (!missingNormals.isEmpty())
+			generateNormals(vertices.data, indices.data, indices.size, missingNormals);
+
+		Geometry g = geometry;
+		g.vertices = vertices.data;
+		g.vertexCount = vertices.size / MeshArena.FLOATS_PER_VERTEX;
+		g.texCoords = anyTexCoords ? vertexTexCoords.data : null;
+		g.indices = indices.data;
+		g.indexCount = indices.size;
+		g.groupFirstIndex = groupFirstIndex.data;
+		g.groupCount = groupFirstIndex.size;
+		g.groupMaterials = groupMaterials.toArray(new Material[groupMaterials.size()]);
+		return g;
+	}
+
+	/**
+	 * Accumulates area-weighted face normals into every vertex without one.
+	 */
+	static void generateNormals(float[] v, int[] idx, int indexCount, BitSet missingNormals) {
+		final int stride = MeshArena.FLOATS_PER_VERTEX;
+		for (int i = 0; i < indexCount; i += 3) {
+			int a = idx[i];
+			int b = idx[i + 1];
+			int c = idx[i + 2];
+			if (!missingNormals.get(a) && !missingNormals.get(b) && !missingNormals.get(c))
+				continue;
+			int oa = a * stride;
+			int ob = b * stride;
+			int oc = c * stride;
+			float e1x = v[ob] - v[oa], e1y = v[ob + 1] - v[oa + 1], e1z = v[ob + 2] - v[oa + 2];
+			float e2x = v[oc] - v[oa], e2y = v[oc + 1] - v[oa + 1], e2z = v[oc + 2] - v[oa + 2];
+			float nx = e1y * e2z - e1z * e2y;
+			float ny = e1z * e2x - e1x * e2z;
+			float nz = e1x * e2y - e1y * e2x;
+			for (int k = 0; k < 3; k++) {
+				int vert = idx[i + k];
+				if (missingNormals.get(vert)) {
+					int o = vert * stride + 3;
+					v[o] += nx;
+					v[o + 1] += ny;
+					v[o + 2] += nz;
+				}
+			}
+		}
+		for (int vert = missingNormals.nextSetBit(0); vert >= 0; vert = missingNormals.nextSetBit(vert + 1)) {
+			int o = vert * stride + 3;
+			float length = (float) Math.sqrt(v[o] * v[o] + v[o + 1] * v[o + 1] + v[o + 2] * v[o + 2]);
+			if (length > 0) {
+				v[o] /= length;
+				v[o + 1] /= length;
+				v[o + 2] /= length;
+			}
+		}
+	}
+}
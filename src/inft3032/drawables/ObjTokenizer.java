@@ -0,0 +1,211 @@
+// Starting code Copyright 2014 University of South Australia
+// Written by Michael Marner <michael.marner@unisa.edu.au>
+//
+package inft3032.drawables;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+
+/**
+ * Reads the whitespace separated numbers and names of OBJ and MTL files out
+ * of a byte buffer, without Scanner or Float.parseFloat.
+ * <p/>
+ * Text is copied out of the source buffer a window at a time, since reading
+ * a byte[] is much faster than reading a mapped buffer byte by byte. The
+ * window is topped up at the start of each line, so a line can be up to
+ * MAX_LINE bytes long.
+ */
+class ObjTokenizer {
+
+	private static final double[] POW10 = new double[23];
+	static {
+		POW10[0] = 1.0;
+		for (int i = 1; i < POW10.length; i++)
+			POW10[i] = POW10[i - 1] * 10.0;
+	}
+
+	private static final int WINDOW = 1 << 20;
+	static final int MAX_LINE = 1 << 16;
+
+	private final ByteBuffer src;
+	private final String fileName;
+	final byte[] buf = new byte[WINDOW];
+	int pos;
+	int end;
+	int line = 1;
+
+	/**
+	 * @param src The text, from position to limit.
+	 * @param fileName The file name, for error messages.
+	 */
+	ObjTokenizer(ByteBuffer src, String fileName) {
+		this.src = src.duplicate();
+		this.fileName = fileName;
+	}
+
+	/**
+	 * Moves the unread part of the window to the front and fills the rest
+	 * from the source. Called at the start of each line.
+	 */
+	final void refill() {
+		if (!src.hasRemaining() || end - pos >= MAX_LINE)
+			return;
+		int keep = end - pos;
+		System.arraycopy(buf, pos, buf, 0, keep);
+		pos = 0;
+		int n = Math.min(src.remaining(), buf.length - keep);
+		src.get(buf, keep, n);
+		end = keep + n;
+	}
+
+	/**
+	 * Checks for a keyword followed by whitespace at the current position, and
+	 * steps over it if found.
+	 */
+	final boolean keyword(String word) {
+		int n = word.length();
+		if (pos + n >= end)
+			return false;
+		for (int i = 0; i < n; i++) {
+			if (buf[pos + i] != word.charAt(i))
+				return false;
+		}
+		byte after = buf[pos + n];
+		if (after != ' ' && after != '\t')
+			return false;
+		pos += n;
+		return true;
+	}
+
+	final void skipSpaces() {
+		while (pos < end) {
+			byte c = buf[pos];
+			if (c != ' ' && c != '\t')
+				return;
+			pos++;
+		}
+	}
+
+	/**
+	 * Moves to the start of the next line.
+	 */
+	final void skipLine() throws IOException {
+		while (pos < end) {
+			if (buf[pos++] == '\n') {
+				line++;
+				return;
+			}
+		}
+		if (src.hasRemaining())
+			throw error("line longer than " + MAX_LINE + " bytes");
+	}
+
+	/**
+	 * Reads the rest of the line as a name, trimmed.
+	 */
+	final String readName() throws IOException {
+		skipSpaces();
+		int start = pos;
+		int last = pos;
+		while (pos < end) {
+			byte c = buf[pos];
+			if (c == '\n' || c == '\r')
+				break;
+			pos++;
+			if (c != ' ' && c != '\t')
+				last = pos;
+		}
+		if (last == start)
+			throw error("expected a name");
+		byte[] bytes = new byte[last - start];
+		for (int i = 0; i < bytes.length; i++)
+			bytes[i] = buf[start + i];
+		return new String(bytes, "UTF-8");
+	}
+
+	final int readInt() throws IOException {
+		skipSpaces();
+		boolean negative = false;
+		if (pos < end && buf[pos] == '-') {
+			negative = true;
+			pos++;
+		}
+		int start = pos;
+		int value = 0;
+		while (pos < end) {
+			int d = buf[pos] - '0';
+			if (d < 0 || d > 9)
+				break;
+			value = value * 10 + d;
+			pos++;
+		}
+		if (pos == start)
+			throw error("expected an integer");
+		return negative ? -value : value;
+	}
+
+	/**
+	 * Reads a decimal float, with optional sign, fraction and exponent.
+	 * Digits past the 18th significant one are dropped, which is far beyond
+	 * float precision.
+	 */
+	final float readFloat() throws IOException {
+		skipSpaces();
+		boolean negative = false;
+		if (pos < end) {
+			byte c = buf[pos];
+			if (c == '-' || c == '+') {
+				negative = c == '-';
+				pos++;
+			}
+		}
+		long mantissa = 0;
+		int significant = 0;
+		int exponent = 0;
+		int digits = 0;
+		boolean fraction = false;
+		while (pos < end) {
+			byte c = buf[pos];
+			if (c >= '0' && c <= '9') {
+				digits++;
+				if (significant < 18) {
+					if (mantissa != 0 || c != '0')
+						significant++;
+					mantissa = mantissa * 10 + (c - '0');
+					if (fraction)
+						exponent--;
+				}
+				else if (!fraction) {
+					exponent++;
+				}
+			}
+			else if (c == '.' && !fraction) {
+				fraction = true;
+			}
+			else {
+				break;
+			}
+			pos++;
+		}
+		if (digits == 0)
+			throw error("expected a number");
+		if (pos < end && (buf[pos] == 'e' || buf[pos] == 'E')) {
+			pos++;
+			if (pos < end && buf[pos] == '+')
+				pos++;
+			exponent += readInt();
+		}
+
+		double value = mantissa;
+		if (exponent < 0)
+			value = -exponent < POW10.length ? value / POW10[-exponent] : value / Math.pow(10, -exponent);
+		else if (exponent > 0)
+			value = exponent < POW10.length ? value * POW10[exponent] : value * Math.pow(10, exponent);
+		return (float) (negative ? -value : value);
+	}
+
+	IOException error(String message) {
+		return new IOException(fileName + ":" + line + ": " + message);
+	}
+}
@@ -0,0 +1,308 @@
+// Starting code Copyright 2014 University of South Australia
+// Written by Michael Marner <michael.marner@unisa.edu.au>
+//
+package inft3032.drawables;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+
+/**
+ * Loads an OBJ file using several threads.
+ * <p/>
+ * The file is cut into chunks on line boundaries and each chunk is mapped and
+ * parsed on its own (see ObjChunk), so no one mapping has to hold the whole
+ * file and files over 2GB can be loaded. A prefix sum over the chunks' attribute counts then
+ * gives every chunk the global numbering of its positions, texture
+ * coordinates and normals. Distinct corners are numbered in file order by one
+ * sequential pass over the chunks' (already deduplicated) corner tuples,
+ * after which the vertex and index arrays are filled in parallel.
+ * <p/>
+ * The result is identical to the sequential loader's, including the order of
+ * vertices and the normals generated for vertices without one.
+ */
+final class ParallelObjLoader {
+
+	/**
+	 * Chunks are never smaller than this; below it the threads cost more than they save.
+	 */
+	private static final int MIN_CHUNK = 1 << 20;
+
+	/**
+	 * Aim for this many chunks per thread, so a slow chunk doesn't hold everyone up.
+	 */
+	private static final int CHUNKS_PER_THREAD = 4;
+
+	/**
+	 * Chunks are never bigger than this, well inside the 2GB a mapping can
+	 * hold, whatever line they end up having to be stretched to the end of.
+	 */
+	private static final int MAX_CHUNK = 1 << 30;
+
+	private final FileChannel file;
+	private final String fileName;
+	private final File directory;
+	private final ForkJoinPool pool;
+
+	private ObjChunk[] chunks;
+	private int[] positionBase;
+	private int[] texCoordBase;
+	private int[] normalBase;
+	private int[] indexBase;
+	private int[][] remap;
+
+	ParallelObjLoader(FileChannel file, String fileName, File directory, ForkJoinPool pool) {
+		this.file = file;
+		this.fileName = fileName;
+		this.directory = directory;
+		this.pool = pool;
+	}
+
+	Geometry load() throws IOException {
+		List<long[]> bounds = split();
+		if (bounds.size() == 1)
+			return new ObjParser(map(bounds.get(0)), fileName, directory).parseOBJ();
+
+		// Parse every chunk
+		chunks = new ObjChunk[bounds.size()];
+		List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+		for (int i = 0; i < chunks.length; i++) {
+			long[] b = bounds.get(i);
+			final ObjChunk chunk = new ObjChunk(map(b), fileName + " (chunk at byte " + b[0] + ")");
+			chunks[i] = chunk;
+			tasks.add(new Callable<Void>() {
+				public Void call() throws IOException {
+					chunk.parse();
+					return null;
+				}
+			});
+		}
+		run(tasks);
+
+		// Number everything globally
+		positionBase = new int[chunks.length + 1];
+		texCoordBase = new int[chunks.length + 1];
+		normalBase = new int[chunks.length + 1];
+		indexBase = new int[chunks.length + 1];
+		for (int i = 0; i < chunks.length; i++) {
+			ObjChunk c = chunks[i];
+			if (c.required[0] > positionBase[i] || c.required[1] > texCoordBase[i] || c.required[2] > normalBase[i])
+				throw new IOException(fileName + ": face refers to a vertex, texture coordinate or normal not yet defined");
+			positionBase[i + 1] = positionBase[i] + c.positions.size / 3;
+			texCoordBase[i + 1] = texCoordBase[i] + c.texCoords.size / 2;
+			normalBase[i + 1] = normalBase[i] + c.normals.size / 3;
+			indexBase[i + 1] = indexBase[i] + c.indices.size;
+		}
+
+		// Gather the attributes, and resolve each chunk's corner tuples
+		final float[] positions = new float[positionBase[chunks.length] * 3];
+		final float[] texCoords = new float[texCoordBase[chunks.length] * 2];
+		final float[] normals = new float[normalBase[chunks.length] * 3];
+		tasks.clear();
+		for (int i = 0; i < chunks.length; i++) {
+			final int chunk = i;
+			tasks.add(new Callable<Void>() {
+				public Void call() {
+					ObjChunk c = chunks[chunk];
+					System.arraycopy(c.positions.data, 0, positions, positionBase[chunk] * 3, c.positions.size);
+					System.arraycopy(c.texCoords.data, 0, texCoords, texCoordBase[chunk] * 2, c.texCoords.size);
+					System.arraycopy(c.normals.data, 0, normals, normalBase[chunk] * 3, c.normals.size);
+					int[] t = c.tuples.data;
+					for (int k = 0; k < c.tuples.size; k += 3) {
+						t[k] = ObjChunk.resolve(t[k], positionBase[chunk]);
+						t[k + 1] = ObjChunk.resolve(t[k + 1], texCoordBase[chunk]);
+						t[k + 2] = ObjChunk.resolve(t[k + 2], normalBase[chunk]);
+					}
+					return null;
+				}
+			});
+		}
+		run(tasks);
+
+		// Number the distinct corners in the order they first appear in the file
+		TupleTable table = new TupleTable();
+		int upperBound = 0;
+		for (ObjChunk c : chunks)
+			upperBound += c.tuples.size;
+		IntList tuples = new IntList(upperBound);
+		remap = new int[chunks.length][];
+		for (int i = 0; i < chunks.length; i++) {
+			ObjChunk c = chunks[i];
+			int[] t = c.tuples.data;
+			int[] map = new int[c.tuples.size / 3];
+			for (int k = 0; k < map.length; k++) {
+				int v = t[k * 3];
+				int vt = t[k * 3 + 1];
+				int vn = t[k * 3 + 2];
+				int index = table.add(v, vt, vn);
+				if (index < 0) {
+					index = -index - 1;
+					tuples.add(v, vt, vn);
+				}
+				map[k] = index;
+			}
+			remap[i] = map;
+		}
+
+		// Fill in the vertices and indices
+		final int vertexCount = table.size();
+		final int[] tuple = tuples.data;
+		final float[] vertices = new float[vertexCount * MeshArena.FLOATS_PER_VERTEX];
+		final float[] vertexTexCoords = new float[vertexCount * 2];
+		final int[] indices = new int[indexBase[chunks.length]];
+		tasks.clear();
+		for (int i = 0; i < chunks.length; i++) {
+			final int chunk = i;
+			tasks.add(new Callable<Void>() {
+				public Void call() {
+					int[] local = chunks[chunk].indices.data;
+					int[] map = remap[chunk];
+					int base = indexBase[chunk];
+					int count = chunks[chunk].indices.size;
+					for (int k = 0; k < count; k++)
+						indices[base + k] = map[local[k]];
+
+					// And a share of the vertices
+					int from = (int) ((long) vertexCount * chunk / chunks.length);
+					int to = (int) ((long) vertexCount * (chunk + 1) / chunks.length);
+					for (int v = from; v < to; v++) {
+						ObjParser.writeVertex(vertices, v, vertexTexCoords, positions, texCoords, normals,
+								tuple[v * 3], tuple[v * 3 + 1], tuple[v * 3 + 2]);
+					}
+					return null;
+				}
+			});
+		}
+		run(tasks);
+
+		BitSet missingNormals = new BitSet();
+		boolean anyTexCoords = false;
+		for (int v = 0; v < vertexCount; v++) {
+			if (tuple[v * 3 + 2] < 0)
+				missingNormals.set(v);
+			if (tuple[v * 3 + 1] >= 0)
+				anyTexCoords = true;
+		}
+		if (!missingNormals.isEmpty())
+			ObjParser.generateNormals(vertices, indices, indices.length, missingNormals);
+
+		Geometry g = new Geometry();
+		g.vertices = vertices;
+		g.vertexCount = vertexCount;
+		g.texCoords = anyTexCoords ? vertexTexCoords : null;
+		g.indices = indices;
+		g.indexCount = indices.length;
+		materials(g);
+		return g;
+	}
+
+	/**
+	 * Replays the material commands in file order.
+	 */
+	private void materials(Geometry g) throws IOException {
+		IntList firstIndex = new IntList(4);
+		ArrayList<Material> materials = new ArrayList<Material>();
+		ObjParser.startGroup(firstIndex, materials, 0, null);
+		for (int i = 0; i < chunks.length; i++) {
+			ObjChunk c = chunks[i];
+			for (int k = 0; k < c.commands.size(); k++) {
+				String name = c.names.get(k);
+				if (c.commands.get(k).equals("mtllib")) {
+					File mtl = new File(name);
+					if (!mtl.isAbsolute() && directory != null)
+						mtl = new File(directory, name);
+					GeometryIO.loadMaterials(mtl, g.materials);
+				}
+				else {
+					Material m = g.materials.get(name);
+					if (m == null)
+						throw new IOException(fileName + ": unknown material " + name);
+					ObjParser.startGroup(firstIndex, materials, indexBase[i] + c.commandAt.data[k], m);
+				}
+			}
+		}
+		g.groupFirstIndex = firstIndex.data;
+		g.groupCount = firstIndex.size;
+		g.groupMaterials = materials.toArray(new Material[materials.size()]);
+	}
+
+	/**
+	 * Cuts the file into chunks that start at the beginning of a line.
+	 *
+	 * @return The start and end of each chunk.
+	 */
+	private List<long[]> split() throws IOException {
+		long size = file.size();
+		long chunkSize = Math.max(MIN_CHUNK, size / (pool.getParallelism() * CHUNKS_PER_THREAD) + 1);
+		chunkSize = Math.min(chunkSize, MAX_CHUNK);
+
+		List<long[]> bounds = new ArrayList<long[]>();
+		ByteBuffer line = ByteBuffer.allocate(4096);
+		long start = 0;
+		while (start < size) {
+			long end = Math.min(start + chunkSize, size);
+			end = lineEnd(end, size, line);
+			if (end - start > Integer.MAX_VALUE)
+				throw new IOException(fileName + ": line at byte " + start + " is over 2GB long");
+			bounds.add(new long[] { start, end });
+			start = end;
+		}
+		if (bounds.isEmpty())
+			bounds.add(new long[] { 0, 0 });
+		return bounds;
+	}
+
+	/**
+	 * Finds the end of the line a position is in.
+	 *
+	 * @param end A position in the file, just past the last byte of a chunk.
+	 * @param size The size of the file.
+	 * @param line Somewhere to read into.
+	 * @return end if the byte before it is a newline, else just past the next newline, or size.
+	 */
+	private long lineEnd(long end, long size, ByteBuffer line) throws IOException {
+		long at = end - 1;
+		while (at < size) {
+			line.clear();
+			int read = file.read(line, at);
+			if (read <= 0)
+				break;
+			for (int i = 0; i < read; i++) {
+				if (line.get(i) == '\n')
+					return at + i + 1;
+			}
+			at += read;
+		}
+		return size;
+	}
+
+	private ByteBuffer map(long[] bounds) throws IOException {
+		return file.map(FileChannel.MapMode.READ_ONLY, bounds[0], bounds[1] - bounds[0]);
+	}
+
+	private void run(List<Callable<Void>> tasks) throws IOException {
+		for (Future<Void> f : pool.invokeAll(tasks)) {
+			try {
+				f.get();
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException("Interrupted loading " + fileName);
+			}
+			catch (ExecutionException e) {
+				if (e.getCause() instanceof IOException)
+					throw (IOException) e.getCause();
+				throw new RuntimeException(e.getCause());
+			}
+		}
+	}
+}
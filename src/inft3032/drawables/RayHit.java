@@ -0,0 +1,61 @@
+// Starting code Copyright 2014 University of South Australia
+// Written by Michael Marner <michael.marner@unisa.edu.au>
+//
+package inft3032.drawables;
+
+import inft3032.math.BVH;
+
+
+/**
+ * Where a ray first hit a shape, filled in by Shape.intersect. One is kept
+ * per thread and reused for every ray, so tracing allocates nothing.
+ * <p/>
+ * Everything is in the shape's object space (the space of its modelMatrix()).
+ * The ray's direction isn't normalised there, so t is the same in object and
+ * world space.
+ */
+public class RayHit {
+
+	/**
+	 * The distance along the ray, in multiples of its direction.
+	 */
+	public float t;
+
+	/**
+	 * The surface normal at the hit, not necessarily of unit length.
+	 */
+	public float nx, ny, nz;
+
+	/**
+	 * The vertex colour at the hit, white for shapes without vertex colours.
+	 */
+	public float r, g, b;
+
+	/**
+	 * The barycentric coordinates of the hit within a triangle, weighting its
+	 * second and third vertices.
+	 */
+	public float u, v;
+
+	/**
+	 * Scratch space for traversing a mesh's BVH.
+	 */
+	public final int[] stack = new int[BVH.MAX_DEPTH];
+
+	/**
+	 * Records a hit on a shape without vertex colours.
+	 */
+	void set(float t, float nx, float ny, float nz) {
+		set(t, nx, ny, nz, 1.0f, 1.0f, 1.0f);
+	}
+
+	void set(float t, float nx, float ny, float nz, float r, float g, float b) {
+		this.t = t;
+		this.nx = nx;
+		this.ny = ny;
+		this.nz = nz;
+		this.r = r;
+		this.g = g;
+		this.b = b;
+	}
+}
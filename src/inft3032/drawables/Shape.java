@@ -3,15 +3,140 @@
 //
 package inft3032.drawables;
 
+import inft3032.math.AABB;
 import inft3032.math.Matrix4;
+import inft3032.math.Vector3;
+
+import javax.media.opengl.GL3;
 
 
 public abstract class Shape implements Drawable {
+	protected static final Vector3 WHITE = new Vector3(1.0f, 1.0f, 1.0f);
+	
 	public Matrix4 transform;
 	public Material material;
 	
+	/**
+	 * The arena holding this shape's geometry, and where in it the geometry is.
+	 * Set up by init(GL3, MeshArena).
+	 */
+	protected MeshArena arena;
+	public MeshArena.Range mesh;
+	
+	// The normal matrix, and the model matrix it was worked out from
+	private final float[] normalMatrix = new float[9];
+	private Matrix4 normalFrom;
+	
 	public Shape(Material m) {
 		transform = new Matrix4();
 		material = m;
 	}
+	
+	/**
+	 * Initialises the shape, placing its geometry in the given arena.
+	 * 
+	 * @param gl
+	 * @param arena The arena to allocate vertices and indices from.
+	 */
+	public void init(GL3 gl, MeshArena arena) {
+		this.arena = arena;
+		init(gl);
+	}
+	
+	/**
+	 * The colour to multiply this shape's vertex colours by. Shapes whose meshes
+	 * are shared have white vertices and take their colour from their material.
+	 * 
+	 * @return The colour, passed to the shaders as shapeColour.
+	 */
+	public Vector3 colour() {
+		return material != null && material.diffuse != null ? material.diffuse : WHITE;
+	}
+	
+	/**
+	 * The matrix to draw this shape's mesh with. Usually just the transform, but
+	 * shapes built from shared unit meshes add their own scale.
+	 * 
+	 * @return The model matrix.
+	 */
+	public Matrix4 modelMatrix() {
+		return transform;
+	}
+	
+	/**
+	 * The matrix to transform this shape's normals with, the inverse transpose
+	 * of the model matrix's upper 3x3, recomputed only when the model matrix
+	 * changes.
+	 * 
+	 * @return 9 floats in column-major order. Don't modify them.
+	 */
+	public float[] normalMatrix() {
+		Matrix4 model = modelMatrix();
+		if (normalFrom != model) {
+			model.normalMatrix(normalMatrix);
+			normalFrom = model;
+		}
+		return normalMatrix;
+	}
+	
+	/**
+	 * The bounds of the mesh this shape draws, before modelMatrix() is applied.
+	 * 
+	 * @param out Receives the bounds.
+	 * @return False if the bounds aren't known, in which case the shape is never culled.
+	 */
+	public boolean localBounds(AABB out) {
+		return false;
+	}
+	
+	/**
+	 * Finds where a ray first hits this shape, in the space of modelMatrix()
+	 * (so the unit mesh for shapes that scale one). The direction isn't
+	 * normalised, so a ray transformed from world space by the inverse model
+	 * matrix hits at the same t it would in world space.
+	 * 
+	 * @param ox The ray's origin.
+	 * @param oy
+	 * @param oz
+	 * @param dx The ray's direction.
+	 * @param dy
+	 * @param dz
+	 * @param tMin Hits nearer than this are ignored.
+	 * @param tMax Hits this far or further are ignored.
+	 * @param hit Receives the nearest hit, if there is one.
+	 * @return True if the ray hits between tMin and tMax. False for shapes that can't be ray traced.
+	 */
+	public boolean intersect(float ox, float oy, float oz, float dx, float dy, float dz,
+			float tMin, float tMax, RayHit hit) {
+		return false;
+	}
+	
+	/**
+	 * Identifies the geometry this shape draws. When a scene is reloaded, a
+	 * shape whose key equals a live shape's takes over that shape's geometry
+	 * instead of building its own.
+	 * 
+	 * @return The key, or null if the geometry can't be matched.
+	 */
+	public Object geometryKey() {
+		return null;
+	}
+	
+	/**
+	 * Draws the shape. The arena must already be bound.
+	 */
+	public void draw(GL3 gl) {
+		if (mesh != null)
+			arena.draw(gl, mesh);
+	}
+	
+	/**
+	 * Gives this shape's geometry back to the arena, e.g. when it is removed from the scene.
+	 */
+	public void release() {
+		if (mesh != null) {
+			arena.free(mesh);
+			mesh = null;
+		}
+	}
 }
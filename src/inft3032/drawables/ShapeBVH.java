@@ -0,0 +1,427 @@
+// Starting code Copyright 2014 University of South Australia
+// Written by Michael Marner <michael.marner@unisa.edu.au>
+//
+package inft3032.drawables;
+
+import inft3032.math.AABB;
+import inft3032.math.Frustum;
+import inft3032.math.Matrix4;
+
+import java.util.ArrayList;
+import java.util.List;
+
+
+/**
+ * A bounding volume hierarchy over the shapes in a scene, for frustum culling.
+ * <p/>
+ * Each shape's world bounds are its localBounds() through its modelMatrix().
+ * The tree is built with a binned surface area heuristic and kept in flat
+ * arrays, with every node's shapes in one contiguous run so a node entirely
+ * inside the frustum can be accepted without visiting its children.
+ * <p/>
+ * update() rebuilds the tree when the list of shapes changes and refits it
+ * (recomputing bounds bottom-up, keeping the structure) when only transforms
+ * have changed. Transforms are immutable, so a change means a new Matrix4.
+ */
+public class ShapeBVH {
+
+	private static final int BINS = 12;
+
+	/**
+	 * Nodes with this many shapes or fewer become leaves.
+	 */
+	private static final int LEAF_SIZE = 4;
+
+	/**
+	 * Nodes this big are split even when the heuristic says not to.
+	 */
+	private static final int MAX_LEAF_SIZE = 16;
+
+	/**
+	 * Shapes in tree order, with their world bounds (6 floats each) and the
+	 * transform the bounds were worked out from.
+	 */
+	private Shape[] shapes = new Shape[0];
+	private float[] bounds = new float[0];
+	private Matrix4[] transforms = new Matrix4[0];
+
+	/**
+	 * Shapes without bounds, drawn whatever the camera is looking at.
+	 */
+	private final List<Shape> unbounded = new ArrayList<Shape>();
+
+	/**
+	 * Node n covers shapes nodeFirst[n] to nodeFirst[n] + nodeCount[n] - 1
+	 * and has bounds nodeBounds[n * 6 ..]. Its left child is n + 1 and its
+	 * right child nodeRight[n], or 0 for a leaf.
+	 */
+	private float[] nodeBounds = new float[0];
+	private int[] nodeFirst = new int[0];
+	private int[] nodeCount = new int[0];
+	private int[] nodeRight = new int[0];
+	private int nodes;
+
+	// What the tree was built from
+	private List<Shape> builtFrom;
+	private int builtSize = -1;
+
+	private int[] stack = new int[64];
+	private final AABB box = new AABB();
+	private final AABB scratch = new AABB();
+	private final AABB binScratch = new AABB();
+	private final AABB fitted = new AABB();
+
+	// Scratch space for the build
+	private final float[] binBounds = new float[BINS * 6];
+	private final int[] binCount = new int[BINS];
+	private final float[] rightArea = new float[BINS];
+
+	// Statistics
+	private int rebuilds;
+	private int refits;
+	private int visible;
+	private int culled;
+	private long cullNanos;
+
+	/**
+	 * Brings the tree up to date with the shapes: rebuilt if the list has
+	 * changed, refitted if any transforms have.
+	 *
+	 * @param list The shapes in the scene.
+	 */
+	public void update(List<Shape> list) {
+		if (list != builtFrom || list.size() != builtSize) {
+			build(list);
+			return;
+		}
+		boolean moved = false;
+		for (int i = 0; i < shapes.length; i++) {
+			Shape s = shapes[i];
+			if (s.transform != transforms[i]) {
+				worldBounds(s, i);
+				moved = true;
+			}
+		}
+		if (moved)
+			refit();
+	}
+
+	/**
+	 * Finds the shapes that may be visible.
+	 *
+	 * @param frustum The view frustum.
+	 * @param out Receives the shapes, after being cleared. Their order is the tree's, not the scene's.
+	 */
+	public void cull(Frustum frustum, List<Shape> out) {
+		long start = System.nanoTime();
+		out.clear();
+		// Not addAll, which copies its argument into a new array
+		for (int i = 0; i < unbounded.size(); i++)
+			out.add(unbounded.get(i));
+		if (nodes > 0) {
+			int top = 0;
+			stack[top++] = 0;
+			stack[top++] = Frustum.ALL_PLANES;
+			while (top > 0) {
+				int mask = stack[--top];
+				int n = stack[--top];
+				mask = frustum.test(nodeBox(n), mask);
+				if (mask == Frustum.OUTSIDE)
+					continue;
+				int first = nodeFirst[n];
+				int end = first + nodeCount[n];
+				if (mask == 0) {
+					// Entirely inside, so everything under it is too
+					for (int i = first; i < end; i++)
+						out.add(shapes[i]);
+				}
+				else if (nodeRight[n] == 0) {
+					for (int i = first; i < end; i++) {
+						if (frustum.test(shapeBox(i), mask) != Frustum.OUTSIDE)
+							out.add(shapes[i]);
+					}
+				}
+				else {
+					if (top + 4 > stack.length) {
+						int[] bigger = new int[stack.length * 2];
+						System.arraycopy(stack, 0, bigger, 0, top);
+						stack = bigger;
+					}
+					stack[top++] = nodeRight[n];
+					stack[top++] = mask;
+					stack[top++] = n + 1;
+					stack[top++] = mask;
+				}
+			}
+		}
+		visible = out.size();
+		culled = shapes.length + unbounded.size() - visible;
+		cullNanos = System.nanoTime() - start;
+	}
+
+	/**
+	 * @return The number of shapes found by the last cull().
+	 */
+	public int visibleCount() {
+		return visible;
+	}
+
+	/**
+	 * @return The number of shapes left out by the last cull().
+	 */
+	public int culledCount() {
+		return culled;
+	}
+
+	/**
+	 * @return How long the last cull() took, in nanoseconds.
+	 */
+	public long cullNanos() {
+		return cullNanos;
+	}
+
+	public String toString() {
+		return String.format("%d visible, %d culled in %.3fms; %d nodes, %d rebuilds, %d refits",
+				visible, culled, cullNanos / 1.0e6, nodes, rebuilds, refits);
+	}
+
+	//----------------- building --------------------------
+
+	private void build(List<Shape> list) {
+		builtFrom = list;
+		builtSize = list.size();
+		rebuilds++;
+
+		unbounded.clear();
+		List<Shape> bounded = new ArrayList<Shape>(list.size());
+		for (Shape s : list) {
+			if (s.localBounds(box))
+				bounded.add(s);
+			else
+				unbounded.add(s);
+		}
+		int n = bounded.size();
+		shapes = bounded.toArray(new Shape[n]);
+		bounds = new float[n * 6];
+		transforms = new Matrix4[n];
+		for (int i = 0; i < n; i++)
+			worldBounds(shapes[i], i);
+
+		int capacity = Math.max(1, 2 * n - 1);
+		nodeBounds = new float[capacity * 6];
+		nodeFirst = new int[capacity];
+		nodeCount = new int[capacity];
+		nodeRight = new int[capacity];
+		nodes = 0;
+		if (n > 0)
+			split(0, n);
+	}
+
+	/**
+	 * Builds the subtree over shapes first to end - 1, reordering them.
+	 *
+	 * @return The subtree's root node.
+	 */
+	private int split(int first, int end) {
+		int node = nodes++;
+		nodeFirst[node] = first;
+		nodeCount[node] = end - first;
+		nodeRight[node] = 0;
+
+		// The node's bounds, and the bounds of the shapes' centres
+		AABB all = new AABB();
+		AABB centres = new AABB();
+		for (int i = first; i < end; i++) {
+			int o = i * 6;
+			all.include(shapeBox(i));
+			centres.include(centre(o, 0), centre(o, 1), centre(o, 2));
+		}
+		storeNode(node, all);
+
+		int count = end - first;
+		if (count <= LEAF_SIZE)
+			return node;
+
+		// Try every bin boundary on every axis, and keep the cheapest
+		float bestCost = Float.POSITIVE_INFINITY;
+		int bestAxis = -1;
+		int bestBin = 0;
+		for (int axis = 0; axis < 3; axis++) {
+			float lo = axis == 0 ? centres.minX : axis == 1 ? centres.minY : centres.minZ;
+			float hi = axis == 0 ? centres.maxX : axis == 1 ? centres.maxY : centres.maxZ;
+			if (hi <= lo)
+				continue;
+			float scale = BINS / (hi - lo);
+
+			for (int b = 0; b < BINS; b++) {
+				binCount[b] = 0;
+				setEmpty(binBounds, b * 6);
+			}
+			for (int i = first; i < end; i++) {
+				int b = bin(centre(i * 6, axis), lo, scale);
+				binCount[b]++;
+				include(binBounds, b * 6, bounds, i * 6);
+			}
+
+			// Sweep from the right for the area and count right of each boundary...
+			scratch.setEmpty();
+			int rightCount = 0;
+			for (int b = BINS - 1; b > 0; b--) {
+				scratch.include(binBox(b));
+				rightCount += binCount[b];
+				rightArea[b] = scratch.surfaceArea() * rightCount;
+			}
+			// ...then from the left
+			box.setEmpty();
+			int leftCount = 0;
+			for (int b = 0; b < BINS - 1; b++) {
+				box.include(binBox(b));
+				leftCount += binCount[b];
+				if (leftCount == 0 || leftCount == count)
+					continue;
+				float cost = box.surfaceArea() * leftCount + rightArea[b + 1];
+				if (cost < bestCost) {
+					bestCost = cost;
+					bestAxis = axis;
+					bestBin = b;
+				}
+			}
+		}
+
+		int mid;
+		if (bestAxis < 0) {
+			// All the centres are in one place; just halve the list
+			mid = (first + end) >>> 1;
+		}
+		else {
+			// Not worth splitting if a leaf would be cheaper
+			if (count <= MAX_LEAF_SIZE && bestCost >= all.surfaceArea() * count)
+				return node;
+			float lo = bestAxis == 0 ? centres.minX : bestAxis == 1 ? centres.minY : centres.minZ;
+			float hi = bestAxis == 0 ? centres.maxX : bestAxis == 1 ? centres.maxY : centres.maxZ;
+			mid = partition(first, end, bestAxis, bestBin, lo, BINS / (hi - lo));
+		}
+
+		split(first, mid);
+		nodeRight[node] = split(mid, end);
+		return node;
+	}
+
+	/**
+	 * Moves the shapes whose centres fall in bins 0 to lastBin to the front.
+	 *
+	 * @return The first shape of the rest.
+	 */
+	private int partition(int first, int end, int axis, int lastBin, float lo, float scale) {
+		int i = first;
+		int j = end - 1;
+		while (i <= j) {
+			if (bin(centre(i * 6, axis), lo, scale) <= lastBin)
+				i++;
+			else
+				swap(i, j--);
+		}
+		return i;
+	}
+
+	private static int bin(float centre, float lo, float scale) {
+		int b = (int) ((centre - lo) * scale);
+		return b < 0 ? 0 : b >= BINS ? BINS - 1 : b;
+	}
+
+	private float centre(int o, int axis) {
+		return (bounds[o + axis] + bounds[o + 3 + axis]) * 0.5f;
+	}
+
+	private void swap(int a, int b) {
+		Shape s = shapes[a];
+		shapes[a] = shapes[b];
+		shapes[b] = s;
+		Matrix4 m = transforms[a];
+		transforms[a] = transforms[b];
+		transforms[b] = m;
+		for (int k = 0; k < 6; k++) {
+			float f = bounds[a * 6 + k];
+			bounds[a * 6 + k] = bounds[b * 6 + k];
+			bounds[b * 6 + k] = f;
+		}
+	}
+
+	//----------------- refitting --------------------------
+
+	/**
+	 * Recomputes every node's bounds from its children. Children always come
+	 * after their parent, so one backwards pass does it.
+	 */
+	private void refit() {
+		refits++;
+		for (int n = nodes - 1; n >= 0; n--) {
+			fitted.setEmpty();
+			if (nodeRight[n] == 0) {
+				int end = nodeFirst[n] + nodeCount[n];
+				for (int i = nodeFirst[n]; i < end; i++)
+					fitted.include(shapeBox(i));
+			}
+			else {
+				fitted.include(nodeBox(n + 1));
+				fitted.include(nodeBox(nodeRight[n]));
+			}
+			storeNode(n, fitted);
+		}
+	}
+
+	/**
+	 * Works out a shape's world bounds and notes the transform they came from.
+	 */
+	private void worldBounds(Shape s, int i) {
+		s.localBounds(scratch);
+		scratch.transform(s.modelMatrix(), scratch);
+		int o = i * 6;
+		bounds[o] = scratch.minX;
+		bounds[o + 1] = scratch.minY;
+		bounds[o + 2] = scratch.minZ;
+		bounds[o + 3] = scratch.maxX;
+		bounds[o + 4] = scratch.maxY;
+		bounds[o + 5] = scratch.maxZ;
+		transforms[i] = s.transform;
+	}
+
+	//----------------- flat bounds --------------------------
+
+	private AABB shapeBox(int i) {
+		int o = i * 6;
+		return box.set(bounds[o], bounds[o + 1], bounds[o + 2], bounds[o + 3], bounds[o + 4], bounds[o + 5]);
+	}
+
+	private AABB nodeBox(int n) {
+		int o = n * 6;
+		return scratch.set(nodeBounds[o], nodeBounds[o + 1], nodeBounds[o + 2], nodeBounds[o + 3], nodeBounds[o + 4], nodeBounds[o + 5]);
+	}
+
+	private AABB binBox(int b) {
+		int o = b * 6;
+		return binScratch.set(binBounds[o], binBounds[o + 1], binBounds[o + 2], binBounds[o + 3], binBounds[o + 4], binBounds[o + 5]);
+	}
+
+	private void storeNode(int n, AABB b) {
+		int o = n * 6;
+		nodeBounds[o] = b.minX;
+		nodeBounds[o + 1] = b.minY;
+		nodeBounds[o + 2] = b.minZ;
+		nodeBounds[o + 3] = b.maxX;
+		nodeBounds[o + 4] = b.maxY;
+		nodeBounds[o + 5] = b.maxZ;
+	}
+
+	private static void setEmpty(float[] a, int o) {
+		a[o] = a[o + 1] = a[o + 2] = Float.POSITIVE_INFINITY;
+		a[o + 3] = a[o + 4] = a[o + 5] = Float.NEGATIVE_INFINITY;
+	}
+
+	private static void include(float[] a, int o, float[] b, int p) {
+		for (int k = 0; k < 3; k++) {
+			a[o + k] = Math.min(a[o + k], b[p + k]);
+			a[o + 3 + k] = Math.max(a[o + 3 + k], b[p + 3 + k]);
+		}
+	}
+}
@@ -3,10 +3,10 @@
 //
 package inft3032.drawables;
 
+import inft3032.math.AABB;
+import inft3032.math.Vector3;
 
 
-import javax.media.opengl.GL3;
-
 /**
  * A class for a Sphere shape.
  * <p/>
@@ -15,7 +15,7 @@ import javax.media.opengl.GL3;
  * @author a.sobey
  * @version 1.0
  */
-public class Sphere extends Shape {
+public class Sphere extends TessellatedShape {
     /**
      * The radius of the sphere
      */
@@ -40,15 +40,84 @@ public class Sphere extends Shape {
         return "sphere";
     }
 
-	@Override
-	public void init(GL3 gl) {
-		// TODO Auto-generated method stub
-		
-	}
+    public float boundingRadius() {
+        return radius;
+    }
+
+    /**
+     * The unit sphere's bounds; modelMatrix() scales them by the radius.
+     */
+    public boolean localBounds(AABB out) {
+        out.set(-1.0f, -1.0f, -1.0f, 1.0f, 1.0f, 1.0f);
+        return true;
+    }
+
+    /**
+     * Intersects the unit sphere.
+     */
+    public boolean intersect(float ox, float oy, float oz, float dx, float dy, float dz,
+            float tMin, float tMax, RayHit hit) {
+        float a = dx * dx + dy * dy + dz * dz;
+        float b = ox * dx + oy * dy + oz * dz;
+        float c = ox * ox + oy * oy + oz * oz - 1.0f;
+        float disc = b * b - a * c;
+        if (disc < 0)
+            return false;
+        float root = (float) Math.sqrt(disc);
+        float t = (-b - root) / a;
+        if (t <= tMin)
+            t = (-b + root) / a;
+        if (t <= tMin || t >= tMax)
+            return false;
+        // On a unit sphere the normal is the position
+        hit.set(t, ox + t * dx, oy + t * dy, oz + t * dz);
+        return true;
+    }
 
-	@Override
-	public void draw(GL3 gl) {
-		// TODO Auto-generated method stub
-		
-	}
+    protected Vector3 scale() {
+        return new Vector3(radius, radius, radius);
+    }
+
+    /**
+     * A UV sphere of radius 1 with segments slices and segments / 2 stacks.
+     */
+    protected int vertexCount(int segments) {
+        return (segments / 2 + 1) * (segments + 1);
+    }
+
+    protected int indexCount(int segments) {
+        return (segments / 2) * segments * 6;
+    }
+
+    protected void tessellate(int segments, float[] vertices, int[] indices) {
+        int stacks = segments / 2;
+        int o = 0;
+        for (int i = 0; i <= stacks; i++) {
+            double phi = Math.PI * i / stacks;
+            float y = (float) Math.cos(phi);
+            float r = (float) Math.sin(phi);
+            for (int j = 0; j <= segments; j++) {
+                double theta = 2.0 * Math.PI * j / segments;
+                float x = r * (float) Math.cos(theta);
+                float z = r * (float) Math.sin(theta);
+                // On a unit sphere the normal is the position
+                o = vertex(vertices, o, x, y, z, x, y, z);
+            }
+        }
+
+        o = 0;
+        int row = segments + 1;
+        for (int i = 0; i < stacks; i++) {
+            for (int j = 0; j < segments; j++) {
+                int a = i * row + j;
+                int b = a + row;
+                indices[o++] = a;
+                indices[o++] = a + 1;
+                indices[o++] = b;
+                indices[o++] = a + 1;
+                indices[o++] = b + 1;
+                indices[o++] = b;
+            }
+        }
+    }
 }
@@ -0,0 +1,149 @@
+// Starting code Copyright 2014 University of South Australia
+// Written by Michael Marner <michael.marner@unisa.edu.au>
+//
+package inft3032.drawables;
+
+import inft3032.math.Matrix4;
+import inft3032.math.Vector3;
+
+import javax.media.opengl.GL3;
+
+
+/**
+ * A shape drawn from a procedurally generated unit mesh.
+ * <p/>
+ * Every shape of the same kind shares one mesh per level of detail, held by a
+ * TessellationCache. The mesh is built at unit size and scaled to the shape's
+ * dimensions through the model matrix. Which level is drawn is chosen each
+ * frame by the cache from the shape's size on screen.
+ */
+public abstract class TessellatedShape extends Shape {
+	
+	/**
+	 * The number of segments around the shape currently drawn, or 0 if none
+	 * has been chosen yet.
+	 */
+	int segments;
+	
+	private Matrix4 model;
+	private Matrix4 modelFrom;
+	// The shape's dimensions are fixed, so its scale is worked out once
+	private Vector3 unitScale;
+	
+	public TessellatedShape(Material m) {
+		super(m);
+	}
+	
+	/**
+	 * Nothing to do here; the mesh is chosen by TessellationCache.update().
+	 */
+	public void init(GL3 gl) {
+	}
+	
+	/**
+	 * @return The number of segments around the shape currently drawn.
+	 */
+	public int segments() {
+		return segments;
+	}
+	
+	/**
+	 * @return The string name for the shape, also used to name its meshes.
+	 */
+	public abstract String name();
+	
+	/**
+	 * @return The scale from the unit mesh to this shape.
+	 */
+	protected abstract Vector3 scale();
+	
+	/**
+	 * @return The radius of a sphere about the shape's origin that contains it.
+	 */
+	public abstract float boundingRadius();
+	
+	/**
+	 * @param segments The number of segments around the shape.
+	 * @return The number of vertices in the unit mesh.
+	 */
+	protected abstract int vertexCount(int segments);
+	
+	/**
+	 * @param segments The number of segments around the shape.
+	 * @return The number of indices in the unit mesh.
+	 */
+	protected abstract int indexCount(int segments);
+	
+	/**
+	 * Writes the unit mesh. The arrays are exactly vertexCount() * FLOATS_PER_VERTEX
+	 * and indexCount() long.
+	 * 
+	 * @param segments The number of segments around the shape.
+	 * @param vertices Receives position, normal and colour for each vertex.
+	 * @param indices Receives the triangles.
+	 */
+	protected abstract void tessellate(int segments, float[] vertices, int[] indices);
+	
+	/**
+	 * Shapes of the same kind and size; the mesh itself is the cache's.
+	 */
+	public Object geometryKey() {
+		return name() + " " + scale();
+	}
+	
+	/**
+	 * The transform with the unit mesh scale applied, recomputed only when the
+	 * transform is replaced. Matrix4 is immutable, so that costs one matrix.
+	 */
+	public Matrix4 modelMatrix() {
+		if (modelFrom != transform) {
+			if (unitScale == null)
+				unitScale = scale();
+			model = transform.scaled(unitScale);
+			modelFrom = transform;
+		}
+		return model;
+	}
+	
+	/**
+	 * The mesh belongs to the cache, not the shape, so there is nothing to free.
+	 */
+	public void release() {
+		mesh = null;
+		segments = 0;
+	}
+	
+	/**
+	 * Writes one white vertex.
+	 * 
+	 * @return The offset of the next vertex.
+	 */
+	static int vertex(float[] v, int o, float x, float y, float z, float nx, float ny, float nz) {
+		v[o] = x;
+		v[o + 1] = y;
+		v[o + 2] = z;
+		v[o + 3] = nx;
+		v[o + 4] = ny;
+		v[o + 5] = nz;
+		v[o + 6] = 1.0f;
+		v[o + 7] = 1.0f;
+		v[o + 8] = 1.0f;
+		return o + MeshArena.FLOATS_PER_VERTEX;
+	}
+	
+	/**
+	 * Writes a triangle fan around a centre vertex, closing the ring.
+	 * 
+	 * @return The offset of the next index.
+	 */
+	static int fan(int[] indices, int o, int centre, int firstRing, int count, boolean clockwise) {
+		for (int i = 0; i < count; i++) {
+			int a = firstRing + i;
+			int b = firstRing + i + 1;
+			indices[o++] = centre;
+			indices[o++] = clockwise ? b : a;
+			indices[o++] = clockwise ? a : b;
+		}
+		return o;
+	}
+}
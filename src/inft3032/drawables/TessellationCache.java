@@ -0,0 +1,197 @@
+// Starting code Copyright 2014 University of South Australia
+// Written by Michael Marner <michael.marner@unisa.edu.au>
+//
+package inft3032.drawables;
+
+import inft3032.math.Matrix4;
+import inft3032.math.Vector3;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.media.opengl.GL3;
+
+
+/**
+ * Unit meshes for spheres, cylinders and cones, generated once per shape
+ * type and level of detail and shared by every shape of that type.
+ * <p/>
+ * Each frame update() estimates how many pixels each tessellated shape
+ * covers and points it at the coarsest level that still looks round.
+ * Levels are generated on first use and kept in the arena until the cache
+ * is disposed, so switching back and forth costs nothing.
+ */
+public class TessellationCache {
+	
+	/**
+	 * The segment counts around each shape, coarsest first.
+	 */
+	public static final int[] LEVELS = { 8, 16, 32, 64 };
+	
+	/**
+	 * The longest a segment edge may be on screen, in pixels, before the next
+	 * finer level is used.
+	 */
+	private static final float PIXELS_PER_SEGMENT = 6.0f;
+	
+	/**
+	 * How far below a coarser level's limit a shape has to shrink before
+	 * switching to it, so shapes near a boundary don't flicker between levels.
+	 */
+	private static final float HYSTERESIS = 0.8f;
+	
+	private final MeshArena arena;
+	private final Map<Class<?>, MeshArena.Range[]> meshes = new HashMap<Class<?>, MeshArena.Range[]>();
+	
+	private long hits;
+	private long misses;
+	private long bytes;
+	private final int[] shapesPerLevel = new int[LEVELS.length];
+	
+	public TessellationCache(MeshArena arena) {
+		this.arena = arena;
+	}
+	
+	/**
+	 * Chooses a level of detail for every tessellated shape.
+	 * 
+	 * @param gl
+	 * @param shapes The shapes in the scene. Other kinds of shape are ignored.
+	 * @param eye The camera position.
+	 * @param fovY The vertical field of view, in degrees.
+	 * @param viewportHeight The height of the viewport, in pixels.
+	 */
+	public void update(GL3 gl, List<Shape> shapes, Vector3 eye, float fovY, int viewportHeight) {
+		// Pixels covered by one world unit at a distance of one unit
+		float pixelsPerUnit = (float) (viewportHeight / (2.0 * Math.tan(Math.toRadians(fovY) / 2.0)));
+		
+		for (int i = 0; i < shapesPerLevel.length; i++)
+			shapesPerLevel[i] = 0;
+		
+		// Indexed rather than for-each, so no iterator is made each frame
+		for (int i = 0; i < shapes.size(); i++) {
+			Shape s = shapes.get(i);
+			if (!(s instanceof TessellatedShape))
+				continue;
+			TessellatedShape t = (TessellatedShape) s;
+			
+			Matrix4 m = t.transform;
+			float dx = m.get(0, 3) - eye.getX();
+			float dy = m.get(1, 3) - eye.getY();
+			float dz = m.get(2, 3) - eye.getZ();
+			float distance = Math.max((float) Math.sqrt(dx * dx + dy * dy + dz * dz), 1.0e-3f);
+			// The bounding radius is before the transform, which may scale the shape up or down
+			float radius = t.boundingRadius() * m.maxScale() * pixelsPerUnit / distance;
+			
+			int level = choose(radius, t.segments);
+			shapesPerLevel[level]++;
+			if (t.segments != LEVELS[level]) {
+				t.mesh = mesh(gl, t, level);
+				t.segments = LEVELS[level];
+			}
+		}
+	}
+	
+	/**
+	 * Picks the level for a shape covering the given radius on screen.
+	 * 
+	 * @param pixels The projected radius, in pixels.
+	 * @param current The shape's current segment count, or 0.
+	 * @return The index into LEVELS.
+	 */
+	static int choose(float pixels, int current) {
+		// Segments needed to keep each edge of the silhouette short
+		float needed = (float) (2.0 * Math.PI * pixels / PIXELS_PER_SEGMENT);
+		int level = 0;
+		while (level < LEVELS.length - 1 && LEVELS[level] < needed)
+			level++;
+		// Only drop to a coarser level once comfortably inside it
+		if (current > LEVELS[level] && needed > LEVELS[level] * HYSTERESIS) {
+			while (level < LEVELS.length - 1 && LEVELS[level] < current)
+				level++;
+		}
+		return level;
+	}
+	
+	/**
+	 * Gets the mesh for a shape type and level, generating it if needed.
+	 * 
+	 * @param gl
+	 * @param shape A shape of the type wanted.
+	 * @param level The index into LEVELS.
+	 * @return The mesh.
+	 */
+	public MeshArena.Range mesh(GL3 gl, TessellatedShape shape, int level) {
+		MeshArena.Range[] levels = meshes.get(shape.getClass());
+		if (levels == null) {
+			levels = new MeshArena.Range[LEVELS.length];
+			meshes.put(shape.getClass(), levels);
+		}
+		if (levels[level] != null) {
+			hits++;
+			return levels[level];
+		}
+		
+		misses++;
+		int segments = LEVELS[level];
+		float[] vertices = new float[shape.vertexCount(segments) * MeshArena.FLOATS_PER_VERTEX];
+		int[] indices = new int[shape.indexCount(segments)];
+		shape.tessellate(segments, vertices, indices);
+		levels[level] = arena.allocateShared(gl, shape.name() + " " + segments, vertices, indices);
+		bytes += vertices.length * 4L + indices.length * 4L;
+		return levels[level];
+	}
+	
+	/**
+	 * Gives every mesh back to the arena. Shapes still pointing at them must be
+	 * released first.
+	 */
+	public void dispose() {
+		for (MeshArena.Range[] levels : meshes.values()) {
+			for (MeshArena.Range range : levels) {
+				if (range != null)
+					arena.free(range);
+			}
+		}
+		meshes.clear();
+		bytes = 0;
+	}
+	
+	/**
+	 * @return The number of mesh requests served from the cache.
+	 */
+	public long hits() {
+		return hits;
+	}
+	
+	/**
+	 * @return The number of meshes generated.
+	 */
+	public long misses() {
+		return misses;
+	}
+	
+	/**
+	 * @return The bytes of vertex and index data the cached meshes occupy.
+	 */
+	public long memoryBytes() {
+		return bytes;
+	}
+	
+	/**
+	 * @param level The index into LEVELS.
+	 * @return The number of shapes drawn at that level in the last update.
+	 */
+	public int shapesAtLevel(int level) {
+		return shapesPerLevel[level];
+	}
+	
+	public String toString() {
+		StringBuilder sb = new StringBuilder();
+		sb.append(String.format("%d hits, %d misses, %.1fKB; shapes per level", hits, misses, bytes / 1024.0));
+		for (int i = 0; i < LEVELS.length; i++)
+			sb.append(' ').append(LEVELS[i]).append(':').append(shapesPerLevel[i]);
+		return sb.toString();
+	}
+}
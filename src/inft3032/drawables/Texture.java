@@ -3,9 +3,12 @@
 //
 package inft3032.drawables;
 
+import inft3032.scene.Trace;
+
 import java.nio.IntBuffer;
 
 import javax.media.opengl.GL;
+import javax.media.opengl.GL2GL3;
 import javax.media.opengl.GL3;
 
 /**
@@ -25,13 +28,19 @@ public class Texture {
     
     public int textureID;
     
+    /**
+     * Whether to build a full mip chain when the texture is uploaded.
+     */
+    public boolean mipmaps = true;
+    
     public Texture(int index, String filename, Image image) {
     	this.index = index;
     	this.fileName = filename;
     	this.image = image;
     }
-    
+
     public void init(GL3 gl) {
+    	long start = System.nanoTime();
     	
     	// Generate texture ID
     	int[] temp = new int[]{1};
@@ -39,23 +48,52 @@ public class Texture {
     	textureID = temp[0];
     	gl.glBindTexture(GL.GL_TEXTURE_2D, textureID); // Bind the ID
     	
-    	// Allocate storage for the texture
-    	gl.glTexStorage2D(GL.GL_TEXTURE_2D, 1, GL.GL_RGB8, image.width(), image.height());
+    	// Allocate storage for the texture, including every mip level we will fill
+    	int levels = mipmaps ? levels(image.width(), image.height()) : 1;
+    	gl.glTexStorage2D(GL.GL_TEXTURE_2D, levels, GL.GL_RGB8, image.width(), image.height());
+    	
+    	// Get the pixels into native memory once, then hand them straight to the driver
+    	image.toDirect();
+    	gl.glPixelStorei(GL.GL_UNPACK_ALIGNMENT, 4);
+    	upload(gl, 0, image);
+    	
+    	// glGenerateMipmap is core in GL3, so the driver always builds the chain
+    	if (levels > 1) {
+    		gl.glGenerateMipmap(GL.GL_TEXTURE_2D);
+    	}
+    	gl.glTexParameteri(GL.GL_TEXTURE_2D, GL.GL_TEXTURE_MIN_FILTER, levels > 1 ? GL.GL_LINEAR_MIPMAP_LINEAR : GL.GL_LINEAR);
+    	gl.glTexParameteri(GL.GL_TEXTURE_2D, GL.GL_TEXTURE_MAG_FILTER, GL.GL_LINEAR);
     	
-    	// Create a buffer to hold the pixel data
-        IntBuffer pixelBuffer = IntBuffer.allocate(image.width() * image.height());
-        
-        // Loop through each pixel of the image
-        for (int row = 0; row < image.height(); row++) {
-            for (int col = 0; col < image.width(); col++) {
-                pixelBuffer.put(image.get(col, row)); // Get the image data
-            }
-        }
-        
-        // Flip the buffer for reading by OpenGL
-        pixelBuffer.flip();
-        
-        // Send the data to OpenGL
-        gl.glTexSubImage2D(GL.GL_TEXTURE_2D, 0, 0, 0, image.width(), image.height(), GL.GL_BGRA, GL.GL_UNSIGNED_BYTE, pixelBuffer);
+    	Trace.msg(String.format("Uploaded texture %s (%dx%d, %d level%s) in %.2fms",
+    			fileName, image.width(), image.height(), levels, levels == 1 ? "" : "s",
+    			(System.nanoTime() - start) / 1.0e6));
+    }
+    
+    /**
+     * Deletes the texture from the GPU, e.g. when a reloaded scene no longer uses it.
+     */
+    public void dispose(GL3 gl) {
+    	if (textureID != 0) {
+    		gl.glDeleteTextures(1, new int[] { textureID }, 0);
+    		textureID = 0;
+    	}
+    }
+    
+    /**
+     * @param width  The width of the base level
+     * @param height The height of the base level
+     * @return The number of levels in a full mip chain, down to 1x1.
+     */
+    static int levels(int width, int height) {
+    	int size = Math.max(width, height);
+    	return 32 - Integer.numberOfLeadingZeros(Math.max(size, 1));
+    }
+    
+    /**
+     * Sends one mip level to the bound texture.
+     */
+    private static void upload(GL3 gl, int level, Image img) {
+    	// Packed ints with the _REV type are laid out as BGRA whatever the byte order
+    	gl.glTexSubImage2D(GL.GL_TEXTURE_2D, level, 0, 0, img.width(), img.height(), GL.GL_BGRA, GL2GL3.GL_UNSIGNED_INT_8_8_8_8_REV, img.pixelBuffer());
     }
 }
@@ -3,9 +3,12 @@
 //
 package inft3032.drawables;
 
-import javax.media.opengl.GL;
+import inft3032.math.AABB;
+import inft3032.math.Vector3;
+
+import java.util.Arrays;
+
 import javax.media.opengl.GL3;
-import java.nio.*;
 
 
 /**
@@ -19,10 +22,6 @@ public class Triangle extends Shape {
 	Vertex v2;
 	Vertex v3;
 	
-	private int vao;
-    private int vbo;
-    private float[] vertices;
-	
 
 	/**
 	 * Constructs a new Triangle object using the vertices specified.
@@ -37,57 +36,117 @@ public class Triangle extends Shape {
 		this.v2 = v2;
 		this.v3 = v3;
 	}
+	
+	/**
+	 * @param i 0, 1 or 2.
+	 * @return One of the triangle's vertices.
+	 */
+	public Vertex vertex(int i) {
+		return i == 0 ? v1 : i == 1 ? v2 : v3;
+	}
 
 
 	/**
-	 * OpenGL initialisation for the Triangle.
+	 * Triangles are coloured by their vertex colours alone.
 	 */
-	public void init(GL3 gl) {
+	public Vector3 colour() {
+		return WHITE;
+	}
 
-		// Initalise array of ID's
-		int[] temp = new int[]{1};
-		
-		// Generate the VAO
-		gl.glGenVertexArrays(1, IntBuffer.wrap(temp));
-		vao = temp[0];
-		
-		// Generate the VBO
-		gl.glGenBuffers(1, IntBuffer.wrap(temp));
-		vbo = temp[0];
-		
-		// Define the vertices
-		vertices = new float[] {
-				v1.pos.getX(), v1.pos.getY(), v1.pos.getZ(), v1.normal.getX(), v1.normal.getY(), v1.normal.getZ(), v1.colour.getX(), v1.colour.getY(), v1.colour.getZ(),
-				v2.pos.getX(), v2.pos.getY(), v2.pos.getZ(), v2.normal.getX(), v2.normal.getY(), v2.normal.getZ(), v2.colour.getX(), v2.colour.getY(), v2.colour.getZ(),
-				v3.pos.getX(), v3.pos.getY(), v3.pos.getZ(), v3.normal.getX(), v3.normal.getY(), v3.normal.getZ(), v3.colour.getX(), v3.colour.getY(), v3.colour.getZ()
-		};
-		
-		// Activate the VAO and VBO
-		gl.glBindVertexArray(vao);
-		gl.glBindBuffer(GL.GL_ARRAY_BUFFER, vbo);
-		
-		// Send the data to OpenGL
-		gl.glBufferData(GL.GL_ARRAY_BUFFER, vertices.length * 4, FloatBuffer.wrap(vertices), GL.GL_STATIC_DRAW);
-		
-		// Tell OpenGL data is used for a vertex attribute
-		gl.glVertexAttribPointer(0, 3, GL.GL_FLOAT, false, 9*4, 0); // Position
-		gl.glVertexAttribPointer(1, 3, GL.GL_FLOAT, false, 9*4, 3*4); // Normal
-		gl.glVertexAttribPointer(2, 3, GL.GL_FLOAT, false, 9*4, 6*4); // Colour
-		
-		gl.glEnableVertexAttribArray(0);
-		gl.glEnableVertexAttribArray(1);
-		gl.glEnableVertexAttribArray(2);
+
+	public boolean localBounds(AABB out) {
+		out.setEmpty();
+		out.include(v1.pos.getX(), v1.pos.getY(), v1.pos.getZ());
+		out.include(v2.pos.getX(), v2.pos.getY(), v2.pos.getZ());
+		out.include(v3.pos.getX(), v3.pos.getY(), v3.pos.getZ());
+		return true;
 	}
 	
+	/**
+	 * Intersects the triangle, interpolating its vertex normals and colours.
+	 */
+	public boolean intersect(float ox, float oy, float oz, float dx, float dy, float dz,
+			float tMin, float tMax, RayHit hit) {
+		Vector3 a = v1.pos, b = v2.pos, c = v3.pos;
+		if (!intersect(ox, oy, oz, dx, dy, dz,
+				a.getX(), a.getY(), a.getZ(), b.getX(), b.getY(), b.getZ(), c.getX(), c.getY(), c.getZ(),
+				tMin, tMax, hit))
+			return false;
+		float u = hit.u, v = hit.v, w = 1.0f - u - v;
+		Vector3 n1 = v1.normal, n2 = v2.normal, n3 = v3.normal;
+		Vector3 c1 = v1.colour, c2 = v2.colour, c3 = v3.colour;
+		hit.set(hit.t,
+				w * n1.getX() + u * n2.getX() + v * n3.getX(),
+				w * n1.getY() + u * n2.getY() + v * n3.getY(),
+				w * n1.getZ() + u * n2.getZ() + v * n3.getZ(),
+				w * c1.getX() + u * c2.getX() + v * c3.getX(),
+				w * c1.getY() + u * c2.getY() + v * c3.getY(),
+				w * c1.getZ() + u * c2.getZ() + v * c3.getZ());
+		return true;
+	}
 
 	/**
-	 * Renders the triangle to the current GL context.
+	 * Intersects a ray with the triangle abc (Moller-Trumbore). Both sides count.
+	 *
+	 * @return True if the ray hits between tMin and tMax, in which case hit.t,
+	 *         hit.u and hit.v are set. The rest of hit is left alone.
 	 */
-	public void draw(GL3 gl) {
+	static boolean intersect(float ox, float oy, float oz, float dx, float dy, float dz,
+			float ax, float ay, float az, float bx, float by, float bz, float cx, float cy, float cz,
+			float tMin, float tMax, RayHit hit) {
+		float e1x = bx - ax, e1y = by - ay, e1z = bz - az;
+		float e2x = cx - ax, e2y = cy - ay, e2z = cz - az;
+		float px = dy * e2z - dz * e2y;
+		float py = dz * e2x - dx * e2z;
+		float pz = dx * e2y - dy * e2x;
+		float det = e1x * px + e1y * py + e1z * pz;
+		if (det == 0)
+			return false;
+		float inv = 1.0f / det;
+		float sx = ox - ax, sy = oy - ay, sz = oz - az;
+		float u = (sx * px + sy * py + sz * pz) * inv;
+		if (u < 0 || u > 1)
+			return false;
+		float qx = sy * e1z - sz * e1y;
+		float qy = sz * e1x - sx * e1z;
+		float qz = sx * e1y - sy * e1x;
+		float v = (dx * qx + dy * qy + dz * qz) * inv;
+		if (v < 0 || u + v > 1)
+			return false;
+		float t = (e2x * qx + e2y * qy + e2z * qz) * inv;
+		if (t <= tMin || t >= tMax)
+			return false;
+		hit.t = t;
+		hit.u = u;
+		hit.v = v;
+		return true;
+	}
+
+	/**
+	 * The vertex data, as the triangle's geometry isn't shared.
+	 */
+	public Object geometryKey() {
+		return "triangle " + Arrays.toString(vertexData());
+	}
 
-		// Bind the VAO and draw the triangle
-		gl.glBindVertexArray(vao);
-		gl.glDrawArrays(GL.GL_TRIANGLES, 0, 3);
+
+	/**
+	 * OpenGL initialisation for the Triangle.
+	 */
+	public void init(GL3 gl) {
+		// Send the data to OpenGL
+		mesh = arena.allocate(gl, vertexData(), new int[] {0, 1, 2});
+	}
+	
+	/**
+	 * The three vertices' positions, normals and colours.
+	 */
+	private float[] vertexData() {
+		return new float[] {
+				v1.pos.getX(), v1.pos.getY(), v1.pos.getZ(), v1.normal.getX(), v1.normal.getY(), v1.normal.getZ(), v1.colour.getX(), v1.colour.getY(), v1.colour.getZ(),
+				v2.pos.getX(), v2.pos.getY(), v2.pos.getZ(), v2.normal.getX(), v2.normal.getY(), v2.normal.getZ(), v2.colour.getX(), v2.colour.getY(), v2.colour.getZ(),
+				v3.pos.getX(), v3.pos.getY(), v3.pos.getZ(), v3.normal.getX(), v3.normal.getY(), v3.normal.getZ(), v3.colour.getX(), v3.colour.getY(), v3.colour.getZ()
+		};
 	}
 
 }
@@ -0,0 +1,148 @@
+// Starting code Copyright 2014 University of South Australia
+// Written by Michael Marner <michael.marner@unisa.edu.au>
+//
+package inft3032.drawables;
+
+import inft3032.math.BVH;
+
+import java.util.concurrent.ForkJoinPool;
+
+
+/**
+ * A BVH over the triangles of a Geometry, for tracing rays against large
+ * meshes. Get one with Geometry.triangleBVH(), which builds it once and
+ * shares it between every Mesh using that geometry.
+ * <p/>
+ * The triangles' corners are copied out in tree order, 9 floats each, so a
+ * leaf's triangles sit next to each other in memory and no index lookup is
+ * needed until a hit is found.
+ */
+public final class TriangleBVH {
+
+	private final BVH bvh;
+	private final float[] corners;
+	private final int[] firstIndex;
+
+	private TriangleBVH(BVH bvh, float[] corners, int[] firstIndex) {
+		this.bvh = bvh;
+		this.corners = corners;
+		this.firstIndex = firstIndex;
+	}
+
+	/**
+	 * Builds a tree over a geometry's triangles. The geometry must have its
+	 * arrays (see Geometry.ensureArrays()).
+	 *
+	 * @param geometry The mesh.
+	 * @param pool The pool to build on.
+	 */
+	public static TriangleBVH build(Geometry geometry, ForkJoinPool pool) {
+		float[] v = geometry.vertices;
+		int[] indices = geometry.indices;
+		int count = geometry.triangleCount();
+		float[] bounds = new float[count * 6];
+		for (int i = 0; i < count; i++) {
+			int a = indices[i * 3] * MeshArena.FLOATS_PER_VERTEX;
+			int b = indices[i * 3 + 1] * MeshArena.FLOATS_PER_VERTEX;
+			int c = indices[i * 3 + 2] * MeshArena.FLOATS_PER_VERTEX;
+			int o = i * 6;
+			for (int k = 0; k < 3; k++) {
+				bounds[o + k] = Math.min(v[a + k], Math.min(v[b + k], v[c + k]));
+				bounds[o + 3 + k] = Math.max(v[a + k], Math.max(v[b + k], v[c + k]));
+			}
+		}
+		BVH bvh = BVH.build(bounds, count, pool);
+
+		float[] corners = new float[count * 9];
+		int[] firstIndex = new int[count];
+		for (int slot = 0; slot < count; slot++) {
+			int first = bvh.primitive(slot) * 3;
+			firstIndex[slot] = first;
+			for (int k = 0; k < 3; k++) {
+				int vertex = indices[first + k] * MeshArena.FLOATS_PER_VERTEX;
+				int o = slot * 9 + k * 3;
+				corners[o] = v[vertex];
+				corners[o + 1] = v[vertex + 1];
+				corners[o + 2] = v[vertex + 2];
+			}
+		}
+		return new TriangleBVH(bvh, corners, firstIndex);
+	}
+
+	/**
+	 * Finds the nearest triangle a ray hits, in the geometry's space.
+	 *
+	 * @param tMin Hits nearer than this don't count.
+	 * @param tMax Hits this far or further don't count.
+	 * @param any If true, stops at the first hit rather than the nearest.
+	 * @param hit Receives t, u and v of the hit. Its stack is used for the traversal.
+	 * @return The index in the geometry's indices of the triangle's first
+	 *         vertex, or -1 if the ray misses.
+	 */
+	public int intersect(float ox, float oy, float oz, float dx, float dy, float dz,
+			float tMin, float tMax, boolean any, RayHit hit) {
+		int[] n = bvh.nodes();
+		if (n.length == 0)
+			return -1;
+		float[] p = corners;
+		int[] stack = hit.stack;
+		float ix = 1.0f / dx, iy = 1.0f / dy, iz = 1.0f / dz;
+		int xNear = BVH.nearOffset(dx), yNear = BVH.nearOffset(dy), zNear = BVH.nearOffset(dz);
+		int nearest = -1;
+		float u = 0, v = 0;
+		int sp = 0;
+		int node = 0;
+		while (true) {
+			int o = node * BVH.NODE_SIZE;
+			if (BVH.hits(n, o, ox, oy, oz, ix, iy, iz, xNear, yNear, zNear, tMin, tMax)) {
+				int count = n[o + 7];
+				if (count < 0) {
+					int axis = -count - 1;
+					boolean negative = axis == 0 ? dx < 0 : axis == 1 ? dy < 0 : dz < 0;
+					if (negative) {
+						stack[sp++] = node + 1;
+						node = n[o + 6];
+					}
+					else {
+						stack[sp++] = n[o + 6];
+						node = node + 1;
+					}
+					continue;
+				}
+				for (int slot = n[o + 6], end = slot + count; slot < end; slot++) {
+					int c = slot * 9;
+					if (Triangle.intersect(ox, oy, oz, dx, dy, dz,
+							p[c], p[c + 1], p[c + 2], p[c + 3], p[c + 4], p[c + 5], p[c + 6], p[c + 7], p[c + 8],
+							tMin, tMax, hit)) {
+						nearest = slot;
+						tMax = hit.t;
+						u = hit.u;
+						v = hit.v;
+						if (any)
+							return firstIndex[slot];
+					}
+				}
+			}
+			if (sp == 0)
+				break;
+			node = stack[--sp];
+		}
+		if (nearest < 0)
+			return -1;
+		hit.t = tMax;
+		hit.u = u;
+		hit.v = v;
+		return firstIndex[nearest];
+	}
+
+	/**
+	 * The tree itself, for its statistics.
+	 */
+	public BVH tree() {
+		return bvh;
+	}
+
+	public String toString() {
+		return bvh.toString();
+	}
+}
@@ -0,0 +1,89 @@
+// Starting code Copyright 2014 University of South Australia
+// Written by Michael Marner <michael.marner@unisa.edu.au>
+//
+package inft3032.drawables;
+
+
+/**
+ * Numbers distinct v/vt/vn index tuples in the order they are first seen,
+ * so each distinct face corner of an OBJ file becomes one vertex.
+ * <p/>
+ * An open addressing table with the tuple and its number stored inline,
+ * four ints per slot, so a probe touches one cache line.
+ */
+final class TupleTable {
+	
+	private int[] table = new int[4 * 4096];
+	private int size;
+	
+	/**
+	 * @return The number of distinct tuples added.
+	 */
+	int size() {
+		return size;
+	}
+	
+	/**
+	 * Looks a tuple up, numbering it if it hasn't been seen before.
+	 * 
+	 * @return The tuple's number if it was already in the table, or -(number + 1) if it was just added.
+	 */
+	int add(int v, int t, int n) {
+		int mask = (table.length >> 2) - 1;
+		int slot = hash(v, t, n) & mask;
+		int[] tab = table;
+		while (true) {
+			int o = slot << 2;
+			int entry = tab[o + 3];
+			if (entry == 0)
+				break;
+			if (tab[o] == v && tab[o + 1] == t && tab[o + 2] == n)
+				return entry - 1;
+			slot = (slot + 1) & mask;
+		}
+		
+		int index = size++;
+		int o = slot << 2;
+		tab[o] = v;
+		tab[o + 1] = t;
+		tab[o + 2] = n;
+		tab[o + 3] = index + 1;
+		if (size * 2 > mask + 1)
+			rehash();
+		return -(index + 1);
+	}
+	
+	/**
+	 * Mixes all three indices with the murmur3 finaliser. A position can be
+	 * shared by many corners (flat shading, UV seams), and anything that
+	 * keeps a position's tuples in neighbouring slots piles them into one
+	 * long run of linear probes.
+	 */
+	private static int hash(int v, int t, int n) {
+		int h = v * 0x9e3779b1 ^ t * 0x85ebca77 ^ n * 0xc2b2ae3d;
+		h ^= h >>> 16;
+		h *= 0x85ebca6b;
+		h ^= h >>> 13;
+		h *= 0xc2b2ae35;
+		h ^= h >>> 16;
+		return h;
+	}
+	
+	/**
+	 * Doubles the table, keeping it at most half full.
+	 */
+	private void rehash() {
+		int[] old = table;
+		int[] bigger = new int[old.length * 2];
+		int mask = (bigger.length >> 2) - 1;
+		for (int i = 0; i < old.length; i += 4) {
+			if (old[i + 3] == 0)
+				continue;
+			int slot = hash(old[i], old[i + 1], old[i + 2]) & mask;
+			while (bigger[(slot << 2) + 3] != 0)
+				slot = (slot + 1) & mask;
+			System.arraycopy(old, i, bigger, slot << 2, 4);
+		}
+		table = bigger;
+	}
+}
@@ -0,0 +1,147 @@
+// Starting code Copyright 2014 University of South Australia
+// Written by Michael Marner <michael.marner@unisa.edu.au>
+//
+package inft3032.math;
+
+
+/**
+ * An axis-aligned bounding box.
+ * <p/>
+ * Unlike the vector and matrix classes this is mutable, so bounds can be
+ * worked out every frame without allocating. A new box is empty; including
+ * any point makes it non-empty.
+ */
+public final class AABB {
+
+	public float minX, minY, minZ;
+	public float maxX, maxY, maxZ;
+
+	/**
+	 * Creates an empty box.
+	 */
+	public AABB() {
+		setEmpty();
+	}
+
+	public AABB(float minX, float minY, float minZ, float maxX, float maxY, float maxZ) {
+		set(minX, minY, minZ, maxX, maxY, maxZ);
+	}
+
+	public AABB set(float minX, float minY, float minZ, float maxX, float maxY, float maxZ) {
+		this.minX = minX;
+		this.minY = minY;
+		this.minZ = minZ;
+		this.maxX = maxX;
+		this.maxY = maxY;
+		this.maxZ = maxZ;
+		return this;
+	}
+
+	public AABB set(AABB b) {
+		return set(b.minX, b.minY, b.minZ, b.maxX, b.maxY, b.maxZ);
+	}
+
+	/**
+	 * Makes the box empty, ready to include points.
+	 */
+	public AABB setEmpty() {
+		return set(Float.POSITIVE_INFINITY, Float.POSITIVE_INFINITY, Float.POSITIVE_INFINITY,
+				Float.NEGATIVE_INFINITY, Float.NEGATIVE_INFINITY, Float.NEGATIVE_INFINITY);
+	}
+
+	/**
+	 * @return True if the box contains no points.
+	 */
+	public boolean isEmpty() {
+		return minX > maxX || minY > maxY || minZ > maxZ;
+	}
+
+	/**
+	 * Grows the box to contain a point.
+	 */
+	public AABB include(float x, float y, float z) {
+		if (x < minX) minX = x;
+		if (y < minY) minY = y;
+		if (z < minZ) minZ = z;
+		if (x > maxX) maxX = x;
+		if (y > maxY) maxY = y;
+		if (z > maxZ) maxZ = z;
+		return this;
+	}
+
+	/**
+	 * Grows the box to contain another.
+	 */
+	public AABB include(AABB b) {
+		if (b.minX < minX) minX = b.minX;
+		if (b.minY < minY) minY = b.minY;
+		if (b.minZ < minZ) minZ = b.minZ;
+		if (b.maxX > maxX) maxX = b.maxX;
+		if (b.maxY > maxY) maxY = b.maxY;
+		if (b.maxZ > maxZ) maxZ = b.maxZ;
+		return this;
+	}
+
+	/**
+	 * @return The surface area, or 0 for an empty box.
+	 */
+	public float surfaceArea() {
+		if (isEmpty())
+			return 0.0f;
+		float dx = maxX - minX;
+		float dy = maxY - minY;
+		float dz = maxZ - minZ;
+		return 2.0f * (dx * dy + dy * dz + dz * dx);
+	}
+
+	/**
+	 * Sets this box to the bounds of another box after an affine transform,
+	 * without transforming all eight corners (Arvo, Graphics Gems 1990).
+	 *
+	 * @param m The transform.
+	 * @param b The box to transform. May be this box.
+	 * @return This box.
+	 */
+	public AABB transform(Matrix4 m, AABB b) {
+		float bMinX = b.minX, bMinY = b.minY, bMinZ = b.minZ;
+		float bMaxX = b.maxX, bMaxY = b.maxY, bMaxZ = b.maxZ;
+		for (int row = 0; row < 3; row++) {
+			float lo = m.get(row, 3);
+			float hi = lo;
+			float e, f;
+
+			e = m.get(row, 0) * bMinX;
+			f = m.get(row, 0) * bMaxX;
+			lo += Math.min(e, f);
+			hi += Math.max(e, f);
+
+			e = m.get(row, 1) * bMinY;
+			f = m.get(row, 1) * bMaxY;
+			lo += Math.min(e, f);
+			hi += Math.max(e, f);
+
+			e = m.get(row, 2) * bMinZ;
+			f = m.get(row, 2) * bMaxZ;
+			lo += Math.min(e, f);
+			hi += Math.max(e, f);
+
+			if (row == 0) {
+				minX = lo;
+				maxX = hi;
+			}
+			else if (row == 1) {
+				minY = lo;
+				maxY = hi;
+			}
+			else {
+				minZ = lo;
+				maxZ = hi;
+			}
+		}
+		return this;
+	}
+
+	public String toString() {
+		return "[(" + minX + ", " + minY + ", " + minZ + "), (" + maxX + ", " + maxY + ", " + maxZ + ")]";
+	}
+}
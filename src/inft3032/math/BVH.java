@@ -0,0 +1,572 @@
+// Starting code Copyright 2014 University of South Australia
+// Written by Michael Marner <michael.marner@unisa.edu.au>
+//
+package inft3032.math;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+
+/**
+ * A bounding volume hierarchy for ray queries, over anything that can be
+ * given as a list of boxes: shapes, triangles, and so on.
+ * <p/>
+ * The tree is built with a binned surface area heuristic, splitting large
+ * nodes in parallel with fork-join, and then flattened depth first into a
+ * single int array of 32 byte nodes:
+ * <pre>
+ *   0..5  bounds: min x, y, z, max x, y, z, as Float.floatToRawIntBits
+ *   6     leaf: the slot of its first primitive; otherwise its right child
+ *   7     leaf: its number of primitives; otherwise -(split axis + 1)
+ * </pre>
+ * A node's left child always follows it. Primitives are referred to by slot,
+ * their position in tree order, so callers can lay their own data out in
+ * the same order; primitive(slot) gives the index they were built from.
+ * <p/>
+ * Traversal keeps its stack in an array the caller provides (MAX_DEPTH long,
+ * twice that for packets), so a query allocates nothing. Coherent rays can be
+ * traced together as a RayPacket. The tree is read only once built, so any
+ * number of threads can query it at once.
+ */
+public final class BVH {
+
+	public static final int NODE_SIZE = 8;
+
+	/**
+	 * The deepest a tree is built, and so the size of a traversal stack.
+	 */
+	public static final int MAX_DEPTH = 64;
+
+	private static final int BINS = 16;
+
+	/**
+	 * Nodes with more primitives than this are always split.
+	 */
+	private static final int MAX_LEAF_SIZE = 8;
+
+	/**
+	 * The cost of visiting a node, relative to testing one primitive.
+	 */
+	private static final float TRAVERSAL_COST = 1.0f;
+
+	/**
+	 * Nodes with more primitives than this build their children in parallel.
+	 */
+	private static final int PARALLEL_THRESHOLD = 4096;
+
+	/**
+	 * Tests the primitives in a leaf against the ray being traced.
+	 */
+	public interface Primitives {
+
+		/**
+		 * @param slot The primitive's slot (see primitive(int)).
+		 * @param tMin Hits nearer than this don't count.
+		 * @param tMax The nearest hit so far; only nearer hits count.
+		 * @return The distance to the hit, or tMax if there isn't a nearer one.
+		 */
+		float intersect(int slot, float tMin, float tMax);
+	}
+
+	/**
+	 * Tests the primitives in a leaf against the rays of a packet.
+	 */
+	public interface PacketPrimitives {
+
+		/**
+		 * Tests a primitive against the packet's lanes from first on, lowering
+		 * the packet's tMax for each lane that hits it nearer.
+		 *
+		 * @param slot The primitive's slot (see primitive(int)).
+		 * @param first The first lane that reached the leaf; earlier lanes missed it.
+		 * @param packet The rays.
+		 */
+		void intersect(int slot, int first, RayPacket packet);
+	}
+
+	private final int[] nodes;
+	private final int[] order;
+	private final int nodeCount;
+	private final int depth;
+
+	private BVH(int[] nodes, int nodeCount, int[] order, int depth) {
+		this.nodes = nodes;
+		this.nodeCount = nodeCount;
+		this.order = order;
+		this.depth = depth;
+	}
+
+	/**
+	 * Builds a tree on the common fork-join pool.
+	 *
+	 * @param bounds Each primitive's bounds, 6 floats each: min x, y, z, max x, y, z.
+	 * @param count The number of primitives.
+	 * @return The tree. An empty tree if count is 0.
+	 */
+	public static BVH build(float[] bounds, int count) {
+		return build(bounds, count, ForkJoinPool.commonPool());
+	}
+
+	/**
+	 * Builds a tree.
+	 *
+	 * @param bounds Each primitive's bounds, 6 floats each: min x, y, z, max x, y, z.
+	 * @param count The number of primitives.
+	 * @param pool The pool to build large nodes' children on.
+	 * @return The tree. An empty tree if count is 0.
+	 */
+	public static BVH build(float[] bounds, int count, ForkJoinPool pool) {
+		int[] order = new int[count];
+		float[] centroids = new float[count * 3];
+		for (int i = 0; i < count; i++) {
+			order[i] = i;
+			int b = i * 6;
+			centroids[i * 3] = (bounds[b] + bounds[b + 3]) * 0.5f;
+			centroids[i * 3 + 1] = (bounds[b + 1] + bounds[b + 4]) * 0.5f;
+			centroids[i * 3 + 2] = (bounds[b + 2] + bounds[b + 5]) * 0.5f;
+		}
+		if (count == 0)
+			return new BVH(new int[0], 0, order, 0);
+
+		Node root = pool.invoke(new Build(bounds, centroids, order, 0, count, 0));
+		int[] nodes = new int[root.size * NODE_SIZE];
+		flatten(root, nodes, 0);
+		return new BVH(nodes, root.size, order, root.depth);
+	}
+
+	/**
+	 * @param slot A slot in tree order.
+	 * @return The index of the primitive in that slot, as given to build().
+	 */
+	public int primitive(int slot) {
+		return order[slot];
+	}
+
+	public int primitiveCount() {
+		return order.length;
+	}
+
+	public int nodeCount() {
+		return nodeCount;
+	}
+
+	/**
+	 * @return The number of levels in the tree.
+	 */
+	public int depth() {
+		return depth;
+	}
+
+	/**
+	 * The flattened nodes, laid out as described above, for code that
+	 * traverses the tree itself.
+	 */
+	public int[] nodes() {
+		return nodes;
+	}
+
+	/**
+	 * @param out Receives the bounds of everything in the tree.
+	 * @return out, or an empty box if the tree is empty.
+	 */
+	public AABB bounds(AABB out) {
+		if (nodeCount == 0)
+			return out.setEmpty();
+		return out.set(Float.intBitsToFloat(nodes[0]), Float.intBitsToFloat(nodes[1]), Float.intBitsToFloat(nodes[2]),
+				Float.intBitsToFloat(nodes[3]), Float.intBitsToFloat(nodes[4]), Float.intBitsToFloat(nodes[5]));
+	}
+
+	/**
+	 * Finds the nearest primitive a ray hits, or with any set, whether it
+	 * hits any at all.
+	 *
+	 * @param ox The ray's origin.
+	 * @param oy
+	 * @param oz
+	 * @param dx The ray's direction.
+	 * @param dy
+	 * @param dz
+	 * @param tMin Hits nearer than this don't count.
+	 * @param tMax Hits this far or further don't count.
+	 * @param any If true, stops at the first hit rather than the nearest.
+	 * @param stack Scratch space for the traversal, at least MAX_DEPTH long.
+	 * @param primitives Tests the primitives in each leaf the ray reaches.
+	 * @return The distance to the hit, or tMax if there isn't one.
+	 */
+	public float traverse(float ox, float oy, float oz, float dx, float dy, float dz,
+			float tMin, float tMax, boolean any, int[] stack, Primitives primitives) {
+		if (nodeCount == 0)
+			return tMax;
+		int[] n = nodes;
+		float ix = 1.0f / dx, iy = 1.0f / dy, iz = 1.0f / dz;
+		int xNear = nearOffset(dx), yNear = nearOffset(dy), zNear = nearOffset(dz);
+		int sp = 0;
+		int node = 0;
+		while (true) {
+			int o = node * NODE_SIZE;
+			if (hits(n, o, ox, oy, oz, ix, iy, iz, xNear, yNear, zNear, tMin, tMax)) {
+				int count = n[o + 7];
+				if (count < 0) {
+					// Visit the child nearer the ray's origin first
+					int axis = -count - 1;
+					boolean negative = axis == 0 ? dx < 0 : axis == 1 ? dy < 0 : dz < 0;
+					if (negative) {
+						stack[sp++] = node + 1;
+						node = n[o + 6];
+					}
+					else {
+						stack[sp++] = n[o + 6];
+						node = node + 1;
+					}
+					continue;
+				}
+				for (int slot = n[o + 6], end = slot + count; slot < end; slot++) {
+					float t = primitives.intersect(slot, tMin, tMax);
+					if (t < tMax) {
+						tMax = t;
+						if (any)
+							return tMax;
+					}
+				}
+			}
+			if (sp == 0)
+				return tMax;
+			node = stack[--sp];
+		}
+	}
+
+	/**
+	 * Traces a packet of rays through the tree, finding each lane's nearest
+	 * hit. The packet must have been prepared (see RayPacket.prepare()).
+	 * <p/>
+	 * The packet moves through the tree as one, remembering the first lane
+	 * that hit each node: lanes before it missed, so they are skipped below
+	 * it. For a coherent packet that lane usually hits the next node too, so
+	 * one slab test decides for the whole packet. Otherwise an interval test
+	 * over the packet's bounds can reject the node for every lane at once,
+	 * before the remaining lanes are tried one by one.
+	 *
+	 * @param packet The rays. Each lane's tMax is lowered to its nearest hit.
+	 * @param stack Scratch space for the traversal, at least 2 * MAX_DEPTH long.
+	 * @param primitives Tests the primitives in each leaf the packet reaches.
+	 */
+	public void traverse(RayPacket packet, int[] stack, PacketPrimitives primitives) {
+		if (nodeCount == 0)
+			return;
+		int[] n = nodes;
+		RayPacket p = packet;
+		float far = p.maxT();
+		int sp = 0;
+		int node = 0;
+		int first = 0;
+		while (true) {
+			int o = node * NODE_SIZE;
+			int lane = firstHit(n, o, p, first, far);
+			if (lane >= 0) {
+				int count = n[o + 7];
+				if (count < 0) {
+					// Every lane's direction has the same signs, so they agree on
+					// which child is nearer
+					int axis = -count - 1;
+					boolean negative = (axis == 0 ? p.xNear : axis == 1 ? p.yNear : p.zNear) != 0;
+					int near = negative ? n[o + 6] : node + 1;
+					stack[sp++] = negative ? node + 1 : n[o + 6];
+					stack[sp++] = lane;
+					node = near;
+					first = lane;
+					continue;
+				}
+				for (int slot = n[o + 6], end = slot + count; slot < end; slot++)
+					primitives.intersect(slot, lane, p);
+				far = p.maxT();
+			}
+			if (sp == 0)
+				return;
+			first = stack[--sp];
+			node = stack[--sp];
+		}
+	}
+
+	/**
+	 * @return The first lane from first on that hits a node, or -1 if none does.
+	 */
+	private static int firstHit(int[] n, int o, RayPacket p, int first, float far) {
+		if (hits(n, o, p.ox[first], p.oy[first], p.oz[first], p.ix[first], p.iy[first], p.iz[first],
+				p.xNear, p.yNear, p.zNear, p.tMin, p.tMax[first]))
+			return first;
+		if (!p.mayHit(n, o, far))
+			return -1;
+		for (int i = first + 1; i < p.count; i++) {
+			if (hits(n, o, p.ox[i], p.oy[i], p.oz[i], p.ix[i], p.iy[i], p.iz[i],
+					p.xNear, p.yNear, p.zNear, p.tMin, p.tMax[i]))
+				return i;
+		}
+		return -1;
+	}
+
+	/**
+	 * Slab test of a ray against a node's bounds.
+	 *
+	 * @param n The nodes.
+	 * @param o The offset of the node.
+	 * @param ix The reciprocals of the ray's direction.
+	 * @param xNear The offset within a node of the bound the ray meets first
+	 *        on x: 3 (the max) if the ray heads towards -x, otherwise 0.
+	 * @return True if the ray passes through the node between tMin and tMax.
+	 */
+	public static boolean hits(int[] n, int o, float ox, float oy, float oz, float ix, float iy, float iz,
+			int xNear, int yNear, int zNear, float tMin, float tMax) {
+		// Picking each slab's near and far planes by the ray's direction saves
+		// sorting them here, which mispredicts badly across incoherent rays
+		float nearX = (Float.intBitsToFloat(n[o + xNear]) - ox) * ix;
+		float farX = (Float.intBitsToFloat(n[o + 3 - xNear]) - ox) * ix;
+		float nearY = (Float.intBitsToFloat(n[o + 1 + yNear]) - oy) * iy;
+		float farY = (Float.intBitsToFloat(n[o + 4 - yNear]) - oy) * iy;
+		float nearZ = (Float.intBitsToFloat(n[o + 2 + zNear]) - oz) * iz;
+		float farZ = (Float.intBitsToFloat(n[o + 5 - zNear]) - oz) * iz;
+		float near = Math.max(Math.max(nearX, nearY), Math.max(nearZ, tMin));
+		float far = Math.min(Math.min(farX, farY), Math.min(farZ, tMax));
+		// Written so NaNs, from a flat box and a zero direction, count as a hit
+		return !(near > far);
+	}
+
+	/**
+	 * @return The offset of the bound a ray with this direction meets first (see hits()).
+	 */
+	public static int nearOffset(float d) {
+		return d < 0 ? 3 : 0;
+	}
+
+	public String toString() {
+		return String.format("%d primitives, %d nodes, depth %d", order.length, nodeCount, depth);
+	}
+
+	/**
+	 * A node of the tree while it is being built.
+	 */
+	private static class Node {
+		float minX, minY, minZ, maxX, maxY, maxZ;
+		int first;
+		int count;
+		int axis;
+		Node left;
+		Node right;
+		int size = 1;
+		int depth = 1;
+	}
+
+	/**
+	 * Writes a node and its children depth first.
+	 *
+	 * @return The index after the last node written.
+	 */
+	private static int flatten(Node node, int[] nodes, int index) {
+		int o = index * NODE_SIZE;
+		nodes[o] = Float.floatToRawIntBits(node.minX);
+		nodes[o + 1] = Float.floatToRawIntBits(node.minY);
+		nodes[o + 2] = Float.floatToRawIntBits(node.minZ);
+		nodes[o + 3] = Float.floatToRawIntBits(node.maxX);
+		nodes[o + 4] = Float.floatToRawIntBits(node.maxY);
+		nodes[o + 5] = Float.floatToRawIntBits(node.maxZ);
+		if (node.left == null) {
+			nodes[o + 6] = node.first;
+			nodes[o + 7] = node.count;
+			return index + 1;
+		}
+		int right = flatten(node.left, nodes, index + 1);
+		nodes[o + 6] = right;
+		nodes[o + 7] = -(node.axis + 1);
+		return flatten(node.right, nodes, right);
+	}
+
+	/**
+	 * Builds the node over order[start, end), splitting that range of order
+	 * in place.
+	 */
+	private static class Build extends RecursiveTask<Node> {
+
+		private final float[] bounds;
+		private final float[] centroids;
+		private final int[] order;
+		private final int start;
+		private final int end;
+		private final int level;
+
+		Build(float[] bounds, float[] centroids, int[] order, int start, int end, int level) {
+			this.bounds = bounds;
+			this.centroids = centroids;
+			this.order = order;
+			this.start = start;
+			this.end = end;
+			this.level = level;
+		}
+
+		protected Node compute() {
+			Node node = new Node();
+			node.first = start;
+			node.count = end - start;
+
+			// Bounds of the primitives, and of their centroids
+			float minX = Float.POSITIVE_INFINITY, minY = Float.POSITIVE_INFINITY, minZ = Float.POSITIVE_INFINITY;
+			float maxX = Float.NEGATIVE_INFINITY, maxY = Float.NEGATIVE_INFINITY, maxZ = Float.NEGATIVE_INFINITY;
+			float cMinX = Float.POSITIVE_INFINITY, cMinY = Float.POSITIVE_INFINITY, cMinZ = Float.POSITIVE_INFINITY;
+			float cMaxX = Float.NEGATIVE_INFINITY, cMaxY = Float.NEGATIVE_INFINITY, cMaxZ = Float.NEGATIVE_INFINITY;
+			for (int i = start; i < end; i++) {
+				int p = order[i];
+				int b = p * 6;
+				minX = Math.min(minX, bounds[b]);
+				minY = Math.min(minY, bounds[b + 1]);
+				minZ = Math.min(minZ, bounds[b + 2]);
+				maxX = Math.max(maxX, bounds[b + 3]);
+				maxY = Math.max(maxY, bounds[b + 4]);
+				maxZ = Math.max(maxZ, bounds[b + 5]);
+				int c = p * 3;
+				cMinX = Math.min(cMinX, centroids[c]);
+				cMinY = Math.min(cMinY, centroids[c + 1]);
+				cMinZ = Math.min(cMinZ, centroids[c + 2]);
+				cMaxX = Math.max(cMaxX, centroids[c]);
+				cMaxY = Math.max(cMaxY, centroids[c + 1]);
+				cMaxZ = Math.max(cMaxZ, centroids[c + 2]);
+			}
+			node.minX = minX;
+			node.minY = minY;
+			node.minZ = minZ;
+			node.maxX = maxX;
+			node.maxY = maxY;
+			node.maxZ = maxZ;
+
+			int count = end - start;
+			if (count <= 1 || level >= MAX_DEPTH - 1)
+				return node;
+
+			// Bin along the axis the centroids spread furthest on
+			float ex = cMaxX - cMinX, ey = cMaxY - cMinY, ez = cMaxZ - cMinZ;
+			int axis = ex >= ey && ex >= ez ? 0 : ey >= ez ? 1 : 2;
+			float lo = axis == 0 ? cMinX : axis == 1 ? cMinY : cMinZ;
+			float extent = axis == 0 ? ex : axis == 1 ? ey : ez;
+
+			int mid;
+			if (extent <= 0) {
+				// Every centroid is in the same place, so no plane separates them
+				if (count <= MAX_LEAF_SIZE)
+					return node;
+				mid = (start + end) >>> 1;
+			}
+			else {
+				float scale = BINS / extent;
+				int[] binCounts = new int[BINS];
+				float[] binBounds = new float[BINS * 6];
+				for (int k = 0; k < BINS; k++)
+					empty(binBounds, k * 6);
+				for (int i = start; i < end; i++) {
+					int p = order[i];
+					int k = bin(centroids[p * 3 + axis], lo, scale);
+					binCounts[k]++;
+					include(binBounds, k * 6, bounds, p * 6);
+				}
+
+				// Sweep from the right, then from the left, pricing each split
+				float[] rightArea = new float[BINS];
+				float[] sweep = new float[6];
+				empty(sweep, 0);
+				int rightCount = 0;
+				int[] rightCounts = new int[BINS];
+				for (int k = BINS - 1; k > 0; k--) {
+					include(sweep, 0, binBounds, k * 6);
+					rightCount += binCounts[k];
+					rightCounts[k] = rightCount;
+					rightArea[k] = area(sweep);
+				}
+				empty(sweep, 0);
+				int leftCount = 0;
+				int best = -1;
+				float bestCost = Float.POSITIVE_INFINITY;
+				for (int k = 0; k < BINS - 1; k++) {
+					include(sweep, 0, binBounds, k * 6);
+					leftCount += binCounts[k];
+					if (leftCount == 0 || rightCounts[k + 1] == 0)
+						continue;
+					float cost = area(sweep) * leftCount + rightArea[k + 1] * rightCounts[k + 1];
+					if (cost < bestCost) {
+						bestCost = cost;
+						best = k + 1;
+					}
+				}
+
+				float nodeArea = area(minX, minY, minZ, maxX, maxY, maxZ);
+				float splitCost = TRAVERSAL_COST + (nodeArea > 0 ? bestCost / nodeArea : 0);
+				if (best < 0 || (count <= MAX_LEAF_SIZE && splitCost >= count)) {
+					if (count <= MAX_LEAF_SIZE)
+						return node;
+				}
+
+				if (best < 0) {
+					mid = (start + end) >>> 1;
+				}
+				else {
+					// Everything in bins below best goes left
+					int i = start;
+					int j = end - 1;
+					while (i <= j) {
+						if (bin(centroids[order[i] * 3 + axis], lo, scale) < best) {
+							i++;
+						}
+						else {
+							int swap = order[i];
+							order[i] = order[j];
+							order[j] = swap;
+							j--;
+						}
+					}
+					mid = i;
+					if (mid == start || mid == end)
+						mid = (start + end) >>> 1;
+				}
+			}
+
+			node.axis = axis;
+			Build left = new Build(bounds, centroids, order, start, mid, level + 1);
+			Build right = new Build(bounds, centroids, order, mid, end, level + 1);
+			if (count > PARALLEL_THRESHOLD) {
+				left.fork();
+				node.right = right.compute();
+				node.left = left.join();
+			}
+			else {
+				node.left = left.compute();
+				node.right = right.compute();
+			}
+			node.size = 1 + node.left.size + node.right.size;
+			node.depth = 1 + Math.max(node.left.depth, node.right.depth);
+			return node;
+		}
+
+		private static int bin(float centroid, float lo, float scale) {
+			int k = (int) ((centroid - lo) * scale);
+			return k < 0 ? 0 : k >= BINS ? BINS - 1 : k;
+		}
+
+		private static void empty(float[] b, int o) {
+			b[o] = b[o + 1] = b[o + 2] = Float.POSITIVE_INFINITY;
+			b[o + 3] = b[o + 4] = b[o + 5] = Float.NEGATIVE_INFINITY;
+		}
+
+		private static void include(float[] b, int o, float[] from, int f) {
+			b[o] = Math.min(b[o], from[f]);
+			b[o + 1] = Math.min(b[o + 1], from[f + 1]);
+			b[o + 2] = Math.min(b[o + 2], from[f + 2]);
+			b[o + 3] = Math.max(b[o + 3], from[f + 3]);
+			b[o + 4] = Math.max(b[o + 4], from[f + 4]);
+			b[o + 5] = Math.max(b[o + 5], from[f + 5]);
+		}
+
+		private static float area(float[] b) {
+			return area(b[0], b[1], b[2], b[3], b[4], b[5]);
+		}
+
+		private static float area(float minX, float minY, float minZ, float maxX, float maxY, float maxZ) {
+			float x = maxX - minX, y = maxY - minY, z = maxZ - minZ;
+			return 2 * (x * y + y * z + z * x);
+		}
+	}
+}
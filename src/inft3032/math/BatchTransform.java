@@ -0,0 +1,267 @@
+// Starting code Copyright 2014 University of South Australia
+// Written by Michael Marner <michael.marner@unisa.edu.au>
+//
+package inft3032.math;
+
+import java.nio.FloatBuffer;
+
+
+/**
+ * Transforms whole arrays of points and normals by a matrix, instead of one
+ * Matrix4.mult(Vector4) (and one new Vector4) per vertex.
+ * <p/>
+ * Points are taken to have w = 1 and matrices to be affine, so the bottom row
+ * is ignored and there is no divide. Normals are transformed by the inverse
+ * transpose of the upper 3x3, and scaled back to unit length.
+ * <p/>
+ * Two layouts are supported: struct-of-arrays, with x, y and z in separate
+ * arrays, and interleaved, with each vertex's floats together as in Geometry
+ * and MeshArena. The struct-of-arrays loops are simple enough for HotSpot to
+ * compile to SIMD instructions, and are the faster of the two for large
+ * arrays. Every loop may write over its input.
+ */
+public final class BatchTransform {
+
+	private BatchTransform() {
+	}
+
+	/**
+	 * Transforms points held as separate x, y and z arrays.
+	 *
+	 * @param m The transform.
+	 * @param x X coordinates.
+	 * @param y Y coordinates.
+	 * @param z Z coordinates.
+	 * @param outX Receives the transformed X coordinates. May be x.
+	 * @param outY Receives the transformed Y coordinates. May be y.
+	 * @param outZ Receives the transformed Z coordinates. May be z.
+	 * @param first The index of the first point.
+	 * @param count The number of points.
+	 */
+	public static void transformPoints(MutableMatrix4 m, float[] x, float[] y, float[] z,
+			float[] outX, float[] outY, float[] outZ, int first, int count) {
+		final float m00 = m.m00, m01 = m.m01, m02 = m.m02, m03 = m.m03;
+		final float m10 = m.m10, m11 = m.m11, m12 = m.m12, m13 = m.m13;
+		final float m20 = m.m20, m21 = m.m21, m22 = m.m22, m23 = m.m23;
+		int end = first + count;
+		for (int i = first; i < end; i++) {
+			float px = x[i];
+			float py = y[i];
+			float pz = z[i];
+			outX[i] = m00 * px + m01 * py + m02 * pz + m03;
+			outY[i] = m10 * px + m11 * py + m12 * pz + m13;
+			outZ[i] = m20 * px + m21 * py + m22 * pz + m23;
+		}
+	}
+
+	/**
+	 * Transforms normals held as separate x, y and z arrays.
+	 *
+	 * @param m The transform the points were given, not its inverse transpose.
+	 * @param x X components.
+	 * @param y Y components.
+	 * @param z Z components.
+	 * @param outX Receives the transformed X components. May be x.
+	 * @param outY Receives the transformed Y components. May be y.
+	 * @param outZ Receives the transformed Z components. May be z.
+	 * @param first The index of the first normal.
+	 * @param count The number of normals.
+	 */
+	public static void transformNormals(MutableMatrix4 m, float[] x, float[] y, float[] z,
+			float[] outX, float[] outY, float[] outZ, int first, int count) {
+		MutableMatrix4 n = normalMatrix(m, new MutableMatrix4());
+		final float n00 = n.m00, n01 = n.m01, n02 = n.m02;
+		final float n10 = n.m10, n11 = n.m11, n12 = n.m12;
+		final float n20 = n.m20, n21 = n.m21, n22 = n.m22;
+		int end = first + count;
+		for (int i = first; i < end; i++) {
+			float nx = x[i];
+			float ny = y[i];
+			float nz = z[i];
+			float tx = n00 * nx + n01 * ny + n02 * nz;
+			float ty = n10 * nx + n11 * ny + n12 * nz;
+			float tz = n20 * nx + n21 * ny + n22 * nz;
+			float scale = 1.0f / (float) Math.sqrt(tx * tx + ty * ty + tz * tz);
+			outX[i] = tx * scale;
+			outY[i] = ty * scale;
+			outZ[i] = tz * scale;
+		}
+	}
+
+	/**
+	 * Transforms interleaved vertices, e.g. Geometry.vertices.
+	 *
+	 * @param m The transform.
+	 * @param in The vertex data.
+	 * @param out Receives the transformed vertices, laid out the same way. May be in.
+	 *            Floats other than the position and normal are not written.
+	 * @param first The index of the first vertex.
+	 * @param count The number of vertices.
+	 * @param stride The number of floats in each vertex, e.g. MeshArena.FLOATS_PER_VERTEX.
+	 * @param position The offset of the position within a vertex.
+	 * @param normal The offset of the normal within a vertex, or -1 if there isn't one.
+	 */
+	public static void transformInterleaved(MutableMatrix4 m, float[] in, float[] out,
+			int first, int count, int stride, int position, int normal) {
+		final float m00 = m.m00, m01 = m.m01, m02 = m.m02, m03 = m.m03;
+		final float m10 = m.m10, m11 = m.m11, m12 = m.m12, m13 = m.m13;
+		final float m20 = m.m20, m21 = m.m21, m22 = m.m22, m23 = m.m23;
+		int end = (first + count) * stride;
+		if (normal < 0) {
+			for (int o = first * stride + position; o < end; o += stride) {
+				float px = in[o];
+				float py = in[o + 1];
+				float pz = in[o + 2];
+				out[o] = m00 * px + m01 * py + m02 * pz + m03;
+				out[o + 1] = m10 * px + m11 * py + m12 * pz + m13;
+				out[o + 2] = m20 * px + m21 * py + m22 * pz + m23;
+			}
+			return;
+		}
+
+		// Positions and normals in one pass, so each vertex is only fetched once
+		MutableMatrix4 n = normalMatrix(m, new MutableMatrix4());
+		final float n00 = n.m00, n01 = n.m01, n02 = n.m02;
+		final float n10 = n.m10, n11 = n.m11, n12 = n.m12;
+		final float n20 = n.m20, n21 = n.m21, n22 = n.m22;
+		for (int v = first * stride; v < end; v += stride) {
+			int o = v + position;
+			float px = in[o];
+			float py = in[o + 1];
+			float pz = in[o + 2];
+			out[o] = m00 * px + m01 * py + m02 * pz + m03;
+			out[o + 1] = m10 * px + m11 * py + m12 * pz + m13;
+			out[o + 2] = m20 * px + m21 * py + m22 * pz + m23;
+
+			o = v + normal;
+			float nx = in[o];
+			float ny = in[o + 1];
+			float nz = in[o + 2];
+			float tx = n00 * nx + n01 * ny + n02 * nz;
+			float ty = n10 * nx + n11 * ny + n12 * nz;
+			float tz = n20 * nx + n21 * ny + n22 * nz;
+			float scale = 1.0f / (float) Math.sqrt(tx * tx + ty * ty + tz * tz);
+			out[o] = tx * scale;
+			out[o + 1] = ty * scale;
+			out[o + 2] = tz * scale;
+		}
+	}
+
+	/**
+	 * Transforms interleaved vertices in a buffer in place, e.g. a mapped
+	 * vertex buffer. The buffer's position and limit are not changed.
+	 *
+	 * @param m The transform.
+	 * @param buffer The vertex data, starting at index 0.
+	 * @param first The index of the first vertex.
+	 * @param count The number of vertices.
+	 * @param stride The number of floats in each vertex, e.g. MeshArena.FLOATS_PER_VERTEX.
+	 * @param position The offset of the position within a vertex.
+	 * @param normal The offset of the normal within a vertex, or -1 if there isn't one.
+	 */
+	public static void transformInterleaved(MutableMatrix4 m, FloatBuffer buffer,
+			int first, int count, int stride, int position, int normal) {
+		if (buffer.hasArray()) {
+			float[] a = buffer.array();
+			int base = buffer.arrayOffset();
+			if (base % stride == 0) {
+				int shift = base / stride;
+				transformInterleaved(m, a, a, first + shift, count, stride, position, normal);
+				return;
+			}
+		}
+
+		final float m00 = m.m00, m01 = m.m01, m02 = m.m02, m03 = m.m03;
+		final float m10 = m.m10, m11 = m.m11, m12 = m.m12, m13 = m.m13;
+		final float m20 = m.m20, m21 = m.m21, m22 = m.m22, m23 = m.m23;
+		int end = (first + count) * stride;
+		for (int o = first * stride + position; o < end; o += stride) {
+			float px = buffer.get(o);
+			float py = buffer.get(o + 1);
+			float pz = buffer.get(o + 2);
+			buffer.put(o, m00 * px + m01 * py + m02 * pz + m03);
+			buffer.put(o + 1, m10 * px + m11 * py + m12 * pz + m13);
+			buffer.put(o + 2, m20 * px + m21 * py + m22 * pz + m23);
+		}
+		if (normal < 0)
+			return;
+
+		MutableMatrix4 n = normalMatrix(m, new MutableMatrix4());
+		final float n00 = n.m00, n01 = n.m01, n02 = n.m02;
+		final float n10 = n.m10, n11 = n.m11, n12 = n.m12;
+		final float n20 = n.m20, n21 = n.m21, n22 = n.m22;
+		for (int o = first * stride + normal; o < end; o += stride) {
+			float nx = buffer.get(o);
+			float ny = buffer.get(o + 1);
+			float nz = buffer.get(o + 2);
+			float tx = n00 * nx + n01 * ny + n02 * nz;
+			float ty = n10 * nx + n11 * ny + n12 * nz;
+			float tz = n20 * nx + n21 * ny + n22 * nz;
+			float scale = 1.0f / (float) Math.sqrt(tx * tx + ty * ty + tz * tz);
+			buffer.put(o, tx * scale);
+			buffer.put(o + 1, ty * scale);
+			buffer.put(o + 2, tz * scale);
+		}
+	}
+
+	/**
+	 * Finds the bounds of interleaved points after transforming them, without
+	 * writing the transformed points anywhere.
+	 *
+	 * @param m The transform.
+	 * @param in The vertex data.
+	 * @param first The index of the first vertex.
+	 * @param count The number of vertices.
+	 * @param stride The number of floats in each vertex.
+	 * @param position The offset of the position within a vertex.
+	 * @param out Receives the bounds; empty if count is 0.
+	 * @return out
+	 */
+	public static AABB bounds(MutableMatrix4 m, float[] in, int first, int count, int stride, int position, AABB out) {
+		final float m00 = m.m00, m01 = m.m01, m02 = m.m02, m03 = m.m03;
+		final float m10 = m.m10, m11 = m.m11, m12 = m.m12, m13 = m.m13;
+		final float m20 = m.m20, m21 = m.m21, m22 = m.m22, m23 = m.m23;
+		float minX = Float.POSITIVE_INFINITY, minY = Float.POSITIVE_INFINITY, minZ = Float.POSITIVE_INFINITY;
+		float maxX = Float.NEGATIVE_INFINITY, maxY = Float.NEGATIVE_INFINITY, maxZ = Float.NEGATIVE_INFINITY;
+		int end = (first + count) * stride;
+		for (int o = first * stride + position; o < end; o += stride) {
+			float px = in[o];
+			float py = in[o + 1];
+			float pz = in[o + 2];
+			float tx = m00 * px + m01 * py + m02 * pz + m03;
+			float ty = m10 * px + m11 * py + m12 * pz + m13;
+			float tz = m20 * px + m21 * py + m22 * pz + m23;
+			minX = Math.min(minX, tx);
+			minY = Math.min(minY, ty);
+			minZ = Math.min(minZ, tz);
+			maxX = Math.max(maxX, tx);
+			maxY = Math.max(maxY, ty);
+			maxZ = Math.max(maxZ, tz);
+		}
+		return out.set(minX, minY, minZ, maxX, maxY, maxZ);
+	}
+
+	/**
+	 * Works out the matrix normals are transformed by: the inverse transpose
+	 * of the upper 3x3 of m. The rest of out is set to the identity.
+	 *
+	 * @param m The transform.
+	 * @param out Receives the normal matrix. May be m.
+	 * @return out
+	 */
+	public static MutableMatrix4 normalMatrix(MutableMatrix4 m, MutableMatrix4 out) {
+		float a = m.m00, b = m.m01, c = m.m02;
+		float d = m.m10, e = m.m11, f = m.m12;
+		float g = m.m20, h = m.m21, i = m.m22;
+		// Cofactors; the inverse is their transpose over the determinant, so
+		// the inverse transpose is the cofactors themselves
+		float c00 = e * i - f * h, c01 = f * g - d * i, c02 = d * h - e * g;
+		float c10 = c * h - b * i, c11 = a * i - c * g, c12 = b * g - a * h;
+		float c20 = b * f - c * e, c21 = c * d - a * f, c22 = a * e - b * d;
+		float det = 1.0f / (a * c00 + b * c01 + c * c02);
+		return out.set(c00 * det, c01 * det, c02 * det, 0,
+		               c10 * det, c11 * det, c12 * det, 0,
+		               c20 * det, c21 * det, c22 * det, 0,
+		               0, 0, 0, 1);
+	}
+}
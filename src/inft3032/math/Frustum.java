@@ -0,0 +1,110 @@
+// Starting code Copyright 2014 University of South Australia
+// Written by Michael Marner <michael.marner@unisa.edu.au>
+//
+package inft3032.math;
+
+
+/**
+ * The six planes of a view frustum, for testing bounding boxes against.
+ * <p/>
+ * The planes are taken straight from the combined projection and view matrix
+ * (Gribb and Hartmann, 2001), with their normals pointing into the frustum.
+ */
+public final class Frustum {
+
+	/**
+	 * Returned by test() for a box entirely outside the frustum.
+	 */
+	public static final int OUTSIDE = -1;
+
+	/**
+	 * A plane mask with every plane set, for a box not yet known to be inside any.
+	 */
+	public static final int ALL_PLANES = (1 << 6) - 1;
+
+	/**
+	 * a, b, c, d for each plane: left, right, bottom, top, near, far.
+	 */
+	private final float[] planes = new float[24];
+
+	/**
+	 * Sets the planes from a projection * view matrix.
+	 *
+	 * @param viewProjection The matrix taking world coordinates to clip coordinates.
+	 * @return This frustum.
+	 */
+	public Frustum set(Matrix4 viewProjection) {
+		Matrix4 m = viewProjection;
+		for (int i = 0; i < 3; i++) {
+			for (int sign = 0; sign < 2; sign++) {
+				float s = sign == 0 ? 1.0f : -1.0f;
+				plane(i * 2 + sign,
+						m.get(3, 0) + s * m.get(i, 0),
+						m.get(3, 1) + s * m.get(i, 1),
+						m.get(3, 2) + s * m.get(i, 2),
+						m.get(3, 3) + s * m.get(i, 3));
+			}
+		}
+		return this;
+	}
+
+	/**
+	 * Sets the planes from a projection * view matrix, without allocating.
+	 *
+	 * @param viewProjection The matrix taking world coordinates to clip coordinates.
+	 * @return This frustum.
+	 */
+	public Frustum set(MutableMatrix4 viewProjection) {
+		MutableMatrix4 m = viewProjection;
+		for (int i = 0; i < 3; i++) {
+			for (int sign = 0; sign < 2; sign++) {
+				float s = sign == 0 ? 1.0f : -1.0f;
+				plane(i * 2 + sign,
+						m.get(3, 0) + s * m.get(i, 0),
+						m.get(3, 1) + s * m.get(i, 1),
+						m.get(3, 2) + s * m.get(i, 2),
+						m.get(3, 3) + s * m.get(i, 3));
+			}
+		}
+		return this;
+	}
+
+	private void plane(int p, float a, float b, float c, float d) {
+		float length = (float) Math.sqrt(a * a + b * b + c * c);
+		int o = p * 4;
+		planes[o] = a / length;
+		planes[o + 1] = b / length;
+		planes[o + 2] = c / length;
+		planes[o + 3] = d / length;
+	}
+
+	/**
+	 * Tests a box against the planes in a mask. A box inside a plane is inside
+	 * it for every box it contains, so the mask returned can be passed on when
+	 * testing those.
+	 *
+	 * @param b The box.
+	 * @param mask The planes to test, as bits 0-5; ALL_PLANES to start with.
+	 * @return OUTSIDE, or the planes the box crosses. 0 means it is entirely inside.
+	 */
+	public int test(AABB b, int mask) {
+		for (int p = 0; p < 6; p++) {
+			int bit = 1 << p;
+			if ((mask & bit) == 0)
+				continue;
+			int o = p * 4;
+			float a = planes[o];
+			float bb = planes[o + 1];
+			float c = planes[o + 2];
+			float d = planes[o + 3];
+			// The corner furthest along the normal, and the one furthest against it
+			float far = a * (a > 0 ? b.maxX : b.minX) + bb * (bb > 0 ? b.maxY : b.minY) + c * (c > 0 ? b.maxZ : b.minZ) + d;
+			if (far < 0)
+				return OUTSIDE;
+			float near = a * (a > 0 ? b.minX : b.maxX) + bb * (bb > 0 ? b.minY : b.maxY) + c * (c > 0 ? b.minZ : b.maxZ) + d;
+			if (near >= 0)
+				mask &= ~bit;
+		}
+		return mask;
+	}
+}
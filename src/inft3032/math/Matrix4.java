@@ -1,5 +1,6 @@
 package inft3032.math;
 
+import java.nio.FloatBuffer;
 
 
 /**
@@ -418,9 +419,59 @@ public final class Matrix4 {
 		                   m33 * scalar);
 	}
 
+	/**
+	 * The same as mult(MatrixFactory.scale(scale)), without building the
+	 * scale matrix.
+	 *
+	 * @param scale The scale along x, y and z
+	 * @return the matrix after multiplication by the scale
+	 */
+	public Matrix4 scaled(Vector3 scale) {
+		float x = scale.getX();
+		float y = scale.getY();
+		float z = scale.getZ();
+		return new Matrix4(m00 * x, m01 * y, m02 * z, m03,
+		                   m10 * x, m11 * y, m12 * z, m13,
+		                   m20 * x, m21 * y, m22 * z, m23,
+		                   m30 * x, m31 * y, m32 * z, m33);
+	}
+
 	public float[] toOpenGL() {
-		final float[] matrix = new float[16];
+		return toOpenGL(new float[16]);
+	}
+
+	/**
+	 * Puts this matrix into a buffer in column-major (OpenGL) order, at its
+	 * position, advancing it by 16.
+	 *
+	 * @param buffer The buffer to write to.
+	 * @return The buffer passed in.
+	 */
+	public FloatBuffer writeTo(FloatBuffer buffer) {
+		buffer.put(m00).put(m10).put(m20).put(m30);
+		buffer.put(m01).put(m11).put(m21).put(m31);
+		buffer.put(m02).put(m12).put(m22).put(m32);
+		buffer.put(m03).put(m13).put(m23).put(m33);
+		return buffer;
+	}
+
+	/**
+	 * Copies this matrix into a mutable one. See MutableMatrix4.set(Matrix4).
+	 */
+	void copyTo(MutableMatrix4 out) {
+		out.set(m00, m01, m02, m03,
+		        m10, m11, m12, m13,
+		        m20, m21, m22, m23,
+		        m30, m31, m32, m33);
+	}
 
+	/**
+	 * Writes this matrix into an existing array in column-major (OpenGL) order.
+	 *
+	 * @param matrix An array of at least 16 floats to fill.
+	 * @return The array passed in.
+	 */
+	public float[] toOpenGL(float[] matrix) {
 		matrix[0] = m00;
 		matrix[1] = m10;
 		matrix[2] = m20;
@@ -439,6 +490,43 @@ public final class Matrix4 {
 		matrix[15] = m33;
 		return matrix;
 	}
+
+	/**
+	 * Writes the matrix that transforms normals, the inverse transpose of the
+	 * upper 3x3, into an existing array in column-major (OpenGL) order. If
+	 * the upper 3x3 is singular the result is only right up to its length.
+	 *
+	 * @param matrix An array of at least 9 floats to fill.
+	 * @return The array passed in.
+	 */
+	public float[] normalMatrix(float[] matrix) {
+		float c00 = m11 * m22 - m12 * m21;
+		float c01 = m12 * m20 - m10 * m22;
+		float c02 = m10 * m21 - m11 * m20;
+		float det = m00 * c00 + m01 * c01 + m02 * c02;
+		float scale = det != 0 ? 1.0f / det : 1.0f;
+		matrix[0] = c00 * scale;
+		matrix[1] = (m02 * m21 - m01 * m22) * scale;
+		matrix[2] = (m01 * m12 - m02 * m11) * scale;
+		matrix[3] = c01 * scale;
+		matrix[4] = (m00 * m22 - m02 * m20) * scale;
+		matrix[5] = (m02 * m10 - m00 * m12) * scale;
+		matrix[6] = c02 * scale;
+		matrix[7] = (m01 * m20 - m00 * m21) * scale;
+		matrix[8] = (m00 * m11 - m01 * m10) * scale;
+		return matrix;
+	}
+
+	/**
+	 * @return The largest scale along any of the axes: the length of the
+	 *         longest of the first three columns.
+	 */
+	public float maxScale() {
+		float x = m00 * m00 + m10 * m10 + m20 * m20;
+		float y = m01 * m01 + m11 * m11 + m21 * m21;
+		float z = m02 * m02 + m12 * m12 + m22 * m22;
+		return (float) Math.sqrt(Math.max(x, Math.max(y, z)));
+	}
 	
     public Ray transform(Ray r) {
         return new Ray(mult(r.start().toPos()).toVector3(), 
@@ -89,4 +89,11 @@ public class MatrixFactory {
 		                   0, 0, 0, 1);
 		
 	}
+	
+	public static Matrix4 scale(Vector3 scale) {
+		return new Matrix4(scale.getX(), 0, 0, 0,
+		                   0, scale.getY(), 0, 0,
+		                   0, 0, scale.getZ(), 0,
+		                   0, 0, 0, 1);
+	}
 }
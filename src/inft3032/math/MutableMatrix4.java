@@ -0,0 +1,315 @@
+// Starting code Copyright 2014 University of South Australia
+// Written by Michael Marner <michael.marner@unisa.edu.au>
+//
+package inft3032.math;
+
+import java.nio.FloatBuffer;
+
+
+/**
+ * A 4x4 matrix that is changed in place, for code run every frame that
+ * shouldn't allocate. Matrix4 is the immutable equivalent; use toMatrix4()
+ * and set(Matrix4) to move between them.
+ * <p/>
+ * Every method that writes a matrix works through locals first, so the
+ * matrix written may also be one of the matrices read.
+ */
+public final class MutableMatrix4 {
+
+	/*
+	 First row:  m00 m01 m02 m03
+	 Second row: m10 m11 m12 m13
+	 Third row:  m20 m21 m22 m23
+	 Fourth row: m30 m31 m32 m33
+	 */
+	float m00, m01, m02, m03,
+	      m10, m11, m12, m13,
+	      m20, m21, m22, m23,
+	      m30, m31, m32, m33;
+
+
+	/**
+	 * Creates an identity matrix.
+	 */
+	public MutableMatrix4() {
+		setIdentity();
+	}
+
+	public MutableMatrix4(Matrix4 m) {
+		set(m);
+	}
+
+	public MutableMatrix4 setIdentity() {
+		return set(1, 0, 0, 0,
+		           0, 1, 0, 0,
+		           0, 0, 1, 0,
+		           0, 0, 0, 1);
+	}
+
+	/**
+	 * Sets every value, a row at a time.
+	 */
+	public MutableMatrix4 set(float m00, float m01, float m02, float m03,
+	                          float m10, float m11, float m12, float m13,
+	                          float m20, float m21, float m22, float m23,
+	                          float m30, float m31, float m32, float m33) {
+		this.m00 = m00;
+		this.m01 = m01;
+		this.m02 = m02;
+		this.m03 = m03;
+		this.m10 = m10;
+		this.m11 = m11;
+		this.m12 = m12;
+		this.m13 = m13;
+		this.m20 = m20;
+		this.m21 = m21;
+		this.m22 = m22;
+		this.m23 = m23;
+		this.m30 = m30;
+		this.m31 = m31;
+		this.m32 = m32;
+		this.m33 = m33;
+		return this;
+	}
+
+	public MutableMatrix4 set(Matrix4 m) {
+		m.copyTo(this);
+		return this;
+	}
+
+	public MutableMatrix4 set(MutableMatrix4 m) {
+		return set(m.m00, m.m01, m.m02, m.m03,
+		           m.m10, m.m11, m.m12, m.m13,
+		           m.m20, m.m21, m.m22, m.m23,
+		           m.m30, m.m31, m.m32, m.m33);
+	}
+
+	/**
+	 * @return An immutable copy of this matrix.
+	 */
+	public Matrix4 toMatrix4() {
+		return new Matrix4(m00, m01, m02, m03,
+		                   m10, m11, m12, m13,
+		                   m20, m21, m22, m23,
+		                   m30, m31, m32, m33);
+	}
+
+	/**
+	 * Return the value of the matrix at a specified row and column
+	 *
+	 * @param row The row index (in range 0 .. 3).
+	 * @param column The column index (in range 0 .. 3).
+	 * @return The value at given row and column indices.
+	 */
+	public float get(int row, int column) {
+		switch (row * 4 + column) {
+		case 0: return m00;
+		case 1: return m01;
+		case 2: return m02;
+		case 3: return m03;
+		case 4: return m10;
+		case 5: return m11;
+		case 6: return m12;
+		case 7: return m13;
+		case 8: return m20;
+		case 9: return m21;
+		case 10: return m22;
+		case 11: return m23;
+		case 12: return m30;
+		case 13: return m31;
+		case 14: return m32;
+		case 15: return m33;
+		}
+		throw new MathsException("row and column must be 0 to 3 and are " + row + ", " + column);
+	}
+
+	/**
+	 * Multiplies this by a matrix, storing the result in out.
+	 *
+	 * @param rhs The right hand matrix in the multiplication.
+	 * @param out Receives this * rhs. May be this or rhs.
+	 * @return out
+	 */
+	public MutableMatrix4 mulInto(MutableMatrix4 rhs, MutableMatrix4 out) {
+		return out.set(
+				m00 * rhs.m00 + m01 * rhs.m10 + m02 * rhs.m20 + m03 * rhs.m30,
+				m00 * rhs.m01 + m01 * rhs.m11 + m02 * rhs.m21 + m03 * rhs.m31,
+				m00 * rhs.m02 + m01 * rhs.m12 + m02 * rhs.m22 + m03 * rhs.m32,
+				m00 * rhs.m03 + m01 * rhs.m13 + m02 * rhs.m23 + m03 * rhs.m33,
+
+				m10 * rhs.m00 + m11 * rhs.m10 + m12 * rhs.m20 + m13 * rhs.m30,
+				m10 * rhs.m01 + m11 * rhs.m11 + m12 * rhs.m21 + m13 * rhs.m31,
+				m10 * rhs.m02 + m11 * rhs.m12 + m12 * rhs.m22 + m13 * rhs.m32,
+				m10 * rhs.m03 + m11 * rhs.m13 + m12 * rhs.m23 + m13 * rhs.m33,
+
+				m20 * rhs.m00 + m21 * rhs.m10 + m22 * rhs.m20 + m23 * rhs.m30,
+				m20 * rhs.m01 + m21 * rhs.m11 + m22 * rhs.m21 + m23 * rhs.m31,
+				m20 * rhs.m02 + m21 * rhs.m12 + m22 * rhs.m22 + m23 * rhs.m32,
+				m20 * rhs.m03 + m21 * rhs.m13 + m22 * rhs.m23 + m23 * rhs.m33,
+
+				m30 * rhs.m00 + m31 * rhs.m10 + m32 * rhs.m20 + m33 * rhs.m30,
+				m30 * rhs.m01 + m31 * rhs.m11 + m32 * rhs.m21 + m33 * rhs.m31,
+				m30 * rhs.m02 + m31 * rhs.m12 + m32 * rhs.m22 + m33 * rhs.m32,
+				m30 * rhs.m03 + m31 * rhs.m13 + m32 * rhs.m23 + m33 * rhs.m33);
+	}
+
+	/**
+	 * Inverts this matrix, storing the result in out.
+	 *
+	 * @param out Receives the inverse. May be this.
+	 * @return out
+	 */
+	public MutableMatrix4 invertInto(MutableMatrix4 out) {
+		float det = 1.0f / determinant();
+		return out.set(
+				det * (m12 * m23 * m31 - m13 * m22 * m31 + m13 * m21 * m32 - m11 * m23 * m32
+				- m12 * m21 * m33 + m11 * m22 * m33),
+				det * (m03 * m22 * m31 - m02 * m23 * m31 - m03 * m21 * m32 + m01 * m23 * m32
+				+ m02 * m21 * m33 - m01 * m22 * m33),
+				det * (m02 * m13 * m31 - m03 * m12 * m31 + m03 * m11 * m32 - m01 * m13 * m32
+				- m02 * m11 * m33 + m01 * m12 * m33),
+				det * (m03 * m12 * m21 - m02 * m13 * m21 - m03 * m11 * m22 + m01 * m13 * m22
+				+ m02 * m11 * m23 - m01 * m12 * m23),
+				det * (m13 * m22 * m30 - m12 * m23 * m30 - m13 * m20 * m32 + m10 * m23 * m32
+				+ m12 * m20 * m33 - m10 * m22 * m33),
+				det * (m02 * m23 * m30 - m03 * m22 * m30 + m03 * m20 * m32 - m00 * m23 * m32
+				- m02 * m20 * m33 + m00 * m22 * m33),
+				det * (m03 * m12 * m30 - m02 * m13 * m30 - m03 * m10 * m32 + m00 * m13 * m32
+				+ m02 * m10 * m33 - m00 * m12 * m33),
+				det * (m02 * m13 * m20 - m03 * m12 * m20 + m03 * m10 * m22 - m00 * m13 * m22
+				- m02 * m10 * m23 + m00 * m12 * m23),
+				det * (m11 * m23 * m30 - m13 * m21 * m30 + m13 * m20 * m31 - m10 * m23 * m31
+				- m11 * m20 * m33 + m10 * m21 * m33),
+				det * (m03 * m21 * m30 - m01 * m23 * m30 - m03 * m20 * m31 + m00 * m23 * m31
+				+ m01 * m20 * m33 - m00 * m21 * m33),
+				det * (m01 * m13 * m30 - m03 * m11 * m30 + m03 * m10 * m31 - m00 * m13 * m31
+				- m01 * m10 * m33 + m00 * m11 * m33),
+				det * (m03 * m11 * m20 - m01 * m13 * m20 - m03 * m10 * m21 + m00 * m13 * m21
+				+ m01 * m10 * m23 - m00 * m11 * m23),
+				det * (m12 * m21 * m30 - m11 * m22 * m30 - m12 * m20 * m31 + m10 * m22 * m31
+				+ m11 * m20 * m32 - m10 * m21 * m32),
+				det * (m01 * m22 * m30 - m02 * m21 * m30 + m02 * m20 * m31 - m00 * m22 * m31
+				- m01 * m20 * m32 + m00 * m21 * m32),
+				det * (m02 * m11 * m30 - m01 * m12 * m30 - m02 * m10 * m31 + m00 * m12 * m31
+				+ m01 * m10 * m32 - m00 * m11 * m32),
+				det * (m01 * m12 * m20 - m02 * m11 * m20 + m02 * m10 * m21 - m00 * m12 * m21
+				- m01 * m10 * m22 + m00 * m11 * m22));
+	}
+
+	/**
+	 * @return the determinant of the matrix
+	 */
+	public float determinant() {
+		return
+				(m00 * m11 - m01 * m10) * (m22 * m33 - m23 * m32)
+				- (m00 * m12 - m02 * m10) * (m21 * m33 - m23 * m31)
+				+ (m00 * m13 - m03 * m10) * (m21 * m32 - m22 * m31)
+				+ (m01 * m12 - m02 * m11) * (m20 * m33 - m23 * m30)
+				- (m01 * m13 - m03 * m11) * (m20 * m32 - m22 * m30)
+				+ (m02 * m13 - m03 * m12) * (m20 * m31 - m21 * m30);
+	}
+
+	/**
+	 * Makes this a perspective projection matrix, the same as MatrixFactory.perspective.
+	 *
+	 * @param fovY   Vertical field of view, in degrees (DEGREES)
+	 * @param aspect Aspect ratio of the display
+	 * @param zNear  The distance of the near plane
+	 * @param zFar   The distance of the far plane
+	 * @return this
+	 */
+	public MutableMatrix4 setPerspective(float fovY, float aspect, float zNear, float zFar) {
+		float f = (float) (1.0 / Math.tan(Math.toRadians(fovY) / 2.0));
+		return set(f / aspect, 0, 0, 0,
+		           0, f, 0, 0,
+		           0, 0, (zFar + zNear) / (zNear - zFar), (2 * zFar * zNear) / (zNear - zFar),
+		           0, 0, -1, 0);
+	}
+
+	/**
+	 * Makes this a view matrix, the same as MatrixFactory.lookAt.
+	 *
+	 * @param eye The position of the eye
+	 * @param poi The point of interest (what we are looking at)
+	 * @param up The up vector.
+	 * @return this
+	 */
+	public MutableMatrix4 setLookAt(Vector3 eye, Vector3 poi, Vector3 up) {
+		// Viewing direction
+		float dx = poi.getX() - eye.getX();
+		float dy = poi.getY() - eye.getY();
+		float dz = poi.getZ() - eye.getZ();
+		float length = (float) Math.sqrt(dx * dx + dy * dy + dz * dz);
+		dx /= length;
+		dy /= length;
+		dz /= length;
+
+		// Up, made perpendicular to the direction
+		float along = up.getX() * dx + up.getY() * dy + up.getZ() * dz;
+		float ux = up.getX() - dx * along;
+		float uy = up.getY() - dy * along;
+		float uz = up.getZ() - dz * along;
+		length = (float) Math.sqrt(ux * ux + uy * uy + uz * uz);
+		ux /= length;
+		uy /= length;
+		uz /= length;
+
+		// Side = direction x up
+		float sx = dy * uz - dz * uy;
+		float sy = dz * ux - dx * uz;
+		float sz = dx * uy - dy * ux;
+
+		float ex = eye.getX();
+		float ey = eye.getY();
+		float ez = eye.getZ();
+		return set( sx,  sy,  sz, -(sx * ex + sy * ey + sz * ez),
+		            ux,  uy,  uz, -(ux * ex + uy * ey + uz * ez),
+		           -dx, -dy, -dz,   dx * ex + dy * ey + dz * ez,
+		             0,   0,   0, 1);
+	}
+
+	/**
+	 * Writes this matrix into an existing array in column-major (OpenGL) order.
+	 *
+	 * @param matrix An array of at least 16 floats to fill.
+	 * @return The array passed in.
+	 */
+	public float[] toOpenGL(float[] matrix) {
+		matrix[0] = m00;
+		matrix[1] = m10;
+		matrix[2] = m20;
+		matrix[3] = m30;
+		matrix[4] = m01;
+		matrix[5] = m11;
+		matrix[6] = m21;
+		matrix[7] = m31;
+		matrix[8] = m02;
+		matrix[9] = m12;
+		matrix[10] = m22;
+		matrix[11] = m32;
+		matrix[12] = m03;
+		matrix[13] = m13;
+		matrix[14] = m23;
+		matrix[15] = m33;
+		return matrix;
+	}
+
+	/**
+	 * Puts this matrix into a buffer in column-major (OpenGL) order, at its
+	 * position, advancing it by 16.
+	 *
+	 * @param buffer The buffer to write to.
+	 * @return The buffer passed in.
+	 */
+	public FloatBuffer writeTo(FloatBuffer buffer) {
+		buffer.put(m00).put(m10).put(m20).put(m30);
+		buffer.put(m01).put(m11).put(m21).put(m31);
+		buffer.put(m02).put(m12).put(m22).put(m32);
+		buffer.put(m03).put(m13).put(m23).put(m33);
+		return buffer;
+	}
+
+	public String toString() {
+		return toMatrix4().toString();
+	}
+}
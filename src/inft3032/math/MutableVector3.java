@@ -0,0 +1,95 @@
+// Starting code Copyright 2014 University of South Australia
+// Written by Michael Marner <michael.marner@unisa.edu.au>
+//
+package inft3032.math;
+
+
+/**
+ * A 3 element vector that is changed in place, for code run every frame that
+ * shouldn't allocate. Vector3 is the immutable equivalent; use toVector3()
+ * and set(Vector3) to move between them.
+ */
+public final class MutableVector3 {
+
+	public float x, y, z;
+
+	/**
+	 * Constructs a vector with all values equal to zero.
+	 */
+	public MutableVector3() {
+	}
+
+	public MutableVector3(float x, float y, float z) {
+		set(x, y, z);
+	}
+
+	public MutableVector3 set(float x, float y, float z) {
+		this.x = x;
+		this.y = y;
+		this.z = z;
+		return this;
+	}
+
+	public MutableVector3 set(Vector3 v) {
+		return set(v.getX(), v.getY(), v.getZ());
+	}
+
+	public MutableVector3 set(MutableVector3 v) {
+		return set(v.x, v.y, v.z);
+	}
+
+	/**
+	 * Sets this to a - b.
+	 */
+	public MutableVector3 subtract(Vector3 a, Vector3 b) {
+		return set(a.getX() - b.getX(), a.getY() - b.getY(), a.getZ() - b.getZ());
+	}
+
+	public MutableVector3 subtract(MutableVector3 v) {
+		return set(x - v.x, y - v.y, z - v.z);
+	}
+
+	public MutableVector3 plus(MutableVector3 v) {
+		return set(x + v.x, y + v.y, z + v.z);
+	}
+
+	public MutableVector3 mult(float s) {
+		return set(x * s, y * s, z * s);
+	}
+
+	/**
+	 * Sets this to a x b. Either may be this.
+	 */
+	public MutableVector3 cross(MutableVector3 a, MutableVector3 b) {
+		return set(a.y * b.z - a.z * b.y,
+		           a.z * b.x - a.x * b.z,
+		           a.x * b.y - a.y * b.x);
+	}
+
+	public float dot(MutableVector3 v) {
+		return x * v.x + y * v.y + z * v.z;
+	}
+
+	public float dot(Vector3 v) {
+		return x * v.getX() + y * v.getY() + z * v.getZ();
+	}
+
+	public float length() {
+		return (float) Math.sqrt(x * x + y * y + z * z);
+	}
+
+	/**
+	 * Scales this to unit length.
+	 */
+	public MutableVector3 unit() {
+		return mult(1.0f / length());
+	}
+
+	public Vector3 toVector3() {
+		return new Vector3(x, y, z);
+	}
+
+	public String toString() {
+		return "[" + x + ", " + y + ", " + z + "]";
+	}
+}
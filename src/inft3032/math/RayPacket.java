@@ -0,0 +1,150 @@
+// Starting code Copyright 2014 University of South Australia
+// Written by Michael Marner <michael.marner@unisa.edu.au>
+//
+package inft3032.math;
+
+
+/**
+ * A group of rays traced through a BVH together (see BVH.traverse(RayPacket,
+ * int[], PacketPrimitives)), stored as one array per component so each step
+ * runs as a tight loop over the lanes.
+ * <p/>
+ * Packets pay off for coherent rays, such as the primary rays through a
+ * small block of pixels: they take the same path through the tree, so most
+ * nodes are tested once for the whole packet rather than once per ray. Fill
+ * in the origins, directions and distances of the first count lanes, then
+ * call prepare(); if it returns false the rays aren't coherent enough and
+ * should be traced one at a time instead.
+ */
+public final class RayPacket {
+
+	/**
+	 * The most rays in a packet: a 4x4 block of pixels.
+	 */
+	public static final int SIZE = 16;
+
+	public final float[] ox = new float[SIZE];
+	public final float[] oy = new float[SIZE];
+	public final float[] oz = new float[SIZE];
+	public final float[] dx = new float[SIZE];
+	public final float[] dy = new float[SIZE];
+	public final float[] dz = new float[SIZE];
+
+	/**
+	 * The reciprocals of the directions, set by prepare().
+	 */
+	public final float[] ix = new float[SIZE];
+	public final float[] iy = new float[SIZE];
+	public final float[] iz = new float[SIZE];
+
+	/**
+	 * Hits nearer than this don't count, for every lane.
+	 */
+	public float tMin;
+
+	/**
+	 * Each lane's nearest hit so far; only nearer hits count.
+	 */
+	public final float[] tMax = new float[SIZE];
+
+	/**
+	 * The number of lanes in use.
+	 */
+	public int count;
+
+	// The offsets of the bounds each lane meets first (see BVH.hits), the
+	// same for every lane once prepare() has succeeded
+	int xNear, yNear, zNear;
+
+	// The range of the lanes' origins and reciprocal directions on each axis
+	float oxMin, oxMax, oyMin, oyMax, ozMin, ozMax;
+	float ixMin, ixMax, iyMin, iyMax, izMin, izMax;
+
+	/**
+	 * Works out the reciprocal directions and the ranges the packet's
+	 * interval test needs.
+	 *
+	 * @return False if the lanes' directions differ in sign on some axis, in
+	 *         which case the packet can't be traced as one.
+	 */
+	public boolean prepare() {
+		if (count == 0)
+			return false;
+		int xn = BVH.nearOffset(dx[0]), yn = BVH.nearOffset(dy[0]), zn = BVH.nearOffset(dz[0]);
+		oxMin = oyMin = ozMin = ixMin = iyMin = izMin = Float.POSITIVE_INFINITY;
+		oxMax = oyMax = ozMax = ixMax = iyMax = izMax = Float.NEGATIVE_INFINITY;
+		for (int i = 0; i < count; i++) {
+			if (BVH.nearOffset(dx[i]) != xn || BVH.nearOffset(dy[i]) != yn || BVH.nearOffset(dz[i]) != zn)
+				return false;
+			// A zero component gives an infinite reciprocal, which the
+			// interval test can't bound, so those packets go singly too
+			if (dx[i] == 0 || dy[i] == 0 || dz[i] == 0)
+				return false;
+			ix[i] = 1.0f / dx[i];
+			iy[i] = 1.0f / dy[i];
+			iz[i] = 1.0f / dz[i];
+			oxMin = Math.min(oxMin, ox[i]);
+			oxMax = Math.max(oxMax, ox[i]);
+			oyMin = Math.min(oyMin, oy[i]);
+			oyMax = Math.max(oyMax, oy[i]);
+			ozMin = Math.min(ozMin, oz[i]);
+			ozMax = Math.max(ozMax, oz[i]);
+			ixMin = Math.min(ixMin, ix[i]);
+			ixMax = Math.max(ixMax, ix[i]);
+			iyMin = Math.min(iyMin, iy[i]);
+			iyMax = Math.max(iyMax, iy[i]);
+			izMin = Math.min(izMin, iz[i]);
+			izMax = Math.max(izMax, iz[i]);
+		}
+		xNear = xn;
+		yNear = yn;
+		zNear = zn;
+		return true;
+	}
+
+	/**
+	 * @return The furthest any lane still looks.
+	 */
+	float maxT() {
+		float t = tMax[0];
+		for (int i = 1; i < count; i++)
+			t = Math.max(t, tMax[i]);
+		return t;
+	}
+
+	/**
+	 * Tests whether the packet might hit a node, by interval arithmetic over
+	 * the ranges of the lanes' origins and directions. Never false for a node
+	 * some lane hits; may be true for a node no lane hits.
+	 *
+	 * @param n The nodes.
+	 * @param o The offset of the node.
+	 * @param far The furthest any lane still looks.
+	 */
+	boolean mayHit(int[] n, int o, float far) {
+		float near = tMin;
+		near = Math.max(near, lowest(Float.intBitsToFloat(n[o + xNear]), oxMin, oxMax, ixMin, ixMax));
+		near = Math.max(near, lowest(Float.intBitsToFloat(n[o + 1 + yNear]), oyMin, oyMax, iyMin, iyMax));
+		near = Math.max(near, lowest(Float.intBitsToFloat(n[o + 2 + zNear]), ozMin, ozMax, izMin, izMax));
+		far = Math.min(far, highest(Float.intBitsToFloat(n[o + 3 - xNear]), oxMin, oxMax, ixMin, ixMax));
+		far = Math.min(far, highest(Float.intBitsToFloat(n[o + 4 - yNear]), oyMin, oyMax, iyMin, iyMax));
+		far = Math.min(far, highest(Float.intBitsToFloat(n[o + 5 - zNear]), ozMin, ozMax, izMin, izMax));
+		return near <= far;
+	}
+
+	/**
+	 * @return The least (plane - o) * i can be, for o and i in their ranges.
+	 */
+	private static float lowest(float plane, float oMin, float oMax, float iMin, float iMax) {
+		float dLo = plane - oMax, dHi = plane - oMin;
+		return Math.min(Math.min(dLo * iMin, dLo * iMax), Math.min(dHi * iMin, dHi * iMax));
+	}
+
+	/**
+	 * @return The most (plane - o) * i can be, for o and i in their ranges.
+	 */
+	private static float highest(float plane, float oMin, float oMax, float iMin, float iMax) {
+		float dLo = plane - oMax, dHi = plane - oMin;
+		return Math.max(Math.max(dLo * iMin, dLo * iMax), Math.max(dHi * iMin, dHi * iMax));
+	}
+}
@@ -0,0 +1,437 @@
+// Starting code Copyright 2014 University of South Australia
+// Written by Michael Marner <michael.marner@unisa.edu.au>
+//
+
+package inft3032.raytrace;
+
+import inft3032.drawables.Image;
+import inft3032.scene.Trace;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+
+/**
+ * Renders with a RayTracer a pass at a time, averaging a sample per pixel
+ * from each pass, so a large render can be watched as it sharpens and
+ * stopped once it looks good enough.
+ * <p/>
+ * The first pass samples pixel centres, the same as RayTracer.render; later
+ * passes sample elsewhere in each pixel (the Halton sequence, the same
+ * point in every pixel of a pass, so packets stay coherent), which smooths
+ * edges. Tiles are rendered from the middle of the image outwards in a
+ * spiral, where the interesting part usually is.
+ * <p/>
+ * Samples are summed into an off-heap buffer (12 bytes a pixel), and the
+ * snapshots are a direct Image, so an 8K render keeps its half a gigabyte
+ * out of the Java heap. It needs -XX:MaxDirectMemorySize to be large enough
+ * instead.
+ * <p/>
+ * Rendering stops after a number of passes, when its time budget runs out,
+ * or when cancel() is called from another thread, whichever comes first. A
+ * pass that is stopped part way through leaves its finished tiles with one
+ * more sample than the rest, which is fine as each tile is averaged by its
+ * own count.
+ */
+public class ProgressiveRenderer {
+
+	/**
+	 * Receives snapshots of the image as it renders.
+	 */
+	public interface Listener {
+
+		/**
+		 * Called on the thread rendering, with the image so far.
+		 *
+		 * @param image The image. The same one is reused for every snapshot.
+		 * @param passes The number of passes finished over the whole image.
+		 * @param done True for the last snapshot, once rendering has stopped.
+		 */
+		void snapshot(Image image, int passes, boolean done);
+	}
+
+	public static final int DEFAULT_PASSES = 64;
+
+	public static final long DEFAULT_SNAPSHOT_INTERVAL = 1000;
+
+	private final RayTracer tracer;
+	private final int width;
+	private final int height;
+	private final int tileSize;
+	private final int across;
+	private final int tileCount;
+
+	/**
+	 * Tiles in the order they are rendered, middle first.
+	 */
+	private final int[] order;
+
+	/**
+	 * The sum of every sample so far, 3 floats a pixel, row by row. Each
+	 * tile's pixels are written under that tile's lock; snapshots read them
+	 * without locking, so the workers never wait for one.
+	 */
+	private final FloatBuffer accumulation;
+
+	/**
+	 * One lock per tile. Usually only one thread samples a tile at a time,
+	 * but with fewer tiles than threads the next pass can reach a tile
+	 * before the last one has finished with it.
+	 */
+	private final Object[] tileLocks;
+
+	/**
+	 * The number of samples summed into each tile's pixels, counted once
+	 * they are added. A snapshot taken meanwhile may see a tile's new
+	 * samples without its new count, which only lasts until the next one.
+	 */
+	private final AtomicIntegerArray tileSamples;
+
+	private final Image image;
+
+	private int passes = DEFAULT_PASSES;
+	private long timeBudget;
+	private long snapshotInterval = DEFAULT_SNAPSHOT_INTERVAL;
+	private volatile boolean cancelled;
+
+	private final LongAdder rays = new LongAdder();
+	private long renderNanos;
+	private int passesDone;
+
+	/**
+	 * @param tracer The tracer to render with. Its threads, tile size,
+	 *        shadows and packets settings are used.
+	 * @param width The image width.
+	 * @param height The image height.
+	 */
+	public ProgressiveRenderer(RayTracer tracer, int width, int height) {
+		if ((long) width * height * 3 * 4 > Integer.MAX_VALUE)
+			throw new IllegalArgumentException("Image too large to accumulate: " + width + "x" + height);
+		this.tracer = tracer;
+		this.width = width;
+		this.height = height;
+		this.tileSize = tracer.tileSize();
+		this.across = (width + tileSize - 1) / tileSize;
+		int down = (height + tileSize - 1) / tileSize;
+		this.tileCount = across * down;
+		this.order = spiral(across, down);
+		this.accumulation = ByteBuffer.allocateDirect(width * height * 3 * 4).order(ByteOrder.nativeOrder()).asFloatBuffer();
+		this.tileLocks = new Object[tileCount];
+		for (int i = 0; i < tileCount; i++)
+			tileLocks[i] = new Object();
+		this.tileSamples = new AtomicIntegerArray(tileCount);
+		this.image = Image.allocateDirect(height, width);
+	}
+
+	/**
+	 * @param passes The most passes to render. DEFAULT_PASSES by default.
+	 */
+	public void setPasses(int passes) {
+		this.passes = passes;
+	}
+
+	/**
+	 * @param millis How long to render for at most, or 0 for no limit (the default).
+	 */
+	public void setTimeBudget(long millis) {
+		this.timeBudget = millis;
+	}
+
+	/**
+	 * @param millis How often to send a snapshot to the listener while
+	 *        rendering. DEFAULT_SNAPSHOT_INTERVAL by default.
+	 */
+	public void setSnapshotInterval(long millis) {
+		this.snapshotInterval = millis;
+	}
+
+	/**
+	 * Stops the render in progress, after the tiles being rendered now. Safe
+	 * to call from any thread.
+	 */
+	public void cancel() {
+		cancelled = true;
+	}
+
+	/**
+	 * @return True if the last render was stopped by cancel().
+	 */
+	public boolean isCancelled() {
+		return cancelled;
+	}
+
+	/**
+	 * Renders the scene, from scratch, until it has done every pass, run out
+	 * of time or been cancelled. The scene is read at the start, as with
+	 * RayTracer.render.
+	 *
+	 * @param listener Receives snapshots along the way and the final image. May be null.
+	 * @return The final image, which is reused by the next render.
+	 */
+	public Image render(Listener listener) {
+		tracer.prepare();
+		cancelled = false;
+		rays.reset();
+		// No workers are running yet, so nothing else is touching these
+		for (int i = 0; i < width * height * 3; i++)
+			accumulation.put(i, 0.0f);
+		for (int i = 0; i < tileCount; i++)
+			tileSamples.set(i, 0);
+
+		long start = System.nanoTime();
+		long deadline = timeBudget > 0 ? start + TimeUnit.MILLISECONDS.toNanos(timeBudget) : Long.MAX_VALUE;
+		ForkJoinPool pool = tracer.pool();
+		ForkJoinTask<Void> task = pool.submit(new Workers(pool.getParallelism(), new AtomicLong(), deadline));
+		long interval = TimeUnit.MILLISECONDS.toNanos(snapshotInterval);
+		while (true) {
+			try {
+				task.get(interval, TimeUnit.NANOSECONDS);
+				break;
+			}
+			catch (TimeoutException e) {
+				resolve();
+				if (listener != null)
+					listener.snapshot(image, passesDone, false);
+			}
+			catch (InterruptedException e) {
+				// Stop the workers, but wait for them so the image is whole
+				cancel();
+				task.join();
+				Thread.currentThread().interrupt();
+				break;
+			}
+			catch (ExecutionException e) {
+				Throwable cause = e.getCause();
+				if (cause instanceof RuntimeException)
+					throw (RuntimeException) cause;
+				if (cause instanceof Error)
+					throw (Error) cause;
+				throw new RuntimeException(cause);
+			}
+		}
+		renderNanos = System.nanoTime() - start;
+
+		resolve();
+		Trace.msg("Progressively ray traced " + width + "x" + height + ": " + this);
+		if (listener != null)
+			listener.snapshot(image, passesDone, true);
+		return image;
+	}
+
+	/**
+	 * @return The number of passes finished over the whole image by the last render.
+	 */
+	public int passesDone() {
+		return passesDone;
+	}
+
+	/**
+	 * @return The number of rays traced by the last render, primary and shadow.
+	 */
+	public long rays() {
+		return rays.sum();
+	}
+
+	/**
+	 * @return How long the last render took, in nanoseconds.
+	 */
+	public long renderNanos() {
+		return renderNanos;
+	}
+
+	public String toString() {
+		return String.format("%d passes, %d rays in %.1fms, %.2fM rays/s on %d threads%s",
+				passesDone, rays.sum(), renderNanos / 1.0e6,
+				renderNanos == 0 ? 0 : rays.sum() * 1.0e3 / renderNanos, tracer.pool().getParallelism(),
+				cancelled ? " (cancelled)" : "");
+	}
+
+	/**
+	 * Writes the average of each pixel's samples into the image. Tiles not
+	 * yet sampled are black. Runs alongside the workers without stopping
+	 * them, so a tile being added to may come out slightly off until the
+	 * next snapshot; once they have finished the image is exact.
+	 */
+	private void resolve() {
+		int fewest = Integer.MAX_VALUE;
+		for (int t = 0; t < tileCount; t++) {
+			int samples = tileSamples.get(t);
+			fewest = Math.min(fewest, samples);
+			float scale = samples == 0 ? 0.0f : 1.0f / samples;
+			int x0 = (t % across) * tileSize;
+			int y0 = (t / across) * tileSize;
+			int x1 = Math.min(x0 + tileSize, width);
+			int y1 = Math.min(y0 + tileSize, height);
+			for (int y = y0; y < y1; y++) {
+				for (int x = x0; x < x1; x++) {
+					int i = (y * width + x) * 3;
+					image.set(x, y, Image.colour(RayTracer.toByte(accumulation.get(i) * scale),
+							RayTracer.toByte(accumulation.get(i + 1) * scale),
+							RayTracer.toByte(accumulation.get(i + 2) * scale), 255));
+				}
+			}
+		}
+		passesDone = fewest;
+	}
+
+	/**
+	 * Adds a tile's samples from one pass to the accumulation.
+	 *
+	 * @param tile The tile.
+	 * @param rgb The tile's samples, 3 floats a pixel, row by row, tileSize wide.
+	 */
+	private void accumulate(int tile, float[] rgb) {
+		int x0 = (tile % across) * tileSize;
+		int y0 = (tile / across) * tileSize;
+		int x1 = Math.min(x0 + tileSize, width);
+		int y1 = Math.min(y0 + tileSize, height);
+		synchronized (tileLocks[tile]) {
+			for (int y = y0; y < y1; y++) {
+				for (int x = x0; x < x1; x++) {
+					int i = (y * width + x) * 3;
+					int c = ((y - y0) * tileSize + (x - x0)) * 3;
+					accumulation.put(i, accumulation.get(i) + rgb[c]);
+					accumulation.put(i + 1, accumulation.get(i + 1) + rgb[c + 1]);
+					accumulation.put(i + 2, accumulation.get(i + 2) + rgb[c + 2]);
+				}
+			}
+			tileSamples.incrementAndGet(tile);
+		}
+	}
+
+	/**
+	 * Runs one Worker per thread.
+	 */
+	private class Workers extends RecursiveAction {
+
+		private final int count;
+		private final AtomicLong next;
+		private final long deadline;
+
+		Workers(int count, AtomicLong next, long deadline) {
+			this.count = count;
+			this.next = next;
+			this.deadline = deadline;
+		}
+
+		protected void compute() {
+			Worker[] workers = new Worker[count];
+			for (int i = 0; i < count; i++)
+				workers[i] = new Worker(next, deadline);
+			invokeAll(workers);
+		}
+	}
+
+	/**
+	 * Takes tiles one after another, pass after pass, until there are none
+	 * left or it is time to stop. Tile n of pass p is job p * tileCount + n,
+	 * handed out in order, so every thread works on the same pass but for
+	 * a few tiles at its end.
+	 */
+	private class Worker extends RecursiveAction {
+
+		private final AtomicLong next;
+		private final long deadline;
+
+		Worker(AtomicLong next, long deadline) {
+			this.next = next;
+			this.deadline = deadline;
+		}
+
+		protected void compute() {
+			RayTracer.Tracer sampler = tracer.new Tracer();
+			float[] packetRgb = sampler.packetRgb;
+			float[] rgb = new float[tileSize * tileSize * 3];
+			while (!cancelled && System.nanoTime() < deadline) {
+				long job = next.getAndIncrement();
+				long pass = job / tileCount;
+				if (pass >= passes)
+					break;
+				int tile = order[(int) (job % tileCount)];
+				float offsetX = pass == 0 ? 0.5f : halton((int) pass, 2);
+				float offsetY = pass == 0 ? 0.5f : halton((int) pass, 3);
+
+				int x0 = (tile % across) * tileSize;
+				int y0 = (tile / across) * tileSize;
+				int x1 = Math.min(x0 + tileSize, width);
+				int y1 = Math.min(y0 + tileSize, height);
+				for (int y = y0; y < y1; y += RayTracer.PACKET_SIDE) {
+					for (int x = x0; x < x1; x += RayTracer.PACKET_SIDE) {
+						int w = Math.min(RayTracer.PACKET_SIDE, x1 - x);
+						int h = Math.min(RayTracer.PACKET_SIDE, y1 - y);
+						sampler.samplePacket(x, y, w, h, width, height, offsetX, offsetY);
+						for (int j = 0; j < h; j++) {
+							int c = ((y - y0 + j) * tileSize + (x - x0)) * 3;
+							System.arraycopy(packetRgb, j * w * 3, rgb, c, w * 3);
+						}
+					}
+				}
+				accumulate(tile, rgb);
+			}
+			rays.add(sampler.rays);
+		}
+	}
+
+	/**
+	 * @return The index'th number of the Halton sequence in a base, in [0, 1).
+	 */
+	static float halton(int index, int base) {
+		float result = 0.0f;
+		float f = 1.0f / base;
+		for (int i = index; i > 0; i /= base) {
+			result += f * (i % base);
+			f /= base;
+		}
+		return result;
+	}
+
+	/**
+	 * Orders tiles by square rings out from the middle of the image, each
+	 * ring clockwise from the right.
+	 *
+	 * @return Tile numbers, row by row, in the order to render them.
+	 */
+	static int[] spiral(final int across, final int down) {
+		Integer[] tiles = new Integer[across * down];
+		for (int i = 0; i < tiles.length; i++)
+			tiles[i] = i;
+		Arrays.sort(tiles, new Comparator<Integer>() {
+			public int compare(Integer a, Integer b) {
+				int c = Double.compare(ring(a), ring(b));
+				return c != 0 ? c : Double.compare(angle(a), angle(b));
+			}
+
+			private double ring(int tile) {
+				return Math.max(Math.abs(dx(tile)), Math.abs(dy(tile)));
+			}
+
+			private double angle(int tile) {
+				return Math.atan2(dy(tile), dx(tile));
+			}
+
+			private double dx(int tile) {
+				return tile % across + 0.5 - across / 2.0;
+			}
+
+			private double dy(int tile) {
+				return tile / across + 0.5 - down / 2.0;
+			}
+		});
+		int[] order = new int[tiles.length];
+		for (int i = 0; i < tiles.length; i++)
+			order[i] = tiles[i];
+		return order;
+	}
+}
@@ -0,0 +1,731 @@
+// Starting code Copyright 2014 University of South Australia
+// Written by Michael Marner <michael.marner@unisa.edu.au>
+//
+
+package inft3032.raytrace;
+
+import inft3032.assign.ViewState;
+import inft3032.drawables.Image;
+import inft3032.drawables.Mesh;
+import inft3032.drawables.RayHit;
+import inft3032.drawables.Shape;
+import inft3032.lighting.DirectionalLight;
+import inft3032.lighting.Light;
+import inft3032.lighting.SpotLight;
+import inft3032.math.AABB;
+import inft3032.math.BVH;
+import inft3032.math.MutableMatrix4;
+import inft3032.math.RayPacket;
+import inft3032.math.Vector3;
+import inft3032.scene.Camera;
+import inft3032.scene.Scene;
+import inft3032.scene.Trace;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.LongAdder;
+
+
+/**
+ * Renders a scene on the CPU by ray tracing, for machines without a GPU and
+ * as a reference for what the OpenGL renderer should draw.
+ * <p/>
+ * The view and shading match AssignGLListener and TransformDiffuse.frag: the
+ * same camera (direction taken as the point looked at, near and far planes
+ * from ViewState), and ambient, diffuse and specular light from every light,
+ * times the shape and vertex colours. Shadows can be turned on, which the
+ * OpenGL renderer doesn't have.
+ * <p/>
+ * Each shape is intersected in its own object space (see Shape.intersect),
+ * by carrying the ray through the inverse of its model matrix. Rays find
+ * shapes through a BVH over their world bounds, and meshes' triangles through
+ * their own (see Geometry.triangleBVH()), so the cost of a ray grows with the
+ * log of the scene's size rather than with it. Primary rays are traced in
+ * packets of 4x4 pixels (see RayPacket), which share most of their path
+ * through the shapes' BVH; shadow rays, which head off towards different
+ * lights from different points, are traced one at a time. The image is
+ * split into square tiles which are rendered in parallel with fork-join;
+ * tiles share nothing but the scene, which is read only, so rendering scales
+ * with the number of cores. Tracing a ray allocates nothing.
+ */
+public class RayTracer {
+
+	public static final int DEFAULT_TILE_SIZE = 32;
+
+	/**
+	 * The width and height in pixels of a packet of primary rays.
+	 */
+	static final int PACKET_SIDE = 4;
+
+	/**
+	 * The shininess AssignGLListener gives every program.
+	 */
+	private static final float SHININESS = 5.0f;
+
+	/**
+	 * How far a shadow ray starts from the surface, so it doesn't hit it.
+	 */
+	private static final float SHADOW_BIAS = 1e-3f;
+
+	private static final int POINT = 0;
+	private static final int DIRECTIONAL = 1;
+	private static final int SPOT = 2;
+
+	private final Scene scene;
+	private ForkJoinPool pool = ForkJoinPool.commonPool();
+	private int tileSize = DEFAULT_TILE_SIZE;
+	private boolean shadows;
+	private boolean packets = true;
+
+	// The scene flattened by prepare(), read by every thread while rendering
+	private Shape[] shapes;
+	private float[] inverse;     // 12 per shape: the top three rows of the inverse model matrix
+	private float[] bounds;      // 6 per shape: world space min and max, infinite if unknown
+	private float[] colours;     // 3 per shape: Shape.colour()
+	private BVH tree;            // over the shapes with bounds
+	private int[] treeShapes;    // the shape in each of the tree's slots
+	private int[] unbounded;     // the shapes without bounds, which every ray is tested against
+	private int lightCount;
+	private int[] lightTypes;
+	private float[] lightData;   // 12 per light: position, colour, direction, cos cut-off, drop-off
+	private float ambientR, ambientG, ambientB;
+	private float backgroundR, backgroundG, backgroundB;
+	private float eyeX, eyeY, eyeZ;
+	private float fwdX, fwdY, fwdZ;
+	private float sideX, sideY, sideZ;
+	private float upX, upY, upZ;
+
+	private final LongAdder rays = new LongAdder();
+	private long renderNanos;
+
+	/**
+	 * @param scene The scene to render. Its assets are waited for on the first render.
+	 */
+	public RayTracer(Scene scene) {
+		this.scene = scene;
+	}
+
+	/**
+	 * Renders on a pool of its own rather than the common pool.
+	 *
+	 * @param threads The number of threads to render with.
+	 */
+	public void setThreads(int threads) {
+		pool = new ForkJoinPool(threads);
+	}
+
+	public void setTileSize(int tileSize) {
+		this.tileSize = tileSize;
+	}
+
+	/**
+	 * Turns shadows on or off. Off by default, to match the OpenGL renderer.
+	 *
+	 * @param shadows True to trace a shadow ray to each light.
+	 */
+	public void setShadows(boolean shadows) {
+		this.shadows = shadows;
+	}
+
+	/**
+	 * Turns packet tracing of primary rays on or off. On by default; off
+	 * traces every ray on its own, which gives the same image more slowly.
+	 *
+	 * @param packets True to trace primary rays in packets.
+	 */
+	public void setPackets(boolean packets) {
+		this.packets = packets;
+	}
+
+	/**
+	 * Renders the scene into a new image.
+	 *
+	 * @param width The image width.
+	 * @param height The image height.
+	 * @return The image.
+	 */
+	public Image render(int width, int height) {
+		Image image = new Image(height, width);
+		render(image);
+		return image;
+	}
+
+	/**
+	 * Renders the scene into an image, overwriting every pixel. The scene's
+	 * camera, shapes and lights are read at the start, so changes made to
+	 * the scene between renders are picked up.
+	 *
+	 * @param image The image to render into.
+	 */
+	public void render(Image image) {
+		prepare();
+		rays.reset();
+		long start = System.nanoTime();
+		int across = (image.width() + tileSize - 1) / tileSize;
+		int down = (image.height() + tileSize - 1) / tileSize;
+		pool.invoke(new Tiles(image, across, 0, across * down));
+		renderNanos = System.nanoTime() - start;
+		Trace.msg("Ray traced " + image.width() + "x" + image.height() + ": " + this);
+	}
+
+	/**
+	 * @return The pool rendering is done on.
+	 */
+	ForkJoinPool pool() {
+		return pool;
+	}
+
+	int tileSize() {
+		return tileSize;
+	}
+
+	/**
+	 * @return The number of rays traced by the last render, primary and shadow.
+	 */
+	public long rays() {
+		return rays.sum();
+	}
+
+	/**
+	 * @return How long the last render took, in nanoseconds.
+	 */
+	public long renderNanos() {
+		return renderNanos;
+	}
+
+	/**
+	 * @return The rays traced per second by the last render.
+	 */
+	public double raysPerSecond() {
+		return renderNanos == 0 ? 0 : rays.sum() * 1.0e9 / renderNanos;
+	}
+
+	public String toString() {
+		return String.format("%d rays in %.1fms, %.2fM rays/s on %d threads",
+				rays.sum(), renderNanos / 1.0e6, raysPerSecond() / 1.0e6, pool.getParallelism());
+	}
+
+	/**
+	 * Renders a range of tiles, splitting it in half until there is one tile
+	 * left. Tiles are numbered row by row.
+	 */
+	private class Tiles extends RecursiveAction {
+
+		private final Image image;
+		private final int across;
+		private final int first;
+		private final int end;
+
+		Tiles(Image image, int across, int first, int end) {
+			this.image = image;
+			this.across = across;
+			this.first = first;
+			this.end = end;
+		}
+
+		protected void compute() {
+			if (end - first > 1) {
+				int middle = (first + end) >>> 1;
+				invokeAll(new Tiles(image, across, first, middle), new Tiles(image, across, middle, end));
+				return;
+			}
+			int x0 = (first % across) * tileSize;
+			int y0 = (first / across) * tileSize;
+			int x1 = Math.min(x0 + tileSize, image.width());
+			int y1 = Math.min(y0 + tileSize, image.height());
+			Tracer tracer = new Tracer();
+			float[] rgb = tracer.packetRgb;
+			for (int y = y0; y < y1; y += PACKET_SIDE) {
+				for (int x = x0; x < x1; x += PACKET_SIDE) {
+					int w = Math.min(PACKET_SIDE, x1 - x);
+					int h = Math.min(PACKET_SIDE, y1 - y);
+					tracer.samplePacket(x, y, w, h, image.width(), image.height(), 0.5f, 0.5f);
+					for (int j = 0; j < h; j++) {
+						for (int i = 0; i < w; i++) {
+							int c = (j * w + i) * 3;
+							image.set(x + i, y + j, Image.colour(toByte(rgb[c]), toByte(rgb[c + 1]), toByte(rgb[c + 2]), 255));
+						}
+					}
+				}
+			}
+			rays.add(tracer.rays);
+		}
+	}
+
+	static int toByte(float c) {
+		return Image.clamp(Math.round(c * 255.0f));
+	}
+
+	/**
+	 * Flattens the scene into arrays for the tracers to share.
+	 */
+	void prepare() {
+		scene.awaitAssets();
+
+		int n = scene.shapes.size();
+		shapes = scene.shapes.toArray(new Shape[n]);
+		inverse = new float[n * 12];
+		bounds = new float[n * 6];
+		colours = new float[n * 3];
+		MutableMatrix4 model = new MutableMatrix4();
+		MutableMatrix4 inv = new MutableMatrix4();
+		AABB box = new AABB();
+		for (int i = 0; i < n; i++) {
+			Shape s = shapes[i];
+			// Built now rather than by whichever thread gets to the mesh first
+			if (s instanceof Mesh && ((Mesh) s).geometry != null)
+				((Mesh) s).geometry.triangleBVH();
+
+			model.set(s.modelMatrix()).invertInto(inv);
+			for (int r = 0; r < 3; r++) {
+				for (int c = 0; c < 4; c++)
+					inverse[i * 12 + r * 4 + c] = inv.get(r, c);
+			}
+
+			if (s.localBounds(box)) {
+				box.transform(s.modelMatrix(), box);
+				bounds[i * 6] = box.minX;
+				bounds[i * 6 + 1] = box.minY;
+				bounds[i * 6 + 2] = box.minZ;
+				bounds[i * 6 + 3] = box.maxX;
+				bounds[i * 6 + 4] = box.maxY;
+				bounds[i * 6 + 5] = box.maxZ;
+			}
+			else {
+				for (int k = 0; k < 3; k++) {
+					bounds[i * 6 + k] = Float.NEGATIVE_INFINITY;
+					bounds[i * 6 + 3 + k] = Float.POSITIVE_INFINITY;
+				}
+			}
+
+			Vector3 colour = s.colour();
+			colours[i * 3] = colour.getX();
+			colours[i * 3 + 1] = colour.getY();
+			colours[i * 3 + 2] = colour.getZ();
+		}
+
+		buildTree(n);
+
+		Light[] lights = scene.lights;
+		lightCount = lights.length;
+		lightTypes = new int[lightCount];
+		lightData = new float[lightCount * 12];
+		for (int i = 0; i < lightCount; i++) {
+			Light l = lights[i];
+			int o = i * 12;
+			Vector3 direction = null;
+			if (l instanceof SpotLight) {
+				SpotLight s = (SpotLight) l;
+				lightTypes[i] = SPOT;
+				direction = s.direction;
+				lightData[o + 10] = s.cosCutOffAngle;
+				lightData[o + 11] = s.dropOffRate;
+			}
+			else if (l instanceof DirectionalLight) {
+				lightTypes[i] = DIRECTIONAL;
+				direction = ((DirectionalLight) l).direction;
+			}
+			else {
+				lightTypes[i] = POINT;
+			}
+			if (l.location != null)
+				put(lightData, o, l.location);
+			put(lightData, o + 3, l.colour);
+			if (direction != null)
+				put(lightData, o + 6, direction);
+		}
+
+		ambientR = scene.ambient.getX();
+		ambientG = scene.ambient.getY();
+		ambientB = scene.ambient.getZ();
+		backgroundR = scene.background.getX();
+		backgroundG = scene.background.getY();
+		backgroundB = scene.background.getZ();
+
+		// The same view as ViewState: the camera's direction is the point looked at
+		Camera camera = scene.camera;
+		Vector3 eye = camera.getPosition();
+		Vector3 forward = camera.getDirection().subtract(eye).unit();
+		Vector3 up = camera.getUp();
+		up = up.subtract(forward.mult(up.dot(forward))).unit();
+		Vector3 side = forward.cross(up);
+		// Scaled so a direction's forward component is 1, and t is the depth
+		float tanHalf = (float) Math.tan(Math.toRadians(camera.getHeightAngle()) / 2.0);
+		float aspect = camera.getAspectRatio();
+		eyeX = eye.getX();
+		eyeY = eye.getY();
+		eyeZ = eye.getZ();
+		fwdX = forward.getX();
+		fwdY = forward.getY();
+		fwdZ = forward.getZ();
+		sideX = side.getX() * tanHalf * aspect;
+		sideY = side.getY() * tanHalf * aspect;
+		sideZ = side.getZ() * tanHalf * aspect;
+		upX = up.getX() * tanHalf;
+		upY = up.getY() * tanHalf;
+		upZ = up.getZ() * tanHalf;
+	}
+
+	/**
+	 * Builds the BVH over the shapes with finite bounds, and lists the rest.
+	 */
+	private void buildTree(int n) {
+		float[] treeBounds = new float[n * 6];
+		int[] boundedShapes = new int[n];
+		int[] others = new int[n];
+		int count = 0;
+		int otherCount = 0;
+		for (int i = 0; i < n; i++) {
+			if (bounds[i * 6] == Float.NEGATIVE_INFINITY) {
+				others[otherCount++] = i;
+			}
+			else {
+				System.arraycopy(bounds, i * 6, treeBounds, count * 6, 6);
+				boundedShapes[count++] = i;
+			}
+		}
+		tree = BVH.build(treeBounds, count, pool);
+		treeShapes = new int[count];
+		for (int slot = 0; slot < count; slot++)
+			treeShapes[slot] = boundedShapes[tree.primitive(slot)];
+		unbounded = Arrays.copyOf(others, otherCount);
+	}
+
+	private static void put(float[] a, int o, Vector3 v) {
+		a[o] = v.getX();
+		a[o + 1] = v.getY();
+		a[o + 2] = v.getZ();
+	}
+
+	/**
+	 * Traces rays for one thread, with its own scratch space.
+	 */
+	class Tracer implements BVH.Primitives, BVH.PacketPrimitives {
+
+		/**
+		 * The colour of the last sample.
+		 */
+		final float[] rgb = new float[3];
+
+		/**
+		 * The number of rays traced.
+		 */
+		long rays;
+
+		private RayHit hit = new RayHit();
+		private RayHit scratch = new RayHit();
+		private final int[] stack = new int[BVH.MAX_DEPTH];
+
+		/**
+		 * The colours of the last packet's lanes, 3 floats each.
+		 */
+		final float[] packetRgb = new float[RayPacket.SIZE * 3];
+
+		private final RayPacket packet = new RayPacket();
+		private final RayHit[] packetHits = new RayHit[RayPacket.SIZE];
+		private final int[] packetShapes = new int[RayPacket.SIZE];
+		private final int[] packetStack = new int[BVH.MAX_DEPTH * 2];
+
+		// The ray being traced through the tree, for intersect(int, float, float)
+		private float ox, oy, oz, dx, dy, dz, ix, iy, iz;
+		private boolean any;
+		private int nearest;
+
+		Tracer() {
+			for (int i = 0; i < packetHits.length; i++)
+				packetHits[i] = new RayHit();
+		}
+
+		/**
+		 * Traces the primary rays through a block of pixels as a packet, and
+		 * shades what they hit, leaving the colours in packetRgb row by row.
+		 * Blocks whose rays aren't coherent (see RayPacket.prepare()) are
+		 * traced a ray at a time.
+		 *
+		 * @param x0 The block's left edge, in pixels.
+		 * @param y0 The block's top edge.
+		 * @param w The block's width, at most PACKET_SIDE.
+		 * @param h The block's height, at most PACKET_SIDE.
+		 * @param width The image width.
+		 * @param height The image height.
+		 * @param offsetX Where in each pixel to sample, from 0 (its left edge) to 1.
+		 * @param offsetY Where in each pixel to sample, from 0 (its top edge) to 1.
+		 */
+		void samplePacket(int x0, int y0, int w, int h, int width, int height, float offsetX, float offsetY) {
+			RayPacket p = packet;
+			p.count = w * h;
+			p.tMin = ViewState.NEAR;
+			for (int j = 0; j < h; j++) {
+				float sy = 1.0f - 2.0f * (y0 + j + offsetY) / height;
+				for (int i = 0; i < w; i++) {
+					float sx = 2.0f * (x0 + i + offsetX) / width - 1.0f;
+					int lane = j * w + i;
+					p.ox[lane] = eyeX;
+					p.oy[lane] = eyeY;
+					p.oz[lane] = eyeZ;
+					p.dx[lane] = fwdX + sx * sideX + sy * upX;
+					p.dy[lane] = fwdY + sx * sideY + sy * upY;
+					p.dz[lane] = fwdZ + sx * sideZ + sy * upZ;
+					p.tMax[lane] = ViewState.FAR;
+				}
+			}
+
+			if (!packets || !p.prepare()) {
+				for (int lane = 0; lane < p.count; lane++) {
+					sample(x0 + lane % w + offsetX, y0 + lane / w + offsetY, width, height);
+					packetRgb[lane * 3] = rgb[0];
+					packetRgb[lane * 3 + 1] = rgb[1];
+					packetRgb[lane * 3 + 2] = rgb[2];
+				}
+				return;
+			}
+
+			rays += p.count;
+			for (int lane = 0; lane < p.count; lane++)
+				packetShapes[lane] = -1;
+			tree.traverse(p, packetStack, this);
+			for (int lane = 0; lane < p.count; lane++) {
+				for (int i : unbounded) {
+					if (intersect(i, p.ox[lane], p.oy[lane], p.oz[lane], p.dx[lane], p.dy[lane], p.dz[lane],
+							p.tMin, p.tMax[lane], scratch))
+						keep(lane, i);
+				}
+				int shape = packetShapes[lane];
+				if (shape < 0) {
+					rgb[0] = backgroundR;
+					rgb[1] = backgroundG;
+					rgb[2] = backgroundB;
+				}
+				else {
+					float t = p.tMax[lane];
+					shade(shape, packetHits[lane],
+							p.ox[lane] + t * p.dx[lane], p.oy[lane] + t * p.dy[lane], p.oz[lane] + t * p.dz[lane]);
+				}
+				packetRgb[lane * 3] = rgb[0];
+				packetRgb[lane * 3 + 1] = rgb[1];
+				packetRgb[lane * 3 + 2] = rgb[2];
+			}
+		}
+
+		/**
+		 * Tests the shape in one of the tree's slots against a packet's lanes.
+		 */
+		public void intersect(int slot, int first, RayPacket p) {
+			int shape = treeShapes[slot];
+			for (int lane = first; lane < p.count; lane++) {
+				if (hitsBounds(shape, p.ox[lane], p.oy[lane], p.oz[lane], p.ix[lane], p.iy[lane], p.iz[lane],
+						p.tMin, p.tMax[lane])
+						&& intersect(shape, p.ox[lane], p.oy[lane], p.oz[lane], p.dx[lane], p.dy[lane], p.dz[lane],
+								p.tMin, p.tMax[lane], scratch))
+					keep(lane, shape);
+			}
+		}
+
+		/**
+		 * Makes the hit in scratch a lane's nearest.
+		 */
+		private void keep(int lane, int shape) {
+			RayHit swap = packetHits[lane];
+			packetHits[lane] = scratch;
+			scratch = swap;
+			packetShapes[lane] = shape;
+			packet.tMax[lane] = packetHits[lane].t;
+		}
+
+		/**
+		 * Traces the primary ray through a point on the image and shades what it hits.
+		 *
+		 * @param px The point across the image, in pixels from the left.
+		 * @param py The point down the image, in pixels from the top.
+		 * @param width The image width.
+		 * @param height The image height.
+		 */
+		void sample(float px, float py, int width, int height) {
+			float sx = 2.0f * px / width - 1.0f;
+			float sy = 1.0f - 2.0f * py / height;
+			float dx = fwdX + sx * sideX + sy * upX;
+			float dy = fwdY + sx * sideY + sy * upY;
+			float dz = fwdZ + sx * sideZ + sy * upZ;
+
+			int nearest = closest(eyeX, eyeY, eyeZ, dx, dy, dz, ViewState.NEAR, ViewState.FAR);
+			if (nearest < 0) {
+				rgb[0] = backgroundR;
+				rgb[1] = backgroundG;
+				rgb[2] = backgroundB;
+				return;
+			}
+			shade(nearest, hit, eyeX + hit.t * dx, eyeY + hit.t * dy, eyeZ + hit.t * dz);
+		}
+
+		/**
+		 * Finds the nearest shape a ray hits, leaving the hit in this.hit.
+		 *
+		 * @return The index of the shape, or -1 if it hits nothing.
+		 */
+		private int closest(float ox, float oy, float oz, float dx, float dy, float dz, float tMin, float tMax) {
+			rays++;
+			setRay(ox, oy, oz, dx, dy, dz, false);
+			nearest = -1;
+			tMax = tree.traverse(ox, oy, oz, dx, dy, dz, tMin, tMax, false, stack, this);
+			for (int i : unbounded) {
+				if (intersect(i, ox, oy, oz, dx, dy, dz, tMin, tMax, scratch)) {
+					tMax = scratch.t;
+					nearest = i;
+					RayHit swap = hit;
+					hit = scratch;
+					scratch = swap;
+				}
+			}
+			return nearest;
+		}
+
+		/**
+		 * @return True if a ray hits anything between tMin and tMax.
+		 */
+		private boolean occluded(float ox, float oy, float oz, float dx, float dy, float dz, float tMin, float tMax) {
+			rays++;
+			setRay(ox, oy, oz, dx, dy, dz, true);
+			if (tree.traverse(ox, oy, oz, dx, dy, dz, tMin, tMax, true, stack, this) < tMax)
+				return true;
+			for (int i : unbounded) {
+				if (intersect(i, ox, oy, oz, dx, dy, dz, tMin, tMax, scratch))
+					return true;
+			}
+			return false;
+		}
+
+		private void setRay(float ox, float oy, float oz, float dx, float dy, float dz, boolean any) {
+			this.ox = ox;
+			this.oy = oy;
+			this.oz = oz;
+			this.dx = dx;
+			this.dy = dy;
+			this.dz = dz;
+			this.ix = 1.0f / dx;
+			this.iy = 1.0f / dy;
+			this.iz = 1.0f / dz;
+			this.any = any;
+		}
+
+		/**
+		 * Tests the shape in one of the tree's slots against the current ray.
+		 * For the nearest hit, a hit becomes this.hit and the shape this.nearest.
+		 */
+		public float intersect(int slot, float tMin, float tMax) {
+			int shape = treeShapes[slot];
+			if (!hitsBounds(shape, ox, oy, oz, ix, iy, iz, tMin, tMax)
+					|| !intersect(shape, ox, oy, oz, dx, dy, dz, tMin, tMax, scratch))
+				return tMax;
+			if (!any) {
+				nearest = shape;
+				RayHit swap = hit;
+				hit = scratch;
+				scratch = swap;
+				return hit.t;
+			}
+			return scratch.t;
+		}
+
+		/**
+		 * Works out the colour at a hit on a shape, as TransformDiffuse.frag does,
+		 * leaving it in rgb.
+		 */
+		private void shade(int shape, RayHit hit, float px, float py, float pz) {
+			// The normal goes to world space by the inverse transpose of the model matrix
+			float[] m = inverse;
+			int o = shape * 12;
+			float nx = m[o] * hit.nx + m[o + 4] * hit.ny + m[o + 8] * hit.nz;
+			float ny = m[o + 1] * hit.nx + m[o + 5] * hit.ny + m[o + 9] * hit.nz;
+			float nz = m[o + 2] * hit.nx + m[o + 6] * hit.ny + m[o + 10] * hit.nz;
+			float length = (float) Math.sqrt(nx * nx + ny * ny + nz * nz);
+			nx /= length;
+			ny /= length;
+			nz /= length;
+
+			float vx = eyeX - px, vy = eyeY - py, vz = eyeZ - pz;
+			length = (float) Math.sqrt(vx * vx + vy * vy + vz * vz);
+			vx /= length;
+			vy /= length;
+			vz /= length;
+
+			float r = ambientR, g = ambientG, b = ambientB;
+			float[] l = lightData;
+			for (int i = 0; i < lightCount; i++) {
+				int k = i * 12;
+				float lx, ly, lz, distance;
+				if (lightTypes[i] == DIRECTIONAL) {
+					lx = -l[k + 6];
+					ly = -l[k + 7];
+					lz = -l[k + 8];
+					distance = Float.POSITIVE_INFINITY;
+				}
+				else {
+					lx = l[k] - px;
+					ly = l[k + 1] - py;
+					lz = l[k + 2] - pz;
+					distance = (float) Math.sqrt(lx * lx + ly * ly + lz * lz);
+					lx /= distance;
+					ly /= distance;
+					lz /= distance;
+				}
+				float amount = 1.0f;
+				if (lightTypes[i] == SPOT) {
+					float cosAngle = -(lx * l[k + 6] + ly * l[k + 7] + lz * l[k + 8]);
+					amount = cosAngle < l[k + 10] ? 0.0f : (float) Math.pow(cosAngle, l[k + 11]);
+				}
+				float diffuse = Math.max(nx * lx + ny * ly + nz * lz, 0.0f);
+				if (amount == 0.0f)
+					continue;
+				if (shadows && occluded(px, py, pz, lx, ly, lz, SHADOW_BIAS, distance))
+					continue;
+
+				// reflect(-L, N) = 2(N.L)N - L
+				float nl = 2.0f * (nx * lx + ny * ly + nz * lz);
+				float rx = nl * nx - lx, ry = nl * ny - ly, rz = nl * nz - lz;
+				float specular = (float) Math.pow(Math.max(vx * rx + vy * ry + vz * rz, 0.0f), SHININESS);
+
+				float light = (diffuse + specular) * amount;
+				r += light * l[k + 3];
+				g += light * l[k + 4];
+				b += light * l[k + 5];
+			}
+
+			rgb[0] = r * colours[shape * 3] * hit.r;
+			rgb[1] = g * colours[shape * 3 + 1] * hit.g;
+			rgb[2] = b * colours[shape * 3 + 2] * hit.b;
+		}
+
+		/**
+		 * Slab test against a shape's world bounds, as a leaf of the tree holds several shapes.
+		 */
+		private boolean hitsBounds(int shape, float ox, float oy, float oz, float ix, float iy, float iz,
+				float tMin, float tMax) {
+			float[] b = bounds;
+			int o = shape * 6;
+			float x0 = (b[o] - ox) * ix, x1 = (b[o + 3] - ox) * ix;
+			float y0 = (b[o + 1] - oy) * iy, y1 = (b[o + 4] - oy) * iy;
+			float z0 = (b[o + 2] - oz) * iz, z1 = (b[o + 5] - oz) * iz;
+			float near = Math.max(Math.max(Math.min(x0, x1), Math.min(y0, y1)), Math.max(Math.min(z0, z1), tMin));
+			float far = Math.min(Math.min(Math.max(x0, x1), Math.max(y0, y1)), Math.min(Math.max(z0, z1), tMax));
+			// Written so NaNs, from infinite bounds on a zero direction, count as a hit
+			return !(near > far);
+		}
+
+		/**
+		 * Carries a ray into a shape's object space and intersects it there.
+		 */
+		private boolean intersect(int shape, float ox, float oy, float oz, float dx, float dy, float dz,
+				float tMin, float tMax, RayHit out) {
+			float[] m = inverse;
+			int o = shape * 12;
+			float lox = m[o] * ox + m[o + 1] * oy + m[o + 2] * oz + m[o + 3];
+			float loy = m[o + 4] * ox + m[o + 5] * oy + m[o + 6] * oz + m[o + 7];
+			float loz = m[o + 8] * ox + m[o + 9] * oy + m[o + 10] * oz + m[o + 11];
+			float ldx = m[o] * dx + m[o + 1] * dy + m[o + 2] * dz;
+			float ldy = m[o + 4] * dx + m[o + 5] * dy + m[o + 6] * dz;
+			float ldz = m[o + 8] * dx + m[o + 9] * dy + m[o + 10] * dz;
+			return shapes[shape].intersect(lox, loy, loz, ldx, ldy, ldz, tMin, tMax, out);
+		}
+	}
+}
@@ -0,0 +1,110 @@
+// Starting code Copyright 2014 University of South Australia
+// Written by Michael Marner <michael.marner@unisa.edu.au>
+//
+package inft3032.scene;
+
+
+import inft3032.drawables.Geometry;
+import inft3032.drawables.Image;
+import inft3032.drawables.MeshCache;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * Loads the textures and meshes a scene refers to in the background, so
+ * Scene.read can carry on parsing while they load.
+ * <p>
+ * Reading files happens on an unbounded pool of I/O threads, as they
+ * spend most of their time waiting on the disk. Decoding happens on a pool
+ * with one thread per core. Each load logs how long it took through Trace.
+ * <p>
+ * The threads are daemons, so they don't keep the program running.
+ */
+public final class AssetLoader {
+
+    private static final ExecutorService IO = Executors.newCachedThreadPool(threads("asset-io"));
+    private static final ExecutorService DECODE = Executors.newFixedThreadPool(
+            Runtime.getRuntime().availableProcessors(), threads("asset-decode"));
+
+    private AssetLoader() {
+    }
+
+    private static ThreadFactory threads(final String name) {
+        final AtomicInteger count = new AtomicInteger();
+        return new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, name + "-" + count.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        };
+    }
+
+    /**
+     * Starts loading a bitmap. The file is read on an I/O thread and decoded
+     * into native memory (see Image.isDirect) on a decode thread.
+     *
+     * @param fileName The bitmap file.
+     * @return The image, or an IOException from reading or decoding it.
+     */
+    public static CompletableFuture<Image> image(final String fileName) {
+        final long start = System.nanoTime();
+        return CompletableFuture.supplyAsync(new Supplier<ByteBuffer>() {
+            public ByteBuffer get() {
+                try {
+                    return ByteBuffer.wrap(Files.readAllBytes(Paths.get(fileName)));
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+        }, IO).thenApplyAsync(new Function<ByteBuffer, Image>() {
+            public Image apply(ByteBuffer bytes) {
+                long read = System.nanoTime();
+                Image image = Image.allocateDirect(0, 0);
+                try {
+                    image.read(bytes, 0);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+                long done = System.nanoTime();
+                Trace.msg(String.format("Loaded %s: %dx%d, read after %.1fms, decoded in %.1fms", fileName,
+                        image.width(), image.height(), (read - start) / 1.0e6, (done - read) / 1.0e6));
+                return image;
+            }
+        }, DECODE);
+    }
+
+    /**
+     * Starts loading a mesh through the mesh cache, on a decode thread.
+     *
+     * @param fileName The OBJ file.
+     * @return The mesh, or an IOException from loading it.
+     */
+    public static CompletableFuture<Geometry> mesh(final String fileName) {
+        return CompletableFuture.supplyAsync(new Supplier<Geometry>() {
+            public Geometry get() {
+                long start = System.nanoTime();
+                try {
+                    Geometry g = MeshCache.load(new File(fileName));
+                    Trace.msg(String.format("Loaded %s: %d vertices, %d triangles in %.1fms", fileName,
+                            g.vertexCount, g.triangleCount(), (System.nanoTime() - start) / 1.0e6));
+                    return g;
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+        }, DECODE);
+    }
+}
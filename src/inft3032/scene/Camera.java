@@ -74,4 +74,25 @@ public class Camera {
         return right;
     }
 
+    /**
+     * Works out this camera moved round the point it looks at, about its up
+     * vector. The renderer treats the camera's direction as that point (see
+     * ViewState).
+     *
+     * @param degrees How far round to move it.
+     * @return The moved camera.
+     */
+    public Camera orbit(float degrees) {
+        Vector3 axis = up.unit();
+        Vector3 offset = position.subtract(direction);
+        double angle = Math.toRadians(degrees);
+        float cos = (float) Math.cos(angle);
+        float sin = (float) Math.sin(angle);
+        // Rodrigues' rotation formula
+        Vector3 rotated = offset.mult(cos)
+                .plus(axis.cross(offset).mult(sin))
+                .plus(axis.mult(axis.dot(offset) * (1 - cos)));
+        return new Camera(direction.plus(rotated), direction, up, aspectRatio, heightAngle);
+    }
+
 }
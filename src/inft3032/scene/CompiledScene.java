@@ -0,0 +1,865 @@
+// Starting code Copyright 2014 University of South Australia
+// Written by Michael Marner <michael.marner@unisa.edu.au>
+//
+package inft3032.scene;
+
+
+import inft3032.drawables.*;
+import inft3032.lighting.*;
+import inft3032.math.Matrix4;
+import inft3032.math.Vector2;
+import inft3032.math.Vector3;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * A compiled, binary form of a scene file, so big scenes don't have to be parsed every run.
+ * <p>
+ * A scene such as BoxWorld.scene compiles to BoxWorld.scene.bin next to it
+ * (Assignment -compile). Scene.read uses the compiled file instead of the
+ * text whenever it is at least as new. Textures and meshes are stored by file
+ * name and loaded as usual.
+ * <p>
+ * Reading builds the whole scene, since rendering needs every Shape. Tools
+ * that don't can use shapes(), which maps the SHAPES section and reads each
+ * record in place.
+ * <p>
+ * The file is little-endian: a header, a table of sections, then the sections,
+ * each starting on a 16 byte boundary:
+ * <pre>
+ *  0  magic "A2SCENE\0", int version, int section count
+ * 16  per section: int id, int record count, long offset, long length (24 bytes each)
+ * </pre>
+ * Each section is a flat struct of arrays, one array after another, so a
+ * reader can map just the sections and arrays it wants:
+ * <pre>
+ * STRINGS    int end offset of each string (n), then the UTF-8 bytes
+ * SETTINGS   floats: camera position, direction, up (3 each), aspect ratio, height angle,
+ *            ambient (3), background (3); ints: vertex shader, fragment shader
+ * LIGHTS     int type (n); floats: colour (3n), location (3n), direction (3n),
+ *            attenuation (3n), cut off angle (n), cos cut off angle (n), drop off rate (n)
+ * TEXTURES   int file name (n)
+ * MATERIALS  floats: ambient, diffuse, specular, emissive (3n each), specular exponent (n),
+ *            transparency (n), refractive index (n); ints: texture (n), extra info (n),
+ *            vertex shader (n), fragment shader (n)
+ * VERTICES   floats: position (3n), normal (3n), texture coordinate (2n), colour (3n)
+ * SHAPES     int type (n), int material (n), float transform (16n, row major), int parameters (4n)
+ * </pre>
+ * Strings are stored as their index in STRINGS, or -1 for null. Missing
+ * vectors are NaN. The parameters of each shape type are:
+ * <pre>
+ * SPHERE     float radius
+ * BOX        float width, height, depth
+ * CONE       float radius, height
+ * CYLINDER   float radius, height
+ * MESH       int file name
+ * TRIANGLE   int vertex, vertex, vertex
+ * </pre>
+ */
+public final class CompiledScene {
+
+    public static final String EXTENSION = ".bin";
+
+    private static final byte[] MAGIC = { 'A', '2', 'S', 'C', 'E', 'N', 'E', 0 };
+    private static final int VERSION = 2;
+    private static final int HEADER_SIZE = 16;
+    private static final int ENTRY_SIZE = 24;
+
+    // Section ids
+    static final int STRINGS = 1;
+    static final int SETTINGS = 2;
+    static final int LIGHTS = 3;
+    static final int TEXTURES = 4;
+    static final int MATERIALS = 5;
+    static final int VERTICES = 6;
+    static final int SHAPES = 7;
+
+    // Light types
+    static final int POINT = 0;
+    static final int DIRECTIONAL = 1;
+    static final int SPOT = 2;
+
+    // Shape types
+    public static final int SPHERE = 0;
+    public static final int BOX = 1;
+    public static final int CONE = 2;
+    public static final int CYLINDER = 3;
+    public static final int MESH = 4;
+    public static final int TRIANGLE = 5;
+
+    private CompiledScene() {
+    }
+
+    /**
+     * @param sceneFile A text scene file.
+     * @return Where its compiled form goes.
+     */
+    public static File compiledFile(String sceneFile) {
+        return new File(sceneFile + EXTENSION);
+    }
+
+    /**
+     * @param sceneFile A text scene file.
+     * @return True if there is a compiled form at least as new as it.
+     */
+    public static boolean isFresh(String sceneFile) {
+        File compiled = compiledFile(sceneFile);
+        return compiled.isFile() && compiled.lastModified() >= new File(sceneFile).lastModified();
+    }
+
+    // ------------------------------ writing ------------------------------
+
+    /**
+     * Gives each distinct string a number.
+     */
+    private static class Strings {
+        final List<byte[]> bytes = new ArrayList<byte[]>();
+        final Map<String, Integer> ids = new HashMap<String, Integer>();
+        int size;
+
+        int id(String s) {
+            if (s == null)
+                return -1;
+            Integer id = ids.get(s);
+            if (id == null) {
+                id = bytes.size();
+                ids.put(s, id);
+                byte[] b = s.getBytes(StandardCharsets.UTF_8);
+                bytes.add(b);
+                size += b.length;
+            }
+            return id;
+        }
+    }
+
+    /**
+     * Writes a scene in compiled form.
+     *
+     * @param scene The scene, as read from a text file.
+     * @param file The compiled file to write.
+     * @throws IOException If the file can't be written.
+     * @throws SceneFileException If the scene has a shape that can't be compiled.
+     */
+    public static void write(Scene scene, File file) throws IOException {
+        scene.awaitAssets();
+        Strings strings = new Strings();
+        int[] ids = { SETTINGS, LIGHTS, TEXTURES, MATERIALS, VERTICES, SHAPES, STRINGS };
+        int[] counts = { 1, scene.lights.length, scene.textures.length, scene.materials.length,
+                scene.vertices.length, scene.shapes.size(), 0 };
+        ByteBuffer[] sections = {
+                settings(scene, strings),
+                lights(scene),
+                textures(scene, strings),
+                materials(scene, strings),
+                vertices(scene),
+                shapes(scene, strings),
+                null
+        };
+        // Last, once every string has a number
+        sections[6] = strings(strings);
+        counts[6] = strings.bytes.size();
+
+        ByteBuffer header = section(HEADER_SIZE + ENTRY_SIZE * ids.length);
+        header.put(MAGIC).putInt(VERSION).putInt(ids.length);
+        long[] offsets = new long[ids.length];
+        long at = align(header.capacity());
+        for (int i = 0; i < ids.length; i++) {
+            offsets[i] = at;
+            header.putInt(ids[i]).putInt(counts[i]).putLong(at).putLong(sections[i].capacity());
+            at = align(at + sections[i].capacity());
+        }
+
+        File temp = new File(file.getPath() + ".tmp");
+        RandomAccessFile out = new RandomAccessFile(temp, "rw");
+        try {
+            FileChannel channel = out.getChannel();
+            channel.truncate(0);
+            write(channel, header, 0);
+            for (int i = 0; i < ids.length; i++)
+                write(channel, sections[i], offsets[i]);
+        } finally {
+            out.close();
+        }
+        Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    private static ByteBuffer settings(Scene scene, Strings strings) {
+        ByteBuffer b = section(17 * 4 + 2 * 4);
+        Camera c = scene.camera;
+        putVector(b, c.getPosition());
+        putVector(b, c.getDirection());
+        putVector(b, c.getUp());
+        b.putFloat(c.getAspectRatio()).putFloat(c.getHeightAngle());
+        putVector(b, scene.ambient);
+        putVector(b, scene.background);
+        b.putInt(strings.id(scene.vert)).putInt(strings.id(scene.frag));
+        return b;
+    }
+
+    private static ByteBuffer lights(Scene scene) {
+        Light[] lights = scene.lights;
+        int n = lights.length;
+        ByteBuffer b = section(n * 4 + n * 12 * 4 + n * 3 * 4);
+        for (Light l : lights)
+            b.putInt(l instanceof SpotLight ? SPOT : l instanceof DirectionalLight ? DIRECTIONAL : POINT);
+        for (Light l : lights)
+            putVector(b, l.colour);
+        for (Light l : lights)
+            putVector(b, l.location);
+        for (Light l : lights)
+            putVector(b, l instanceof SpotLight ? ((SpotLight) l).direction
+                    : l instanceof DirectionalLight ? ((DirectionalLight) l).direction : null);
+        for (Light l : lights) {
+            if (l instanceof SpotLight) {
+                SpotLight s = (SpotLight) l;
+                b.putFloat(s.constantAttenuation).putFloat(s.linearAttenuation).putFloat(s.quadraticAttenuation);
+            } else if (l instanceof PointLight) {
+                PointLight p = (PointLight) l;
+                b.putFloat(p.constantAttenuation).putFloat(p.linearAttenuation).putFloat(p.quadraticAttenuation);
+            } else {
+                b.putFloat(0).putFloat(0).putFloat(0);
+            }
+        }
+        for (Light l : lights)
+            b.putFloat(l instanceof SpotLight ? ((SpotLight) l).cutOffAngle : 0);
+        for (Light l : lights)
+            b.putFloat(l instanceof SpotLight ? ((SpotLight) l).cosCutOffAngle : 0);
+        for (Light l : lights)
+            b.putFloat(l instanceof SpotLight ? ((SpotLight) l).dropOffRate : 0);
+        return b;
+    }
+
+    private static ByteBuffer textures(Scene scene, Strings strings) {
+        ByteBuffer b = section(scene.textures.length * 4);
+        for (Texture t : scene.textures)
+            b.putInt(strings.id(t.fileName));
+        return b;
+    }
+
+    private static ByteBuffer materials(Scene scene, Strings strings) {
+        Material[] materials = scene.materials;
+        ByteBuffer b = section(materials.length * (15 * 4 + 4 * 4));
+        for (Material m : materials)
+            putVector(b, m.ambient);
+        for (Material m : materials)
+            putVector(b, m.diffuse);
+        for (Material m : materials)
+            putVector(b, m.specular);
+        for (Material m : materials)
+            putVector(b, m.emissive);
+        for (Material m : materials)
+            b.putFloat(m.specularExponent);
+        for (Material m : materials)
+            b.putFloat(m.transparency);
+        for (Material m : materials)
+            b.putFloat(m.refractiveIndex);
+        // By position rather than Texture.index, which a texture reused from an earlier load keeps
+        Map<Texture, Integer> textures = new IdentityHashMap<Texture, Integer>();
+        for (int i = scene.textures.length - 1; i >= 0; i--)
+            textures.put(scene.textures[i], i);
+        for (Material m : materials) {
+            Integer t = m.diffuseMap != null ? textures.get(m.diffuseMap) : null;
+            b.putInt(t != null ? t : -1);
+        }
+        for (Material m : materials)
+            b.putInt(strings.id(m.extraInfo));
+        for (Material m : materials)
+            b.putInt(strings.id(m.vert));
+        for (Material m : materials)
+            b.putInt(strings.id(m.frag));
+        return b;
+    }
+
+    private static ByteBuffer vertices(Scene scene) {
+        Vertex[] vertices = scene.vertices;
+        ByteBuffer b = section(vertices.length * 11 * 4);
+        for (Vertex v : vertices)
+            putVector(b, v.pos);
+        for (Vertex v : vertices)
+            putVector(b, v.normal);
+        for (Vertex v : vertices) {
+            if (v.texCoord != null)
+                b.putFloat(v.texCoord.getX()).putFloat(v.texCoord.getY());
+            else
+                b.putFloat(Float.NaN).putFloat(Float.NaN);
+        }
+        for (Vertex v : vertices)
+            putVector(b, v.colour);
+        return b;
+    }
+
+    private static ByteBuffer shapes(Scene scene, Strings strings) {
+        List<Shape> shapes = scene.shapes;
+        int n = shapes.size();
+        ByteBuffer b = section(n * 4 + n * 4 + n * 16 * 4 + n * 4 * 4);
+        Map<Geometry, String> meshFiles = new IdentityHashMap<Geometry, String>();
+        for (Map.Entry<String, CompletableFuture<Geometry>> e : scene.meshes.entrySet())
+            meshFiles.put(e.getValue().join(), e.getKey());
+
+        int[] types = new int[n];
+        int i = 0;
+        for (Shape s : shapes) {
+            int type;
+            if (s instanceof Sphere)
+                type = SPHERE;
+            else if (s instanceof Box)
+                type = BOX;
+            else if (s instanceof Cone)
+                type = CONE;
+            else if (s instanceof Cylinder)
+                type = CYLINDER;
+            else if (s instanceof Mesh && meshFiles.containsKey(((Mesh) s).geometry))
+                type = MESH;
+            else if (s instanceof Triangle)
+                type = TRIANGLE;
+            else
+                throw new SceneFileException("Can not compile shape " + s.getClass().getSimpleName());
+            types[i++] = type;
+            b.putInt(type);
+        }
+        for (Shape s : shapes)
+            b.putInt(s.material != null ? s.material.index : -1);
+        for (Shape s : shapes) {
+            Matrix4 t = s.transform != null ? s.transform : new Matrix4();
+            for (int row = 0; row < 4; row++)
+                for (int column = 0; column < 4; column++)
+                    b.putFloat(t.get(row, column));
+        }
+        i = 0;
+        for (Shape s : shapes) {
+            switch (types[i++]) {
+            case SPHERE:
+                b.putFloat((float) ((Sphere) s).radius()).putInt(0).putInt(0).putInt(0);
+                break;
+            case BOX:
+                Box box = (Box) s;
+                b.putFloat(box.width()).putFloat(box.height()).putFloat(box.depth()).putInt(0);
+                break;
+            case CONE:
+                Cone cone = (Cone) s;
+                b.putFloat(cone.radius()).putFloat(cone.height()).putInt(0).putInt(0);
+                break;
+            case CYLINDER:
+                Cylinder cylinder = (Cylinder) s;
+                b.putFloat(cylinder.radius()).putFloat(cylinder.height()).putInt(0).putInt(0);
+                break;
+            case MESH:
+                b.putInt(strings.id(meshFiles.get(((Mesh) s).geometry))).putInt(0).putInt(0).putInt(0);
+                break;
+            default:
+                Triangle tri = (Triangle) s;
+                b.putInt(tri.vertex(0).index).putInt(tri.vertex(1).index).putInt(tri.vertex(2).index).putInt(0);
+                break;
+            }
+        }
+        return b;
+    }
+
+    private static ByteBuffer strings(Strings strings) {
+        ByteBuffer b = section(strings.bytes.size() * 4 + strings.size);
+        int end = 0;
+        for (byte[] s : strings.bytes) {
+            end += s.length;
+            b.putInt(end);
+        }
+        for (byte[] s : strings.bytes)
+            b.put(s);
+        return b;
+    }
+
+    private static ByteBuffer section(int size) {
+        return ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    private static void putVector(ByteBuffer b, Vector3 v) {
+        if (v != null)
+            b.putFloat(v.getX()).putFloat(v.getY()).putFloat(v.getZ());
+        else
+            b.putFloat(Float.NaN).putFloat(Float.NaN).putFloat(Float.NaN);
+    }
+
+    private static long align(long offset) {
+        return (offset + 15) & ~15L;
+    }
+
+    private static void write(FileChannel channel, ByteBuffer b, long at) throws IOException {
+        b.flip();
+        while (b.hasRemaining())
+            at += channel.write(b, at);
+    }
+
+    // ------------------------------ reading ------------------------------
+
+    /**
+     * The sections of a mapped compiled scene.
+     */
+    private static class Sections {
+        final ByteBuffer map;
+        final int[] ids;
+        final int[] counts;
+        final ByteBuffer[] data;
+
+        Sections(ByteBuffer map, File file) throws IOException {
+            this.map = map;
+            byte[] magic = new byte[MAGIC.length];
+            if (map.limit() < HEADER_SIZE)
+                throw new IOException(file + ": not a compiled scene");
+            map.get(magic);
+            if (!java.util.Arrays.equals(magic, MAGIC))
+                throw new IOException(file + ": not a compiled scene");
+            if (map.getInt() != VERSION)
+                throw new IOException(file + ": compiled by a different version");
+            int n = map.getInt();
+            if (n < 0 || HEADER_SIZE + (long) n * ENTRY_SIZE > map.limit())
+                throw new IOException(file + ": truncated compiled scene");
+            ids = new int[n];
+            counts = new int[n];
+            data = new ByteBuffer[n];
+            for (int i = 0; i < n; i++) {
+                ids[i] = map.getInt();
+                counts[i] = map.getInt();
+                long offset = map.getLong();
+                long length = map.getLong();
+                if (counts[i] < 0 || offset < HEADER_SIZE || length < 0 || offset + length > map.limit())
+                    throw new IOException(file + ": truncated compiled scene");
+                ByteBuffer b = map.duplicate();
+                b.limit((int) (offset + length)).position((int) offset);
+                data[i] = b.slice().order(ByteOrder.LITTLE_ENDIAN);
+            }
+        }
+
+        /**
+         * @return The index of a section in the table.
+         */
+        int find(int id) throws IOException {
+            for (int i = 0; i < ids.length; i++) {
+                if (ids[i] == id)
+                    return i;
+            }
+            throw new IOException("compiled scene has no section " + id);
+        }
+
+        int count(int id) throws IOException {
+            return counts[find(id)];
+        }
+
+        /**
+         * @return A reader for a section, positioned at its start.
+         */
+        ByteBuffer get(int id) throws IOException {
+            return data[find(id)].duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        }
+    }
+
+    /**
+     * Reads the next array of a section as floats, and steps over it.
+     *
+     * @param records The number of records in the section.
+     * @param components The number of floats per record.
+     */
+    private static FloatBuffer floats(ByteBuffer section, int records, int components) throws IOException {
+        int count = length(section, records, components);
+        FloatBuffer f = section.slice().order(ByteOrder.LITTLE_ENDIAN).asFloatBuffer();
+        f.limit(count);
+        section.position(section.position() + count * 4);
+        return f;
+    }
+
+    /**
+     * Reads the next array of a section as ints, and steps over it.
+     *
+     * @param records The number of records in the section.
+     * @param components The number of ints per record.
+     */
+    private static IntBuffer ints(ByteBuffer section, int records, int components) throws IOException {
+        int count = length(section, records, components);
+        IntBuffer b = section.slice().order(ByteOrder.LITTLE_ENDIAN).asIntBuffer();
+        b.limit(count);
+        section.position(section.position() + count * 4);
+        return b;
+    }
+
+    /**
+     * @return The number of 4 byte values in the next array of a section.
+     * @throws IOException If the section is too short to hold them.
+     */
+    private static int length(ByteBuffer section, int records, int components) throws IOException {
+        long count = (long) records * components;
+        if (count * 4 > section.remaining())
+            throw new IOException("truncated compiled scene");
+        return (int) count;
+    }
+
+    /**
+     * Checks an index read from the file, so a corrupt file is an IOException
+     * rather than an ArrayIndexOutOfBoundsException half way through the scene.
+     *
+     * @return index
+     */
+    private static int index(int index, int count, String what) throws IOException {
+        if (index < 0 || index >= count)
+            throw new IOException("corrupt compiled scene: " + what + " " + index + " out of range");
+        return index;
+    }
+
+    private static Vector3 vector(FloatBuffer f, int i) {
+        float x = f.get(i * 3);
+        if (Float.isNaN(x))
+            return null;
+        return new Vector3(x, f.get(i * 3 + 1), f.get(i * 3 + 2));
+    }
+
+    /**
+     * Reads a compiled scene into an empty Scene.
+     *
+     * @param file The compiled file.
+     * @param scene The scene to fill in.
+     * @throws IOException If the file isn't a compiled scene, or a texture or mesh can't be loaded.
+     */
+    public static void read(File file, Scene scene) throws IOException {
+        Sections sections = map(file);
+        String[] strings = readStrings(sections);
+
+        ByteBuffer b = sections.get(SETTINGS);
+        FloatBuffer f = floats(b, 1, 17);
+        IntBuffer shaders = ints(b, 1, 2);
+        scene.camera = new Camera(vector(f, 0), vector(f, 1), vector(f, 2), f.get(9), f.get(10));
+        scene.ambient = new Vector3(f.get(11), f.get(12), f.get(13));
+        scene.background = new Vector3(f.get(14), f.get(15), f.get(16));
+        scene.vert = string(strings, shaders.get(0));
+        scene.frag = string(strings, shaders.get(1));
+
+        readLights(sections, scene);
+        readTextures(sections, scene, strings);
+        readMaterials(sections, scene, strings);
+        readVertices(sections, scene);
+        readShapes(sections, scene, strings);
+    }
+
+    /**
+     * Maps the shapes of a compiled scene without reading anything else or
+     * building any Shape objects.
+     *
+     * @param file The compiled file.
+     * @return A view of the SHAPES section.
+     * @throws IOException If the file isn't a compiled scene.
+     */
+    public static ShapeSection shapes(File file) throws IOException {
+        return new ShapeSection(map(file));
+    }
+
+    private static Sections map(File file) throws IOException {
+        RandomAccessFile in = new RandomAccessFile(file, "r");
+        MappedByteBuffer map;
+        try {
+            if (in.length() > Integer.MAX_VALUE)
+                throw new IOException(file + ": compiled scenes over 2GB are not supported");
+            map = in.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, in.length());
+        } finally {
+            // The mapping stays valid after the file is closed
+            in.close();
+        }
+        map.order(ByteOrder.LITTLE_ENDIAN);
+        return new Sections(map, file);
+    }
+
+    private static String[] readStrings(Sections sections) throws IOException {
+        int n = sections.count(STRINGS);
+        ByteBuffer b = sections.get(STRINGS);
+        IntBuffer ends = ints(b, n, 1);
+        String[] strings = new String[n];
+        int start = 0;
+        for (int i = 0; i < n; i++) {
+            int end = ends.get(i);
+            if (end < start || end - start > b.remaining())
+                throw new IOException("truncated compiled scene");
+            byte[] bytes = new byte[end - start];
+            b.get(bytes);
+            strings[i] = new String(bytes, StandardCharsets.UTF_8);
+            start = end;
+        }
+        return strings;
+    }
+
+    private static String string(String[] strings, int id) throws IOException {
+        return id >= 0 ? strings[index(id, strings.length, "string")] : null;
+    }
+
+    private static void readLights(Sections sections, Scene scene) throws IOException {
+        int n = sections.count(LIGHTS);
+        ByteBuffer b = sections.get(LIGHTS);
+        IntBuffer types = ints(b, n, 1);
+        FloatBuffer colour = floats(b, n, 3);
+        FloatBuffer location = floats(b, n, 3);
+        FloatBuffer direction = floats(b, n, 3);
+        FloatBuffer attenuation = floats(b, n, 3);
+        FloatBuffer cutOff = floats(b, n, 1);
+        FloatBuffer cosCutOff = floats(b, n, 1);
+        FloatBuffer dropOff = floats(b, n, 1);
+        scene.lightNum = n;
+        scene.lights = new Light[n];
+        for (int i = 0; i < n; i++) {
+            float ca = attenuation.get(i * 3);
+            float la = attenuation.get(i * 3 + 1);
+            float qa = attenuation.get(i * 3 + 2);
+            switch (types.get(i)) {
+            case SPOT:
+                SpotLight s = new SpotLight(vector(colour, i), vector(location, i), vector(direction, i),
+                        ca, la, qa, cutOff.get(i), dropOff.get(i));
+                // Exactly as written, rather than recomputed
+                s.direction = vector(direction, i);
+                s.cosCutOffAngle = cosCutOff.get(i);
+                scene.lights[i] = s;
+                break;
+            case DIRECTIONAL:
+                DirectionalLight d = new DirectionalLight(vector(colour, i), vector(direction, i));
+                d.direction = vector(direction, i);
+                scene.lights[i] = d;
+                break;
+            default:
+                scene.lights[i] = new PointLight(vector(colour, i), vector(location, i), ca, la, qa);
+                break;
+            }
+        }
+    }
+
+    private static void readTextures(Sections sections, Scene scene, String[] strings) throws IOException {
+        int n = sections.count(TEXTURES);
+        IntBuffer names = ints(sections.get(TEXTURES), n, 1);
+        scene.textureNum = n;
+        scene.textures = new Texture[n];
+        for (int i = 0; i < n; i++) {
+            scene.textures[i] = scene.texture(i, string(strings, names.get(i)));
+        }
+    }
+
+    private static void readMaterials(Sections sections, Scene scene, String[] strings) throws IOException {
+        int n = sections.count(MATERIALS);
+        ByteBuffer b = sections.get(MATERIALS);
+        FloatBuffer ambient = floats(b, n, 3);
+        FloatBuffer diffuse = floats(b, n, 3);
+        FloatBuffer specular = floats(b, n, 3);
+        FloatBuffer emissive = floats(b, n, 3);
+        FloatBuffer specularExponent = floats(b, n, 1);
+        FloatBuffer transparency = floats(b, n, 1);
+        FloatBuffer refractiveIndex = floats(b, n, 1);
+        IntBuffer texture = ints(b, n, 1);
+        IntBuffer extraInfo = ints(b, n, 1);
+        IntBuffer vert = ints(b, n, 1);
+        IntBuffer frag = ints(b, n, 1);
+        scene.materialNum = n;
+        scene.materials = new Material[n];
+        for (int i = 0; i < n; i++) {
+            Material m = new Material();
+            m.index = i;
+            m.ambient = vector(ambient, i);
+            m.diffuse = vector(diffuse, i);
+            m.specular = vector(specular, i);
+            m.emissive = vector(emissive, i);
+            m.specularExponent = specularExponent.get(i);
+            m.transparency = transparency.get(i);
+            m.refractiveIndex = refractiveIndex.get(i);
+            int t = texture.get(i);
+            m.diffuseMap = t >= 0 ? scene.textures[index(t, scene.textures.length, "texture")] : null;
+            m.extraInfo = string(strings, extraInfo.get(i));
+            m.vert = string(strings, vert.get(i));
+            m.frag = string(strings, frag.get(i));
+            scene.materials[i] = m;
+        }
+    }
+
+    private static void readVertices(Sections sections, Scene scene) throws IOException {
+        int n = sections.count(VERTICES);
+        ByteBuffer b = sections.get(VERTICES);
+        FloatBuffer pos = floats(b, n, 3);
+        FloatBuffer normal = floats(b, n, 3);
+        FloatBuffer texCoord = floats(b, n, 2);
+        FloatBuffer colour = floats(b, n, 3);
+        scene.vertexNum = n;
+        scene.vertices = new Vertex[n];
+        for (int i = 0; i < n; i++) {
+            Vertex v = new Vertex();
+            v.index = i;
+            v.pos = vector(pos, i);
+            v.normal = vector(normal, i);
+            float s = texCoord.get(i * 2);
+            v.texCoord = Float.isNaN(s) ? null : new Vector2(s, texCoord.get(i * 2 + 1));
+            v.colour = vector(colour, i);
+            scene.vertices[i] = v;
+        }
+    }
+
+    /**
+     * The SHAPES section of a mapped compiled scene, read in place. Nothing is
+     * copied or built until it is asked for, so a tool can count, filter or
+     * summarise the shapes of a big scene without making a Shape for each.
+     */
+    public static final class ShapeSection {
+        private final Sections sections;
+        private final int count;
+        final IntBuffer types;
+        final IntBuffer materials;
+        final FloatBuffer transforms;
+        final IntBuffer parameters;
+
+        ShapeSection(Sections sections) throws IOException {
+            this.sections = sections;
+            count = sections.count(SHAPES);
+            ByteBuffer b = sections.get(SHAPES);
+            types = ints(b, count, 1);
+            materials = ints(b, count, 1);
+            transforms = floats(b, count, 16);
+            parameters = ints(b, count, 4);
+        }
+
+        /**
+         * @return The number of shapes.
+         */
+        public int count() {
+            return count;
+        }
+
+        /**
+         * @return The shape's type: SPHERE, BOX, CONE, CYLINDER, MESH or TRIANGLE.
+         */
+        public int type(int shape) {
+            return types.get(shape);
+        }
+
+        /**
+         * @return The index of the shape's material, or -1 for none.
+         */
+        public int material(int shape) {
+            return materials.get(shape);
+        }
+
+        /**
+         * Copies out a shape's transform.
+         *
+         * @param into Receives the 16 elements, row major.
+         * @return into
+         */
+        public float[] transform(int shape, float[] into) {
+            for (int i = 0; i < 16; i++)
+                into[i] = transforms.get(shape * 16 + i);
+            return into;
+        }
+
+        /**
+         * @return One of a sphere's, box's, cone's or cylinder's size parameters, in the order listed in CompiledScene.
+         */
+        public float size(int shape, int parameter) {
+            return Float.intBitsToFloat(parameters.get(shape * 4 + parameter));
+        }
+
+        /**
+         * @return The index of one of a triangle's vertices.
+         */
+        public int vertex(int shape, int corner) {
+            return parameters.get(shape * 4 + corner);
+        }
+
+        /**
+         * @return A mesh's file name, decoding only that string.
+         */
+        public String meshFile(int shape) throws IOException {
+            int id = parameters.get(shape * 4);
+            if (id < 0)
+                return null;
+            int n = sections.count(STRINGS);
+            ByteBuffer b = sections.get(STRINGS);
+            IntBuffer ends = ints(b, n, 1);
+            index(id, n, "string");
+            int start = id > 0 ? ends.get(id - 1) : 0;
+            int end = ends.get(id);
+            if (start < 0 || end < start || end > b.remaining())
+                throw new IOException("truncated compiled scene");
+            byte[] bytes = new byte[end - start];
+            b.position(b.position() + start);
+            b.get(bytes);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+    }
+
+    /**
+     * Shapes are built a block at a time, from arrays bulk copied out of the
+     * mapping, which is much faster than reading it an element at a time.
+     */
+    private static final int SHAPE_BLOCK = 4096;
+
+    private static void readShapes(Sections sections, Scene scene, String[] strings) throws IOException {
+        ShapeSection section = new ShapeSection(sections);
+        int n = section.count();
+        IntBuffer typeArray = section.types.duplicate();
+        IntBuffer materialArray = section.materials.duplicate();
+        FloatBuffer transformArray = section.transforms.duplicate();
+        IntBuffer parameterArray = section.parameters.duplicate();
+
+        int[] types = new int[SHAPE_BLOCK];
+        int[] materials = new int[SHAPE_BLOCK];
+        float[] transforms = new float[SHAPE_BLOCK * 16];
+        int[] parameters = new int[SHAPE_BLOCK * 4];
+        for (int first = 0; first < n; first += SHAPE_BLOCK) {
+            int count = Math.min(SHAPE_BLOCK, n - first);
+            typeArray.get(types, 0, count);
+            materialArray.get(materials, 0, count);
+            transformArray.get(transforms, 0, count * 16);
+            parameterArray.get(parameters, 0, count * 4);
+            for (int i = 0; i < count; i++) {
+                int index = materials[i];
+                Material material = index >= 0 ? scene.materials[index(index, scene.materials.length, "material")] : null;
+                int p = i * 4;
+                Shape s;
+                switch (types[i]) {
+                case SPHERE:
+                    s = new Sphere(Float.intBitsToFloat(parameters[p]), material);
+                    break;
+                case BOX:
+                    s = new Box(Float.intBitsToFloat(parameters[p]), Float.intBitsToFloat(parameters[p + 1]),
+                            Float.intBitsToFloat(parameters[p + 2]), material);
+                    break;
+                case CONE:
+                    s = new Cone(Float.intBitsToFloat(parameters[p]), Float.intBitsToFloat(parameters[p + 1]), material);
+                    break;
+                case CYLINDER:
+                    s = new Cylinder(Float.intBitsToFloat(parameters[p]), Float.intBitsToFloat(parameters[p + 1]), material);
+                    break;
+                case MESH:
+                    s = scene.mesh(string(strings, parameters[p]), material);
+                    break;
+                case TRIANGLE:
+                    int vertices = scene.vertices.length;
+                    s = new Triangle(scene.vertices[index(parameters[p], vertices, "vertex")],
+                            scene.vertices[index(parameters[p + 1], vertices, "vertex")],
+                            scene.vertices[index(parameters[p + 2], vertices, "vertex")], material);
+                    break;
+                default:
+                    throw new IOException("unknown shape type " + types[i]);
+                }
+                int t = i * 16;
+                s.transform = new Matrix4(transforms[t], transforms[t + 1], transforms[t + 2], transforms[t + 3],
+                        transforms[t + 4], transforms[t + 5], transforms[t + 6], transforms[t + 7],
+                        transforms[t + 8], transforms[t + 9], transforms[t + 10], transforms[t + 11],
+                        transforms[t + 12], transforms[t + 13], transforms[t + 14], transforms[t + 15]);
+                scene.shapes.add(s);
+            }
+        }
+    }
+}
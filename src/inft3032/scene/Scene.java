@@ -14,6 +14,8 @@ import inft3032.math.*;
 
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
 
 
 /**
@@ -59,6 +61,24 @@ public class Scene {
     public String frag;
     
     public List<Shape> shapes = new LinkedList<Shape>();
+    
+    /**
+     * Meshes loaded by #shape_mesh, by file name, so a file used by several shapes is only loaded once.
+     */
+    Map<String, CompletableFuture<Geometry>> meshes = new HashMap<String, CompletableFuture<Geometry>>();
+
+    /**
+     * Textures and meshes loading in the background, with what is waiting for each.
+     */
+    private List<Texture> loadingTextures = new ArrayList<Texture>();
+    private List<CompletableFuture<Image>> loadingImages = new ArrayList<CompletableFuture<Image>>();
+    private List<Mesh> loadingMeshes = new ArrayList<Mesh>();
+    private List<String> loadingMeshFiles = new ArrayList<String>();
+
+    /**
+     * Textures already loaded by an earlier version of this scene, by file name (see reuseAssets).
+     */
+    private Map<String, Texture> loadedTextures = new HashMap<String, Texture>();
 
 
     public Scene() {
@@ -108,14 +128,15 @@ public class Scene {
      * If token is within a group, a SceneFileException is thrown.
      * If the token has already been read, the rest of the token stream associated with this command
      * token is discarded.
-     * @param in        The SceneFileStreamTokenizer being processed.
-     * @param tokenName The name of the command token being processed.
+     * @param in        The SceneTokenizer being processed.
+     * @param command   The command being processed.
      * @param inGroup   is True if have already started processing shape objects or a group.
      * @param alreadyRead is True if have already read a command of this type
      * @param discardSize The number of tokens to discard if already read a command of this type.
      * @return True if need to process this command.
      */
-    private boolean check(SceneFileStreamTokenizer in, String tokenName, boolean inGroup, boolean alreadyRead, int discardSize) {
+    private boolean check(SceneTokenizer in, SceneCommand command, boolean inGroup, boolean alreadyRead, int discardSize) {
+        String tokenName = command.keyword();
         if (inGroup)
             throw new SceneFileException("#" + tokenName + ": can not be specified within a group");
         else if (alreadyRead) {
@@ -127,9 +148,83 @@ public class Scene {
 
     /**
      * Read in the scene details from a scene file.
+     * If the scene has been compiled (see CompiledScene) since the file was last changed,
+     * the compiled form is read instead. A compiled file can also be named directly.
      * @param fileName The scene file name.
      */
     public void read(String fileName) {
+        File compiled = fileName.endsWith(CompiledScene.EXTENSION) ? new File(fileName)
+                : CompiledScene.isFresh(fileName) ? CompiledScene.compiledFile(fileName) : null;
+        if (compiled != null) {
+            Trace.msg("Reading compiled scene " + compiled);
+            long start = System.nanoTime();
+            // Into a scene of its own, so a file that turns out to be corrupt half way leaves nothing behind
+            Scene read = new Scene();
+            read.loadedTextures = loadedTextures;
+            read.meshes.putAll(meshes);
+            try {
+                CompiledScene.read(compiled, read);
+                take(read);
+                Trace.msg(String.format("Read %d shapes in %.1fms", shapes.size(), (System.nanoTime() - start) / 1.0e6));
+                return;
+            } catch (IOException e) {
+                if (compiled.getPath().equals(fileName))
+                    throw new SceneFileException("Exception: " + e);
+                Trace.msg("Could not read compiled scene (" + e.getMessage() + "), reading the text instead");
+            }
+        }
+        readText(fileName);
+    }
+
+    /**
+     * Makes this scene the one another has read.
+     * @param from A scene read from a file.
+     */
+    private void take(Scene from) {
+        vertices = from.vertices;
+        vertexNum = from.vertexNum;
+        materials = from.materials;
+        materialNum = from.materialNum;
+        textures = from.textures;
+        textureNum = from.textureNum;
+        ambient = from.ambient;
+        background = from.background;
+        camera = from.camera;
+        lights = from.lights;
+        lightNum = from.lightNum;
+        vert = from.vert;
+        frag = from.frag;
+        shapes = from.shapes;
+        meshes = from.meshes;
+        loadingTextures = from.loadingTextures;
+        loadingImages = from.loadingImages;
+        loadingMeshes = from.loadingMeshes;
+        loadingMeshFiles = from.loadingMeshFiles;
+    }
+
+    /**
+     * Read in the scene details from a text scene file, ignoring any compiled form.
+     * @param fileName The scene file name.
+     */
+    public void readText(String fileName) {
+        Trace.msg("Reading scene file" + fileName);
+        long start = System.nanoTime();
+        SceneTokenizer tokens;
+        try {
+            tokens = SceneFileBufferTokenizer.open(fileName);
+        } catch (IOException e) {
+            throw new SceneFileException("Exception: " + e);
+        }
+        read(tokens);
+        Trace.msg(String.format("Read %d shapes in %.1fms", shapes.size(), (System.nanoTime() - start) / 1.0e6));
+    }
+
+    /**
+     * Read in the scene details from a tokenizer.
+     * Errors thrown while reading say where in the file they happened.
+     * @param tokens The scene file's tokens.
+     */
+    public void read(SceneTokenizer tokens) {
         boolean cameraRead = false;
         boolean backgroundRead = false;
         boolean ambientRead = false;
@@ -143,23 +238,13 @@ public class Scene {
         int currentMaterialIndex = -1;
         int currentVertexIndex = -1;
         int currentLightIndex = -1;
-        Trace.msg("Reading scene file" + fileName);
         try {
-            // Create the SceneFileStreamBuffer for input from the scene file.
-            BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(fileName)));
-            SceneFileStreamTokenizer tokens = new SceneFileStreamTokenizer(in);
-            // Now loop to process tokens until end of file or an error occurs
-            while (tokens.nextToken() != StreamTokenizer.TT_EOF) {
-                if (tokens.ttype != HASH)
-                    throw new SceneFileException("Command does not start with " + '#');
-                String token = tokens.readString();
-                System.out.println("Processing token "+token);
-                // token now contains a scene file command name, so massive if-statement to process it
-                /**
-                 * #camera
-                 */
-                if (token.compareToIgnoreCase("camera") == 0) {
-                    if (check(tokens, token, beginGroupRead, cameraRead, 10)) {
+            // Now loop to process commands until end of file or an error occurs
+            SceneCommand command;
+            while ((command = tokens.nextCommand()) != null) {
+                switch (command) {
+                case CAMERA:
+                    if (check(tokens, command, beginGroupRead, cameraRead, 10)) {
                     	Vector3 p = tokens.readVector3();
                         Vector3 d = tokens.readVector3();
                         Vector3 u = tokens.readVector3();
@@ -179,202 +264,142 @@ public class Scene {
                         camera = new Camera(position, direction, up, aspectRatio, heightAngle);
                         cameraRead = true;
                     }
-                    /**
-                     * #background
-                     */
-                } else if (token.compareToIgnoreCase("background") == 0) {
-                    if (check(tokens, token, beginGroupRead, backgroundRead, 3)) {
+                    break;
+                case BACKGROUND:
+                    if (check(tokens, command, beginGroupRead, backgroundRead, 3)) {
                         background = tokens.readColour();
                         backgroundRead = true;
                     }
-                    /**
-                     * #Ambient
-                     */
-                } else if (token.compareToIgnoreCase("ambient") == 0){
-                    if (check(tokens, token, beginGroupRead, ambientRead, 3)) {
+                    break;
+                case AMBIENT:
+                    if (check(tokens, command, beginGroupRead, ambientRead, 3)) {
                         ambient = tokens.readColour();
                         ambientRead = true;
                     }
-                    /**
-                     * #Shader
-                     */
-                }else if (token.compareToIgnoreCase("shader") == 0) {
-                	if (check(tokens, token, beginGroupRead, shaderRead, 2)) {
+                    break;
+                case SHADER:
+                	if (check(tokens, command, beginGroupRead, shaderRead, 2)) {
                 		vert = tokens.readString();
                 		frag = tokens.readString();
                 		shaderRead = true;
                 	}
-                    	
-                /**
-                 * #light_num
-                 */
-                }else if (token.compareToIgnoreCase("light_num") == 0){
-                    if (check(tokens, token, beginGroupRead, lightNumRead, 1)){
+                	break;
+                case LIGHT_NUM:
+                    if (check(tokens, command, beginGroupRead, lightNumRead, 1)){
                         lightNum = tokens.readInt(0);
                         lightNumRead = true;
                         lights = new Light[lightNum];
                     }
-                /**
-                 * #texture_num
-                 */
-                }else if (token.compareToIgnoreCase("texture_num") == 0){
-                    if (check(tokens, token, beginGroupRead, textureNumRead, 1)){
+                    break;
+                case TEXTURE_NUM:
+                    if (check(tokens, command, beginGroupRead, textureNumRead, 1)){
                         textureNum = tokens.readInt(0);
                         textureNumRead = true;
                         textures = new Texture[textureNum];
                     }
-                /**
-                 * material_num
-                 */
-                }else if (token.compareToIgnoreCase("material_num") == 0){
-                    if (check(tokens, token, beginGroupRead, materialNumRead, 1)){
+                    break;
+                case MATERIAL_NUM:
+                    if (check(tokens, command, beginGroupRead, materialNumRead, 1)){
                         materialNum = tokens.readInt(0);
                         materialNumRead = true;
                         materials = new Material[materialNum];
                     }
-                /**
-                 * #vertext_num
-                 */
-                }else if (token.compareToIgnoreCase("vertex_num") == 0){
-                    if (check(tokens, token, beginGroupRead, vertexNumRead, 1)){
+                    break;
+                case VERTEX_NUM:
+                    if (check(tokens, command, beginGroupRead, vertexNumRead, 1)){
                         vertexNum = tokens.readInt(0);
                         vertexNumRead = true;
                         vertices = new Vertex[vertexNum];
                     }
-                /**
-                 * #texture
-                 */
-                }else if (token.compareToIgnoreCase("texture") == 0)
+                    break;
+                case TEXTURE:
                     if (beginGroupRead)
                         throw new SceneFileException("#texture: can not be specified within a group");
                     else if (!textureNumRead)
                         throw new SceneFileException("#texture: must be after a #texture_num command");
-                    else {
-                        currentTextureIndex++;
-                        if (currentTextureIndex >= textureNum)
-                            throw new SceneFileException("#texture: more texture defined than in #texture_num command");
-                        try {
-                        	String f = tokens.readString();
-                        	Image image = new Image(f, 0);
-                        	textures[currentTextureIndex] = new Texture(currentTextureIndex, f, image);
-                        } catch (Exception e) {
-                            throw new SceneFileException("Error ("+e+") reading texture image file: " + fileName);
-                        }
-                    }
-                /**
-                 * #material
-                 */
-                else if (token.compareToIgnoreCase("material") == 0)
+                    currentTextureIndex++;
+                    if (currentTextureIndex >= textureNum)
+                        throw new SceneFileException("#texture: more texture defined than in #texture_num command");
+                    textures[currentTextureIndex] = texture(currentTextureIndex, tokens.readString());
+                    break;
+                case MATERIAL:
                     if (beginGroupRead)
                         throw new SceneFileException("#material: can not be specified within a group");
                     else if (!materialNumRead)
                         throw new SceneFileException("#material: must be defined after #material_num");
-                    else {
-                        currentMaterialIndex++;
-                        if (currentMaterialIndex >= materialNum)
-                            throw new SceneFileException("#material: more materials defined than in #material_num");
-                        //@todo - should put in checks to ensure textures required for materials are read in before the material.
-                        Material m = new Material();
-                        
-                        m.index            = currentMaterialIndex;
-                        m.ambient          = tokens.readColour();
-                        m.diffuse          = tokens.readColour();
-                        m.specular         = tokens.readColour();
-                        m.emissive         = tokens.readColour();
-                        m.specularExponent = tokens.readFloat(0.0f);
-                        m.transparency = tokens.readFloat(0.0f, 1.0f);
-                        m.refractiveIndex = tokens.readFloat(0.0f);
-                        int textureIndex = tokens.readInt(-1, textures.length-1);
-                        if (textures.length != 0){ // texture index must be -1
-                        	m.diffuseMap = textures[textureIndex];
-                        }
-                        m.extraInfo = tokens.readString();
-
-                        materials[currentMaterialIndex] = m;
+                    currentMaterialIndex++;
+                    if (currentMaterialIndex >= materialNum)
+                        throw new SceneFileException("#material: more materials defined than in #material_num");
+                    //@todo - should put in checks to ensure textures required for materials are read in before the material.
+                    Material m = new Material();
+
+                    m.index            = currentMaterialIndex;
+                    m.ambient          = tokens.readColour();
+                    m.diffuse          = tokens.readColour();
+                    m.specular         = tokens.readColour();
+                    m.emissive         = tokens.readColour();
+                    m.specularExponent = tokens.readFloat(0.0f);
+                    m.transparency = tokens.readFloat(0.0f, 1.0f);
+                    m.refractiveIndex = tokens.readFloat(0.0f);
+                    int textureIndex = tokens.readInt(-1, textures.length-1);
+                    if (textureIndex >= 0){ // -1 for no texture
+                    	m.diffuseMap = textures[textureIndex];
                     }
-                /**
-                 * #vertex
-                 */
-                else if (token.compareToIgnoreCase("vertex") == 0)
+                    m.extraInfo = tokens.readString();
+
+                    materials[currentMaterialIndex] = m;
+                    break;
+                case MATERIAL_SHADER:
+                    // Gives the material just defined its own program
+                    if (beginGroupRead)
+                        throw new SceneFileException("#material_shader: can not be specified within a group");
+                    else if (currentMaterialIndex < 0)
+                        throw new SceneFileException("#material_shader: must follow a #material");
+                    Material shaded = materials[currentMaterialIndex];
+                    if (shaded.vert != null)
+                        throw new SceneFileException("#material_shader: material " + currentMaterialIndex + " already has a shader");
+                    shaded.vert = tokens.readString();
+                    shaded.frag = tokens.readString();
+                    break;
+                case VERTEX:
                     if (beginGroupRead)
                         throw new SceneFileException("#vertex: can not be specified within a group");
                     else if (!vertexNumRead)
                         throw new SceneFileException("#vertex: must be defined after #vertex_num");
-                    else {
-                        currentVertexIndex++;
-                        if (currentVertexIndex >= vertexNum)
-                            throw new SceneFileException("#vertex: more vertices defined than in #vertex_num");
-                        Vertex v = new Vertex();
-                       v.index = currentVertexIndex;
-                       v.pos = tokens.readVector3();
-                       v.normal = tokens.readVector3().unit();
-                       v.texCoord = tokens.readVector2();
-                       v.colour = tokens.readColour();
-                        vertices[currentVertexIndex] = v;
-                    }
-                else if (token.compareToIgnoreCase("light_point") == 0)
-                    if (beginGroupRead)
-                        throw new SceneFileException("#light_point: can not be specified within a group");
-                    else if (!lightNumRead)
-                        throw new SceneFileException("#light_point: must be defined after #light_num");
-                    else {
-                        currentLightIndex++;
-                        if (currentLightIndex >= lightNum)
-                            throw new SceneFileException("#light_point: more lights defined than in #light_num");
-                        
-                        Vector3 colour = tokens.readColour();
-                        Vector3 location = tokens.readVector3();
-                        float constantAttenuation = tokens.readFloat(0.0f);
-                        float linearAttenuation = tokens.readFloat(0.0f);
-                        float quadraticAttenuation = tokens.readFloat(0.0f);
-                        
-                        lights[currentLightIndex] = new PointLight(colour, location, constantAttenuation, linearAttenuation, quadraticAttenuation);
-                    }
-                else if (token.compareToIgnoreCase("light_dir") == 0)
+                    currentVertexIndex++;
+                    if (currentVertexIndex >= vertexNum)
+                        throw new SceneFileException("#vertex: more vertices defined than in #vertex_num");
+                    Vertex v = new Vertex();
+                    v.index = currentVertexIndex;
+                    v.pos = tokens.readVector3();
+                    v.normal = tokens.readVector3().unit();
+                    v.texCoord = tokens.readVector2();
+                    v.colour = tokens.readColour();
+                    vertices[currentVertexIndex] = v;
+                    break;
+                case LIGHT_POINT:
+                case LIGHT_DIR:
+                case LIGHT_SPOT:
                     if (beginGroupRead)
-                        throw new SceneFileException("#light_dir: can not be specified within a group");
+                        throw new SceneFileException("#" + command.keyword() + ": can not be specified within a group");
                     else if (!lightNumRead)
-                        throw new SceneFileException("#light_dir: must be defined after #light_num");
-                    else {
-                        currentLightIndex++;
-                        if (currentLightIndex >= lightNum)
-                            throw new SceneFileException("#light_dir: more lights defined than in #light_num");
-                        
-                        Vector3 colour = tokens.readColour();
-                        Vector3 direction = tokens.readVector3().unit();
-                        lights[currentLightIndex] = new DirectionalLight(colour, direction);
-                    }
-                else if (token.compareToIgnoreCase("light_spot") == 0)
-                    if (beginGroupRead)
-                        throw new SceneFileException("#light_spot: can not be specified within a group");
-                    else if (!lightNumRead)
-                        throw new SceneFileException("#light_spot: must be defined after #light_num");
-                    else {
-                        currentLightIndex++;
-                        if (currentLightIndex >= lightNum)
-                            throw new SceneFileException("#light_spot: more lights defined than in #light_num");
-                        
-                        Vector3 colour = tokens.readColour();
-                        Vector3 location = tokens.readVector3();
-                        Vector3 direction = tokens.readVector3().unit();
-                        float constantAttenuation = tokens.readFloat(0.0f);
-                        float linearAttenuation = tokens.readFloat(0.0f);
-                        float quadraticAttenuation = tokens.readFloat(0.0f);
-                        float cutOffAngle = tokens.readFloat(0.0f, 90.0f);
-                        float cosCutOffAngle = (float) Math.cos(Math.toRadians(cutOffAngle));
-                        float dropOffRate = tokens.readFloat(0.0f);
-                        
-                        lights[currentLightIndex] = new SpotLight(colour, location, direction, constantAttenuation, linearAttenuation, quadraticAttenuation, cosCutOffAngle, dropOffRate);
-                    }
-                else {         // must be a shape or an error - errors detected in parseShapes
+                        throw new SceneFileException("#" + command.keyword() + ": must be defined after #light_num");
+                    currentLightIndex++;
+                    if (currentLightIndex >= lightNum)
+                        throw new SceneFileException("#" + command.keyword() + ": more lights defined than in #light_num");
+                    lights[currentLightIndex] = parseLight(tokens, command);
+                    break;
+                default:        // must be a shape or an error - errors detected in parseShapes
                     beginGroupRead = true;  // only allowed shapes and groups now
-                    parseShapes(tokens, token);
+                    parseShapes(tokens, command);
+                    break;
                 }
             }
-            in.close();
+        } catch (SceneFileException e) {
+            throw new SceneFileException(tokens.location() + ": " + e.getMessage());
         } catch (Exception e) {
         	e.printStackTrace();
-            throw new SceneFileException("Exception: " + e);
+            throw new SceneFileException(tokens.location() + ": Exception: " + e);
         }
         if (!cameraRead)
             throw new SceneFileException("#camera command not found in scene file");
@@ -411,19 +436,138 @@ public class Scene {
 
     }
 
+    /**
+     * Makes this scene use the textures and meshes of an earlier version of it instead of
+     * loading them again, where the file names match. Call before reading the scene.
+     * Textures are taken over as they are, including their GPU copy, and are shared by
+     * every #texture that names the same file. They are not changed in any way, since
+     * the earlier version may still be being drawn; in particular their index is the
+     * one they had before.
+     * @param previous The earlier version of the scene.
+     */
+    public void reuseAssets(Scene previous) {
+        for (Texture t : previous.textures) {
+            if (t != null && t.image != null)
+                loadedTextures.put(t.fileName, t);
+        }
+        for (Map.Entry<String, CompletableFuture<Geometry>> e : previous.meshes.entrySet()) {
+            if (!e.getValue().isCompletedExceptionally())
+                meshes.put(e.getKey(), e.getValue());
+        }
+    }
+
+    /**
+     * Starts loading a texture image in the background. The image is filled in by awaitAssets.
+     * @param index The texture's index.
+     * @param f The bitmap file name.
+     * @return The texture, without its image for now.
+     */
+    Texture texture(int index, String f) {
+        Texture t = loadedTextures.get(f);
+        if (t != null)
+            return t;
+        t = new Texture(index, f, null);
+        loadingTextures.add(t);
+        loadingImages.add(AssetLoader.image(f));
+        return t;
+    }
+
+    /**
+     * Starts loading a mesh file in the background, unless it is already loading, so a file
+     * used by several shapes is only loaded once. The geometry is filled in by awaitAssets.
+     * @param f The mesh file name.
+     * @param material The shape's material.
+     * @return The shape, without its geometry for now.
+     */
+    Mesh mesh(String f, Material material) {
+        if (!meshes.containsKey(f))
+            meshes.put(f, AssetLoader.mesh(f));
+        Mesh m = new Mesh(null, material);
+        loadingMeshes.add(m);
+        loadingMeshFiles.add(f);
+        return m;
+    }
+
+    /**
+     * Waits for the textures and meshes the scene file referred to, which start loading in the
+     * background as they are read. Must be called before the scene is drawn.
+     * @throws SceneFileException if a texture or mesh could not be loaded, naming the file.
+     */
+    public void awaitAssets() {
+        try {
+            for (int i = 0; i < loadingTextures.size(); i++) {
+                Texture t = loadingTextures.get(i);
+                try {
+                    t.image = loadingImages.get(i).get();
+                } catch (ExecutionException e) {
+                    throw new SceneFileException("Error (" + cause(e) + ") reading texture image file: " + t.fileName);
+                }
+            }
+            for (int i = 0; i < loadingMeshes.size(); i++) {
+                String f = loadingMeshFiles.get(i);
+                try {
+                    loadingMeshes.get(i).geometry = meshes.get(f).get();
+                } catch (ExecutionException e) {
+                    throw new SceneFileException("shape_mesh: error reading mesh file " + f + ": " + cause(e).getMessage());
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SceneFileException("Interrupted while loading textures and meshes");
+        }
+        loadingTextures.clear();
+        loadingImages.clear();
+        loadingMeshes.clear();
+        loadingMeshFiles.clear();
+    }
+
+    private static Throwable cause(ExecutionException e) {
+        Throwable cause = e.getCause();
+        if (cause instanceof UncheckedIOException)
+            cause = cause.getCause();
+        return cause;
+    }
+
+    /**
+     * Private method to read the parameters of a light.
+     * @param tokens  The current SceneTokenizer.
+     * @param command LIGHT_POINT, LIGHT_DIR or LIGHT_SPOT.
+     * @return The light.
+     */
+    private Light parseLight(SceneTokenizer tokens, SceneCommand command) {
+        Vector3 colour = tokens.readColour();
+        if (command == SceneCommand.LIGHT_DIR) {
+            Vector3 direction = tokens.readVector3().unit();
+            return new DirectionalLight(colour, direction);
+        }
+        Vector3 location = tokens.readVector3();
+        Vector3 direction = null;
+        if (command == SceneCommand.LIGHT_SPOT)
+            direction = tokens.readVector3().unit();
+        float constantAttenuation = tokens.readFloat(0.0f);
+        float linearAttenuation = tokens.readFloat(0.0f);
+        float quadraticAttenuation = tokens.readFloat(0.0f);
+        if (command == SceneCommand.LIGHT_POINT)
+            return new PointLight(colour, location, constantAttenuation, linearAttenuation, quadraticAttenuation);
+
+        // In degrees in the file; SpotLight takes radians and works out the cosine itself
+        float cutOffAngle = (float) Math.toRadians(tokens.readFloat(0.0f, 90.0f));
+        float dropOffRate = tokens.readFloat(0.0f);
+        return new SpotLight(colour, location, direction, constantAttenuation, linearAttenuation, quadraticAttenuation, cutOffAngle, dropOffRate);
+    }
+
     /**
      * Private method to process shapes from the Scene file.
      * If you need to add  new shape object to the ray-tracer, this is a method you will need to modify.
      * In general, to add a new shape, create subclass of Shape that has a constructor requiring two
-     * parameters, the ShapeFileStreamTokenizer, and the material index for the shape object.
-     * Add another "else if" to the list below to create the new shape object and add it to the
-     * shapes list for the current group.
+     * parameters, the SceneTokenizer, and the material index for the shape object.
+     * Add a SceneCommand for it, and another case to the switch below to create the new shape
+     * object and add it to the shapes list for the current group.
      *
-     * @param tokens  The current SceneFileSreamTokenizer object for reading from a scene file.
-     * @param token   The last token read - should be the scene file command string for a shape.
-     * @param current The current group this shape should be added to.
+     * @param tokens  The current SceneTokenizer object for reading from a scene file.
+     * @param command The last command read - should be a shape.
      */
-    private void parseShapes(SceneFileStreamTokenizer tokens, String token) {
+    private void parseShapes(SceneTokenizer tokens, SceneCommand command) {
     	Material material;
     	 int index = tokens.readInt(-1, materials.length -1);
          if (index >= 0)
@@ -431,7 +575,8 @@ public class Scene {
          else
              material = null;
 
-        if (token.compareToIgnoreCase("shape_sphere") == 0) {
+        switch (command) {
+        case SHAPE_SPHERE: {
         	Vector3 t = tokens.readVector3();
         	Matrix4 tm = MatrixFactory.translate(t);
 
@@ -439,14 +584,18 @@ public class Scene {
         	Shape s = new Sphere(radius, material);
         	s.transform = tm;
             shapes.add(s);
-        } else if (token.compareToIgnoreCase("shape_box") == 0) {
+            break;
+        }
+        case SHAPE_BOX: {
         	Vector3 t = tokens.readVector3();
         	Matrix4 tm = MatrixFactory.translate(t);
             Vector3 length = tokens.readVector3();
             Box b = new Box(length.getX(), length.getY(), length.getZ(), material);
         	b.transform = tm;
             shapes.add(b);
-        } else if (token.compareToIgnoreCase("shape_cone") == 0) {
+            break;
+        }
+        case SHAPE_CONE: {
         	Vector3 t = tokens.readVector3();
         	Matrix4 tm = MatrixFactory.translate(t);
         	float radius = tokens.readFloat(0.0f);
@@ -454,7 +603,9 @@ public class Scene {
         	Cone c = new Cone(radius, height, material);
         	c.transform = tm;
             shapes.add(c);
-        } else if (token.compareToIgnoreCase("shape_cylinder") == 0) {
+            break;
+        }
+        case SHAPE_CYLINDER: {
         	Vector3 t = tokens.readVector3();
         	Matrix4 tm = MatrixFactory.translate(t);
             float radius = tokens.readFloat(0.0f);
@@ -462,7 +613,17 @@ public class Scene {
             Cylinder c = new Cylinder(radius, height, material);
             c.transform = tm;
             shapes.add(c);
-        } else if (token.compareToIgnoreCase("shape_triangle") == 0) {
+            break;
+        }
+        case SHAPE_MESH: {
+        	Vector3 t = tokens.readVector3();
+        	Matrix4 tm = MatrixFactory.translate(t);
+        	Mesh m = mesh(tokens.readString(), material);
+        	m.transform = tm;
+        	shapes.add(m);
+            break;
+        }
+        case SHAPE_TRIANGLE: {
             int v1 = tokens.readInt(0, vertexNum - 1);    // each vertex index must be in the range 0 .. s.vertexNum-1
             int v2 = tokens.readInt(0, vertexNum - 1);
             int v3 = tokens.readInt(0, vertexNum - 1);
@@ -471,7 +632,10 @@ public class Scene {
             
             Triangle tri = new Triangle(vertices[v1], vertices[v2], vertices[v3], material);
             shapes.add(tri);
-        } else
+            break;
+        }
+        default:
             throw new SceneFileException("parseShape error: unknown token");
+        }
     }
 }
@@ -0,0 +1,126 @@
+// Starting code Copyright 2014 University of South Australia
+// Written by Michael Marner <michael.marner@unisa.edu.au>
+//
+package inft3032.scene;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+
+
+/**
+ * The commands that can appear in a scene file, after the '#'.
+ * <p>
+ * Command names are case insensitive. The tokenizers look them up by hash
+ * straight from the bytes of the file, so no String is made for each command,
+ * and Scene dispatches on the result with a switch.
+ */
+public enum SceneCommand {
+    CAMERA,
+    BACKGROUND,
+    AMBIENT,
+    SHADER,
+    LIGHT_NUM,
+    TEXTURE_NUM,
+    MATERIAL_NUM,
+    VERTEX_NUM,
+    TEXTURE,
+    MATERIAL,
+    MATERIAL_SHADER,
+    VERTEX,
+    LIGHT_POINT,
+    LIGHT_DIR,
+    LIGHT_SPOT,
+    SHAPE_SPHERE,
+    SHAPE_BOX,
+    SHAPE_CONE,
+    SHAPE_CYLINDER,
+    SHAPE_MESH,
+    SHAPE_TRIANGLE,
+    /**
+     * Anything else. Treated as a shape, so the error comes from parsing shapes.
+     */
+    UNKNOWN;
+
+    /**
+     * Open addressed table of every command but UNKNOWN, by hash.
+     */
+    private static final SceneCommand[] TABLE = new SceneCommand[64];
+
+    static {
+        for (SceneCommand c : values()) {
+            if (c == UNKNOWN)
+                continue;
+            c.keyword = c.name().toLowerCase(Locale.ROOT).getBytes(StandardCharsets.US_ASCII);
+            c.hash = hash(c.keyword, 0, c.keyword.length);
+            int i = c.hash & (TABLE.length - 1);
+            while (TABLE[i] != null)
+                i = (i + 1) & (TABLE.length - 1);
+            TABLE[i] = c;
+        }
+    }
+
+    private byte[] keyword;
+    private int hash;
+
+    /**
+     * @return The command as written in a scene file, without the '#'.
+     */
+    public String keyword() {
+        return keyword == null ? "unknown" : new String(keyword, StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * Folds ASCII upper case to lower case.
+     */
+    static int lower(byte c) {
+        return c >= 'A' && c <= 'Z' ? c + ('a' - 'A') : c;
+    }
+
+    /**
+     * Case insensitive hash of some bytes. Tokenizers can compute this as they scan a word.
+     */
+    static int hash(byte[] buf, int start, int length) {
+        int h = 0;
+        for (int i = start; i < start + length; i++)
+            h = 31 * h + lower(buf[i]);
+        return h;
+    }
+
+    /**
+     * Finds the command with a name, ignoring case.
+     *
+     * @param buf Holds the name.
+     * @param start Where the name starts.
+     * @param length The length of the name.
+     * @param hash The name's hash, as computed by hash().
+     * @return The command, or UNKNOWN.
+     */
+    static SceneCommand lookup(byte[] buf, int start, int length, int hash) {
+        for (int i = hash & (TABLE.length - 1); TABLE[i] != null; i = (i + 1) & (TABLE.length - 1)) {
+            SceneCommand c = TABLE[i];
+            if (c.hash == hash && c.matches(buf, start, length))
+                return c;
+        }
+        return UNKNOWN;
+    }
+
+    /**
+     * Finds the command with a name, ignoring case.
+     *
+     * @return The command, or UNKNOWN.
+     */
+    public static SceneCommand forName(String name) {
+        byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+        return lookup(bytes, 0, bytes.length, hash(bytes, 0, bytes.length));
+    }
+
+    private boolean matches(byte[] buf, int start, int length) {
+        if (length != keyword.length)
+            return false;
+        for (int i = 0; i < length; i++) {
+            if (lower(buf[start + i]) != keyword[i])
+                return false;
+        }
+        return true;
+    }
+}
@@ -0,0 +1,437 @@
+// Starting code Copyright 2014 University of South Australia
+// Written by Michael Marner <michael.marner@unisa.edu.au>
+//
+package inft3032.scene;
+
+
+import inft3032.math.Matrix4;
+import inft3032.math.Vector2;
+import inft3032.math.Vector3;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Reads scene files straight out of a (memory mapped) byte buffer.
+ * <p>
+ * Accepts the same syntax as SceneFileStreamTokenizer: Java style comments,
+ * words made of letters, digits, '_', '.' and '-', strings quoted with " or !,
+ * and numbers. Numbers are parsed straight to floats without going through a
+ * String, commands are looked up by hash without one, and the only objects
+ * made are the strings and vectors asked for.
+ * <p>
+ * Text is copied out of the buffer a window at a time, as reading a byte[] is
+ * much faster than reading a mapped buffer byte by byte. The window is topped
+ * up before each token, so a token can be up to MAX_TOKEN bytes long.
+ * <p>
+ * Errors say the line and column of the token they are about.
+ */
+public class SceneFileBufferTokenizer implements SceneTokenizer {
+
+    private static final int WINDOW = 1 << 20;
+    private static final int MAX_TOKEN = 1 << 16;
+
+    private static final double[] POW10 = new double[23];
+    static {
+        POW10[0] = 1.0;
+        for (int i = 1; i < POW10.length; i++)
+            POW10[i] = POW10[i - 1] * 10.0;
+    }
+
+    // Character classes
+    private static final byte WORD_START = 1;
+    private static final byte WORD_PART = 2;
+    private static final byte[] CLASS = new byte[256];
+    static {
+        for (int c = 0; c < 256; c++) {
+            if (c >= 'a' && c <= 'z' || c >= 'A' && c <= 'Z' || c == '_' || c >= 128)
+                CLASS[c] = WORD_START | WORD_PART;
+            else if (c >= '0' && c <= '9' || c == '.' || c == '-')
+                CLASS[c] = WORD_PART;
+        }
+    }
+
+    private final ByteBuffer src;
+    private final String fileName;
+    private final byte[] buf = new byte[WINDOW];
+    private int pos;
+    private int end;
+
+    /**
+     * Offset in the source of buf[0], and of the start of the current line.
+     */
+    private long base;
+    private long lineStart;
+    private int line = 1;
+
+    private int tokenLine = 1;
+    private int tokenColumn = 1;
+
+    /**
+     * Maps a scene file.
+     * @param fileName The scene file.
+     * @return A tokenizer for the whole file.
+     * @throws IOException if the file can't be read.
+     */
+    public static SceneFileBufferTokenizer open(String fileName) throws IOException {
+        RandomAccessFile file = new RandomAccessFile(fileName, "r");
+        try {
+            FileChannel channel = file.getChannel();
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE)
+                throw new IOException(fileName + ": files over 2GB are not supported");
+            return new SceneFileBufferTokenizer(channel.map(FileChannel.MapMode.READ_ONLY, 0, size), fileName);
+        } finally {
+            file.close();
+        }
+    }
+
+    /**
+     * @param src The text, from position to limit.
+     * @param fileName The file name, for error messages.
+     */
+    public SceneFileBufferTokenizer(ByteBuffer src, String fileName) {
+        this.src = src.duplicate();
+        this.fileName = fileName;
+    }
+
+    public String location() {
+        return fileName + ":" + tokenLine + ":" + tokenColumn;
+    }
+
+    /**
+     * Moves the unread part of the window to the front and fills the rest from the source.
+     * @return False if there was nothing left to read.
+     */
+    private boolean refill() {
+        if (!src.hasRemaining())
+            return false;
+        int keep = end - pos;
+        System.arraycopy(buf, pos, buf, 0, keep);
+        base += pos;
+        pos = 0;
+        int n = Math.min(src.remaining(), buf.length - keep);
+        src.get(buf, keep, n);
+        end = keep + n;
+        return true;
+    }
+
+    private void newLine() {
+        line++;
+        lineStart = base + pos;
+    }
+
+    /**
+     * Skips whitespace and comments, makes sure the next token is in the window,
+     * and notes where it starts.
+     * @return False at the end of the file.
+     */
+    private boolean startToken() {
+        while (true) {
+            if (pos == end && !refill())
+                break;
+            byte c = buf[pos];
+            if (c == '\n') {
+                pos++;
+                newLine();
+            } else if (c >= 0 && c <= ' ') {
+                pos++;
+            } else if (c == '/') {
+                if (pos + 1 == end)
+                    refill();
+                if (pos + 1 < end && buf[pos + 1] == '*')
+                    skipBlockComment();
+                else
+                    skipLineComment();
+            } else {
+                break;
+            }
+        }
+        if (end - pos < MAX_TOKEN)
+            refill();
+        tokenLine = line;
+        tokenColumn = (int) (base + pos - lineStart) + 1;
+        return pos < end;
+    }
+
+    private void skipLineComment() {
+        while (true) {
+            if (pos == end && !refill())
+                return;
+            if (buf[pos] == '\n')
+                return;
+            pos++;
+        }
+    }
+
+    private void skipBlockComment() {
+        pos += 2;
+        while (true) {
+            if (pos == end && !refill())
+                return;
+            byte c = buf[pos++];
+            if (c == '\n') {
+                newLine();
+            } else if (c == '*') {
+                if (pos == end)
+                    refill();
+                if (pos < end && buf[pos] == '/') {
+                    pos++;
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Checks a token ended inside the window, rather than running off the end of it.
+     */
+    private void checkLength(int p) {
+        if (p == end && src.hasRemaining())
+            throw new SceneFileException("Token longer than " + MAX_TOKEN + " bytes");
+    }
+
+    private static boolean startsNumber(byte[] buf, int p, int end) {
+        byte c = buf[p];
+        if (c == '-' || c == '+') {
+            if (++p == end)
+                return false;
+            c = buf[p];
+        }
+        return c >= '0' && c <= '9' || c == '.';
+    }
+
+    /**
+     * Reads a decimal number, with optional sign, fraction and exponent.
+     * Digits past the 18th significant one are dropped, which is far beyond
+     * float precision.
+     * @param what The error message if the next token isn't a number.
+     */
+    private double readNumber(String what) {
+        if (!startToken() || !startsNumber(buf, pos, end))
+            throw new SceneFileException(what);
+        int p = pos;
+        boolean negative = false;
+        byte c = buf[p];
+        if (c == '-' || c == '+') {
+            negative = c == '-';
+            p++;
+        }
+        long mantissa = 0;
+        int significant = 0;
+        int exponent = 0;
+        int digits = 0;
+        boolean fraction = false;
+        for (; p < end; p++) {
+            c = buf[p];
+            if (c >= '0' && c <= '9') {
+                digits++;
+                if (significant < 18) {
+                    if (mantissa != 0 || c != '0')
+                        significant++;
+                    mantissa = mantissa * 10 + (c - '0');
+                    if (fraction)
+                        exponent--;
+                } else if (!fraction) {
+                    exponent++;
+                }
+            } else if (c == '.' && !fraction) {
+                fraction = true;
+            } else {
+                break;
+            }
+        }
+        if (digits == 0)
+            throw new SceneFileException(what);
+        if (p < end && (buf[p] == 'e' || buf[p] == 'E')) {
+            // Only an exponent if digits follow, otherwise the 'e' starts the next token
+            int q = p + 1;
+            boolean negativeExponent = false;
+            if (q < end && (buf[q] == '-' || buf[q] == '+'))
+                negativeExponent = buf[q++] == '-';
+            if (q < end && buf[q] >= '0' && buf[q] <= '9') {
+                int e = 0;
+                for (; q < end && buf[q] >= '0' && buf[q] <= '9'; q++)
+                    e = Math.min(e * 10 + (buf[q] - '0'), 1000);
+                exponent += negativeExponent ? -e : e;
+                p = q;
+            }
+        }
+        checkLength(p);
+        pos = p;
+
+        double value = mantissa;
+        if (exponent < 0)
+            value = -exponent < POW10.length ? value / POW10[-exponent] : value / Math.pow(10, -exponent);
+        else if (exponent > 0)
+            value = exponent < POW10.length ? value * POW10[exponent] : value * Math.pow(10, exponent);
+        return negative ? -value : value;
+    }
+
+    /**
+     * Reads a string quoted with the character at pos, up to the matching
+     * quote or the end of the line, with Java style escapes.
+     */
+    private String readQuoted() {
+        byte quote = buf[pos++];
+        int start = pos;
+        int p = pos;
+        boolean escaped = false;
+        while (p < end) {
+            byte c = buf[p];
+            if (c == quote || c == '\n' || c == '\r')
+                break;
+            if (c == '\\') {
+                escaped = true;
+                p++;
+            }
+            p++;
+        }
+        p = Math.min(p, end);
+        checkLength(p);
+        pos = p < end && buf[p] == quote ? p + 1 : p;
+        String s = new String(buf, start, p - start, StandardCharsets.UTF_8);
+        return escaped ? unescape(s) : s;
+    }
+
+    private static String unescape(String s) {
+        StringBuilder b = new StringBuilder(s.length());
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c == '\\' && i + 1 < s.length()) {
+                c = s.charAt(++i);
+                switch (c) {
+                case 'a': c = 7; break;
+                case 'b': c = '\b'; break;
+                case 'f': c = 0xC; break;
+                case 'n': c = '\n'; break;
+                case 'r': c = '\r'; break;
+                case 't': c = '\t'; break;
+                case 'v': c = 0xB; break;
+                default: break;
+                }
+            }
+            b.append(c);
+        }
+        return b.toString();
+    }
+
+    /**
+     * @return The end of the word starting at pos.
+     */
+    private int wordEnd() {
+        int p = pos + 1;
+        while (p < end && (CLASS[buf[p] & 0xff] & WORD_PART) != 0)
+            p++;
+        checkLength(p);
+        return p;
+    }
+
+    public SceneCommand nextCommand() throws SceneFileException {
+        if (!startToken())
+            return null;
+        if (buf[pos] != '#')
+            throw new SceneFileException("Command does not start with #");
+        pos++;
+        if (!startToken())
+            throw new SceneFileException("Attempting to read string");
+        byte c = buf[pos];
+        if (c == '"' || c == '!')
+            return SceneCommand.forName(readQuoted());
+        if ((CLASS[c & 0xff] & WORD_START) == 0)
+            throw new SceneFileException("Attempting to read string");
+        int start = pos;
+        pos = wordEnd();
+        return SceneCommand.lookup(buf, start, pos - start, SceneCommand.hash(buf, start, pos - start));
+    }
+
+    public int readInt() throws SceneFileException {
+        return (int) readNumber("Attempting to read integer");
+    }
+
+    public int readInt(int min) throws SceneFileException {
+        int temp = readInt();
+        if (temp >= min)
+            return temp;
+        else
+            throw new SceneFileException("Integer read (" + temp + ") below minimum (" + min + ")");
+    }
+
+    public int readInt(int min, int max) throws SceneFileException {
+        int temp = readInt();
+        if (temp >= min && temp <= max)
+            return temp;
+        else
+            throw new SceneFileException("Integer read (" + temp + ") not in range (" + min + ", " + max + ")");
+    }
+
+    public float readFloat() throws SceneFileException {
+        return (float) readNumber("Attempting to read double");
+    }
+
+    public float readFloat(float min) throws SceneFileException {
+        double nval = readNumber("Attempting to read double");
+        if (nval >= min)
+            return (float) nval;
+        else
+            throw new SceneFileException("Double read (" + nval + ") less than minimum (" + min + ")");
+    }
+
+    public float readFloat(float min, float max) throws SceneFileException {
+        double nval = readNumber("Attempting to read double");
+        if (nval >= min && nval <= max)
+            return (float) nval;
+        else
+            throw new SceneFileException("Doube read (" + nval + ") not in range (" + min + ", " + max + ")");
+    }
+
+    public String readString() throws SceneFileException {
+        if (!startToken())
+            throw new SceneFileException("Attempting to read string");
+        byte c = buf[pos];
+        if (c == '"' || c == '!')
+            return readQuoted();
+        if ((CLASS[c & 0xff] & WORD_START) == 0)
+            throw new SceneFileException("Attempting to read string");
+        int start = pos;
+        pos = wordEnd();
+        return new String(buf, start, pos - start, StandardCharsets.UTF_8);
+    }
+
+    public Vector2 readVector2() throws SceneFileException {
+        return new Vector2(readFloat(), readFloat());
+    }
+
+    public Vector3 readVector3() throws SceneFileException {
+        return new Vector3(readFloat(), readFloat(), readFloat());
+    }
+
+    public Vector3 readColour() throws SceneFileException {
+        return new Vector3(readFloat(0, 1), readFloat(0, 1), readFloat(0, 1));
+    }
+
+    public Matrix4 readMatrix() throws SceneFileException {
+        return new Matrix4(readFloat(), readFloat(), readFloat(), readFloat(),
+                readFloat(), readFloat(), readFloat(), readFloat(),
+                readFloat(), readFloat(), readFloat(), readFloat(),
+                readFloat(), readFloat(), readFloat(), readFloat());
+    }
+
+    public void discard(int tokens, String msg) {
+        System.out.println(msg);
+        for (int i = 0; i < tokens && startToken(); i++) {
+            byte c = buf[pos];
+            if (c == '"' || c == '!')
+                readQuoted();
+            else if (startsNumber(buf, pos, end))
+                readNumber("");
+            else if ((CLASS[c & 0xff] & WORD_START) != 0)
+                pos = wordEnd();
+            else
+                pos++;
+        }
+    }
+}
@@ -20,9 +20,12 @@ import java.io.StreamTokenizer;
  * to allow underscore as a word character, to make '#' a token start character,
  * and to allow both " and ! to be seen as characters that start and end strings.
  *
+ * Scene.read uses SceneFileBufferTokenizer, which is much faster; this one is
+ * kept for reading from a Reader and for comparison.
+ *
  * @author a.sobey
  */
-public class SceneFileStreamTokenizer extends StreamTokenizer {
+public class SceneFileStreamTokenizer extends StreamTokenizer implements SceneTokenizer {
 
     /**
      * The only constructor provided - need to pass a Reader object to this constructor. Typically
@@ -46,6 +49,22 @@ public class SceneFileStreamTokenizer extends StreamTokenizer {
         super.eolIsSignificant(false);
     }
 
+    public SceneCommand nextCommand() throws SceneFileException {
+        try {
+            if (nextToken() == StreamTokenizer.TT_EOF)
+                return null;
+        } catch (IOException e) {
+            throw new SceneFileException("Could not read next token");
+        }
+        if (ttype != Scene.HASH)
+            throw new SceneFileException("Command does not start with " + '#');
+        return SceneCommand.forName(readString());
+    }
+
+    public String location() {
+        return "line " + lineno();
+    }
+
     /**
      * Read the next token as in integer.
      * @return The next token as an integer.
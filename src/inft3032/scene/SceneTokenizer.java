@@ -0,0 +1,78 @@
+// Starting code Copyright 2014 University of South Australia
+// Written by Michael Marner <michael.marner@unisa.edu.au>
+//
+package inft3032.scene;
+
+
+import inft3032.math.Matrix4;
+import inft3032.math.Vector2;
+import inft3032.math.Vector3;
+
+/**
+ * Reads the commands, numbers and strings of a scene file for Scene.read.
+ * <p>
+ * Every method throws a SceneFileException if the next token isn't what was asked for.
+ */
+public interface SceneTokenizer {
+
+    /**
+     * Reads the next command, including its '#'.
+     * @return The command, or null at the end of the file.
+     * @throws SceneFileException if the next token isn't a '#' followed by a name.
+     */
+    SceneCommand nextCommand() throws SceneFileException;
+
+    int readInt() throws SceneFileException;
+
+    /**
+     * @param min The minimum value for the integer read.
+     */
+    int readInt(int min) throws SceneFileException;
+
+    /**
+     * @param min The minimum value for the integer read.
+     * @param max The maximum value for the integer read.
+     */
+    int readInt(int min, int max) throws SceneFileException;
+
+    float readFloat() throws SceneFileException;
+
+    /**
+     * @param min The minimum value for the float read.
+     */
+    float readFloat(float min) throws SceneFileException;
+
+    /**
+     * @param min The minimum value for the float read.
+     * @param max The maximum value for the float read.
+     */
+    float readFloat(float min, float max) throws SceneFileException;
+
+    /**
+     * Reads a word, or a string quoted with " or !.
+     */
+    String readString() throws SceneFileException;
+
+    Vector2 readVector2() throws SceneFileException;
+
+    Vector3 readVector3() throws SceneFileException;
+
+    /**
+     * Reads three floats between 0 and 1.
+     */
+    Vector3 readColour() throws SceneFileException;
+
+    Matrix4 readMatrix() throws SceneFileException;
+
+    /**
+     * Discards tokens and prints a string to standard output.
+     * @param tokens The number of tokens to discard.
+     * @param msg The string to write to standard output.
+     */
+    void discard(int tokens, String msg);
+
+    /**
+     * @return Where the last token read started, for error messages.
+     */
+    String location();
+}
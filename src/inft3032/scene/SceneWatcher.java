@@ -0,0 +1,132 @@
+// Starting code Copyright 2014 University of South Australia
+// Written by Michael Marner <michael.marner@unisa.edu.au>
+//
+package inft3032.scene;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Watches a scene file and reads it again whenever it changes.
+ * <p>
+ * The new version of the scene is read on the watcher's own thread, reusing
+ * the textures and meshes of the version before (see Scene.reuseAssets), and
+ * handed to a Listener with all its assets loaded. A scene file with errors
+ * is reported and otherwise ignored, so the last good version stays on screen.
+ */
+public class SceneWatcher implements Runnable {
+
+    /**
+     * Editors often save in several steps, so changes are gathered until the
+     * file has been quiet for this long.
+     */
+    private static final long SETTLE_MILLIS = 50;
+
+    /**
+     * Told about each new version of the scene.
+     */
+    public interface Listener {
+        /**
+         * Called on the watcher's thread.
+         * @param scene The scene as it is now, with its textures and meshes loaded.
+         */
+        void sceneChanged(Scene scene);
+    }
+
+    private final Path file;
+    private final Listener listener;
+    private final WatchService watcher;
+    private Scene previous;
+
+    /**
+     * @param fileName The scene file to watch.
+     * @param current The scene as already read from the file.
+     * @param listener Told about each new version.
+     * @throws IOException if the file's directory can't be watched.
+     */
+    public SceneWatcher(String fileName, Scene current, Listener listener) throws IOException {
+        this.file = Paths.get(fileName).toAbsolutePath();
+        this.previous = current;
+        this.listener = listener;
+        this.watcher = FileSystems.getDefault().newWatchService();
+        file.getParent().register(watcher, StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_CREATE);
+    }
+
+    /**
+     * Starts watching on a daemon thread.
+     */
+    public void start() {
+        Thread t = new Thread(this, "scene-watcher");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    /**
+     * Stops watching.
+     */
+    public void stop() {
+        try {
+            watcher.close();
+        } catch (IOException e) {
+            Trace.msg("Closing scene watcher: " + e);
+        }
+    }
+
+    public void run() {
+        try {
+            while (true) {
+                if (!changed(watcher.take()))
+                    continue;
+                // Wait for the file to settle
+                WatchKey key;
+                while ((key = watcher.poll(SETTLE_MILLIS, TimeUnit.MILLISECONDS)) != null)
+                    changed(key);
+                reload();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ClosedWatchServiceException e) {
+            // stopped
+        }
+    }
+
+    /**
+     * @return Whether the key has events for the scene file. The key is reset.
+     */
+    private boolean changed(WatchKey key) {
+        boolean changed = false;
+        for (WatchEvent<?> event : key.pollEvents()) {
+            Object context = event.context();
+            if (event.kind() == StandardWatchEventKinds.OVERFLOW
+                    || (context instanceof Path && file.getFileName().equals(context)))
+                changed = true;
+        }
+        key.reset();
+        return changed;
+    }
+
+    private void reload() {
+        long start = System.nanoTime();
+        Scene scene = new Scene();
+        scene.reuseAssets(previous);
+        try {
+            scene.read(file.toString());
+            scene.awaitAssets();
+        } catch (RuntimeException e) {
+            // Usually a SceneFileException, but keep watching whatever went wrong
+            System.out.println("Not reloading " + file.getFileName() + ": " + e.getMessage());
+            return;
+        }
+        Trace.msg(String.format("Reread %s in %.1fms", file.getFileName(), (System.nanoTime() - start) / 1.0e6));
+        previous = scene;
+        listener.sceneChanged(scene);
+    }
+}